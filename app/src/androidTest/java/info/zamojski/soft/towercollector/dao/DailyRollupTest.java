@@ -0,0 +1,167 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import info.zamojski.soft.towercollector.dev.MeasurementBuilder;
+import info.zamojski.soft.towercollector.model.CellReading;
+import info.zamojski.soft.towercollector.model.LocationFix;
+import info.zamojski.soft.towercollector.model.Measurement;
+
+/**
+ * Verifies that {@link DailyRollup} keeps daily tables equal to rollup computed from measurements.
+ */
+public class DailyRollupTest extends AndroidTestCase {
+
+    private static final long START = 1500000000000L;
+    private static final long HOUR = 3600000;
+
+    private static final String QUERY_EXPECTED_CELLS = "SELECT m.measured_at / 86400000, c.cell_key, COUNT(*) FROM measurements m "
+            + "INNER JOIN cells c ON c.row_id = m.cell_id GROUP BY 1, 2 ORDER BY 1, 2";
+    private static final String QUERY_ACTUAL_CELLS = "SELECT day, cell_key, measurements FROM daily_cells ORDER BY 1, 2";
+    private static final String QUERY_EXPECTED_STATS = "SELECT m.measured_at / 86400000, c.net_type, COUNT(*), COUNT(DISTINCT c.cell_key) FROM measurements m "
+            + "INNER JOIN cells c ON c.row_id = m.cell_id GROUP BY 1, 2 ORDER BY 1, 2";
+    private static final String QUERY_ACTUAL_STATS = "SELECT day, net_type, measurements, cells FROM daily_stats ORDER BY 1, 2";
+
+    private SQLiteDatabase db;
+    private File knownCellsIndexFile;
+    private CellRowIdCache cellRowIdCache;
+    private MeasurementsInserter inserter;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        db = SQLiteDatabase.create(null);
+        knownCellsIndexFile = new File(getContext().getCacheDir(), "rollup_known_cells.idx");
+        knownCellsIndexFile.delete();
+        ITable[] tables = new ITable[]{new NetworksTable(), new CellsArchiveTable(), new StatsTable(), new LocationsTable(), new CellsTable(),
+                new DailyStatsTable(), new DailyCellsTable(), new MeasurementsTable(), new MeasurementsArchiveTable()};
+        for (ITable table : tables) {
+            for (String query : table.getCreateQueries()) {
+                db.execSQL(query);
+            }
+        }
+        KnownCellsIndex knownCellsIndex = new KnownCellsIndex(knownCellsIndexFile);
+        cellRowIdCache = new CellRowIdCache(16);
+        inserter = new MeasurementsInserter(db, cellRowIdCache, knownCellsIndex, new StatisticsCounters(knownCellsIndex), null, 0);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        inserter.close();
+        db.close();
+        knownCellsIndexFile.delete();
+        super.tearDown();
+    }
+
+    public void testCountsMeasurementsAndCellsPerDay() {
+        // two days, the same cell twice in one transaction
+        insert(gsm(1, 0), gsm(1, 0), lte(2, 0));
+        insert(gsm(1, HOUR), gsm(3, 25 * HOUR));
+        assertRollup();
+        assertEquals(4, queryForLong("SELECT SUM(measurements) FROM daily_stats WHERE day = " + (START / MeasurementsDatabase.DAY_MILLIS)));
+    }
+
+    public void testReleasesDeletedMeasurements() {
+        insert(gsm(1, 0), gsm(2, HOUR), lte(3, 2 * HOUR));
+        insert(gsm(1, 25 * HOUR), lte(3, 26 * HOUR));
+        delete(START + HOUR);
+        assertRollup();
+        // day without measurements of given network type is removed
+        assertEquals(3, queryForLong("SELECT COUNT(*) FROM daily_stats"));
+    }
+
+    public void testCountsReinsertedCellOnce() {
+        insert(gsm(1, 0), gsm(2, HOUR));
+        // last measurement of the cell removes it, the same cell inserted again the same day gets new row id
+        delete(START);
+        cellRowIdCache.clear();
+        insert(gsm(1, 2 * HOUR));
+        assertRollup();
+        assertEquals(2, queryForLong("SELECT cells FROM daily_stats"));
+    }
+
+    private void delete(long lastMeasuredAt) {
+        String selection = "measured_at <= ?";
+        String[] selectionArgs = new String[]{String.valueOf(lastMeasuredAt)};
+        db.beginTransaction();
+        try {
+            DailyRollup.release(db, selection, selectionArgs);
+            db.delete(MeasurementsTable.TABLE_NAME, selection, selectionArgs);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private Measurement gsm(int cid, long time) {
+        return new MeasurementBuilder()
+                .setGsmCell(260, 1, 100, cid)
+                .setGsmSignal(20, -73)
+                .setLocation(52.0, 19.0, 100, 10f)
+                .setTime(START + time)
+                .build();
+    }
+
+    private Measurement lte(int ci, long time) {
+        return new MeasurementBuilder()
+                .setLteCell(260, 6, 5114, ci, 5)
+                .setLteSignal(20, -90, 5)
+                .setLocation(52.0, 19.0, 100, 10f)
+                .setTime(START + time)
+                .build();
+    }
+
+    private void insert(Measurement... measurements) {
+        List<LocationFix> fixes = new ArrayList<LocationFix>();
+        List<List<CellReading>> scans = new ArrayList<List<CellReading>>();
+        for (Measurement m : measurements) {
+            List<CellReading> cells = new ArrayList<CellReading>(1);
+            cells.add(new CellReading(m));
+            fixes.add(new LocationFix(m));
+            scans.add(cells);
+        }
+        assertTrue(inserter.insert(fixes, scans, false, new int[measurements.length], new long[measurements.length]));
+    }
+
+    private void assertRollup() {
+        assertEquals(queryForRows(QUERY_EXPECTED_CELLS), queryForRows(QUERY_ACTUAL_CELLS));
+        assertEquals(queryForRows(QUERY_EXPECTED_STATS), queryForRows(QUERY_ACTUAL_STATS));
+    }
+
+    private List<String> queryForRows(String query) {
+        List<String> rows = new ArrayList<String>();
+        Cursor cursor = db.rawQuery(query, null);
+        try {
+            while (cursor.moveToNext()) {
+                StringBuilder row = new StringBuilder();
+                for (int i = 0; i < cursor.getColumnCount(); i++) {
+                    row.append(cursor.getLong(i)).append(';');
+                }
+                rows.add(row.toString());
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+
+    private long queryForLong(String query) {
+        Cursor cursor = db.rawQuery(query, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+
+/**
+ * Verifies that {@link KnownCellsIndex} file stays equal to set of keys in cells and cells_archive tables.
+ */
+public class KnownCellsIndexTest extends AndroidTestCase {
+
+    private SQLiteDatabase db;
+    private File indexFile;
+    private KnownCellsIndex index;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        db = SQLiteDatabase.create(null);
+        indexFile = new File(getContext().getCacheDir(), "test_known_cells.idx");
+        deleteIndexFiles();
+        ITable[] tables = new ITable[]{new CellsArchiveTable(), new CellsTable()};
+        for (ITable table : tables) {
+            for (String query : table.getCreateQueries()) {
+                db.execSQL(query);
+            }
+        }
+        index = new KnownCellsIndex(indexFile);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        db.close();
+        deleteIndexFiles();
+        super.tearDown();
+    }
+
+    public void testRebuildsFromTables() {
+        insertCell(1);
+        insertCell(2);
+        insertArchivedCell(3);
+        // the same cell archived before and stored again
+        insertArchivedCell(1);
+        open(index);
+        assertTrue(indexFile.exists());
+        assertEquals(3, index.size());
+        assertContainsOnly(index, 1, 2, 3);
+    }
+
+    public void testMergesDelta() {
+        insertCell(1);
+        open(index);
+        for (long key = 2; key < KnownCellsIndex.MERGE_THRESHOLD + 2; key++) {
+            assertTrue(index.add(key));
+        }
+        assertFalse(index.add(1));
+        assertTrue(index.needsMerge());
+        index.merge(db);
+        assertFalse(index.needsMerge());
+        assertEquals(KnownCellsIndex.MERGE_THRESHOLD + 1, index.size());
+        assertTrue(index.contains(1));
+        assertTrue(index.contains(KnownCellsIndex.MERGE_THRESHOLD + 1));
+        assertFalse(index.add(KnownCellsIndex.MERGE_THRESHOLD + 1));
+        // merged keys are read back from file
+        KnownCellsIndex reopened = new KnownCellsIndex(indexFile);
+        open(reopened);
+        assertEquals(KnownCellsIndex.MERGE_THRESHOLD + 1, reopened.size());
+        assertTrue(reopened.contains(KnownCellsIndex.MERGE_THRESHOLD + 1));
+    }
+
+    public void testCatchesUpWithTablesWhenOpened() {
+        insertCell(1);
+        insertArchivedCell(2);
+        open(index);
+        index.close();
+        // rows added while index was closed
+        insertCell(3);
+        insertArchivedCell(4);
+        KnownCellsIndex reopened = new KnownCellsIndex(indexFile);
+        open(reopened);
+        assertContainsOnly(reopened, 1, 2, 3, 4);
+    }
+
+    public void testRebuildsIndexNewerThanDatabase() {
+        insertCell(1);
+        insertArchivedCell(2);
+        insertArchivedCell(3);
+        open(index);
+        index.close();
+        // watermark of file is greater than highest archive row id, e.g. database has been replaced
+        db.execSQL("DELETE FROM " + CellsArchiveTable.TABLE_NAME);
+        insertCell(4);
+        KnownCellsIndex reopened = new KnownCellsIndex(indexFile);
+        open(reopened);
+        assertContainsOnly(reopened, 1, 4);
+        assertFalse(reopened.contains(2));
+        assertFalse(reopened.contains(3));
+    }
+
+    public void testRemovesKeyAfterRollback() {
+        insertCell(1);
+        open(index);
+        db.beginTransaction();
+        try {
+            insertCell(2);
+            assertTrue(index.add(2));
+        } finally {
+            db.endTransaction();
+        }
+        index.remove(2);
+        assertFalse(index.contains(2));
+        assertEquals(1, index.size());
+        // keys from file are not affected
+        index.remove(1);
+        assertTrue(index.contains(1));
+        // removed key is not written by merge
+        assertTrue(index.add(3));
+        index.merge(db);
+        KnownCellsIndex reopened = new KnownCellsIndex(indexFile);
+        open(reopened);
+        assertContainsOnly(reopened, 1, 3);
+        assertFalse(reopened.contains(2));
+    }
+
+    private void open(KnownCellsIndex index) {
+        db.beginTransaction();
+        try {
+            index.ensureOpen(db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        assertTrue(index.isOpen());
+    }
+
+    private void insertCell(long cellKey) {
+        db.execSQL("INSERT INTO " + CellsTable.TABLE_NAME + " (mcc, mnc, lac, cid, net_type, cell_key, discovered_at) VALUES (260, 1, 1, ?, 2, ?, 0)",
+                new Object[]{cellKey, cellKey});
+    }
+
+    private void insertArchivedCell(long cellKey) {
+        db.execSQL("INSERT INTO " + CellsArchiveTable.TABLE_NAME + " (mcc, mnc, lac, cid, net_type, cell_key, discovered_at) VALUES (260, 1, 1, ?, 2, ?, 0)",
+                new Object[]{cellKey, cellKey});
+    }
+
+    private static void assertContainsOnly(KnownCellsIndex index, long... keys) {
+        assertEquals(keys.length, index.size());
+        for (long key : keys) {
+            assertTrue("Missing key " + key, index.contains(key));
+        }
+    }
+
+    private void deleteIndexFiles() {
+        indexFile.delete();
+        new File(indexFile.getPath() + ".tmp").delete();
+    }
+}
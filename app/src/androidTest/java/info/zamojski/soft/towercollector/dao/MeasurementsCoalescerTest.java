@@ -0,0 +1,181 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import info.zamojski.soft.towercollector.dev.MeasurementBuilder;
+import info.zamojski.soft.towercollector.model.CellReading;
+import info.zamojski.soft.towercollector.model.LocationFix;
+import info.zamojski.soft.towercollector.model.Measurement;
+
+/**
+ * Verifies merge rules of {@link MeasurementsCoalescer} on rows written by {@link MeasurementsInserter}.
+ */
+public class MeasurementsCoalescerTest extends AndroidTestCase {
+
+    private static final long WINDOW = 60000;
+    private static final float DISTANCE = 20;
+    private static final long START = 1500000000000L;
+    // about 11 m to the north
+    private static final double STEP = 0.0001;
+
+    private SQLiteDatabase db;
+    private File knownCellsIndexFile;
+    private MeasurementsInserter inserter;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        db = SQLiteDatabase.create(null);
+        knownCellsIndexFile = new File(getContext().getCacheDir(), "coalescer_known_cells.idx");
+        knownCellsIndexFile.delete();
+        ITable[] tables = new ITable[]{new NetworksTable(), new CellsArchiveTable(), new StatsTable(), new LocationsTable(), new CellsTable(),
+                new DailyStatsTable(), new DailyCellsTable(), new MeasurementsTable(), new MeasurementsArchiveTable()};
+        for (ITable table : tables) {
+            for (String query : table.getCreateQueries()) {
+                db.execSQL(query);
+            }
+        }
+        KnownCellsIndex knownCellsIndex = new KnownCellsIndex(knownCellsIndexFile);
+        inserter = new MeasurementsInserter(db, new CellRowIdCache(16), knownCellsIndex, new StatisticsCounters(knownCellsIndex),
+                new MeasurementsCoalescer(WINDOW, DISTANCE), 0);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        inserter.close();
+        db.close();
+        knownCellsIndexFile.delete();
+        super.tearDown();
+    }
+
+    public void testMergesStationaryReadings() {
+        long rowId = insert(true, measurement(0, 0, 20, -90, 5));
+        assertEquals(rowId, insert(true, measurement(10000, STEP, 18, -94, 5)));
+        assertEquals(rowId, insert(true, measurement(20000, 0, 16, -98, 5)));
+
+        assertEquals(1, count(MeasurementsTable.TABLE_NAME));
+        // location of merged readings is not stored
+        assertEquals(1, count(LocationsTable.TABLE_NAME));
+        Cursor cursor = db.rawQuery("SELECT asu, dbm, dbm_min, dbm_max, samples, measured_at FROM measurements", null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(18, cursor.getInt(0));
+            assertEquals(-94, cursor.getInt(1));
+            assertEquals(-98, cursor.getInt(2));
+            assertEquals(-90, cursor.getInt(3));
+            assertEquals(3, cursor.getInt(4));
+            assertEquals(START, cursor.getLong(5));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testSingleSampleHasNoRange() {
+        insert(true, measurement(0, 0, 20, -90, 5));
+
+        Cursor cursor = db.rawQuery("SELECT dbm_min, dbm_max, samples FROM measurements", null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertTrue(cursor.isNull(0));
+            assertTrue(cursor.isNull(1));
+            assertEquals(1, cursor.getInt(2));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testDistanceIsMeasuredFromFirstSample() {
+        long rowId = insert(true, measurement(0, 0, 20, -90, 5));
+        assertEquals(rowId, insert(true, measurement(10000, STEP, 20, -90, 5)));
+        // within distance from previous sample but not from the first one
+        assertFalse(rowId == insert(true, measurement(20000, 2 * STEP, 20, -90, 5)));
+        assertEquals(2, count(MeasurementsTable.TABLE_NAME));
+    }
+
+    public void testWindowIsMeasuredFromFirstSample() {
+        long rowId = insert(true, measurement(0, 0, 20, -90, 5));
+        assertEquals(rowId, insert(true, measurement(WINDOW, 0, 20, -90, 5)));
+        long nextRowId = insert(true, measurement(WINDOW + 1, 0, 20, -90, 5));
+        assertFalse(rowId == nextRowId);
+        // new row is open for merging
+        assertEquals(nextRowId, insert(true, measurement(WINDOW + 2, 0, 20, -90, 5)));
+        assertEquals(2, count(MeasurementsTable.TABLE_NAME));
+    }
+
+    public void testDoesNotMergeOlderReading() {
+        insert(true, measurement(10000, 0, 20, -90, 5));
+        insert(true, measurement(0, 0, 20, -90, 5));
+        assertEquals(2, count(MeasurementsTable.TABLE_NAME));
+    }
+
+    public void testDoesNotMergeDifferentTimingAdvance() {
+        insert(true, measurement(0, 0, 20, -90, 5));
+        insert(true, measurement(10000, 0, 20, -90, 6));
+        assertEquals(2, count(MeasurementsTable.TABLE_NAME));
+    }
+
+    public void testDoesNotMergeMainAndNeighboringReadings() {
+        insert(true, measurement(0, 0, 20, -90, 5));
+        Measurement neighboring = measurement(10000, 0, 20, -90, 5);
+        neighboring.setNeighboring(true);
+        insert(true, neighboring);
+        assertEquals(2, count(MeasurementsTable.TABLE_NAME));
+    }
+
+    public void testDoesNotMergeUnknownSignal() {
+        insert(true, measurement(0, 0, Measurement.UNKNOWN_SIGNAL, Measurement.UNKNOWN_SIGNAL, 5));
+        insert(true, measurement(10000, 0, Measurement.UNKNOWN_SIGNAL, Measurement.UNKNOWN_SIGNAL, 5));
+        insert(true, measurement(20000, 0, 20, -90, 5));
+        insert(true, measurement(30000, 0, Measurement.UNKNOWN_SIGNAL, Measurement.UNKNOWN_SIGNAL, 5));
+        assertEquals(4, count(MeasurementsTable.TABLE_NAME));
+    }
+
+    public void testDoesNotMergeWhenNotRequested() {
+        insert(false, measurement(0, 0, 20, -90, 5));
+        insert(true, measurement(10000, 0, 20, -90, 5));
+        insert(false, measurement(20000, 0, 20, -90, 5));
+        assertEquals(3, count(MeasurementsTable.TABLE_NAME));
+    }
+
+    public void testInsertsWhenOpenRowHasBeenDeleted() {
+        insert(true, measurement(0, 0, 20, -90, 5));
+        db.delete(MeasurementsTable.TABLE_NAME, null, null);
+        long rowId = insert(true, measurement(10000, 0, 20, -90, 5));
+        assertTrue(rowId != ScanInsertResult.ROW_NOT_INSERTED);
+        assertEquals(1, count(MeasurementsTable.TABLE_NAME));
+    }
+
+    private Measurement measurement(long time, double latitudeOffset, int asu, int dbm, int ta) {
+        Measurement m = new MeasurementBuilder()
+                .setLteCell(260, 6, 5114, 1000000, 5)
+                .setLteSignal(asu, dbm, ta)
+                .setLocation(52.0 + latitudeOffset, 19.0, 100, 10f)
+                .setTime(START + time)
+                .build();
+        return m;
+    }
+
+    private long insert(boolean coalesce, Measurement m) {
+        List<CellReading> cells = new ArrayList<CellReading>(1);
+        cells.add(new CellReading(m));
+        long[] rowIds = new long[1];
+        assertTrue(inserter.insert(Collections.singletonList(new LocationFix(m)), Collections.singletonList(cells), coalesce, new int[1], rowIds));
+        return rowIds[0];
+    }
+
+    private long count(String table) {
+        return DatabaseUtils.queryNumEntries(db, table);
+    }
+}
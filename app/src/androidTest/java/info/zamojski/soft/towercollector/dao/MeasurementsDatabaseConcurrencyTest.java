@@ -0,0 +1,134 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import info.zamojski.soft.towercollector.dev.MeasurementBuilder;
+import info.zamojski.soft.towercollector.model.Measurement;
+
+/**
+ * Checks that reads are served from last committed state while write transaction is open.
+ */
+public class MeasurementsDatabaseConcurrencyTest extends AndroidTestCase {
+
+    private static final int MEASUREMENTS_COUNT = 20;
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private Context testContext;
+    private MeasurementsDatabase database;
+    private ExecutorService executor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        testContext = new RenamingDelegatingContext(getContext(), "concurrency_");
+        testContext.deleteDatabase(MeasurementsDatabase.DATABASE_FILE_NAME);
+        MeasurementsDatabase.invalidateInstance(testContext);
+        database = MeasurementsDatabase.getInstance(testContext);
+        executor = Executors.newSingleThreadExecutor();
+        assertTrue(database.insertMeasurements(createMeasurements(0, MEASUREMENTS_COUNT)));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        executor.shutdownNow();
+        MeasurementsDatabase.invalidateInstance(testContext);
+        testContext.deleteDatabase(MeasurementsDatabase.DATABASE_FILE_NAME);
+        super.tearDown();
+    }
+
+    public void testWriteAheadLogEnabled() {
+        SQLiteDatabase db = database.getWriterDatabase();
+        assertEquals("wal", queryPragma(db, "PRAGMA journal_mode"));
+        // NORMAL
+        assertEquals("1", queryPragma(db, "PRAGMA synchronous"));
+    }
+
+    public void testReadDuringWriteTransaction() throws Exception {
+        final CountDownLatch writeStarted = new CountDownLatch(1);
+        final CountDownLatch readFinished = new CountDownLatch(1);
+        Future<Void> writer = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                SQLiteDatabase db = database.getWriterDatabase();
+                db.beginTransaction();
+                try {
+                    db.delete(MeasurementsTable.TABLE_NAME, "1", null);
+                    writeStarted.countDown();
+                    // keep transaction open until reader is done, then roll back
+                    assertTrue(readFinished.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+                } finally {
+                    db.endTransaction();
+                }
+                return null;
+            }
+        });
+        assertTrue(writeStarted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        long start = System.currentTimeMillis();
+        // uncommitted delete must not be visible and must not block
+        assertEquals(MEASUREMENTS_COUNT, database.getAllMeasurementsCount());
+        List<Measurement> measurements = database.getOlderMeasurements(Long.MAX_VALUE, null, MEASUREMENTS_COUNT * 2);
+        assertEquals(MEASUREMENTS_COUNT, measurements.size());
+        assertTrue(System.currentTimeMillis() - start < TIMEOUT_SECONDS * 1000);
+        readFinished.countDown();
+        writer.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertEquals(MEASUREMENTS_COUNT, database.getAllMeasurementsCount());
+    }
+
+    public void testCommittedWriteVisibleToReader() throws Exception {
+        Future<Boolean> writer = executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return database.insertMeasurements(createMeasurements(MEASUREMENTS_COUNT, MEASUREMENTS_COUNT));
+            }
+        });
+        assertTrue(writer.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(2 * MEASUREMENTS_COUNT, database.getAllMeasurementsCount());
+    }
+
+    public void testCheckpointCopiesWholeLog() {
+        assertTrue(database.checkpoint());
+    }
+
+    private static Measurement[] createMeasurements(int first, int count) {
+        Measurement[] measurements = new Measurement[count];
+        for (int i = 0; i < count; i++) {
+            int index = first + i;
+            Measurement m = new MeasurementBuilder()
+                    .setLteCell(260, 6, 5114, 1000000 + index, 100)
+                    .setLteSignal(40, -95, 5)
+                    .build();
+            m.setLatitude(52.0 + index * 0.0001);
+            m.setLongitude(19.0 + index * 0.0001);
+            m.setGpsAccuracy(10f);
+            m.setTimestamp(1500000000000L + index * 1000L);
+            measurements[i] = m;
+        }
+        return measurements;
+    }
+
+    private static String queryPragma(SQLiteDatabase db, String pragma) {
+        Cursor cursor = db.rawQuery(pragma, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
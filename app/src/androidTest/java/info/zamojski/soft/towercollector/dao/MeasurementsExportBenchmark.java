@@ -0,0 +1,95 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import android.util.Log;
+
+import java.util.List;
+
+import info.zamojski.soft.towercollector.dev.MeasurementBuilder;
+import info.zamojski.soft.towercollector.model.Measurement;
+
+/**
+ * Reads whole database in export sized pages using keyset pagination.
+ * Time per 1000 rows should stay flat for growing database. Results are written to logcat with tag of this class.
+ */
+public class MeasurementsExportBenchmark extends AndroidTestCase {
+
+    private static final String TAG = MeasurementsExportBenchmark.class.getSimpleName();
+
+    private static final int[] SIZES = new int[]{10000, 100000, 1000000};
+    private static final int MEASUREMENTS_PER_PART = 400;
+    private static final int CELLS_PER_SCAN = 8;
+    private static final int SCANS_PER_INSERT = 1000;
+
+    private Context benchmarkContext;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // separate database file, app database stays untouched
+        benchmarkContext = new RenamingDelegatingContext(getContext(), "benchmark_");
+        benchmarkContext.deleteDatabase(MeasurementsDatabase.DATABASE_FILE_NAME);
+        MeasurementsDatabase.invalidateInstance(benchmarkContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        MeasurementsDatabase.invalidateInstance(benchmarkContext);
+        benchmarkContext.deleteDatabase(MeasurementsDatabase.DATABASE_FILE_NAME);
+        super.tearDown();
+    }
+
+    public void testKeysetPagination() {
+        MeasurementsDatabase db = MeasurementsDatabase.getInstance(benchmarkContext);
+        int stored = 0;
+        for (int size : SIZES) {
+            stored = fill(db, stored, size);
+            Measurement lastMeasurement = db.getLastMeasurement();
+            long start = System.nanoTime();
+            int read = 0;
+            Measurement lastRead = null;
+            List<Measurement> measurements;
+            do {
+                measurements = db.getOlderMeasurements(lastMeasurement.getTimestamp(), lastRead, MEASUREMENTS_PER_PART);
+                if (!measurements.isEmpty()) {
+                    lastRead = measurements.get(measurements.size() - 1);
+                }
+                read += measurements.size();
+            } while (measurements.size() == MEASUREMENTS_PER_PART);
+            long durationNanos = System.nanoTime() - start;
+            assertEquals(size, read);
+            Log.i(TAG, String.format("%d rows read in %d ms = %.2f ms per 1000 rows", read, durationNanos / 1000000, durationNanos / 1e6 / (read / 1000.0)));
+        }
+    }
+
+    private int fill(MeasurementsDatabase db, int stored, int size) {
+        long timestamp = 1500000000000L + stored;
+        while (stored < size) {
+            Measurement[] batch = new Measurement[SCANS_PER_INSERT * CELLS_PER_SCAN];
+            for (int s = 0; s < SCANS_PER_INSERT; s++) {
+                int scan = stored / CELLS_PER_SCAN + s;
+                for (int c = 0; c < CELLS_PER_SCAN; c++) {
+                    Measurement m = new MeasurementBuilder()
+                            .setLteCell(260, 6, 5114, 1000000 + (scan % 5000), c)
+                            .setLteSignal(40, -95, 5)
+                            .build();
+                    m.setNeighboring(c > 0);
+                    m.setLatitude(52.0 + scan * 0.00001);
+                    m.setLongitude(19.0 + scan * 0.00001);
+                    m.setGpsAccuracy(10f);
+                    m.setTimestamp(timestamp + scan * 1000L);
+                    batch[s * CELLS_PER_SCAN + c] = m;
+                }
+            }
+            assertTrue(db.insertMeasurements(batch));
+            stored += batch.length;
+        }
+        return stored;
+    }
+}
@@ -0,0 +1,184 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import info.zamojski.soft.towercollector.dev.MeasurementBuilder;
+import info.zamojski.soft.towercollector.model.CellReading;
+import info.zamojski.soft.towercollector.model.LocationFix;
+import info.zamojski.soft.towercollector.model.Measurement;
+import info.zamojski.soft.towercollector.utils.CellKeyUtils;
+import info.zamojski.soft.towercollector.utils.HashUtils;
+
+/**
+ * Compares insert throughput of legacy ContentValues path and compiled statements.
+ * Results are written to logcat with tag of this class.
+ */
+public class MeasurementsInsertBenchmark extends AndroidTestCase {
+
+    private static final String TAG = MeasurementsInsertBenchmark.class.getSimpleName();
+
+    private static final int SCANS = 1000;
+    private static final int CELLS_PER_SCAN = 8;
+
+    private SQLiteDatabase db;
+    private File knownCellsIndexFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        db = SQLiteDatabase.create(null);
+        knownCellsIndexFile = new File(getContext().getCacheDir(), "benchmark_known_cells.idx");
+        knownCellsIndexFile.delete();
+        ITable[] tables = new ITable[]{new CellsArchiveTable(), new StatsTable(), new LocationsTable(), new CellsTable(), new MeasurementsTable()};
+        for (ITable table : tables) {
+            for (String query : table.getCreateQueries()) {
+                db.execSQL(query);
+            }
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        db.close();
+        knownCellsIndexFile.delete();
+        super.tearDown();
+    }
+
+    public void testLegacyInsert() {
+        Measurement[][] scans = createScans();
+        long start = System.nanoTime();
+        for (Measurement[] scan : scans) {
+            assertTrue(insertLegacy(scan));
+        }
+        report("legacy", System.nanoTime() - start);
+    }
+
+    public void testCompiledInsert() {
+        Measurement[][] scans = createScans();
+        List<List<LocationFix>> fixes = new ArrayList<List<LocationFix>>(SCANS);
+        List<List<List<CellReading>>> readings = new ArrayList<List<List<CellReading>>>(SCANS);
+        for (Measurement[] scan : scans) {
+            List<CellReading> cells = new ArrayList<CellReading>(scan.length);
+            for (Measurement m : scan) {
+                cells.add(new CellReading(m));
+            }
+            fixes.add(Collections.singletonList(new LocationFix(scan[0])));
+            readings.add(Collections.singletonList(cells));
+        }
+        KnownCellsIndex knownCellsIndex = new KnownCellsIndex(knownCellsIndexFile);
+        MeasurementsInserter inserter = new MeasurementsInserter(db, new CellRowIdCache(256), knownCellsIndex, new StatisticsCounters(knownCellsIndex), null, 0);
+        long start = System.nanoTime();
+        for (int s = 0; s < SCANS; s++) {
+            assertTrue(inserter.insert(fixes.get(s), readings.get(s), false, new int[CELLS_PER_SCAN], new long[CELLS_PER_SCAN]));
+        }
+        report("compiled", System.nanoTime() - start);
+        inserter.close();
+    }
+
+    private void report(String name, long durationNanos) {
+        double rowsPerSecond = (SCANS * CELLS_PER_SCAN) / (durationNanos / 1e9);
+        Log.i(TAG, String.format("%s: %d rows in %d ms = %.0f rows/s", name, SCANS * CELLS_PER_SCAN, durationNanos / 1000000, rowsPerSecond));
+    }
+
+    private Measurement[][] createScans() {
+        Random random = new Random(0);
+        Measurement[][] scans = new Measurement[SCANS][];
+        for (int s = 0; s < SCANS; s++) {
+            scans[s] = new Measurement[CELLS_PER_SCAN];
+            double lat = 52.0 + s * 0.0001;
+            double lon = 19.0 + s * 0.0001;
+            for (int c = 0; c < CELLS_PER_SCAN; c++) {
+                Measurement m = new MeasurementBuilder()
+                        .setLteCell(260, 6, 5114, 1000000 + random.nextInt(50), c)
+                        .setLteSignal(40, -95, 5)
+                        .build();
+                m.setNeighboring(c > 0);
+                m.setLatitude(lat);
+                m.setLongitude(lon);
+                m.setGpsAccuracy(10f);
+                scans[s][c] = m;
+            }
+        }
+        return scans;
+    }
+
+    /**
+     * Copy of insertion path used before compiled statements (baseline).
+     */
+    private boolean insertLegacy(Measurement[] measurements) {
+        boolean overallResult = true;
+        db.beginTransaction();
+        try {
+            for (Measurement measurement : measurements) {
+                ContentValues networkValues = new ContentValues();
+                networkValues.put(NetworksTable.COLUMN_MCC, measurement.getMcc());
+                networkValues.put(NetworksTable.COLUMN_MNC, measurement.getMnc());
+                db.insert(NetworksTable.TABLE_NAME, null, networkValues);
+                long networkId = queryRowId(NetworksTable.TABLE_NAME, NetworksTable.COLUMN_MCC + " = ? AND " + NetworksTable.COLUMN_MNC + " = ?",
+                        new String[]{String.valueOf(measurement.getMcc()), String.valueOf(measurement.getMnc())});
+                long cellKey = CellKeyUtils.toCellKey((int) networkId, measurement.getNetworkType().ordinal(), measurement.getLac(), measurement.getCid());
+                ContentValues cellValues = new ContentValues();
+                cellValues.put(CellsTable.COLUMN_MCC, measurement.getMcc());
+                cellValues.put(CellsTable.COLUMN_MNC, measurement.getMnc());
+                cellValues.put(CellsTable.COLUMN_LAC, measurement.getLac());
+                cellValues.put(CellsTable.COLUMN_CID, measurement.getCid());
+                cellValues.put(CellsTable.COLUMN_NET_TYPE, measurement.getNetworkType().ordinal());
+                cellValues.put(CellsTable.COLUMN_CELL_KEY, cellKey);
+                cellValues.put(CellsTable.COLUMN_DISCOVERED_AT, System.currentTimeMillis());
+                db.insert(CellsTable.TABLE_NAME, null, cellValues);
+                long cellId = queryRowId(CellsTable.TABLE_NAME, CellsTable.COLUMN_CELL_KEY + " = ?", new String[]{String.valueOf(cellKey)});
+                long locationFingerprint = HashUtils.toLocationFingerprint(measurement);
+                ContentValues locationValues = new ContentValues();
+                locationValues.put(LocationsTable.COLUMN_FINGERPRINT, locationFingerprint);
+                locationValues.put(LocationsTable.COLUMN_LATITUDE, measurement.getLatitude());
+                locationValues.put(LocationsTable.COLUMN_LONGITUDE, measurement.getLongitude());
+                locationValues.put(LocationsTable.COLUMN_GPS_ACCURACY, measurement.getGpsAccuracy());
+                locationValues.put(LocationsTable.COLUMN_GPS_SPEED, measurement.getGpsSpeed());
+                locationValues.put(LocationsTable.COLUMN_GPS_BEARING, measurement.getGpsBearing());
+                locationValues.put(LocationsTable.COLUMN_GPS_ALTITUDE, measurement.getGpsAltitude());
+                db.insert(LocationsTable.TABLE_NAME, null, locationValues);
+                long locationId = queryRowId(LocationsTable.TABLE_NAME, LocationsTable.COLUMN_FINGERPRINT + " = ?", new String[]{String.valueOf(locationFingerprint)});
+                ContentValues values = new ContentValues();
+                values.put(MeasurementsTable.COLUMN_CELL_ID, cellId);
+                values.put(MeasurementsTable.COLUMN_LOCATION_ID, locationId);
+                values.put(MeasurementsTable.COLUMN_PSC, measurement.getPsc());
+                values.put(MeasurementsTable.COLUMN_NEIGHBORING, measurement.isNeighboring());
+                values.put(MeasurementsTable.COLUMN_TA, measurement.getTa());
+                values.put(MeasurementsTable.COLUMN_ASU, measurement.getAsu());
+                values.put(MeasurementsTable.COLUMN_DBM, measurement.getDbm());
+                values.put(MeasurementsTable.COLUMN_MEASURED_AT, measurement.getTimestamp());
+                overallResult &= (db.insert(MeasurementsTable.TABLE_NAME, null, values) != -1);
+            }
+            if (overallResult) {
+                db.setTransactionSuccessful();
+            }
+        } finally {
+            db.endTransaction();
+        }
+        return overallResult;
+    }
+
+    private long queryRowId(String table, String selection, String[] selectionArgs) {
+        long rowId = -1;
+        Cursor cursor = db.query(table, new String[]{"row_id"}, selection, selectionArgs, null, null, null);
+        if (cursor.moveToNext()) {
+            rowId = cursor.getLong(0);
+        }
+        cursor.close();
+        return rowId;
+    }
+}
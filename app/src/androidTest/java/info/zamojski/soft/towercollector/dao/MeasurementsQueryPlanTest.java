@@ -0,0 +1,139 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import info.zamojski.soft.towercollector.dev.MeasurementBuilder;
+import info.zamojski.soft.towercollector.model.Measurement;
+
+/**
+ * Runs EXPLAIN QUERY PLAN for hot queries against seeded database. Fails when table is scanned without index,
+ * temporary b-tree is used for sorting or grouping, or expected index is not used.
+ */
+public class MeasurementsQueryPlanTest extends AndroidTestCase {
+
+    private static final int SCANS_COUNT = 500;
+    private static final int CELLS_PER_SCAN = 4;
+    private static final String ARG = "1";
+
+    private Context testContext;
+    private SQLiteDatabase db;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        testContext = new RenamingDelegatingContext(getContext(), "plan_");
+        testContext.deleteDatabase(MeasurementsDatabase.DATABASE_FILE_NAME);
+        MeasurementsDatabase.invalidateInstance(testContext);
+        MeasurementsDatabase database = MeasurementsDatabase.getInstance(testContext);
+        assertTrue(database.insertMeasurements(createMeasurements()));
+        db = database.getWriterDatabase();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        MeasurementsDatabase.invalidateInstance(testContext);
+        testContext.deleteDatabase(MeasurementsDatabase.DATABASE_FILE_NAME);
+        super.tearDown();
+    }
+
+    public void testFirstMeasurement() {
+        assertPlan(MeasurementsDatabase.QUERY_FIRST_MEASUREMENT, null, "IX_measurements_measured_at_row_id");
+    }
+
+    public void testLastMeasurement() {
+        assertPlan(MeasurementsDatabase.QUERY_LAST_MEASUREMENT, null, "IX_measurements_measured_at_neighboring_row_id");
+    }
+
+    public void testLastMainMeasurements() {
+        assertPlan(MeasurementsDatabase.QUERY_LAST_MAIN_MEASUREMENTS, new String[]{ARG, "0"}, "IX_measurements_location_id_neighboring_measured_at");
+    }
+
+    public void testLastCellsCount() {
+        assertPlan(MeasurementsDatabase.QUERY_LAST_CELLS_COUNT, null, "IX_measurements_measured_at_neighboring_row_id");
+    }
+
+    public void testOlderMeasurementsFirstPage() {
+        assertPlan(MeasurementsDatabase.buildOlderMeasurementsQuery(false, 400), new String[]{ARG}, "IX_measurements_measured_at_row_id");
+    }
+
+    public void testOlderMeasurementsNextPage() {
+        assertPlan(MeasurementsDatabase.buildOlderMeasurementsQuery(true, 400), new String[]{ARG, ARG, ARG, ARG}, "IX_measurements_measured_at_row_id");
+    }
+
+    public void testMeasurementsInArea() {
+        assertPlan(MeasurementsDatabase.QUERY_MEASUREMENTS_IN_AREA, new String[]{ARG, ARG, ARG, ARG, ARG, ARG, ARG, ARG}, "IX_locations_quadkey");
+    }
+
+    public void testTodayCells() {
+        assertPlan(StatisticsCounters.QUERY_TODAY_CELLS, new String[]{ARG}, "IX_measurements_measured_at");
+    }
+
+    public void testTodayDiscoveredCells() {
+        assertPlan(StatisticsCounters.QUERY_TODAY_DISCOVERED_CELLS, new String[]{ARG}, "IX_cells_discovered_at");
+    }
+
+    public void testLocalSince() {
+        assertPlan(StatisticsCounters.QUERY_LOCAL_SINCE, null, "IX_cells_discovered_at");
+    }
+
+    public void testImportDuplicate() {
+        assertPlan(MeasurementsImporter.QUERY_FIND_DUPLICATE, new String[]{ARG, ARG, ARG, ARG, ARG, ARG, ARG}, "sqlite_autoindex_locations_1");
+    }
+
+    private void assertPlan(String query, String[] selectionArgs, String expectedIndex) {
+        List<String> plan = explain(query, selectionArgs);
+        String message = query + " -> " + plan;
+        boolean expectedIndexUsed = false;
+        for (String detail : plan) {
+            assertFalse("Temporary b-tree: " + message, detail.contains("TEMP B-TREE"));
+            // "SCAN TABLE x" on older, "SCAN x" on newer SQLite, both without index
+            assertFalse("Full table scan: " + message, detail.startsWith("SCAN") && !detail.contains(" USING "));
+            if (detail.contains(expectedIndex)) {
+                expectedIndexUsed = true;
+            }
+        }
+        assertTrue("Index " + expectedIndex + " not used: " + message, expectedIndexUsed);
+    }
+
+    private List<String> explain(String query, String[] selectionArgs) {
+        List<String> plan = new ArrayList<>();
+        Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + query, selectionArgs);
+        try {
+            int detailColumnIndex = cursor.getColumnIndex("detail");
+            while (cursor.moveToNext()) {
+                plan.add(cursor.getString(detailColumnIndex));
+            }
+        } finally {
+            cursor.close();
+        }
+        return plan;
+    }
+
+    private Measurement[] createMeasurements() {
+        Measurement[] measurements = new Measurement[SCANS_COUNT * CELLS_PER_SCAN];
+        for (int s = 0; s < SCANS_COUNT; s++) {
+            for (int c = 0; c < CELLS_PER_SCAN; c++) {
+                Measurement m = new MeasurementBuilder()
+                        .setLteCell(260, 6, 5114, 1000000 + (s % 100), c)
+                        .setLteSignal(40, -95, 5)
+                        .setLocation(52.0 + s * 0.0001, 19.0 + s * 0.0001, 100, 10f)
+                        .build();
+                m.setNeighboring(c > 0);
+                m.setTimestamp(1500000000000L + s * 1000L);
+                measurements[s * CELLS_PER_SCAN + c] = m;
+            }
+        }
+        return measurements;
+    }
+}
@@ -0,0 +1,229 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import info.zamojski.soft.towercollector.dev.MeasurementBuilder;
+import info.zamojski.soft.towercollector.model.CellReading;
+import info.zamojski.soft.towercollector.model.LocationFix;
+import info.zamojski.soft.towercollector.model.Measurement;
+import info.zamojski.soft.towercollector.model.Statistics;
+
+/**
+ * Verifies that counters maintained by {@link StatisticsCounters} are equal to statistics rebuilt from tables.
+ * Deletions follow the same steps as {@link MeasurementsDatabase}.
+ */
+public class StatisticsCountersTest extends AndroidTestCase {
+
+    private static final long HOUR = 3600000;
+    private static final long DAY = 24 * HOUR;
+
+    private File directory;
+    private File databaseFile;
+    private File indexFile;
+    private File rebuiltIndexFile;
+    private SQLiteDatabase db;
+    private CellRowIdCache cellRowIdCache;
+    private StatisticsCounters counters;
+    private MeasurementsInserter inserter;
+    private long now;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        directory = new File(getContext().getCacheDir(), "statistics_counters");
+        deleteDirectory();
+        databaseFile = new File(directory, MeasurementsDatabase.DATABASE_FILE_NAME);
+        indexFile = new File(directory, MeasurementsDatabase.KNOWN_CELLS_INDEX_FILE_NAME);
+        rebuiltIndexFile = new File(directory, "rebuilt_" + MeasurementsDatabase.KNOWN_CELLS_INDEX_FILE_NAME);
+        MeasurementsDatabase.createDatabaseFile(databaseFile);
+        db = SQLiteDatabase.openDatabase(databaseFile.getPath(), null, SQLiteDatabase.OPEN_READWRITE);
+        db.beginTransaction();
+        try {
+            MeasurementsDatabase.createTables(db);
+            db.setVersion(MeasurementsDatabase.DATABASE_FILE_VERSION);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        open();
+        now = System.currentTimeMillis();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        close();
+        deleteDirectory();
+        super.tearDown();
+    }
+
+    public void testCountersAfterInsert() {
+        insert(gsm(1, 0), gsm(2, 0), lte(3, 0));
+        insert(gsm(1, 0), gsm(4, -2 * DAY));
+        assertCountersRebuilt();
+    }
+
+    public void testCountersAfterDelete() {
+        insert(gsm(1, -3 * DAY), gsm(2, -2 * DAY), lte(3, -2 * DAY));
+        insert(gsm(1, 0), lte(4, 0));
+        // removes cell 2 and 3 together with their last measurement
+        delete(now - DAY);
+        assertCountersRebuilt();
+        // archived cell stored again is not discovered locally
+        insert(gsm(2, 0));
+        assertCountersRebuilt();
+    }
+
+    public void testCountersAfterDeleteAll() {
+        insert(gsm(1, -DAY), gsm(2, 0));
+        deleteAll();
+        assertCountersRebuilt();
+        insert(gsm(1, 0), gsm(3, 0));
+        assertCountersRebuilt();
+    }
+
+    public void testCountersAfterSeal() {
+        insert(gsm(1, -60 * DAY), gsm(2, -60 * DAY), lte(3, -59 * DAY));
+        insert(gsm(1, 0));
+        Statistics before = counters.getStatistics();
+        close();
+        File segmentFile = new MeasurementsSegments(databaseFile).seal(databaseFile);
+        assertNotNull(segmentFile);
+        db = SQLiteDatabase.openDatabase(databaseFile.getPath(), null, SQLiteDatabase.OPEN_READWRITE);
+        open();
+        assertCountersRebuilt();
+        Statistics after = counters.getStatistics();
+        // new active database starts empty and continues global counters
+        assertEquals(0, after.getLocationsLocal());
+        assertEquals(before.getLocationsGlobal(), after.getLocationsGlobal());
+        assertEquals(before.getDiscoveredCellsGlobal(), after.getDiscoveredCellsGlobal());
+        assertEquals(before.getSinceGlobal(), after.getSinceGlobal());
+        insert(gsm(1, 0), gsm(5, 0));
+        assertCountersRebuilt();
+    }
+
+    private void open() {
+        KnownCellsIndex knownCellsIndex = new KnownCellsIndex(indexFile);
+        cellRowIdCache = new CellRowIdCache(16);
+        counters = new StatisticsCounters(knownCellsIndex);
+        inserter = new MeasurementsInserter(db, cellRowIdCache, knownCellsIndex, counters, null, 0);
+    }
+
+    private void close() {
+        if (inserter != null) {
+            inserter.close();
+            inserter = null;
+        }
+        if (db != null) {
+            db.close();
+            db = null;
+        }
+    }
+
+    private void insert(Measurement... measurements) {
+        List<LocationFix> fixes = new ArrayList<LocationFix>();
+        List<List<CellReading>> scans = new ArrayList<List<CellReading>>();
+        for (Measurement m : measurements) {
+            List<CellReading> cells = new ArrayList<CellReading>(1);
+            cells.add(new CellReading(m));
+            fixes.add(new LocationFix(m));
+            scans.add(cells);
+        }
+        assertTrue(inserter.insert(fixes, scans, false, new int[measurements.length], new long[measurements.length]));
+    }
+
+    private void delete(long lastMeasuredAt) {
+        String selection = MeasurementsTable.COLUMN_MEASURED_AT + " <= ?";
+        String[] selectionArgs = new String[]{String.valueOf(lastMeasuredAt)};
+        db.beginTransaction();
+        try {
+            counters.ensureLoaded(db);
+            StatisticsCounters.Deletion deletion = new StatisticsCounters.Deletion();
+            counters.countOrphanedCells(db, selection, selectionArgs, deletion);
+            DailyRollup.release(db, selection, selectionArgs);
+            deletion.addMeasurements(db.delete(MeasurementsTable.TABLE_NAME, selection, selectionArgs));
+            if (deletion.getCells() > 0) {
+                cellRowIdCache.clear();
+            }
+            counters.applyDeletion(db, deletion);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private void deleteAll() {
+        db.beginTransaction();
+        try {
+            counters.ensureLoaded(db);
+            db.delete(CellsTable.TABLE_NAME, "1", null);
+            db.delete(LocationsTable.TABLE_NAME, "1", null);
+            db.delete(MeasurementsTable.TABLE_NAME, "1", null);
+            DailyRollup.releaseAll(db);
+            cellRowIdCache.clear();
+            counters.applyDeletionOfAll(db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Compares maintained counters with counters of new instance rebuilt from tables.
+     */
+    private void assertCountersRebuilt() {
+        StatisticsCounters rebuilt = new StatisticsCounters(new KnownCellsIndex(rebuiltIndexFile));
+        rebuiltIndexFile.delete();
+        db.beginTransaction();
+        try {
+            counters.reload(db, now);
+            String expected = counters.getStatistics().toString();
+            // persisted row is equal to counters in memory
+            counters.invalidate();
+            counters.reload(db, now);
+            assertEquals(expected, counters.getStatistics().toString());
+            rebuilt.rebuild(db);
+            rebuilt.reload(db, now);
+            assertEquals(expected, rebuilt.getStatistics().toString());
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private Measurement gsm(int cid, long time) {
+        return new MeasurementBuilder()
+                .setGsmCell(260, 1, 100, cid)
+                .setGsmSignal(20, -73)
+                .setLocation(52.0, 19.0 + cid / 1000.0, 100, 10f)
+                .setTime(now + time)
+                .build();
+    }
+
+    private Measurement lte(int ci, long time) {
+        return new MeasurementBuilder()
+                .setLteCell(260, 6, 5114, ci, 5)
+                .setLteSignal(20, -90, 5)
+                .setLocation(52.0, 19.0 + ci / 1000.0, 100, 10f)
+                .setTime(now + time)
+                .build();
+    }
+
+    private void deleteDirectory() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
@@ -0,0 +1,234 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao.migration;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.File;
+import java.text.NumberFormat;
+import java.util.Locale;
+import java.util.Random;
+
+import info.zamojski.soft.towercollector.dao.MeasurementsDatabase;
+import info.zamojski.soft.towercollector.utils.HashUtils;
+
+/**
+ * Compares row by row upgrade of synthetic version 9 database with chunked set based upgrade
+ * and checks that interrupted upgrade continues from last chunk.
+ * Results are written to logcat with tag of this class.
+ */
+public class DbMigrationBenchmark extends AndroidTestCase {
+
+    private static final String TAG = DbMigrationBenchmark.class.getSimpleName();
+
+    private static final int MEASUREMENTS = 1000000;
+    private static final int CELLS_PER_SCAN = 4;
+    private static final int CELLS = 5000;
+
+    private static final String DATABASE_NAME = "migration_benchmark.db";
+
+    private File databaseFile;
+    private SQLiteDatabase db;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(DATABASE_NAME);
+        databaseFile = getContext().getDatabasePath(DATABASE_NAME);
+        db = getContext().openOrCreateDatabase(DATABASE_NAME, 0, null);
+        createVersion9(db);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        db.close();
+        getContext().deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testLegacyUpgrade() {
+        long start = System.nanoTime();
+        upgradeLegacy();
+        report("Legacy upgrade to version 10", System.nanoTime() - start);
+        assertEquals(MEASUREMENTS, count("measurements"));
+    }
+
+    public void testChunkedUpgrade() {
+        long start = System.nanoTime();
+        new DbMigrationHelper(db).upgrade(9, 10);
+        report("Chunked upgrade to version 10", System.nanoTime() - start);
+        assertEquals(10, db.getVersion());
+        assertEquals(MEASUREMENTS, count("measurements"));
+    }
+
+    public void testFullUpgrade() {
+        long start = System.nanoTime();
+        new DbMigrationHelper(db).upgrade(9, MeasurementsDatabase.DATABASE_FILE_VERSION);
+        report("Chunked upgrade to version " + MeasurementsDatabase.DATABASE_FILE_VERSION, System.nanoTime() - start);
+        assertEquals(MeasurementsDatabase.DATABASE_FILE_VERSION, db.getVersion());
+        assertEquals(MEASUREMENTS, count("measurements"));
+    }
+
+    public void testResumeAfterInterruption() {
+        try {
+            new DbMigrationHelper(db).upgrade(9, 11, new IMigrationProgressListener() {
+                @Override
+                public void onMigrationProgress(int step, int steps, int percent) {
+                    if (percent >= 50) {
+                        throw new IllegalStateException("Process killed");
+                    }
+                }
+            });
+            fail("Upgrade not interrupted");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+        assertEquals(9, db.getVersion());
+        long migrated = count("measurements");
+        assertTrue(migrated >= MEASUREMENTS / 2 && migrated < MEASUREMENTS);
+        // reopen like after restart of application
+        db.close();
+        db = SQLiteDatabase.openDatabase(databaseFile.getPath(), null, SQLiteDatabase.OPEN_READWRITE);
+        long start = System.nanoTime();
+        new DbMigrationHelper(db).upgrade(db.getVersion(), 11);
+        report("Resumed upgrade to version 11", System.nanoTime() - start);
+        assertEquals(11, db.getVersion());
+        assertEquals(MEASUREMENTS, count("measurements"));
+        assertEquals(MEASUREMENTS / CELLS_PER_SCAN, count("locations"));
+    }
+
+    private void report(String name, long durationNanos) {
+        double rowsPerSecond = MEASUREMENTS / (durationNanos / 1e9);
+        Log.i(TAG, String.format("%s: %d rows in %d ms = %.0f rows/s", name, MEASUREMENTS, durationNanos / 1000000, rowsPerSecond));
+    }
+
+    private long count(String table) {
+        SQLiteStatement statement = db.compileStatement("SELECT COUNT(*) FROM " + table);
+        try {
+            return statement.simpleQueryForLong();
+        } finally {
+            statement.close();
+        }
+    }
+
+    private void createVersion9(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE operators (row_id INTEGER PRIMARY KEY NOT NULL, name VARCHAR(50) NOT NULL, UNIQUE (name) ON CONFLICT IGNORE)");
+        db.execSQL("CREATE TABLE cells_archive (row_id INTEGER PRIMARY KEY NOT NULL, mcc INTEGER NOT NULL, mnc INTEGER NOT NULL, lac INTEGER NOT NULL, cid INTEGER NOT NULL, psc INTEGER NOT NULL, net_type INTEGER NOT NULL, discovered_at INTEGER NOT NULL, UNIQUE (cid, lac, mnc, mcc, psc) ON CONFLICT IGNORE)");
+        db.execSQL("CREATE TABLE stats (row_id INTEGER PRIMARY KEY NOT NULL, total_locations INTEGER NOT NULL)");
+        db.execSQL("INSERT INTO stats (total_locations) VALUES (0)");
+        db.execSQL("CREATE TABLE cells (row_id INTEGER PRIMARY KEY NOT NULL, mcc INTEGER NOT NULL, mnc INTEGER NOT NULL, lac INTEGER NOT NULL, cid INTEGER NOT NULL, psc INTEGER NOT NULL, net_type INTEGER NOT NULL, discovered_at INTEGER NOT NULL, UNIQUE (cid, lac, mnc, mcc, psc) ON CONFLICT IGNORE)");
+        db.execSQL("CREATE TRIGGER 'archive_cell' BEFORE DELETE ON cells BEGIN INSERT INTO cells_archive (mcc, mnc, lac, cid, psc, net_type, discovered_at) VALUES (old.mcc, old.mnc, old.lac, old.cid, old.psc, old.net_type, old.discovered_at); END");
+        db.execSQL("CREATE TABLE measurements (row_id INTEGER PRIMARY KEY NOT NULL, cell_id INTEGER NOT NULL, neighboring INTEGER NOT NULL, ta INTEGER NOT NULL, asu INTEGER NOT NULL, dbm INTEGER NOT NULL, lat REAL NOT NULL, lon REAL NOT NULL, accuracy REAL NOT NULL, speed REAL NOT NULL, bearing REAL NOT NULL, altitude REAL NOT NULL, measured_at INTEGER NOT NULL, operator_id INTEGER DEFAULT NULL, FOREIGN KEY(cell_id) REFERENCES cells(row_id), FOREIGN KEY(operator_id) REFERENCES operators(row_id))");
+        db.execSQL("CREATE INDEX 'IX_measurements_measured_at' on measurements (measured_at DESC)");
+        db.execSQL("CREATE INDEX 'IX_measurements_cell_id' on measurements (cell_id ASC)");
+        Random random = new Random(0);
+        db.beginTransaction();
+        try {
+            SQLiteStatement cellStatement = db.compileStatement("INSERT INTO cells (mcc, mnc, lac, cid, psc, net_type, discovered_at) VALUES (260, 6, 5114, ?, ?, 3, ?)");
+            for (int c = 0; c < CELLS; c++) {
+                cellStatement.bindLong(1, 1000000 + c);
+                cellStatement.bindLong(2, c % 8);
+                cellStatement.bindLong(3, 1500000000000L + c);
+                cellStatement.executeInsert();
+            }
+            cellStatement.close();
+            SQLiteStatement measurementStatement = db.compileStatement("INSERT INTO measurements (cell_id, neighboring, ta, asu, dbm, lat, lon, accuracy, speed, bearing, altitude, measured_at) VALUES (?, ?, 2147483647, 20, -73, ?, ?, 10, 0, 0, 120, ?)");
+            for (int m = 0; m < MEASUREMENTS; m++) {
+                int scan = m / CELLS_PER_SCAN;
+                measurementStatement.bindLong(1, 1 + random.nextInt(CELLS));
+                measurementStatement.bindLong(2, (m % CELLS_PER_SCAN > 0) ? 1 : 0);
+                measurementStatement.bindDouble(3, 52.0 + scan * 0.00001);
+                measurementStatement.bindDouble(4, 19.0 + scan * 0.00001);
+                measurementStatement.bindLong(5, 1500000000000L + scan * 1000L);
+                measurementStatement.executeInsert();
+            }
+            measurementStatement.close();
+            db.execSQL("UPDATE stats SET total_locations = " + MEASUREMENTS);
+            db.execSQL("CREATE TRIGGER 'update_measurements_stats' AFTER INSERT ON measurements BEGIN UPDATE stats SET total_locations = total_locations + 1; END");
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        db.setVersion(9);
+    }
+
+    /**
+     * Copy of row by row migration of measurements used before chunked upgrade (baseline).
+     */
+    private void upgradeLegacy() {
+        UpgradeScript10 script = new UpgradeScript10();
+        db.beginTransaction();
+        try {
+            script.prepare(db);
+            Cursor mCursor = db.rawQuery("SELECT mb.lat, mb.lon, mb.accuracy, mb.speed, mb.bearing, mb.altitude, "
+                    + "(SELECT row_id FROM cells WHERE mcc = cb.mcc AND mnc = cb.mnc AND lac = cb.lac AND cid = cb.cid AND net_type = cb.net_type) AS cell_id, "
+                    + "cb.psc, mb.neighboring, mb.ta, mb.asu, mb.dbm, mb.measured_at "
+                    + "FROM measurements_backup mb INNER JOIN cells_backup cb ON mb.cell_id = cb.row_id", null);
+            while (mCursor.moveToNext()) {
+                double latitude = mCursor.getDouble(0);
+                double longitude = mCursor.getDouble(1);
+                double accuracy = mCursor.getDouble(2);
+                double speed = mCursor.getDouble(3);
+                double bearing = mCursor.getDouble(4);
+                double altitude = mCursor.getDouble(5);
+                String locationHashCode = toLocationHashCode(latitude, longitude, accuracy, speed, bearing, altitude);
+                ContentValues locationValues = new ContentValues();
+                locationValues.put("row_id", locationHashCode);
+                locationValues.put("lat", latitude);
+                locationValues.put("lon", longitude);
+                locationValues.put("accuracy", accuracy);
+                locationValues.put("speed", speed);
+                locationValues.put("bearing", bearing);
+                locationValues.put("altitude", altitude);
+                db.insert("locations", null, locationValues);
+                ContentValues measurementValues = new ContentValues();
+                measurementValues.put("location_id", locationHashCode);
+                measurementValues.put("cell_id", mCursor.getInt(6));
+                measurementValues.put("psc", mCursor.getInt(7));
+                measurementValues.put("neighboring", mCursor.getInt(8));
+                measurementValues.put("ta", mCursor.getInt(9));
+                measurementValues.put("asu", mCursor.getInt(10));
+                measurementValues.put("dbm", mCursor.getInt(11));
+                measurementValues.put("measured_at", mCursor.getLong(12));
+                db.insert("measurements", null, measurementValues);
+            }
+            mCursor.close();
+            script.finish(db);
+            db.setVersion(10);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * SHA-1 hash code which identified locations before version 12.
+     */
+    private static String toLocationHashCode(double latitude, double longitude, double accuracy, double speed, double bearing, double altitude) {
+        NumberFormat coordsDoubleFormatter = NumberFormat.getNumberInstance(Locale.ENGLISH);
+        coordsDoubleFormatter.setGroupingUsed(false);
+        coordsDoubleFormatter.setMinimumFractionDigits(9);
+        coordsDoubleFormatter.setMaximumFractionDigits(9);
+
+        NumberFormat gpsDoubleFormatter = NumberFormat.getNumberInstance(Locale.ENGLISH);
+        gpsDoubleFormatter.setGroupingUsed(false);
+        gpsDoubleFormatter.setMinimumFractionDigits(2);
+        gpsDoubleFormatter.setMaximumFractionDigits(2);
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(coordsDoubleFormatter.format(latitude)).append("_");
+        sb.append(coordsDoubleFormatter.format(longitude)).append("_");
+        sb.append(gpsDoubleFormatter.format(accuracy)).append("_");
+        sb.append(gpsDoubleFormatter.format(speed)).append("_");
+        sb.append(gpsDoubleFormatter.format(bearing)).append("_");
+        sb.append(gpsDoubleFormatter.format(altitude));
+        return HashUtils.toSha1(sb.toString());
+    }
+}
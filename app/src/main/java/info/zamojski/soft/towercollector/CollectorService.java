@@ -4,6 +4,7 @@
 
 package info.zamojski.soft.towercollector;
 
+import info.zamojski.soft.towercollector.broadcast.BatteryStatusBroadcastReceiver;
 import info.zamojski.soft.towercollector.broadcast.ExternalBroadcastSender;
 import info.zamojski.soft.towercollector.enums.GpsStatus;
 import info.zamojski.soft.towercollector.enums.KeepScreenOnMode;
@@ -21,6 +22,8 @@ import info.zamojski.soft.towercollector.collector.parsers.MeasurementParser;
 import info.zamojski.soft.towercollector.collector.parsers.MeasurementParserFactory;
 import info.zamojski.soft.towercollector.collector.validators.LocationValidator;
 import info.zamojski.soft.towercollector.collector.validators.SystemTimeValidator;
+import info.zamojski.soft.towercollector.dao.AsyncMeasurementsDatabase;
+import info.zamojski.soft.towercollector.dao.IDatabaseCallback;
 import info.zamojski.soft.towercollector.dao.MeasurementsDatabase;
 import info.zamojski.soft.towercollector.model.AnalyticsStatistics;
 import info.zamojski.soft.towercollector.model.Statistics;
@@ -32,6 +35,8 @@ import timber.log.Timber;
 import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.greenrobot.eventbus.EventBus;
@@ -120,7 +125,8 @@ public class CollectorService extends Service {
     private MeansOfTransport transportMode = MeansOfTransport.Fixed;
 
     private long startTime;
-    private Statistics startStats;
+    private Future<Statistics> startStatsFuture;
+    private boolean destroyed = false;
 
     private Location lastLocation;
     private long lastLocationObtainedTime;
@@ -146,11 +152,13 @@ public class CollectorService extends Service {
         boolean hideNotification = MyApplication.getPreferencesProvider().getHideCollectorNotification();
         notificationHelper = new CollectorNotificationHelper(this, hideNotification);
         // create notification
-        startStats = MeasurementsDatabase.getInstance(getApplication()).getMeasurementsStatistics();
+        startStatsFuture = AsyncMeasurementsDatabase.getInstance(getApplication()).getMeasurementsStatistics(null);
         startTime = lastLocationObtainedTime = System.currentTimeMillis();
         EventBus.getDefault().register(this);
         // register receiver
         registerReceiver(stopRequestBroadcastReceiver, new IntentFilter(BROADCAST_INTENT_STOP_SERVICE));
+        // implicit broadcast is not delivered to receivers declared in manifest since Android 8.0
+        registerReceiver(batteryLowBroadcastReceiver, new IntentFilter(Intent.ACTION_BATTERY_LOW));
         Notification notification = notificationHelper.createNotification(notificationManager, getGpsStatusNotificationText(getGpsStatus()));
         // start as foreground service to prevent from killing
         startForeground(NOTIFICATION_ID, notification);
@@ -257,6 +265,7 @@ public class CollectorService extends Service {
         EventBus.getDefault().unregister(this);
         if (stopRequestBroadcastReceiver != null)
             unregisterReceiver(stopRequestBroadcastReceiver);
+        unregisterReceiver(batteryLowBroadcastReceiver);
         long endTime = System.currentTimeMillis();
         notificationManager.cancel(NOTIFICATION_ID);
         if (locationManager != null) {
@@ -273,14 +282,43 @@ public class CollectorService extends Service {
             measurementParserThread.quit();
         if (externalBroadcastSenderThread != null)
             externalBroadcastSenderThread.quit();
-        long duration = (endTime - startTime);
-        Statistics endStats = MeasurementsDatabase.getInstance(getApplication()).getMeasurementsStatistics();
-        int numberOfCollectedLocations = endStats.getLocationsLocal() - startStats.getLocationsLocal();
-        int numberOfCollectedCells = endStats.getCellsLocal() - startStats.getCellsLocal();
-        AnalyticsStatistics stats = new AnalyticsStatistics();
-        stats.setLocations(numberOfCollectedLocations);
-        stats.setCells(numberOfCollectedCells);
-        MyApplication.getAnalytics().sendCollectorFinished(duration, transportMode.name(), stats);
+        destroyed = true;
+        final long duration = (endTime - startTime);
+        final String transportModeName = transportMode.name();
+        final Future<Statistics> startStatsFuture = this.startStatsFuture;
+        // submitted without waiting, writer thread keeps running after the service has been destroyed
+        AsyncMeasurementsDatabase.getInstance(getApplication()).submitWrite(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                MeasurementsDatabase database = MeasurementsDatabase.getInstance(MyApplication.getApplication());
+                // write scans kept by write-behind buffer before process can be killed
+                database.flushPendingMeasurements();
+                Statistics endStats = database.getMeasurementsStatistics();
+                if (!startStatsFuture.isDone()) {
+                    // read on reader pool which may wait for this thread to reload counters
+                    Timber.w("call(): Start statistics not loaded, collector finished event skipped");
+                    return null;
+                }
+                Statistics startStats = startStatsFuture.get();
+                int numberOfCollectedLocations = endStats.getLocationsLocal() - startStats.getLocationsLocal();
+                int numberOfCollectedCells = endStats.getCellsLocal() - startStats.getCellsLocal();
+                AnalyticsStatistics stats = new AnalyticsStatistics();
+                stats.setLocations(numberOfCollectedLocations);
+                stats.setCells(numberOfCollectedCells);
+                MyApplication.getAnalytics().sendCollectorFinished(duration, transportModeName, stats);
+                return null;
+            }
+        }, new IDatabaseCallback<Void>() {
+            @Override
+            public void onResult(Void result) {
+                Timber.d("onResult(): Final flush finished");
+            }
+
+            @Override
+            public void onError(Exception ex) {
+                Timber.e(ex, "onError(): Final flush failed");
+            }
+        });
         super.onDestroy();
     }
 
@@ -600,6 +638,8 @@ public class CollectorService extends Service {
 
     // ========== BROADCAST RECEIVERS ========== //
 
+    private final BroadcastReceiver batteryLowBroadcastReceiver = new BatteryStatusBroadcastReceiver();
+
     private BroadcastReceiver stopRequestBroadcastReceiver = new BroadcastReceiver() {
         private final String INNER_TAG = CollectorService.class.getSimpleName() + ".StopRequest" + BroadcastReceiver.class.getSimpleName();
 
@@ -784,7 +824,20 @@ public class CollectorService extends Service {
         }
         // Optimization: it doesn't make sense to refresh if nothing changes (after save updated in a different way)
         else if (statusChanged) {
-            updateNotification(MeasurementsDatabase.getInstance(getApplication()).getMeasurementsStatistics());
+            AsyncMeasurementsDatabase.getInstance(getApplication()).getMeasurementsStatistics(new IDatabaseCallback<Statistics>() {
+                @Override
+                public void onResult(Statistics statistics) {
+                    // notification is already cancelled
+                    if (!destroyed) {
+                        updateNotification(statistics);
+                    }
+                }
+
+                @Override
+                public void onError(Exception ex) {
+                    // notification keeps previous statistics
+                }
+            });
         }
     }
 
@@ -0,0 +1,72 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Build;
+
+import info.zamojski.soft.towercollector.dao.IMaintenanceListener;
+import info.zamojski.soft.towercollector.dao.MeasurementsDatabase;
+import info.zamojski.soft.towercollector.utils.DatabaseMaintenanceCondition;
+import timber.log.Timber;
+
+/**
+ * Requests database maintenance once a day while device is charging and idle.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class DatabaseMaintenanceJobService extends JobService {
+
+    private static final int JOB_ID = 1001;
+    private static final long JOB_INTERVAL = 24 * 60 * 60 * 1000;
+
+    public static void schedule(Context context) {
+        JobScheduler scheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (scheduler == null) {
+            return;
+        }
+        // scheduling again would restart the interval
+        for (JobInfo job : scheduler.getAllPendingJobs()) {
+            if (job.getId() == JOB_ID) {
+                return;
+            }
+        }
+        JobInfo job = new JobInfo.Builder(JOB_ID, new ComponentName(context, DatabaseMaintenanceJobService.class))
+                .setRequiresCharging(true)
+                .setRequiresDeviceIdle(true)
+                .setPeriodic(JOB_INTERVAL)
+                .setPersisted(true)
+                .build();
+        int result = scheduler.schedule(job);
+        Timber.d("schedule(): Database maintenance job scheduled with result %s", result);
+    }
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        Timber.d("onStartJob(): Requesting database maintenance");
+        // maintenance runs in slices on writer thread and stops by itself when conditions change, job keeps device awake until then
+        MeasurementsDatabase.getInstance(this).requestMaintenance(new DatabaseMaintenanceCondition(this), new IMaintenanceListener() {
+            @Override
+            public void onMaintenanceEnded() {
+                Timber.d("onMaintenanceEnded(): Database maintenance ended");
+                // interrupted maintenance is continued by next periodic run
+                jobFinished(params, false);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // maintenance goes on while its own condition holds, as when requested by charger connection, but device may sleep
+        Timber.d("onStopJob(): Database maintenance job stopped");
+        return false;
+    }
+}
@@ -55,7 +55,8 @@ import java.util.concurrent.atomic.AtomicBoolean;
 
 import info.zamojski.soft.towercollector.analytics.IntentSource;
 import info.zamojski.soft.towercollector.controls.DialogManager;
-import info.zamojski.soft.towercollector.dao.MeasurementsDatabase;
+import info.zamojski.soft.towercollector.dao.AsyncMeasurementsDatabase;
+import info.zamojski.soft.towercollector.dao.IDatabaseCallback;
 import info.zamojski.soft.towercollector.enums.FileType;
 import info.zamojski.soft.towercollector.enums.MeansOfTransport;
 import info.zamojski.soft.towercollector.enums.Validity;
@@ -619,8 +620,17 @@ public class MainActivity extends AppCompatActivity implements TabLayout.OnTabSe
         builder.setNegativeButton(R.string.dialog_delete, new DialogInterface.OnClickListener() {
             @Override
             public void onClick(DialogInterface dialog, int which) {
-                MeasurementsDatabase.getInstance(MainActivity.this).deleteAllMeasurements();
-                EventBus.getDefault().post(new PrintMainWindowEvent());
+                AsyncMeasurementsDatabase.getInstance(MainActivity.this).deleteAllMeasurements(new IDatabaseCallback<Integer>() {
+                    @Override
+                    public void onResult(Integer deleted) {
+                        EventBus.getDefault().post(new PrintMainWindowEvent());
+                    }
+
+                    @Override
+                    public void onError(Exception ex) {
+                        Toast.makeText(MainActivity.this, R.string.database_import_export_failed_message, Toast.LENGTH_LONG).show();
+                    }
+                });
                 MyApplication.getAnalytics().sendExportDeleteAction();
             }
         });
@@ -20,6 +20,8 @@ import org.greenrobot.eventbus.EventBus;
 
 import info.zamojski.soft.towercollector.analytics.AnalyticsServiceFactory;
 import info.zamojski.soft.towercollector.analytics.IAnalyticsReportingService;
+import info.zamojski.soft.towercollector.broadcast.BatteryStatusBroadcastReceiver;
+import info.zamojski.soft.towercollector.dao.MeasurementsDatabase;
 import info.zamojski.soft.towercollector.logging.ConsoleLoggingTree;
 import info.zamojski.soft.towercollector.logging.FileLoggingTree;
 import info.zamojski.soft.towercollector.providers.AppThemeProvider;
@@ -28,6 +30,9 @@ import info.zamojski.soft.towercollector.providers.preferences.PreferencesProvid
 import android.Manifest;
 import android.app.Application;
 import android.app.NotificationManager;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Build;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -63,6 +68,15 @@ public class MyApplication extends Application {
         initEventBus();
         initTheme();
         initAnalytics();
+        initDatabaseMaintenance();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        Timber.d("onTrimMemory(): Memory trim level %s", level);
+        // process may be killed soon, don't keep collected scans only in memory
+        MeasurementsDatabase.getInstance(this).requestFlushPendingMeasurements();
     }
 
     private void initUnhandledExceptionHandler() {
@@ -125,6 +139,15 @@ public class MyApplication extends Application {
         appTheme = themeProvider.getTheme(appThemeName);
     }
 
+    private void initDatabaseMaintenance() {
+        Timber.d("initDatabaseMaintenance(): Initializing database maintenance");
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            DatabaseMaintenanceJobService.schedule(this);
+        } else {
+            registerReceiver(new BatteryStatusBroadcastReceiver(), new IntentFilter(Intent.ACTION_POWER_CONNECTED));
+        }
+    }
+
     private void initAnalytics() {
         Timber.d("initAnalytics(): Initializing analytics");
         analyticsService = new AnalyticsServiceFactory().createInstance();
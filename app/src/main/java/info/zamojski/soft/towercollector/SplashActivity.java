@@ -5,6 +5,7 @@
 package info.zamojski.soft.towercollector;
 
 import info.zamojski.soft.towercollector.dao.MeasurementsDatabase;
+import info.zamojski.soft.towercollector.dao.migration.IMigrationProgressListener;
 import info.zamojski.soft.towercollector.tasks.DatabaseUpgradeTask;
 import timber.log.Timber;
 
@@ -87,7 +88,12 @@ public class SplashActivity extends Activity {
             databaseUpgradeRunning = true;
             showDetailsMessage();
             // show progress dialog only when migrating database
-            databaseMigrationTask = new DatabaseUpgradeTask(currentDbVersion);
+            databaseMigrationTask = new DatabaseUpgradeTask(currentDbVersion, new IMigrationProgressListener() {
+                @Override
+                public void onMigrationProgress(int step, int steps, int percent) {
+                    setDetailsMessage(getString(R.string.splash_details_database_upgrade_progress, step, steps, percent));
+                }
+            });
             databaseMigrationTask.upgrade();
             MyApplication.getAnalytics().sendMigrationStarted();
             hideDetailsMessage();
@@ -112,6 +118,15 @@ public class SplashActivity extends Activity {
         setDetailsMessageVisibility(View.GONE);
     }
 
+    private void setDetailsMessage(final String message) {
+        getMainHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                detailsTextView.setText(message);
+            }
+        });
+    }
+
     private void setDetailsMessageVisibility(final int visibility) {
         getMainHandler().post(new Runnable() {
             @Override
@@ -9,6 +9,8 @@ import info.zamojski.soft.towercollector.events.PrintMainWindowEvent;
 import info.zamojski.soft.towercollector.files.devices.MemoryTextDevice;
 import info.zamojski.soft.towercollector.files.formatters.csv.CsvUploadFormatter;
 import info.zamojski.soft.towercollector.files.generators.CsvTextGenerator;
+import info.zamojski.soft.towercollector.dao.IMeasurementVisitor;
+import info.zamojski.soft.towercollector.dao.AsyncMeasurementsDatabase;
 import info.zamojski.soft.towercollector.dao.MeasurementsDatabase;
 import info.zamojski.soft.towercollector.io.network.IUploadClient;
 import info.zamojski.soft.towercollector.io.network.OcidUploadClient;
@@ -17,11 +19,13 @@ import info.zamojski.soft.towercollector.model.AnalyticsStatistics;
 import info.zamojski.soft.towercollector.model.Measurement;
 import info.zamojski.soft.towercollector.uploader.UploaderNotificationHelper;
 import info.zamojski.soft.towercollector.utils.ApkUtils;
+import info.zamojski.soft.towercollector.utils.DatabaseMaintenanceCondition;
 import info.zamojski.soft.towercollector.utils.NetworkUtils;
 import timber.log.Timber;
 
 import java.io.IOException;
-import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.acra.ACRA;
@@ -163,6 +167,8 @@ public class UploaderService extends Service {
         // update notification according to result
         Notification notification = notificationHelper.updateNotificationFinished(messageId, descriptionId);
         notificationManager.notify(NOTIFICATION_ID, notification);
+        // uploaded rows leave free pages behind
+        MeasurementsDatabase.getInstance(getApplication()).requestMaintenance(new DatabaseMaintenanceCondition(this));
         super.onDestroy();
     }
 
@@ -221,6 +227,8 @@ public class UploaderService extends Service {
             Notification notification = notificationHelper.createNotification(notificationManager);
             startForeground(UploaderService.NOTIFICATION_ID, notification);
 
+            // buffered scans are uploaded too
+            MeasurementsDatabase.getInstance(getApplication()).flushPendingMeasurements();
             // get number of measurements to upload
             int measurementsCount = MeasurementsDatabase.getInstance(getApplication()).getAllMeasurementsCount();
 
@@ -256,17 +264,16 @@ public class UploaderService extends Service {
                 }
                 // notify
                 updateNotification(i, partsCount);
-                // prepare data starting from oldest
-                List<Measurement> measurements = MeasurementsDatabase.getInstance(getApplication()).getOlderMeasurements(lastMeasurement.getTimestamp(), 0, MEASUREMENTS_PER_PART);
-
                 // create generator instance
                 MemoryTextDevice device = new MemoryTextDevice();
                 CsvTextGenerator<CsvUploadFormatter, MemoryTextDevice> generator = new CsvTextGenerator<>(new CsvUploadFormatter(), device);
-                // write measurements
+                // write measurements starting from oldest and remember uploaded range
+                PartWriter partWriter = new PartWriter(generator);
+                int partSize = 0;
                 try {
                     device.open();
                     generator.writeHeader();
-                    generator.writeEntryChunk(measurements);
+                    partSize = MeasurementsDatabase.getInstance(getApplication()).forEachOlderMeasurement(lastMeasurement.getTimestamp(), MEASUREMENTS_PER_PART, partWriter);
                 } catch (IOException ex) {
                     // this should never happen for MemoryTextDevice
                     Timber.tag(INNER_TAG).e(ex, "run(): Error while generating file");
@@ -312,19 +319,14 @@ public class UploaderService extends Service {
                         uploadResult = UploadResult.InvalidApiKey;
                         break;
                     } else if (response == RequestResult.Success) {
-                        Timber.tag(INNER_TAG).d("run(): Uploaded %s measurements", measurements.size());
+                        Timber.tag(INNER_TAG).d("run(): Uploaded %s measurements", partSize);
                         uploadResult = UploadResult.PartiallySucceeded;
                         succeededParts++;
                     } else {
                         throw new UnsupportedOperationException(String.format("Unsupported upload result %s", response));
                     }
                     // delete sent measurements
-                    int j = 0;
-                    int[] rowIds = new int[measurements.size()];
-                    for (Measurement m : measurements) {
-                        rowIds[j++] = m.getRowId();
-                    }
-                    int numberOfDeleted = MeasurementsDatabase.getInstance(getApplication()).deleteMeasurements(rowIds);
+                    int numberOfDeleted = deleteMeasurementsUpTo(partWriter, partSize);
                     if (numberOfDeleted == 0) {
                         uploadResult = UploadResult.DeleteFailed;
                         break;
@@ -364,5 +366,44 @@ public class UploaderService extends Service {
             EventBus.getDefault().post(new PrintMainWindowEvent());
             stopSelf();
         }
+
+        /**
+         * Deletes uploaded part on database writer thread, so it doesn't interleave with writes of collector.
+         *
+         * @return number of deleted measurements, 0 on failure
+         */
+        private int deleteMeasurementsUpTo(PartWriter partWriter, int partSize) {
+            Future<Integer> result = AsyncMeasurementsDatabase.getInstance(getApplication())
+                    .deleteMeasurementsUpTo(partWriter.lastTimestamp, partWriter.lastRowId, partWriter.maxRowId, partSize, null);
+            try {
+                return result.get();
+            } catch (InterruptedException | ExecutionException ex) {
+                Timber.tag(INNER_TAG).e(ex, "deleteMeasurementsUpTo(): Failed to delete uploaded measurements");
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Writes streamed measurements and remembers the range they came from so it can be deleted after upload.
+     */
+    private static class PartWriter implements IMeasurementVisitor {
+        private final CsvTextGenerator<CsvUploadFormatter, MemoryTextDevice> generator;
+        private long lastTimestamp;
+        private int lastRowId;
+        private int maxRowId;
+
+        PartWriter(CsvTextGenerator<CsvUploadFormatter, MemoryTextDevice> generator) {
+            this.generator = generator;
+        }
+
+        @Override
+        public boolean visit(Measurement measurement) throws IOException {
+            generator.writeEntry(measurement);
+            lastTimestamp = measurement.getTimestamp();
+            lastRowId = measurement.getRowId();
+            maxRowId = Math.max(maxRowId, lastRowId);
+            return true;
+        }
     }
 }
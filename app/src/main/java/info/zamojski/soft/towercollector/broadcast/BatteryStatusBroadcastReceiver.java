@@ -11,6 +11,8 @@ import android.content.Intent;
 import info.zamojski.soft.towercollector.CollectorService;
 import info.zamojski.soft.towercollector.MyApplication;
 import info.zamojski.soft.towercollector.R;
+import info.zamojski.soft.towercollector.dao.MeasurementsDatabase;
+import info.zamojski.soft.towercollector.utils.DatabaseMaintenanceCondition;
 import timber.log.Timber;
 
 public class BatteryStatusBroadcastReceiver extends BroadcastReceiver {
@@ -19,10 +21,14 @@ public class BatteryStatusBroadcastReceiver extends BroadcastReceiver {
         if (Intent.ACTION_BATTERY_LOW.equals(intent.getAction())) {
             String prefAction = MyApplication.getPreferencesProvider().getCollectorLowBatteryAction();
             Timber.d("onReceive(): Low battery received, taking %s action", prefAction);
+            MeasurementsDatabase.getInstance(context).requestFlushPendingMeasurements();
             if (context.getString(R.string.preferences_collector_low_battery_action_entries_value_stop).equals(prefAction)) {
                 Intent stopIntent = new Intent(context, CollectorService.class);
                 context.stopService(stopIntent);
             }
+        } else if (Intent.ACTION_POWER_CONNECTED.equals(intent.getAction())) {
+            Timber.d("onReceive(): Power connected, requesting database maintenance");
+            MeasurementsDatabase.getInstance(context).requestMaintenance(new DatabaseMaintenanceCondition(context));
         }
     }
 }
@@ -134,7 +134,7 @@ public class Api17PlusMeasurementParser extends MeasurementParser {
         Measurement mainMeasurement = findFirstMainMeasurement(measurementsToSave);
         // write to database
         Timber.d("parse(): Selected as main: %s", mainMeasurement);
-        boolean inserted = MeasurementsDatabase.getInstance(MyApplication.getApplication()).insertMeasurements(measurementsToSave.toArray(new Measurement[measurementsToSave.size()]));
+        boolean inserted = saveMeasurements(measurementsToSave);
         if (inserted) {
             lastSavedLocation = location;
             lastSavedMeasurement = mainMeasurement;
@@ -142,7 +142,7 @@ public class Api17PlusMeasurementParser extends MeasurementParser {
             // broadcast information to main activity
             int mainCount = countMainMeasurements(measurementsToSave);
             CellsCount cellsCount = new CellsCount(mainCount, measurementsToSave.size() - mainCount);
-            Statistics stats = MeasurementsDatabase.getInstance(MyApplication.getApplication()).getMeasurementsStatistics();
+            Statistics stats = getMeasurementsStatistics();
             EventBus.getDefault().post(new MeasurementSavedEvent(mainMeasurement, cellsCount, stats));
             EventBus.getDefault().post(new MeasurementsCollectedEvent(measurementsToSave));
             Timber.d("parse(): Notification updated and measurement broadcasted");
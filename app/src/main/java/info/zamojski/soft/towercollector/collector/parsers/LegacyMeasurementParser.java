@@ -148,14 +148,14 @@ public class LegacyMeasurementParser extends MeasurementParser {
         }
         // write to database
         Timber.d("parse(): Main: %s", measurement);
-        boolean inserted = MeasurementsDatabase.getInstance(MyApplication.getApplication()).insertMeasurements(measurementsToSave.toArray(new Measurement[measurementsToSave.size()]));
+        boolean inserted = saveMeasurements(measurementsToSave);
         if (inserted) {
             lastSavedLocation = location;
             lastSavedMeasurement = measurement;
             Timber.d("parse(): Measurement saved");
             // broadcast information to main activity
             CellsCount cellsCount = new CellsCount(1, measurementsToSave.size() - 1);
-            Statistics stats = MeasurementsDatabase.getInstance(MyApplication.getApplication()).getMeasurementsStatistics();
+            Statistics stats = getMeasurementsStatistics();
             EventBus.getDefault().post(new MeasurementSavedEvent(measurement, cellsCount, stats));
             EventBus.getDefault().post(new MeasurementsCollectedEvent(measurementsToSave));
             Timber.d("parse(): Notification updated and measurement broadcasted");
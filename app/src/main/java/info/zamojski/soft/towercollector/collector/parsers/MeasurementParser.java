@@ -10,14 +10,20 @@ import info.zamojski.soft.towercollector.collector.ParseResult;
 import info.zamojski.soft.towercollector.collector.validators.ConditionsValidator;
 import info.zamojski.soft.towercollector.collector.validators.LocationValidator;
 import info.zamojski.soft.towercollector.collector.validators.SystemTimeValidator;
+import info.zamojski.soft.towercollector.dao.AsyncMeasurementsDatabase;
 import info.zamojski.soft.towercollector.dao.MeasurementsDatabase;
 import info.zamojski.soft.towercollector.events.MeasurementProcessedEvent;
 import info.zamojski.soft.towercollector.model.Measurement;
+import info.zamojski.soft.towercollector.model.Statistics;
 import timber.log.Timber;
 
 import android.location.Location;
 import android.location.LocationManager;
 
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
 public abstract class MeasurementParser implements Runnable {
 
 
@@ -80,6 +86,33 @@ public abstract class MeasurementParser implements Runnable {
         }
     }
 
+    /**
+     * Saves measurements on database writer thread and waits for the result, so they are written in order with other writes.
+     */
+    protected boolean saveMeasurements(List<Measurement> measurements) {
+        Future<Boolean> result = AsyncMeasurementsDatabase.getInstance(MyApplication.getApplication())
+                .saveMeasurements(measurements.toArray(new Measurement[measurements.size()]), null);
+        try {
+            return result.get();
+        } catch (InterruptedException | ExecutionException ex) {
+            Timber.e(ex, "saveMeasurements(): Failed to save measurements");
+            return false;
+        }
+    }
+
+    /**
+     * Reads statistics on database reader pool, so it doesn't wait for writes queued after the scan.
+     */
+    protected Statistics getMeasurementsStatistics() {
+        Future<Statistics> result = AsyncMeasurementsDatabase.getInstance(MyApplication.getApplication()).getMeasurementsStatistics(null);
+        try {
+            return result.get();
+        } catch (InterruptedException | ExecutionException ex) {
+            Timber.e(ex, "getMeasurementsStatistics(): Failed to load statistics");
+            return new Statistics();
+        }
+    }
+
     protected void notifyResult(ParseResult result) {
         EventBus.getDefault().post(new MeasurementProcessedEvent(result));
     }
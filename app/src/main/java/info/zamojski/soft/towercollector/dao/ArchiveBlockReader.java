@@ -0,0 +1,132 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import info.zamojski.soft.towercollector.enums.NetworkGroup;
+import info.zamojski.soft.towercollector.model.Measurement;
+
+/**
+ * Decodes archive block written by {@link ArchiveBlockWriter} one measurement at a time.
+ */
+final class ArchiveBlockReader {
+
+    static final int FIELD_TIMESTAMP = 0;
+    static final int FIELD_MCC = 1;
+    static final int FIELD_MNC = 2;
+    static final int FIELD_LAC = 3;
+    static final int FIELD_CID = 4;
+    static final int FIELD_NET_TYPE = 5;
+    static final int FIELD_NEIGHBORING = 6;
+    static final int FIELD_PSC = 7;
+    static final int FIELD_TA = 8;
+    static final int FIELD_ASU = 9;
+    static final int FIELD_DBM = 10;
+    static final int FIELD_LATITUDE = 11;
+    static final int FIELD_LONGITUDE = 12;
+    static final int FIELD_GPS_ACCURACY = 13;
+    static final int FIELD_GPS_SPEED = 14;
+    static final int FIELD_GPS_BEARING = 15;
+    static final int FIELD_GPS_ALTITUDE = 16;
+    static final int FIELD_SAMPLES = 17;
+    static final int FIELD_DBM_MIN = 18;
+    static final int FIELD_DBM_MAX = 19;
+    static final int FIELDS_COUNT = 20;
+
+    private static final int FORMAT_VERSION_WITHOUT_SAMPLES = 1;
+
+    private final Inflater inflater = new Inflater();
+    private final InputStream input;
+    private final int version;
+    private final int count;
+    private int read;
+    private final long[] previous = new long[FIELDS_COUNT];
+
+    ArchiveBlockReader(byte[] block, int count) throws IOException {
+        if (block.length == 0 || (block[0] != ArchiveBlockWriter.FORMAT_VERSION && block[0] != FORMAT_VERSION_WITHOUT_SAMPLES)) {
+            throw new IOException("Unsupported archive block format");
+        }
+        this.version = block[0];
+        this.count = count;
+        input = new BufferedInputStream(new InflaterInputStream(new ByteArrayInputStream(block, 1, block.length - 1), inflater));
+    }
+
+    /**
+     * Reads next measurement into given instance.
+     *
+     * @return false if there are no more measurements in block
+     */
+    boolean read(Measurement m) throws IOException {
+        if (read == count) {
+            return false;
+        }
+        m.setRowId(0);
+        m.setTimestamp(readDelta(FIELD_TIMESTAMP));
+        m.setMcc((int) readDelta(FIELD_MCC));
+        m.setMnc((int) readDelta(FIELD_MNC));
+        m.setLac((int) readDelta(FIELD_LAC));
+        m.setCid((int) readDelta(FIELD_CID));
+        m.setNetworkType(NetworkGroup.fromValue((int) readDelta(FIELD_NET_TYPE)));
+        m.setNeighboring(readDelta(FIELD_NEIGHBORING) == 1);
+        m.setPsc((int) readDelta(FIELD_PSC));
+        m.setTa((int) readDelta(FIELD_TA));
+        m.setAsu((int) readDelta(FIELD_ASU));
+        m.setDbm((int) readDelta(FIELD_DBM));
+        m.setLatitude(Double.longBitsToDouble(readXor(FIELD_LATITUDE)));
+        m.setLongitude(Double.longBitsToDouble(readXor(FIELD_LONGITUDE)));
+        m.setGpsAccuracy(Float.intBitsToFloat((int) readXor(FIELD_GPS_ACCURACY)));
+        m.setGpsSpeed(Float.intBitsToFloat((int) readXor(FIELD_GPS_SPEED)));
+        m.setGpsBearing(Float.intBitsToFloat((int) readXor(FIELD_GPS_BEARING)));
+        m.setGpsAltitude(Double.longBitsToDouble(readXor(FIELD_GPS_ALTITUDE)));
+        if (version == FORMAT_VERSION_WITHOUT_SAMPLES) {
+            m.setSamples(1);
+            m.setDbmMin(Measurement.UNKNOWN_SIGNAL);
+            m.setDbmMax(Measurement.UNKNOWN_SIGNAL);
+        } else {
+            m.setSamples((int) readDelta(FIELD_SAMPLES));
+            m.setDbmMin((int) readDelta(FIELD_DBM_MIN));
+            m.setDbmMax((int) readDelta(FIELD_DBM_MAX));
+        }
+        read++;
+        return true;
+    }
+
+    void close() {
+        inflater.end();
+    }
+
+    private long readDelta(int field) throws IOException {
+        long zigzag = readVarLong();
+        previous[field] += (zigzag >>> 1) ^ -(zigzag & 1);
+        return previous[field];
+    }
+
+    private long readXor(int field) throws IOException {
+        previous[field] ^= readVarLong();
+        return previous[field];
+    }
+
+    private long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = input.read();
+            if (b < 0) {
+                throw new EOFException("Archive block is truncated");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Archive block is corrupted");
+    }
+}
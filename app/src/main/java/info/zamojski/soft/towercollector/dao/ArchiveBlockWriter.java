@@ -0,0 +1,117 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import info.zamojski.soft.towercollector.model.Measurement;
+
+/**
+ * Encodes measurements into compressed archive block. Every value is written as variable length difference
+ * to the same value of previous measurement (integers are subtracted, floating point bits are xor-ed),
+ * so repeated cells and slowly changing locations take single bytes before compression.
+ */
+final class ArchiveBlockWriter {
+
+    // version 2 added sample count and dbm range
+    static final int FORMAT_VERSION = 2;
+
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+    private final OutputStream output;
+
+    private int count;
+    private long firstTimestamp;
+    private final long[] previous = new long[ArchiveBlockReader.FIELDS_COUNT];
+
+    ArchiveBlockWriter() {
+        buffer.write(FORMAT_VERSION);
+        output = new DeflaterOutputStream(buffer, deflater);
+    }
+
+    void write(Measurement m) throws IOException {
+        if (count == 0) {
+            firstTimestamp = m.getTimestamp();
+        }
+        writeDelta(ArchiveBlockReader.FIELD_TIMESTAMP, m.getTimestamp());
+        writeDelta(ArchiveBlockReader.FIELD_MCC, m.getMcc());
+        writeDelta(ArchiveBlockReader.FIELD_MNC, m.getMnc());
+        writeDelta(ArchiveBlockReader.FIELD_LAC, m.getLac());
+        writeDelta(ArchiveBlockReader.FIELD_CID, m.getCid());
+        writeDelta(ArchiveBlockReader.FIELD_NET_TYPE, m.getNetworkType().getValue());
+        writeDelta(ArchiveBlockReader.FIELD_NEIGHBORING, m.isNeighboring() ? 1 : 0);
+        writeDelta(ArchiveBlockReader.FIELD_PSC, m.getPsc());
+        writeDelta(ArchiveBlockReader.FIELD_TA, m.getTa());
+        writeDelta(ArchiveBlockReader.FIELD_ASU, m.getAsu());
+        writeDelta(ArchiveBlockReader.FIELD_DBM, m.getDbm());
+        writeXor(ArchiveBlockReader.FIELD_LATITUDE, Double.doubleToLongBits(m.getLatitude()));
+        writeXor(ArchiveBlockReader.FIELD_LONGITUDE, Double.doubleToLongBits(m.getLongitude()));
+        writeXor(ArchiveBlockReader.FIELD_GPS_ACCURACY, Float.floatToIntBits(m.getGpsAccuracy()));
+        writeXor(ArchiveBlockReader.FIELD_GPS_SPEED, Float.floatToIntBits(m.getGpsSpeed()));
+        writeXor(ArchiveBlockReader.FIELD_GPS_BEARING, Float.floatToIntBits(m.getGpsBearing()));
+        writeXor(ArchiveBlockReader.FIELD_GPS_ALTITUDE, Double.doubleToLongBits(m.getGpsAltitude()));
+        writeDelta(ArchiveBlockReader.FIELD_SAMPLES, m.getSamples());
+        writeDelta(ArchiveBlockReader.FIELD_DBM_MIN, m.getDbmMin());
+        writeDelta(ArchiveBlockReader.FIELD_DBM_MAX, m.getDbmMax());
+        count++;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    long getFirstTimestamp() {
+        return firstTimestamp;
+    }
+
+    long getLastTimestamp() {
+        return previous[ArchiveBlockReader.FIELD_TIMESTAMP];
+    }
+
+    /**
+     * Finishes compression and returns whole block. Writer cannot be used afterwards.
+     */
+    byte[] finish() throws IOException {
+        try {
+            output.close();
+            return buffer.toByteArray();
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Releases native compressor, e.g. when block is abandoned.
+     */
+    void close() {
+        deflater.end();
+    }
+
+    private void writeDelta(int field, long value) throws IOException {
+        long delta = value - previous[field];
+        previous[field] = value;
+        // zigzag keeps small negative differences short
+        writeVarLong((delta << 1) ^ (delta >> 63));
+    }
+
+    private void writeXor(int field, long bits) throws IOException {
+        long diff = bits ^ previous[field];
+        previous[field] = bits;
+        // close values differ only in low mantissa bits
+        writeVarLong(diff);
+    }
+
+    private void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            output.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        output.write((int) value);
+    }
+}
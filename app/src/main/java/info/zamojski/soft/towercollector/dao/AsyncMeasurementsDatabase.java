@@ -0,0 +1,253 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import info.zamojski.soft.towercollector.files.generators.wrappers.interfaces.IProgressListener;
+import info.zamojski.soft.towercollector.files.readers.IMeasurementReader;
+import info.zamojski.soft.towercollector.files.readers.MeasurementReaderFactory;
+import info.zamojski.soft.towercollector.model.CellsCount;
+import info.zamojski.soft.towercollector.model.Measurement;
+import info.zamojski.soft.towercollector.model.Statistics;
+import timber.log.Timber;
+
+/**
+ * Runs {@link MeasurementsDatabase} operations off the main thread. All writes are executed in order
+ * on one writer thread, reads on a small pool using the read only connection.
+ * Results are returned as futures and optionally delivered to callbacks on main thread.
+ * Every write, including the ones done by collector, uploader and imports, should be submitted here.
+ */
+public class AsyncMeasurementsDatabase {
+
+    private static final int READER_THREADS = 2;
+    private static final long IDLE_THREAD_KEEP_ALIVE = 30 * 1000;
+
+    private static volatile AsyncMeasurementsDatabase instance = null;
+
+    private final Context context;
+    private final ScheduledExecutorService writerExecutor;
+    private final ExecutorService readerExecutor;
+    private final Handler mainHandler;
+
+    private AsyncMeasurementsDatabase(Context context) {
+        this.context = context.getApplicationContext();
+        writerExecutor = createWriterExecutor();
+        readerExecutor = createExecutor(READER_THREADS, "Reader");
+        mainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    public Future<Measurement> getLastMeasurement(IDatabaseCallback<Measurement> callback) {
+        return submitRead(new Callable<Measurement>() {
+            @Override
+            public Measurement call() {
+                return getDatabase().getLastMeasurement();
+            }
+        }, callback);
+    }
+
+    public Future<CellsCount> getLastCellsCount(IDatabaseCallback<CellsCount> callback) {
+        return submitRead(new Callable<CellsCount>() {
+            @Override
+            public CellsCount call() {
+                return getDatabase().getLastCellsCount();
+            }
+        }, callback);
+    }
+
+    /**
+     * Executed on reader pool, so it doesn't wait for queued writes. Counters are reloaded by separate write task
+     * only on first use and after day rollover.
+     */
+    public Future<Statistics> getMeasurementsStatistics(IDatabaseCallback<Statistics> callback) {
+        return submitRead(new Callable<Statistics>() {
+            @Override
+            public Statistics call() throws Exception {
+                if (getDatabase().needsStatisticsReload()) {
+                    writerExecutor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() {
+                            getDatabase().reloadStatistics();
+                            return null;
+                        }
+                    }).get();
+                }
+                return getDatabase().getMeasurementsStatistics();
+            }
+        }, callback);
+    }
+
+    public Future<Boolean> saveMeasurements(final Measurement[] measurements, IDatabaseCallback<Boolean> callback) {
+        return submitWrite(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return getDatabase().saveMeasurements(measurements);
+            }
+        }, callback);
+    }
+
+    public Future<Integer> deleteMeasurementsUpTo(final long lastTimestamp, final int lastRowId, final int maxRowId, final int expectedCount,
+                                                  IDatabaseCallback<Integer> callback) {
+        return submitWrite(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return getDatabase().deleteMeasurementsUpTo(lastTimestamp, lastRowId, maxRowId, expectedCount);
+            }
+        }, callback);
+    }
+
+    /**
+     * Imports measurements from given exported file. Rows already stored in database or its segments are skipped.
+     * Every batch is inserted by separate write task, so collector running at the same time is not stalled.
+     * Has to be called on background thread, it returns when the whole file has been imported.
+     *
+     * @param deferIndexes build secondary indexes once after all rows are loaded, faster for large files
+     */
+    public ImportResult importMeasurements(File file, boolean deferIndexes, IProgressListener listener) throws IOException {
+        Timber.d("importMeasurements(): Importing measurements, defer indexes %s", deferIndexes);
+        IMeasurementReader reader = new MeasurementReaderFactory().createReader(file);
+        try {
+            return new MeasurementsImporter(this, context).run(reader, deferIndexes, listener);
+        } finally {
+            reader.close();
+        }
+    }
+
+    public Future<Boolean> flushPendingMeasurements(IDatabaseCallback<Boolean> callback) {
+        return submitWrite(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return getDatabase().flushPendingMeasurements();
+            }
+        }, callback);
+    }
+
+    public Future<Integer> deleteAllMeasurements(IDatabaseCallback<Integer> callback) {
+        return submitWrite(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return getDatabase().deleteAllMeasurements();
+            }
+        }, callback);
+    }
+
+    /**
+     * Runs given task on writer thread after all previously submitted writes.
+     */
+    public <T> Future<T> submitWrite(Callable<T> task, IDatabaseCallback<T> callback) {
+        return submit(writerExecutor, task, callback);
+    }
+
+    /**
+     * Runs given task on reader pool. It must not modify database.
+     */
+    public <T> Future<T> submitRead(Callable<T> task, IDatabaseCallback<T> callback) {
+        return submit(readerExecutor, task, callback);
+    }
+
+    private <T> Future<T> submit(ExecutorService executor, final Callable<T> task, final IDatabaseCallback<T> callback) {
+        FutureTask<T> future = new FutureTask<T>(task) {
+            @Override
+            protected void done() {
+                if (isCancelled()) {
+                    return;
+                }
+                final T result;
+                try {
+                    result = get();
+                } catch (Exception ex) {
+                    Timber.e(ex, "done(): Database operation failed");
+                    if (callback != null) {
+                        Throwable cause = ex.getCause();
+                        final Exception error = (cause instanceof Exception ? (Exception) cause : ex);
+                        mainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                callback.onError(error);
+                            }
+                        });
+                    }
+                    return;
+                }
+                if (callback != null) {
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onResult(result);
+                        }
+                    });
+                }
+            }
+        };
+        executor.execute(future);
+        return future;
+    }
+
+    /**
+     * Used by {@link MeasurementsDatabase} to run delayed jobs (write-behind flush, checkpoints, maintenance) on writer thread.
+     */
+    ScheduledExecutorService getWriterExecutor() {
+        return writerExecutor;
+    }
+
+    private MeasurementsDatabase getDatabase() {
+        // instance is replaced after database upgrade or import
+        return MeasurementsDatabase.getInstance(context);
+    }
+
+    private static ExecutorService createExecutor(int threads, String name) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, IDLE_THREAD_KEEP_ALIVE, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), createThreadFactory(name));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static ScheduledExecutorService createWriterExecutor() {
+        // kept alive because delayed jobs are waiting in its queue most of the time
+        return new ScheduledThreadPoolExecutor(1, createThreadFactory("Writer"));
+    }
+
+    private static ThreadFactory createThreadFactory(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, AsyncMeasurementsDatabase.class.getSimpleName() + "." + name + "-" + counter.incrementAndGet());
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            }
+        };
+    }
+
+    // ========== GET SINGLETON INSTANCE ========== //
+
+    public static AsyncMeasurementsDatabase getInstance(Context context) {
+        if (instance == null) {
+            synchronized (AsyncMeasurementsDatabase.class) {
+                if (instance == null) {
+                    instance = new AsyncMeasurementsDatabase(context);
+                }
+            }
+        }
+        return instance;
+    }
+}
@@ -0,0 +1,100 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import info.zamojski.soft.towercollector.model.CellReading;
+
+/**
+ * Bounded LRU map from cell identity to row id in cells table.
+ * Entries must be dropped whenever cells may be removed from the table.
+ */
+final class CellRowIdCache {
+
+    static final long NOT_FOUND = -1;
+
+    private final LinkedHashMap<Key, Long> entries;
+    // reused for lookups to avoid allocation on every get
+    private final Key probe = new Key();
+
+    private long hits;
+    private long misses;
+
+    CellRowIdCache(final int capacity) {
+        this.entries = new LinkedHashMap<Key, Long>(capacity, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Long> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    synchronized long get(CellReading m) {
+        probe.set(m);
+        Long rowId = entries.get(probe);
+        if (rowId == null) {
+            misses++;
+            return NOT_FOUND;
+        }
+        hits++;
+        return rowId;
+    }
+
+    synchronized void put(CellReading m, long rowId) {
+        Key key = new Key();
+        key.set(m);
+        entries.put(key, rowId);
+    }
+
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    synchronized long getHitCount() {
+        return hits;
+    }
+
+    synchronized long getMissCount() {
+        return misses;
+    }
+
+    private static final class Key {
+        private int mcc;
+        private int mnc;
+        private int lac;
+        private int cid;
+        private int netType;
+
+        void set(CellReading m) {
+            mcc = m.getMcc();
+            mnc = m.getMnc();
+            lac = m.getLac();
+            cid = m.getCid();
+            netType = m.getNetworkType().ordinal();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return cid == other.cid && lac == other.lac && mnc == other.mnc && mcc == other.mcc && netType == other.netType;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = cid;
+            result = 31 * result + lac;
+            result = 31 * result + mnc;
+            result = 31 * result + mcc;
+            result = 31 * result + netType;
+            return result;
+        }
+    }
+}
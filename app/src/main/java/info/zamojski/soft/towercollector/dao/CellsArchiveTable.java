@@ -12,6 +12,7 @@ final class CellsArchiveTable implements ITable {
     static final String COLUMN_MNC = "mnc";
     static final String COLUMN_LAC = "lac";
     static final String COLUMN_CID = "cid";
+    static final String COLUMN_CELL_KEY = "cell_key";
     static final String COLUMN_NET_TYPE = "net_type";
     static final String COLUMN_DISCOVERED_AT = "discovered_at";
 
@@ -22,8 +23,9 @@ final class CellsArchiveTable implements ITable {
             + COLUMN_LAC + " INTEGER NOT NULL, "
             + COLUMN_CID + " INTEGER NOT NULL, "
             + COLUMN_NET_TYPE + " INTEGER NOT NULL, "
+            + COLUMN_CELL_KEY + " INTEGER NOT NULL, "
             + COLUMN_DISCOVERED_AT + " INTEGER NOT NULL, "
-            + "UNIQUE (" + COLUMN_CID + ", " + COLUMN_LAC + ", " + COLUMN_MNC + ", " + COLUMN_MCC + ", " + COLUMN_NET_TYPE + ") ON CONFLICT IGNORE)";
+            + "UNIQUE (" + COLUMN_CELL_KEY + ") ON CONFLICT IGNORE)";
 
     @Override
     public String[] getCreateQueries() {
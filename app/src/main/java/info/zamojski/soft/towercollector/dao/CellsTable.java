@@ -12,8 +12,10 @@ final class CellsTable implements ITable {
     static final String COLUMN_MNC = "mnc";
     static final String COLUMN_LAC = "lac";
     static final String COLUMN_CID = "cid";
+    static final String COLUMN_CELL_KEY = "cell_key";
     static final String COLUMN_NET_TYPE = "net_type";
     static final String COLUMN_DISCOVERED_AT = "discovered_at";
+    static final String COLUMN_REFCOUNT = "refcount";
 
     private static final String QUERY_CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " ("
             + COLUMN_ROW_ID + " INTEGER PRIMARY KEY NOT NULL, "
@@ -22,19 +24,26 @@ final class CellsTable implements ITable {
             + COLUMN_LAC + " INTEGER NOT NULL, "
             + COLUMN_CID + " INTEGER NOT NULL, "
             + COLUMN_NET_TYPE + " INTEGER NOT NULL, "
+            + COLUMN_CELL_KEY + " INTEGER NOT NULL, "
             + COLUMN_DISCOVERED_AT + " INTEGER NOT NULL, "
-            + "UNIQUE (" + COLUMN_CID + ", " + COLUMN_LAC + ", " + COLUMN_MNC + ", " + COLUMN_MCC + ", " + COLUMN_NET_TYPE + ") ON CONFLICT IGNORE)";
+            + COLUMN_REFCOUNT + " INTEGER NOT NULL DEFAULT 0, "
+            + "UNIQUE (" + COLUMN_CELL_KEY + ") ON CONFLICT IGNORE)";
 
     private static final String QUERY_CREATE_TRIGGER_ON_DELETE = "CREATE TRIGGER 'archive_cell' BEFORE DELETE ON " + TABLE_NAME + " BEGIN INSERT INTO "
             + CellsArchiveTable.TABLE_NAME + " (" + CellsArchiveTable.COLUMN_MCC + ", " + CellsArchiveTable.COLUMN_MNC + ", "
             + CellsArchiveTable.COLUMN_LAC + ", " + CellsArchiveTable.COLUMN_CID + ", " + CellsArchiveTable.COLUMN_NET_TYPE + ", "
-            + CellsArchiveTable.COLUMN_DISCOVERED_AT + ") VALUES (old." + COLUMN_MCC + ", old." + COLUMN_MNC
-            + ", old." + COLUMN_LAC + ", old." + COLUMN_CID + ", old." + COLUMN_NET_TYPE + ", old." + COLUMN_DISCOVERED_AT + "); END";
+            + CellsArchiveTable.COLUMN_CELL_KEY + ", " + CellsArchiveTable.COLUMN_DISCOVERED_AT + ") VALUES (old." + COLUMN_MCC + ", old." + COLUMN_MNC
+            + ", old." + COLUMN_LAC + ", old." + COLUMN_CID + ", old." + COLUMN_NET_TYPE + ", old." + COLUMN_CELL_KEY + ", old." + COLUMN_DISCOVERED_AT + "); END";
+
+    // used by today and local since statistics
+    private static final String QUERY_CREATE_INDEX_DISCOVERED_AT = "CREATE INDEX 'IX_" + TABLE_NAME + "_" + COLUMN_DISCOVERED_AT
+            + "' ON " + TABLE_NAME + " (" + COLUMN_DISCOVERED_AT + " ASC)";
 
     @Override
     public String[] getCreateQueries() {
         return new String[]{
                 QUERY_CREATE_TABLE,
+                QUERY_CREATE_INDEX_DISCOVERED_AT,
                 QUERY_CREATE_TRIGGER_ON_DELETE
         };
     }
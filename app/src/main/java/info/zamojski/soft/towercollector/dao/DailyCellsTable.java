@@ -0,0 +1,36 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao;
+
+/**
+ * Number of measurements of each cell per day (UTC) maintained by {@link DailyRollup}, used to count distinct cells in {@link DailyStatsTable}.
+ * Cells are identified by key, row of cell removed and inserted again the same day has different id. Network type is copied
+ * because cell may be removed before its last measurement.
+ */
+final class DailyCellsTable implements ITable {
+
+    static final String TABLE_NAME = "daily_cells";
+    static final String COLUMN_ROW_ID = "row_id";
+    static final String COLUMN_DAY = "day";
+    static final String COLUMN_CELL_KEY = "cell_key";
+    static final String COLUMN_NET_TYPE = "net_type";
+    static final String COLUMN_MEASUREMENTS = "measurements";
+
+    private static final String QUERY_CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " ("
+            + COLUMN_ROW_ID + " INTEGER PRIMARY KEY NOT NULL, "
+            + COLUMN_DAY + " INTEGER NOT NULL, "
+            + COLUMN_CELL_KEY + " INTEGER NOT NULL, "
+            + COLUMN_NET_TYPE + " INTEGER NOT NULL, "
+            + COLUMN_MEASUREMENTS + " INTEGER NOT NULL DEFAULT 0, "
+            + "UNIQUE (" + COLUMN_DAY + ", " + COLUMN_CELL_KEY + ") ON CONFLICT IGNORE)";
+
+    @Override
+    public String[] getCreateQueries() {
+        return new String[]{
+                QUERY_CREATE_TABLE
+        };
+    }
+
+}
@@ -0,0 +1,159 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Keeps per day rollup in {@link DailyCellsTable} and {@link DailyStatsTable}. Measurements inserted in one transaction
+ * are grouped by day and cell and written once per group, deleted measurements are subtracted with set based statements.
+ * Methods must be called inside transaction which changes the measurements.
+ */
+final class DailyRollup {
+
+    private static final String QUERY_FIND_CELL_KEY = "SELECT " + CellsTable.COLUMN_CELL_KEY + " FROM " + CellsTable.TABLE_NAME + " WHERE " + CellsTable.COLUMN_ROW_ID + " = ?";
+
+    private static final String QUERY_INSERT_DAILY_CELL = "INSERT INTO " + DailyCellsTable.TABLE_NAME + " (" + DailyCellsTable.COLUMN_DAY + ", "
+            + DailyCellsTable.COLUMN_CELL_KEY + ", " + DailyCellsTable.COLUMN_NET_TYPE + ") SELECT ?, " + CellsTable.COLUMN_CELL_KEY + ", " + CellsTable.COLUMN_NET_TYPE
+            + " FROM " + CellsTable.TABLE_NAME + " WHERE " + CellsTable.COLUMN_ROW_ID + " = ?";
+
+    private static final String QUERY_ADD_DAILY_CELL_MEASUREMENTS = "UPDATE " + DailyCellsTable.TABLE_NAME + " SET " + DailyCellsTable.COLUMN_MEASUREMENTS + " = "
+            + DailyCellsTable.COLUMN_MEASUREMENTS + " + ? WHERE " + DailyCellsTable.COLUMN_DAY + " = ? AND " + DailyCellsTable.COLUMN_CELL_KEY + " = ?";
+
+    private static final String QUERY_INSERT_DAILY_STATS = "INSERT INTO " + DailyStatsTable.TABLE_NAME + " (" + DailyStatsTable.COLUMN_DAY + ", " + DailyStatsTable.COLUMN_NET_TYPE + ") SELECT "
+            + DailyCellsTable.COLUMN_DAY + ", " + DailyCellsTable.COLUMN_NET_TYPE + " FROM " + DailyCellsTable.TABLE_NAME + " WHERE "
+            + DailyCellsTable.COLUMN_DAY + " = ? AND " + DailyCellsTable.COLUMN_CELL_KEY + " = ?";
+
+    private static final String QUERY_ADD_DAILY_STATS = "UPDATE " + DailyStatsTable.TABLE_NAME + " SET " + DailyStatsTable.COLUMN_MEASUREMENTS + " = " + DailyStatsTable.COLUMN_MEASUREMENTS + " + ?, "
+            + DailyStatsTable.COLUMN_CELLS + " = " + DailyStatsTable.COLUMN_CELLS + " + ? WHERE " + DailyStatsTable.COLUMN_DAY + " = ? AND " + DailyStatsTable.COLUMN_NET_TYPE + " = (SELECT "
+            + DailyCellsTable.COLUMN_NET_TYPE + " FROM " + DailyCellsTable.TABLE_NAME + " WHERE " + DailyCellsTable.COLUMN_DAY + " = ? AND " + DailyCellsTable.COLUMN_CELL_KEY + " = ?)";
+
+    // measurements about to be deleted grouped by day and cell
+    private static final String RELEASED_TABLE = "released_rollup";
+    private static final String QUERY_CREATE_RELEASED = "CREATE TEMP TABLE IF NOT EXISTS " + RELEASED_TABLE + " (day INTEGER NOT NULL, cell_key INTEGER NOT NULL, "
+            + "net_type INTEGER NOT NULL, released INTEGER NOT NULL, emptied INTEGER NOT NULL, PRIMARY KEY (day, cell_key))";
+    private static final String QUERY_CLEAR_RELEASED = "DELETE FROM " + RELEASED_TABLE;
+    private static final String QUERY_FILL_RELEASED = "INSERT INTO " + RELEASED_TABLE + " (day, cell_key, net_type, released, emptied) SELECT r.day, r.cell_key, d."
+            + DailyCellsTable.COLUMN_NET_TYPE + ", r.n, d." + DailyCellsTable.COLUMN_MEASUREMENTS + " <= r.n FROM (SELECT " + MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_MEASURED_AT
+            + " / " + MeasurementsDatabase.DAY_MILLIS + " AS day, c." + CellsTable.COLUMN_CELL_KEY + " AS cell_key, COUNT(*) AS n FROM " + MeasurementsTable.TABLE_NAME
+            + " INNER JOIN " + CellsTable.TABLE_NAME + " c ON c." + CellsTable.COLUMN_ROW_ID + " = " + MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_CELL_ID
+            + " WHERE %s GROUP BY 1, 2) r INNER JOIN " + DailyCellsTable.TABLE_NAME + " d ON d." + DailyCellsTable.COLUMN_DAY + " = r.day AND d." + DailyCellsTable.COLUMN_CELL_KEY + " = r.cell_key";
+
+    private static final String RELEASED_DAILY_CELLS = "SELECT d." + DailyCellsTable.COLUMN_ROW_ID + " FROM " + RELEASED_TABLE + " r INNER JOIN " + DailyCellsTable.TABLE_NAME
+            + " d ON d." + DailyCellsTable.COLUMN_DAY + " = r.day AND d." + DailyCellsTable.COLUMN_CELL_KEY + " = r.cell_key";
+    private static final String RELEASED_DAILY_STATS = "SELECT s." + DailyStatsTable.COLUMN_ROW_ID + " FROM " + RELEASED_TABLE + " r INNER JOIN " + DailyStatsTable.TABLE_NAME
+            + " s ON s." + DailyStatsTable.COLUMN_DAY + " = r.day AND s." + DailyStatsTable.COLUMN_NET_TYPE + " = r.net_type";
+
+    private static final String[] QUERIES_RELEASE = new String[]{
+            "UPDATE " + DailyStatsTable.TABLE_NAME + " SET "
+                    + DailyStatsTable.COLUMN_MEASUREMENTS + " = " + DailyStatsTable.COLUMN_MEASUREMENTS + " - (SELECT SUM(released) FROM " + RELEASED_TABLE + " r WHERE r.day = "
+                    + DailyStatsTable.TABLE_NAME + "." + DailyStatsTable.COLUMN_DAY + " AND r.net_type = " + DailyStatsTable.TABLE_NAME + "." + DailyStatsTable.COLUMN_NET_TYPE + "), "
+                    + DailyStatsTable.COLUMN_CELLS + " = " + DailyStatsTable.COLUMN_CELLS + " - (SELECT SUM(emptied) FROM " + RELEASED_TABLE + " r WHERE r.day = "
+                    + DailyStatsTable.TABLE_NAME + "." + DailyStatsTable.COLUMN_DAY + " AND r.net_type = " + DailyStatsTable.TABLE_NAME + "." + DailyStatsTable.COLUMN_NET_TYPE + ") "
+                    + "WHERE " + DailyStatsTable.COLUMN_ROW_ID + " IN (" + RELEASED_DAILY_STATS + ")",
+            "DELETE FROM " + DailyStatsTable.TABLE_NAME + " WHERE " + DailyStatsTable.COLUMN_ROW_ID + " IN (" + RELEASED_DAILY_STATS + ") AND " + DailyStatsTable.COLUMN_CELLS + " <= 0",
+            "UPDATE " + DailyCellsTable.TABLE_NAME + " SET " + DailyCellsTable.COLUMN_MEASUREMENTS + " = " + DailyCellsTable.COLUMN_MEASUREMENTS + " - (SELECT released FROM "
+                    + RELEASED_TABLE + " r WHERE r.day = " + DailyCellsTable.TABLE_NAME + "." + DailyCellsTable.COLUMN_DAY + " AND r.cell_key = " + DailyCellsTable.TABLE_NAME + "."
+                    + DailyCellsTable.COLUMN_CELL_KEY + ") WHERE " + DailyCellsTable.COLUMN_ROW_ID + " IN (" + RELEASED_DAILY_CELLS + ")",
+            "DELETE FROM " + DailyCellsTable.TABLE_NAME + " WHERE " + DailyCellsTable.COLUMN_ROW_ID + " IN (" + RELEASED_DAILY_CELLS + ") AND " + DailyCellsTable.COLUMN_MEASUREMENTS + " <= 0",
+            QUERY_CLEAR_RELEASED
+    };
+
+    private final SQLiteStatement findCellKeyStatement;
+    private final SQLiteStatement insertDailyCellStatement;
+    private final SQLiteStatement addDailyCellMeasurementsStatement;
+    private final SQLiteStatement insertDailyStatsStatement;
+    private final SQLiteStatement addDailyStatsStatement;
+    // number of measurements of each cell per day, reused between transactions
+    private final Map<Long, Map<Long, Integer>> pending = new HashMap<>();
+
+    DailyRollup(SQLiteDatabase db) {
+        this.findCellKeyStatement = db.compileStatement(QUERY_FIND_CELL_KEY);
+        this.insertDailyCellStatement = db.compileStatement(QUERY_INSERT_DAILY_CELL);
+        this.addDailyCellMeasurementsStatement = db.compileStatement(QUERY_ADD_DAILY_CELL_MEASUREMENTS);
+        this.insertDailyStatsStatement = db.compileStatement(QUERY_INSERT_DAILY_STATS);
+        this.addDailyStatsStatement = db.compileStatement(QUERY_ADD_DAILY_STATS);
+    }
+
+    void reset() {
+        pending.clear();
+    }
+
+    void addMeasurement(long cellId, long timestamp) {
+        long day = timestamp / MeasurementsDatabase.DAY_MILLIS;
+        Map<Long, Integer> cells = pending.get(day);
+        if (cells == null) {
+            cells = new HashMap<>();
+            pending.put(day, cells);
+        }
+        Integer count = cells.get(cellId);
+        cells.put(cellId, (count == null ? 1 : count + 1));
+    }
+
+    /**
+     * Writes measurements added since last reset (called before transaction is committed).
+     */
+    void apply() {
+        for (Map.Entry<Long, Map<Long, Integer>> dayEntry : pending.entrySet()) {
+            long day = dayEntry.getKey();
+            for (Map.Entry<Long, Integer> cellEntry : dayEntry.getValue().entrySet()) {
+                long cellId = cellEntry.getKey();
+                int measurements = cellEntry.getValue();
+                // row ids don't change within transaction, keys don't change when cell is removed and inserted again
+                findCellKeyStatement.bindLong(1, cellId);
+                long cellKey = findCellKeyStatement.simpleQueryForLong();
+                // ignored if cell has already been seen that day
+                insertDailyCellStatement.bindLong(1, day);
+                insertDailyCellStatement.bindLong(2, cellId);
+                boolean newCell = (insertDailyCellStatement.executeInsert() != -1);
+                addDailyCellMeasurementsStatement.bindLong(1, measurements);
+                addDailyCellMeasurementsStatement.bindLong(2, day);
+                addDailyCellMeasurementsStatement.bindLong(3, cellKey);
+                addDailyCellMeasurementsStatement.executeUpdateDelete();
+                if (newCell) {
+                    insertDailyStatsStatement.bindLong(1, day);
+                    insertDailyStatsStatement.bindLong(2, cellKey);
+                    insertDailyStatsStatement.executeInsert();
+                }
+                addDailyStatsStatement.bindLong(1, measurements);
+                addDailyStatsStatement.bindLong(2, newCell ? 1 : 0);
+                addDailyStatsStatement.bindLong(3, day);
+                addDailyStatsStatement.bindLong(4, day);
+                addDailyStatsStatement.bindLong(5, cellKey);
+                addDailyStatsStatement.executeUpdateDelete();
+            }
+        }
+        pending.clear();
+    }
+
+    void close() {
+        findCellKeyStatement.close();
+        insertDailyCellStatement.close();
+        addDailyCellMeasurementsStatement.close();
+        insertDailyStatsStatement.close();
+        addDailyStatsStatement.close();
+    }
+
+    /**
+     * Subtracts measurements matching the selection. Has to be called before the measurements are deleted.
+     */
+    static void release(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        db.execSQL(QUERY_CREATE_RELEASED);
+        db.execSQL(QUERY_CLEAR_RELEASED);
+        db.execSQL(String.format(QUERY_FILL_RELEASED, selection), (selectionArgs != null ? selectionArgs : new String[0]));
+        for (String query : QUERIES_RELEASE) {
+            db.execSQL(query);
+        }
+    }
+
+    static void releaseAll(SQLiteDatabase db) {
+        db.delete(DailyCellsTable.TABLE_NAME, "1", null);
+        db.delete(DailyStatsTable.TABLE_NAME, "1", null);
+    }
+}
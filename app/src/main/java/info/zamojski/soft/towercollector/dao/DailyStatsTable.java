@@ -0,0 +1,34 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao;
+
+/**
+ * Number of measurements and distinct cells per day (UTC) and network type, maintained by {@link DailyRollup}.
+ */
+final class DailyStatsTable implements ITable {
+
+    static final String TABLE_NAME = "daily_stats";
+    static final String COLUMN_ROW_ID = "row_id";
+    static final String COLUMN_DAY = "day";
+    static final String COLUMN_NET_TYPE = "net_type";
+    static final String COLUMN_MEASUREMENTS = "measurements";
+    static final String COLUMN_CELLS = "cells";
+
+    private static final String QUERY_CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " ("
+            + COLUMN_ROW_ID + " INTEGER PRIMARY KEY NOT NULL, "
+            + COLUMN_DAY + " INTEGER NOT NULL, "
+            + COLUMN_NET_TYPE + " INTEGER NOT NULL, "
+            + COLUMN_MEASUREMENTS + " INTEGER NOT NULL DEFAULT 0, "
+            + COLUMN_CELLS + " INTEGER NOT NULL DEFAULT 0, "
+            + "UNIQUE (" + COLUMN_DAY + ", " + COLUMN_NET_TYPE + ") ON CONFLICT IGNORE)";
+
+    @Override
+    public String[] getCreateQueries() {
+        return new String[]{
+                QUERY_CREATE_TABLE
+        };
+    }
+
+}
@@ -0,0 +1,254 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.SystemClock;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import info.zamojski.soft.towercollector.MyApplication;
+import timber.log.Timber;
+
+/**
+ * Runs database maintenance on writer thread in short slices, so writes queued on the same thread are never blocked for long.
+ * Interrupted maintenance continues from the same step on next request.
+ */
+class DatabaseMaintenance {
+
+    private static final long MAINTENANCE_INTERVAL = 24 * 60 * 60 * 1000;
+    // let services which triggered the request finish first
+    private static final long START_DELAY = 60 * 1000;
+    private static final long SLICE_BUDGET = 250;
+    private static final long SLICE_INTERVAL = 2 * 1000;
+    private static final int VACUUM_PAGES_PER_STATEMENT = 256;
+    // rows examined per index, keeps ANALYZE of large tables within slice budget (ignored by SQLite older than 3.32)
+    private static final int ANALYSIS_LIMIT = 1000;
+
+    private static final int STEP_CHECKPOINT = 0;
+    private static final int STEP_ANALYZE = 1;
+    private static final int STEP_INCREMENTAL_VACUUM = 2;
+    private static final int STEP_RESTART_LOG = 3;
+    private static final String[] STEP_NAMES = new String[]{"checkpoint", "analyze", "incremental vacuum", "restart log"};
+
+    private static final String[] ANALYZED_TABLES = new String[]{MeasurementsTable.TABLE_NAME, LocationsTable.TABLE_NAME, CellsTable.TABLE_NAME, CellsArchiveTable.TABLE_NAME};
+
+    private final SQLiteOpenHelper helper;
+    private final ScheduledExecutorService executor;
+    private final WalCheckpointer checkpointer;
+    private final File databaseFile;
+    private final File walFile;
+
+    private boolean running = false;
+    private ScheduledFuture<?> scheduledSlice;
+    private IMaintenanceCondition condition;
+    private final List<IMaintenanceListener> listeners = new ArrayList<>();
+    private int step = 0;
+    private int analyzedTables = 0;
+    private final long[] stepDurations = new long[STEP_NAMES.length];
+    private final long[] stepReclaimedBytes = new long[STEP_NAMES.length];
+    private long filesSizeBefore;
+
+    private final Runnable sliceTask = new Runnable() {
+        @Override
+        public void run() {
+            runSlice();
+        }
+    };
+
+    DatabaseMaintenance(SQLiteOpenHelper helper, ScheduledExecutorService executor, WalCheckpointer checkpointer, File databaseFile) {
+        this.helper = helper;
+        this.executor = executor;
+        this.checkpointer = checkpointer;
+        this.databaseFile = databaseFile;
+        this.walFile = new File(databaseFile.getPath() + "-wal");
+    }
+
+    /**
+     * @param listener notified when maintenance finishes, is interrupted or skipped, may be null
+     */
+    void request(IMaintenanceCondition condition, IMaintenanceListener listener) {
+        synchronized (this) {
+            if (running) {
+                Timber.d("request(): Maintenance already running");
+                addListener(listener);
+                return;
+            }
+            // interrupted maintenance is always continued
+            if (step > 0 || isDue()) {
+                if (step == 0) {
+                    analyzedTables = 0;
+                    for (int i = 0; i < STEP_NAMES.length; i++) {
+                        stepDurations[i] = 0;
+                        stepReclaimedBytes[i] = 0;
+                    }
+                    filesSizeBefore = getFilesSize();
+                }
+                Timber.d("request(): Scheduling maintenance from step %s", STEP_NAMES[step]);
+                this.condition = condition;
+                addListener(listener);
+                running = true;
+                scheduledSlice = executor.schedule(sliceTask, START_DELAY, TimeUnit.MILLISECONDS);
+                return;
+            }
+            Timber.d("request(): Maintenance done recently, skipping");
+        }
+        if (listener != null) {
+            listener.onMaintenanceEnded();
+        }
+    }
+
+    void stop() {
+        List<IMaintenanceListener> endedListeners;
+        synchronized (this) {
+            if (scheduledSlice != null) {
+                scheduledSlice.cancel(false);
+                scheduledSlice = null;
+            }
+            running = false;
+            condition = null;
+            endedListeners = removeListeners();
+        }
+        notifyEnded(endedListeners);
+    }
+
+    private void runSlice() {
+        IMaintenanceCondition currentCondition;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            currentCondition = condition;
+        }
+        if (!currentCondition.canRunMaintenance()) {
+            Timber.d("runSlice(): Device busy, interrupting maintenance at step %s", STEP_NAMES[step]);
+            stop();
+            return;
+        }
+        long sliceStart = SystemClock.elapsedRealtime();
+        try {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            while (step < STEP_NAMES.length && SystemClock.elapsedRealtime() - sliceStart < SLICE_BUDGET) {
+                long stepStart = SystemClock.elapsedRealtime();
+                long sizeBefore = getDatabaseSize(db);
+                boolean stepFinished = runStep(db);
+                stepDurations[step] += SystemClock.elapsedRealtime() - stepStart;
+                stepReclaimedBytes[step] += sizeBefore - getDatabaseSize(db);
+                if (stepFinished) {
+                    Timber.d("runSlice(): Step %s took %s ms and reclaimed %s bytes", STEP_NAMES[step], stepDurations[step], stepReclaimedBytes[step]);
+                    step++;
+                }
+            }
+        } catch (SQLiteException | IllegalStateException ex) {
+            // database busy or closed, next request continues from current step
+            Timber.w(ex, "runSlice(): Maintenance step %s failed", STEP_NAMES[step]);
+            stop();
+            return;
+        }
+        if (step < STEP_NAMES.length) {
+            synchronized (this) {
+                if (running) {
+                    scheduledSlice = executor.schedule(sliceTask, SLICE_INTERVAL, TimeUnit.MILLISECONDS);
+                }
+            }
+        } else {
+            finish();
+        }
+    }
+
+    private boolean runStep(SQLiteDatabase db) {
+        switch (step) {
+            case STEP_CHECKPOINT:
+                checkpointer.checkpoint(WalCheckpointer.MODE_FULL);
+                return true;
+            case STEP_ANALYZE:
+                // limit is per connection, set it every time in case it has been reopened
+                queryForLong(db, "PRAGMA analysis_limit = " + ANALYSIS_LIMIT);
+                db.execSQL("ANALYZE " + ANALYZED_TABLES[analyzedTables]);
+                analyzedTables++;
+                return (analyzedTables == ANALYZED_TABLES.length);
+            case STEP_INCREMENTAL_VACUUM:
+                long freePages = queryForLong(db, "PRAGMA freelist_count");
+                if (freePages == 0) {
+                    return true;
+                }
+                db.execSQL("PRAGMA incremental_vacuum(" + VACUUM_PAGES_PER_STATEMENT + ")");
+                // finished also when pages cannot be released (auto vacuum not enabled, see MeasurementsDatabase.upgradeDatabase)
+                return (queryForLong(db, "PRAGMA freelist_count") == freePages);
+            case STEP_RESTART_LOG:
+                // log is truncated to journal size limit on restart
+                checkpointer.checkpoint(WalCheckpointer.MODE_RESTART);
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    private void finish() {
+        long duration = 0;
+        for (long stepDuration : stepDurations) {
+            duration += stepDuration;
+        }
+        Timber.i("finish(): Maintenance finished in %s ms, files shrunk from %s to %s bytes", duration, filesSizeBefore, getFilesSize());
+        MyApplication.getPreferencesProvider().setLastDatabaseMaintenanceDate(System.currentTimeMillis());
+        List<IMaintenanceListener> endedListeners;
+        synchronized (this) {
+            step = 0;
+            running = false;
+            condition = null;
+            endedListeners = removeListeners();
+        }
+        notifyEnded(endedListeners);
+    }
+
+    private static boolean isDue() {
+        long lastMaintenance = MyApplication.getPreferencesProvider().getLastDatabaseMaintenanceDate();
+        return (System.currentTimeMillis() - lastMaintenance >= MAINTENANCE_INTERVAL);
+    }
+
+    private void addListener(IMaintenanceListener listener) {
+        if (listener != null) {
+            listeners.add(listener);
+        }
+    }
+
+    private List<IMaintenanceListener> removeListeners() {
+        List<IMaintenanceListener> removed = new ArrayList<>(listeners);
+        listeners.clear();
+        return removed;
+    }
+
+    private static void notifyEnded(List<IMaintenanceListener> endedListeners) {
+        // outside of lock, listeners may call back into database
+        for (IMaintenanceListener listener : endedListeners) {
+            listener.onMaintenanceEnded();
+        }
+    }
+
+    private long getFilesSize() {
+        return databaseFile.length() + walFile.length();
+    }
+
+    private static long getDatabaseSize(SQLiteDatabase db) {
+        return queryForLong(db, "PRAGMA page_count") * queryForLong(db, "PRAGMA page_size");
+    }
+
+    private static long queryForLong(SQLiteDatabase db, String query) {
+        Cursor cursor = db.rawQuery(query, null);
+        try {
+            return (cursor.moveToFirst() ? cursor.getLong(0) : 0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
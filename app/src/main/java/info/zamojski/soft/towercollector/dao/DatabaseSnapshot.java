@@ -0,0 +1,226 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import info.zamojski.soft.towercollector.files.generators.wrappers.interfaces.IProgressListener;
+import timber.log.Timber;
+
+/**
+ * Copies transactionally consistent state of database to new compacted file while collector keeps writing.
+ * Source is read on separate read only connection inside one read transaction, which in WAL mode doesn't block the writer.
+ * The transaction is opened with SAVEPOINT because BEGIN is always turned into write transaction by the framework.
+ * Rows are copied in pages of row ids and indexes are built after data, so destination has no free or fragmented pages.
+ */
+class DatabaseSnapshot {
+
+    private static final int PAGE_ROWS = 1000;
+    private static final String SAVEPOINT = "snapshot";
+
+    private static final String QUERY_SCHEMA = "SELECT type, name, sql FROM sqlite_master "
+            + "WHERE sql IS NOT NULL AND name NOT LIKE 'sqlite_%' "
+            + "ORDER BY CASE type WHEN 'table' THEN 0 WHEN 'index' THEN 1 ELSE 2 END, rowid";
+
+    private final File sourceFile;
+
+    DatabaseSnapshot(File sourceFile) {
+        this.sourceFile = sourceFile;
+    }
+
+    /**
+     * Writes snapshot to temporary file next to destination and renames it when complete.
+     *
+     * @return true if snapshot was written
+     */
+    boolean export(File dstFile, IProgressListener listener) {
+        File tempFile = new File(dstFile.getPath() + ".tmp");
+        deleteDatabaseFiles(tempFile);
+        SQLiteDatabase source = null;
+        SQLiteDatabase destination = null;
+        try {
+            source = SQLiteDatabase.openDatabase(sourceFile.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+            source.execSQL("SAVEPOINT " + SAVEPOINT);
+            // first read pins the snapshot
+            List<String[]> schema = querySchema(source);
+            List<String> tables = new ArrayList<>();
+            long totalRows = 0;
+            for (String[] object : schema) {
+                if ("table".equals(object[0])) {
+                    tables.add(object[1]);
+                    totalRows += queryForLong(source, "SELECT COUNT(*) FROM \"" + object[1] + "\"");
+                }
+            }
+            int version = source.getVersion();
+            Timber.d("export(): Copying %s rows of %s tables", totalRows, tables.size());
+
+            destination = SQLiteDatabase.openDatabase(tempFile.getPath(), null,
+                    SQLiteDatabase.CREATE_IF_NECESSARY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+            // file is published only when complete
+            queryForString(destination, "PRAGMA journal_mode = OFF");
+            destination.execSQL("PRAGMA synchronous = OFF");
+            // imported snapshot keeps mode of database created by app
+            destination.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            for (String[] object : schema) {
+                if ("table".equals(object[0])) {
+                    destination.execSQL(object[2]);
+                }
+            }
+            long copiedRows = 0;
+            for (String table : tables) {
+                copiedRows = copyTable(source, destination, table, copiedRows, totalRows, listener);
+            }
+            for (String[] object : schema) {
+                if (!"table".equals(object[0])) {
+                    destination.execSQL(object[2]);
+                }
+            }
+            destination.setVersion(version);
+            source.execSQL("RELEASE " + SAVEPOINT);
+            destination.close();
+            destination = null;
+            if (!tempFile.renameTo(dstFile)) {
+                Timber.e("export(): Failed to rename %s to %s", tempFile, dstFile);
+                deleteDatabaseFiles(tempFile);
+                return false;
+            }
+            Timber.d("export(): Snapshot written to %s", dstFile);
+            return true;
+        } finally {
+            if (source != null) {
+                source.close();
+            }
+            if (destination != null) {
+                destination.close();
+                deleteDatabaseFiles(tempFile);
+            }
+        }
+    }
+
+    private long copyTable(SQLiteDatabase source, SQLiteDatabase destination, String table, long copiedRows, long totalRows, IProgressListener listener) {
+        String selectQuery = "SELECT rowid, * FROM \"" + table + "\" WHERE rowid > ? ORDER BY rowid LIMIT " + PAGE_ROWS;
+        SQLiteStatement insertStatement = null;
+        long lastRowId = Long.MIN_VALUE;
+        try {
+            while (true) {
+                Cursor cursor = source.rawQuery(selectQuery, new String[]{String.valueOf(lastRowId)});
+                try {
+                    if (cursor.getCount() == 0) {
+                        break;
+                    }
+                    if (insertStatement == null) {
+                        insertStatement = destination.compileStatement(buildInsertQuery(table, cursor.getColumnNames()));
+                    }
+                    destination.beginTransaction();
+                    try {
+                        while (cursor.moveToNext()) {
+                            bindRow(insertStatement, cursor);
+                            insertStatement.executeInsert();
+                            lastRowId = cursor.getLong(0);
+                        }
+                        destination.setTransactionSuccessful();
+                    } finally {
+                        destination.endTransaction();
+                    }
+                    copiedRows += cursor.getCount();
+                } finally {
+                    cursor.close();
+                }
+                if (listener != null) {
+                    listener.reportProgress(toProgress(copiedRows, totalRows), 100);
+                }
+            }
+        } finally {
+            if (insertStatement != null) {
+                insertStatement.close();
+            }
+        }
+        return copiedRows;
+    }
+
+    private static String buildInsertQuery(String table, String[] columns) {
+        StringBuilder columnsBuilder = new StringBuilder("rowid");
+        StringBuilder valuesBuilder = new StringBuilder("?");
+        // first column is row id
+        for (int i = 1; i < columns.length; i++) {
+            columnsBuilder.append(", \"").append(columns[i]).append('"');
+            valuesBuilder.append(", ?");
+        }
+        return "INSERT INTO \"" + table + "\" (" + columnsBuilder + ") VALUES (" + valuesBuilder + ")";
+    }
+
+    private static void bindRow(SQLiteStatement statement, Cursor cursor) {
+        statement.clearBindings();
+        for (int i = 0; i < cursor.getColumnCount(); i++) {
+            switch (cursor.getType(i)) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    statement.bindLong(i + 1, cursor.getLong(i));
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    statement.bindDouble(i + 1, cursor.getDouble(i));
+                    break;
+                case Cursor.FIELD_TYPE_STRING:
+                    statement.bindString(i + 1, cursor.getString(i));
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    statement.bindBlob(i + 1, cursor.getBlob(i));
+                    break;
+                default:
+                    statement.bindNull(i + 1);
+                    break;
+            }
+        }
+    }
+
+    private static int toProgress(long copiedRows, long totalRows) {
+        return (totalRows == 0 ? 100 : (int) (100 * copiedRows / totalRows));
+    }
+
+    private static List<String[]> querySchema(SQLiteDatabase db) {
+        List<String[]> schema = new ArrayList<>();
+        Cursor cursor = db.rawQuery(QUERY_SCHEMA, null);
+        try {
+            while (cursor.moveToNext()) {
+                schema.add(new String[]{cursor.getString(0), cursor.getString(1), cursor.getString(2)});
+            }
+        } finally {
+            cursor.close();
+        }
+        return schema;
+    }
+
+    private static long queryForLong(SQLiteDatabase db, String query) {
+        SQLiteStatement statement = db.compileStatement(query);
+        try {
+            return statement.simpleQueryForLong();
+        } finally {
+            statement.close();
+        }
+    }
+
+    private static String queryForString(SQLiteDatabase db, String query) {
+        Cursor cursor = db.rawQuery(query, null);
+        try {
+            return (cursor.moveToFirst() ? cursor.getString(0) : null);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void deleteDatabaseFiles(File file) {
+        for (String suffix : new String[]{"", "-journal", "-wal", "-shm"}) {
+            File databaseFile = new File(file.getPath() + suffix);
+            if (databaseFile.exists() && !databaseFile.delete()) {
+                Timber.e("deleteDatabaseFiles(): Failed to delete %s", databaseFile);
+            }
+        }
+    }
+}
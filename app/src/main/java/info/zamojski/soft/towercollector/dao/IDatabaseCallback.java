@@ -0,0 +1,14 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao;
+
+/**
+ * Receives result or failure of asynchronous database operation on main thread.
+ */
+public interface IDatabaseCallback<T> {
+    void onResult(T result);
+
+    void onError(Exception ex);
+}
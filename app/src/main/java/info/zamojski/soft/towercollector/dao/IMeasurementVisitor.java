@@ -0,0 +1,19 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao;
+
+import java.io.IOException;
+
+import info.zamojski.soft.towercollector.model.Measurement;
+
+public interface IMeasurementVisitor {
+
+    /**
+     * Called for every streamed row. Passed instance is reused for next rows so it must not be stored.
+     *
+     * @return false to stop reading
+     */
+    boolean visit(Measurement measurement) throws IOException;
+}
@@ -0,0 +1,44 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao;
+
+/**
+ * Number of rows of imported file by outcome.
+ */
+public final class ImportResult {
+
+    private final int imported;
+    private final int duplicates;
+    private final int rejected;
+
+    ImportResult(int imported, int duplicates, int rejected) {
+        this.imported = imported;
+        this.duplicates = duplicates;
+        this.rejected = rejected;
+    }
+
+    public int getImported() {
+        return imported;
+    }
+
+    /**
+     * Rows already present in database or earlier in the file.
+     */
+    public int getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * Rows with values which cannot be stored.
+     */
+    public int getRejected() {
+        return rejected;
+    }
+
+    @Override
+    public String toString() {
+        return "ImportResult [imported=" + imported + ", duplicates=" + duplicates + ", rejected=" + rejected + "]";
+    }
+}
@@ -0,0 +1,348 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import timber.log.Timber;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Set of keys of every cell ever stored (cells and cells_archive tables).
+ * Keys are kept in sorted file which is memory-mapped for lookups, new keys go to small sorted in-memory delta
+ * which is merged into the file once it grows. File is derived data: it is caught up with tables when opened
+ * (cells table and archive rows added after last merge) and rebuilt from scratch when missing or invalid.
+ * Cell keys depend on network ids of the database, so the file must be deleted whenever database file is replaced.
+ */
+final class KnownCellsIndex {
+
+    static final int MERGE_THRESHOLD = 1024;
+
+    private static final int MAGIC = 0x54434b43;
+    // version 1 stored hashes of cell identity
+    private static final int VERSION = 2;
+    // magic, version, count, archive watermark, reserved
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 8;
+
+    private static final String QUERY_MAX_ARCHIVE_ROW_ID = "SELECT IFNULL(MAX(" + CellsArchiveTable.COLUMN_ROW_ID + "), 0) FROM " + CellsArchiveTable.TABLE_NAME;
+
+    private static final String QUERY_CELLS = "SELECT " + CellsTable.COLUMN_CELL_KEY + " FROM " + CellsTable.TABLE_NAME;
+
+    private static final String QUERY_ARCHIVED_CELLS = "SELECT " + CellsArchiveTable.COLUMN_CELL_KEY + " FROM " + CellsArchiveTable.TABLE_NAME
+            + " WHERE " + CellsArchiveTable.COLUMN_ROW_ID + " > ?";
+
+    private final File file;
+    private final Object mergeLock = new Object();
+
+    private boolean open;
+    private MappedByteBuffer keys;
+    private long keysCount;
+
+    private long[] delta = new long[256];
+    private int deltaSize;
+
+    KnownCellsIndex(File file) {
+        this.file = file;
+    }
+
+    synchronized boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Maps index file and catches up with tables. Must be called inside transaction.
+     */
+    synchronized void ensureOpen(SQLiteDatabase db) {
+        if (open)
+            return;
+        long maxArchiveRowId = queryForLong(db, QUERY_MAX_ARCHIVE_ROW_ID);
+        long watermark = map(maxArchiveRowId);
+        if (watermark >= 0) {
+            int before = deltaSize;
+            addAll(db, QUERY_CELLS, null);
+            addAll(db, QUERY_ARCHIVED_CELLS, new String[]{String.valueOf(watermark)});
+            Timber.d("ensureOpen(): Mapped %s keys, %s keys caught up", keysCount, deltaSize - before);
+        } else {
+            rebuild(db, maxArchiveRowId);
+        }
+        open = true;
+    }
+
+    synchronized boolean contains(long key) {
+        return (Arrays.binarySearch(delta, 0, deltaSize, key) >= 0 || containsMapped(key));
+    }
+
+    /**
+     * @return true if key has not been known before
+     */
+    synchronized boolean add(long key) {
+        if (containsMapped(key))
+            return false;
+        int index = Arrays.binarySearch(delta, 0, deltaSize, key);
+        if (index >= 0)
+            return false;
+        index = -(index + 1);
+        if (deltaSize == delta.length) {
+            delta = Arrays.copyOf(delta, deltaSize * 2);
+        }
+        System.arraycopy(delta, index, delta, index + 1, deltaSize - index);
+        delta[index] = key;
+        deltaSize++;
+        return true;
+    }
+
+    /**
+     * Removes key added by transaction which has been rolled back.
+     */
+    synchronized void remove(long key) {
+        int index = Arrays.binarySearch(delta, 0, deltaSize, key);
+        if (index >= 0) {
+            System.arraycopy(delta, index + 1, delta, index, deltaSize - index - 1);
+            deltaSize--;
+        }
+    }
+
+    synchronized long size() {
+        return keysCount + deltaSize;
+    }
+
+    synchronized boolean needsMerge() {
+        return (open && deltaSize >= MERGE_THRESHOLD);
+    }
+
+    /**
+     * Writes delta into index file. Delta snapshot is taken inside transaction so it contains only committed keys,
+     * file is written outside of it and keys added in the meantime stay in delta.
+     */
+    void merge(SQLiteDatabase db) {
+        synchronized (mergeLock) {
+            long[] snapshot;
+            long watermark;
+            MappedByteBuffer source;
+            long sourceCount;
+            db.beginTransaction();
+            try {
+                synchronized (this) {
+                    if (!open || deltaSize == 0)
+                        return;
+                    watermark = queryForLong(db, QUERY_MAX_ARCHIVE_ROW_ID);
+                    snapshot = Arrays.copyOf(delta, deltaSize);
+                    source = keys;
+                    sourceCount = keysCount;
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            long start = System.currentTimeMillis();
+            try {
+                write(source, sourceCount, snapshot, snapshot.length, watermark);
+            } catch (IOException ex) {
+                Timber.e(ex, "merge(): Failed to write index, keeping delta in memory");
+                return;
+            }
+            synchronized (this) {
+                if (map(Long.MAX_VALUE) < 0) {
+                    // written file is unusable, build again on next use
+                    Timber.e("merge(): Failed to map merged index");
+                    close();
+                    return;
+                }
+                // drop merged keys from delta (both arrays are sorted)
+                int kept = 0;
+                int sIndex = 0;
+                for (int dIndex = 0; dIndex < deltaSize; dIndex++) {
+                    long key = delta[dIndex];
+                    while (sIndex < snapshot.length && snapshot[sIndex] < key)
+                        sIndex++;
+                    if (sIndex < snapshot.length && snapshot[sIndex] == key)
+                        continue;
+                    delta[kept++] = key;
+                }
+                deltaSize = kept;
+            }
+            Timber.d("merge(): Merged %s keys into %s in %s ms", snapshot.length, sourceCount + snapshot.length, System.currentTimeMillis() - start);
+        }
+    }
+
+    synchronized void close() {
+        open = false;
+        keys = null;
+        keysCount = 0;
+        deltaSize = 0;
+    }
+
+    private boolean containsMapped(long key) {
+        long low = 0;
+        long high = keysCount - 1;
+        while (low <= high) {
+            long mid = (low + high) >>> 1;
+            long midKey = keys.getLong((int) (HEADER_SIZE + mid * 8));
+            if (midKey < key)
+                low = mid + 1;
+            else if (midKey > key)
+                high = mid - 1;
+            else
+                return true;
+        }
+        return false;
+    }
+
+    private void addAll(SQLiteDatabase db, String query, String[] selectionArgs) {
+        Cursor cursor = db.rawQuery(query, selectionArgs);
+        try {
+            while (cursor.moveToNext()) {
+                add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void rebuild(SQLiteDatabase db, long maxArchiveRowId) {
+        long start = System.currentTimeMillis();
+        keys = null;
+        keysCount = 0;
+        // collect all keys in delta array, then sort and remove duplicates
+        deltaSize = 0;
+        appendAll(db, QUERY_CELLS, null);
+        appendAll(db, QUERY_ARCHIVED_CELLS, new String[]{"0"});
+        Arrays.sort(delta, 0, deltaSize);
+        int unique = 0;
+        for (int i = 0; i < deltaSize; i++) {
+            if (unique == 0 || delta[unique - 1] != delta[i])
+                delta[unique++] = delta[i];
+        }
+        deltaSize = unique;
+        try {
+            write(null, 0, delta, deltaSize, maxArchiveRowId);
+            if (map(maxArchiveRowId) >= 0) {
+                deltaSize = 0;
+                Timber.d("rebuild(): Index of %s keys rebuilt in %s ms", keysCount, System.currentTimeMillis() - start);
+                return;
+            }
+        } catch (IOException ex) {
+            Timber.e(ex, "rebuild(): Failed to write index");
+        }
+        // keep working from memory only
+        Timber.w("rebuild(): Index of %s keys kept in memory", deltaSize);
+    }
+
+    private void appendAll(SQLiteDatabase db, String query, String[] selectionArgs) {
+        Cursor cursor = db.rawQuery(query, selectionArgs);
+        try {
+            while (cursor.moveToNext()) {
+                if (deltaSize == delta.length) {
+                    delta = Arrays.copyOf(delta, deltaSize * 2);
+                }
+                delta[deltaSize++] = cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return archive watermark of mapped file or -1 if file is missing or invalid
+     */
+    private long map(long maxArchiveRowId) {
+        if (!file.exists())
+            return -1;
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            long length = channel.size();
+            if (length < HEADER_SIZE || length > Integer.MAX_VALUE)
+                return -1;
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            long count = buffer.getLong(8);
+            long watermark = buffer.getLong(16);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || length != HEADER_SIZE + count * 8) {
+                Timber.w("map(): Invalid index file");
+                return -1;
+            }
+            if (watermark > maxArchiveRowId) {
+                // built for another database
+                Timber.w("map(): Index file newer than database");
+                return -1;
+            }
+            keys = buffer;
+            keysCount = count;
+            return watermark;
+        } catch (IOException ex) {
+            Timber.e(ex, "map(): Failed to map index file");
+            return -1;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException ex) {
+                    Timber.w(ex, "map(): Failed to close index file");
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes sorted union of mapped keys and given sorted keys to temporary file and replaces index file with it.
+     */
+    private void write(MappedByteBuffer source, long sourceCount, long[] added, int addedCount, long watermark) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tempFile);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 64 * 1024));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(sourceCount + addedCount);
+            out.writeLong(watermark);
+            out.writeLong(0);
+            long sIndex = 0;
+            int aIndex = 0;
+            while (sIndex < sourceCount || aIndex < addedCount) {
+                if (aIndex == addedCount) {
+                    out.writeLong(source.getLong((int) (HEADER_SIZE + sIndex++ * 8)));
+                } else if (sIndex == sourceCount) {
+                    out.writeLong(added[aIndex++]);
+                } else {
+                    long sourceKey = source.getLong((int) (HEADER_SIZE + sIndex * 8));
+                    if (sourceKey < added[aIndex]) {
+                        out.writeLong(sourceKey);
+                        sIndex++;
+                    } else {
+                        out.writeLong(added[aIndex++]);
+                    }
+                }
+            }
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Cannot replace " + file);
+        }
+    }
+
+    private static long queryForLong(SQLiteDatabase db, String query) {
+        Cursor cursor = db.rawQuery(query, null);
+        try {
+            return (cursor.moveToNext() ? cursor.getLong(0) : 0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao;
+
+import info.zamojski.soft.towercollector.model.CellsCount;
+import info.zamojski.soft.towercollector.model.Measurement;
+
+/**
+ * Keeps last measurement and number of cells measured with it as immutable snapshot. Committed writes are applied
+ * to the snapshot directly, changes which cannot be applied drop it so it is loaded from database again.
+ * Snapshot loaded by reader is published only if no write was in progress or committed in the meantime.
+ */
+final class LastMeasurementCache {
+
+    private volatile Snapshot snapshot;
+    private int writesInProgress;
+    private long generation;
+
+    /**
+     * @return current snapshot or null if it has to be loaded from database
+     */
+    Snapshot get() {
+        return snapshot;
+    }
+
+    /**
+     * Called before snapshot is loaded from database.
+     *
+     * @return token for {@link #publish}
+     */
+    synchronized long beginLoad() {
+        return (writesInProgress == 0 ? generation : -1);
+    }
+
+    synchronized void publish(long token, Snapshot loaded) {
+        if (token >= 0 && token == generation && writesInProgress == 0) {
+            snapshot = loaded;
+        }
+    }
+
+    /**
+     * Called before transaction is started. Every call has to be followed by one of end methods after commit or rollback.
+     */
+    synchronized void beginWrite() {
+        writesInProgress++;
+    }
+
+    /**
+     * Ends write with changes which cannot be applied to the snapshot.
+     */
+    synchronized void endWrite() {
+        endWrite(null);
+    }
+
+    /**
+     * Ends write which inserted given measurements with row ids already assigned.
+     */
+    synchronized void endInsert(Measurement[] measurements) {
+        Snapshot current = snapshot;
+        endWrite(current != null ? current.apply(measurements) : null);
+    }
+
+    /**
+     * Ends write which deleted measurements taken not later than given timestamp.
+     */
+    synchronized void endDeletion(long maxTimestamp) {
+        Snapshot current = snapshot;
+        boolean unchanged = (current != null && current.measurement != null && current.measurement.getTimestamp() > maxTimestamp);
+        endWrite(unchanged ? current : null);
+    }
+
+    synchronized void endDeletionOfAll() {
+        // rows inserted by concurrent write could be committed after deletion
+        endWrite(writesInProgress == 1 ? Snapshot.EMPTY : null);
+    }
+
+    private void endWrite(Snapshot next) {
+        snapshot = next;
+        generation++;
+        writesInProgress--;
+    }
+
+    static final class Snapshot {
+
+        static final Snapshot EMPTY = new Snapshot(null, new CellsCount());
+
+        private final Measurement measurement;
+        private final CellsCount cellsCount;
+
+        Snapshot(Measurement measurement, CellsCount cellsCount) {
+            this.measurement = measurement;
+            this.cellsCount = cellsCount;
+        }
+
+        Measurement getMeasurement() {
+            return measurement;
+        }
+
+        CellsCount getCellsCount() {
+            return cellsCount;
+        }
+
+        /**
+         * Returns snapshot after inserting given measurements. Last measurement is selected in the same order as in database query.
+         */
+        Snapshot apply(Measurement[] measurements) {
+            Measurement last = measurement;
+            long lastTimestamp = (last != null ? last.getTimestamp() : Long.MIN_VALUE);
+            int main = cellsCount.getMain();
+            int neighboring = cellsCount.getNeighboring();
+            boolean changed = false;
+            for (Measurement m : measurements) {
+                if (m.getTimestamp() < lastTimestamp) {
+                    continue;
+                }
+                if (m.getTimestamp() > lastTimestamp) {
+                    last = m;
+                    lastTimestamp = m.getTimestamp();
+                    main = 0;
+                    neighboring = 0;
+                } else if (isNewer(m, last)) {
+                    last = m;
+                }
+                if (m.isNeighboring()) {
+                    neighboring++;
+                } else {
+                    main++;
+                }
+                changed = true;
+            }
+            if (!changed) {
+                return this;
+            }
+            return new Snapshot(copy(last), new CellsCount(main, neighboring));
+        }
+
+        private static boolean isNewer(Measurement m, Measurement last) {
+            // matches NEWEST_FIRST_ORDER for measurements taken at the same time
+            if (m.isNeighboring() != last.isNeighboring()) {
+                return m.isNeighboring();
+            }
+            return m.getRowId() > last.getRowId();
+        }
+
+        private Measurement copy(Measurement m) {
+            if (m == measurement) {
+                return m;
+            }
+            // inserted instances are still owned by the caller
+            Measurement copy = new Measurement(m);
+            copy.setRowId(m.getRowId());
+            return copy;
+        }
+    }
+}
@@ -8,29 +8,53 @@ final class LocationsTable implements ITable {
 
     static final String TABLE_NAME = "locations";
     static final String COLUMN_ROW_ID = "row_id";
-    static final String COLUMN_HASHCODE = "hashcode";
+    static final String COLUMN_FINGERPRINT = "fingerprint";
     static final String COLUMN_LATITUDE = "lat";
     static final String COLUMN_LONGITUDE = "lon";
     static final String COLUMN_GPS_ACCURACY = "accuracy";
     static final String COLUMN_GPS_SPEED = "speed";
     static final String COLUMN_GPS_BEARING = "bearing";
     static final String COLUMN_GPS_ALTITUDE = "altitude";
+    static final String COLUMN_REFCOUNT = "refcount";
+    static final String COLUMN_QUADKEY = "quadkey";
 
     private static final String QUERY_CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " ("
             + COLUMN_ROW_ID + " INTEGER PRIMARY KEY NOT NULL, "
-            + COLUMN_HASHCODE + " CHARACTER(40) NOT NULL, "
+            + COLUMN_FINGERPRINT + " INTEGER NOT NULL, "
             + COLUMN_LATITUDE + " REAL NOT NULL, "
             + COLUMN_LONGITUDE + " REAL NOT NULL, "
             + COLUMN_GPS_ACCURACY + " REAL NOT NULL, "
             + COLUMN_GPS_SPEED + " REAL NOT NULL, "
             + COLUMN_GPS_BEARING + " REAL NOT NULL, "
             + COLUMN_GPS_ALTITUDE + " REAL NOT NULL, "
-            + "UNIQUE (" + COLUMN_HASHCODE + ") ON CONFLICT IGNORE)";
+            + COLUMN_REFCOUNT + " INTEGER NOT NULL DEFAULT 0, "
+            + COLUMN_QUADKEY + " INTEGER NOT NULL DEFAULT 0, "
+            + "UNIQUE (" + COLUMN_FINGERPRINT + ") ON CONFLICT IGNORE)";
+
+    private static final String QUERY_CREATE_INDEX_QUADKEY = "CREATE INDEX 'IX_" + TABLE_NAME + "_" + COLUMN_QUADKEY + "' ON " + TABLE_NAME + " (" + COLUMN_QUADKEY + " ASC)";
+
+    // bounds only grow on insert
+    private static final String QUERY_CREATE_TRIGGER_EXTEND_BOUNDS = "CREATE TRIGGER 'extend_location_bounds' AFTER INSERT ON " + TABLE_NAME
+            + " BEGIN UPDATE " + StatsTable.TABLE_NAME + " SET "
+            + StatsTable.COLUMN_MIN_LATITUDE + " = IFNULL(MIN(" + StatsTable.COLUMN_MIN_LATITUDE + ", NEW." + COLUMN_LATITUDE + "), NEW." + COLUMN_LATITUDE + "), "
+            + StatsTable.COLUMN_MIN_LONGITUDE + " = IFNULL(MIN(" + StatsTable.COLUMN_MIN_LONGITUDE + ", NEW." + COLUMN_LONGITUDE + "), NEW." + COLUMN_LONGITUDE + "), "
+            + StatsTable.COLUMN_MAX_LATITUDE + " = IFNULL(MAX(" + StatsTable.COLUMN_MAX_LATITUDE + ", NEW." + COLUMN_LATITUDE + "), NEW." + COLUMN_LATITUDE + "), "
+            + StatsTable.COLUMN_MAX_LONGITUDE + " = IFNULL(MAX(" + StatsTable.COLUMN_MAX_LONGITUDE + ", NEW." + COLUMN_LONGITUDE + "), NEW." + COLUMN_LONGITUDE + "); END";
+
+    // removing location on the edge requires recalculation
+    private static final String QUERY_CREATE_TRIGGER_INVALIDATE_BOUNDS = "CREATE TRIGGER 'invalidate_location_bounds' AFTER DELETE ON " + TABLE_NAME
+            + " WHEN EXISTS (SELECT 1 FROM " + StatsTable.TABLE_NAME + " WHERE " + StatsTable.COLUMN_BOUNDS_VALID + " = 1 AND ("
+            + "OLD." + COLUMN_LATITUDE + " <= " + StatsTable.COLUMN_MIN_LATITUDE + " OR OLD." + COLUMN_LONGITUDE + " <= " + StatsTable.COLUMN_MIN_LONGITUDE
+            + " OR OLD." + COLUMN_LATITUDE + " >= " + StatsTable.COLUMN_MAX_LATITUDE + " OR OLD." + COLUMN_LONGITUDE + " >= " + StatsTable.COLUMN_MAX_LONGITUDE + "))"
+            + " BEGIN UPDATE " + StatsTable.TABLE_NAME + " SET " + StatsTable.COLUMN_BOUNDS_VALID + " = 0; END";
 
     @Override
     public String[] getCreateQueries() {
         return new String[]{
-                QUERY_CREATE_TABLE
+                QUERY_CREATE_TABLE,
+                QUERY_CREATE_INDEX_QUADKEY,
+                QUERY_CREATE_TRIGGER_EXTEND_BOUNDS,
+                QUERY_CREATE_TRIGGER_INVALIDATE_BOUNDS
         };
     }
 
@@ -0,0 +1,38 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao;
+
+/**
+ * Uploaded measurements compressed into blocks, each holding measurements of one day.
+ */
+final class MeasurementsArchiveTable implements ITable {
+
+    static final String TABLE_NAME = "measurements_archive";
+    static final String COLUMN_ROW_ID = "row_id";
+    static final String COLUMN_DAY = "day";
+    static final String COLUMN_FIRST_MEASURED_AT = "first_measured_at";
+    static final String COLUMN_LAST_MEASURED_AT = "last_measured_at";
+    static final String COLUMN_MEASUREMENTS_COUNT = "measurements_count";
+    static final String COLUMN_DATA = "data";
+
+    private static final String QUERY_CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " ("
+            + COLUMN_ROW_ID + " INTEGER PRIMARY KEY NOT NULL, "
+            + COLUMN_DAY + " INTEGER NOT NULL, "
+            + COLUMN_FIRST_MEASURED_AT + " INTEGER NOT NULL, "
+            + COLUMN_LAST_MEASURED_AT + " INTEGER NOT NULL, "
+            + COLUMN_MEASUREMENTS_COUNT + " INTEGER NOT NULL, "
+            + COLUMN_DATA + " BLOB NOT NULL)";
+
+    private static final String QUERY_CREATE_INDEX_DAY = "CREATE INDEX 'IX_" + TABLE_NAME + "_" + COLUMN_DAY
+            + "' ON " + TABLE_NAME + " (" + COLUMN_DAY + " ASC)";
+
+    @Override
+    public String[] getCreateQueries() {
+        return new String[]{
+                QUERY_CREATE_TABLE,
+                QUERY_CREATE_INDEX_DAY
+        };
+    }
+}
@@ -0,0 +1,187 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao;
+
+import android.location.Location;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import info.zamojski.soft.towercollector.model.CellReading;
+import info.zamojski.soft.towercollector.model.LocationFix;
+import info.zamojski.soft.towercollector.model.Measurement;
+
+/**
+ * Merges repeated readings of the same cell taken while device doesn't move into one measurement row.
+ * Reading is merged into last row of its cell written in this process only if all rules hold:
+ * <ul>
+ * <li>neighboring flag, psc and ta are equal,</li>
+ * <li>asu and dbm are known in both and the reading is a single sample,</li>
+ * <li>it was taken not earlier than the row and at most window after first sample of the row,</li>
+ * <li>its location is at most given distance from location of first sample of the row.</li>
+ * </ul>
+ * Merged row keeps location and time of its first sample, so it never drifts or grows beyond the window.
+ * Asu and dbm of the row hold rounded mean of all samples, dbm range and number of samples are stored in
+ * separate columns (range stays empty until second sample).
+ * Open rows are kept only in memory and must be dropped whenever measurements may be removed or rolled back.
+ */
+final class MeasurementsCoalescer {
+
+    private static final int MAX_OPEN_ROWS = 256;
+
+    private final long windowMillis;
+    private final float maxDistance;
+    private final LinkedHashMap<Long, Row> openRows;
+    private final float[] distance = new float[1];
+
+    MeasurementsCoalescer(long windowMillis, float maxDistance) {
+        this.windowMillis = windowMillis;
+        this.maxDistance = maxDistance;
+        this.openRows = new LinkedHashMap<Long, Row>(MAX_OPEN_ROWS, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Row> eldest) {
+                return size() > MAX_OPEN_ROWS;
+            }
+        };
+    }
+
+    /**
+     * @return open row of given cell which reading can be merged into or null
+     */
+    synchronized Row find(long cellId, LocationFix fix, CellReading cell) {
+        Row row = openRows.get(toKey(cellId, cell));
+        if (row == null || row.psc != cell.getPsc() || row.ta != cell.getTa() || !isSingleSample(cell)) {
+            return null;
+        }
+        long age = fix.getTimestamp() - row.measuredAt;
+        if (age < 0 || age > windowMillis) {
+            return null;
+        }
+        Location.distanceBetween(row.latitude, row.longitude, fix.getLatitude(), fix.getLongitude(), distance);
+        return (distance[0] <= maxDistance ? row : null);
+    }
+
+    /**
+     * Remembers newly inserted row as open for merging.
+     */
+    synchronized void open(long rowId, long cellId, LocationFix fix, CellReading cell) {
+        Long key = toKey(cellId, cell);
+        if (isSingleSample(cell)) {
+            openRows.put(key, new Row(rowId, cellId, fix, cell));
+        } else {
+            // nothing can be merged into it
+            openRows.remove(key);
+        }
+    }
+
+    synchronized void update(Row row) {
+        openRows.put(row.key, row);
+    }
+
+    synchronized void close(Row row) {
+        openRows.remove(row.key);
+    }
+
+    synchronized void clear() {
+        openRows.clear();
+    }
+
+    // readings imported from file may already be aggregated
+    private static boolean isSingleSample(CellReading cell) {
+        return (cell.getSamples() == 1 && cell.getAsu() != Measurement.UNKNOWN_SIGNAL && cell.getDbm() != Measurement.UNKNOWN_SIGNAL);
+    }
+
+    private static Long toKey(long cellId, CellReading cell) {
+        return (cellId << 1) | (cell.isNeighboring() ? 1 : 0);
+    }
+
+    /**
+     * Aggregated samples of one measurement row. Immutable, so it is replaced only after the row has been updated.
+     */
+    static final class Row {
+
+        private final Long key;
+        private final long rowId;
+        private final long cellId;
+        private final long measuredAt;
+        private final double latitude;
+        private final double longitude;
+        private final int psc;
+        private final int ta;
+        private final int samples;
+        private final long asuSum;
+        private final long dbmSum;
+        private final int dbmMin;
+        private final int dbmMax;
+
+        private Row(long rowId, long cellId, LocationFix fix, CellReading cell) {
+            this.key = toKey(cellId, cell);
+            this.rowId = rowId;
+            this.cellId = cellId;
+            this.measuredAt = fix.getTimestamp();
+            this.latitude = fix.getLatitude();
+            this.longitude = fix.getLongitude();
+            this.psc = cell.getPsc();
+            this.ta = cell.getTa();
+            this.samples = 1;
+            this.asuSum = cell.getAsu();
+            this.dbmSum = cell.getDbm();
+            this.dbmMin = cell.getDbm();
+            this.dbmMax = cell.getDbm();
+        }
+
+        private Row(Row row, CellReading cell) {
+            this.key = row.key;
+            this.rowId = row.rowId;
+            this.cellId = row.cellId;
+            this.measuredAt = row.measuredAt;
+            this.latitude = row.latitude;
+            this.longitude = row.longitude;
+            this.psc = row.psc;
+            this.ta = row.ta;
+            this.samples = row.samples + 1;
+            this.asuSum = row.asuSum + cell.getAsu();
+            this.dbmSum = row.dbmSum + cell.getDbm();
+            this.dbmMin = Math.min(row.dbmMin, cell.getDbm());
+            this.dbmMax = Math.max(row.dbmMax, cell.getDbm());
+        }
+
+        Row merge(CellReading cell) {
+            return new Row(this, cell);
+        }
+
+        long getRowId() {
+            return rowId;
+        }
+
+        long getCellId() {
+            return cellId;
+        }
+
+        long getMeasuredAt() {
+            return measuredAt;
+        }
+
+        int getSamples() {
+            return samples;
+        }
+
+        int getAsu() {
+            return (int) Math.round((double) asuSum / samples);
+        }
+
+        int getDbm() {
+            return (int) Math.round((double) dbmSum / samples);
+        }
+
+        int getDbmMin() {
+            return dbmMin;
+        }
+
+        int getDbmMax() {
+            return dbmMax;
+        }
+    }
+}
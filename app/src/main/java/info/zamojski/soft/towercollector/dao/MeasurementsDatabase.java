@@ -4,258 +4,508 @@
 
 package info.zamojski.soft.towercollector.dao;
 
+import info.zamojski.soft.towercollector.BuildConfig;
 import info.zamojski.soft.towercollector.MyApplication;
 import info.zamojski.soft.towercollector.dao.migration.DbMigrationHelper;
+import info.zamojski.soft.towercollector.dao.migration.IMigrationProgressListener;
 import info.zamojski.soft.towercollector.enums.NetworkGroup;
+import info.zamojski.soft.towercollector.files.generators.wrappers.interfaces.IProgressListener;
 import info.zamojski.soft.towercollector.model.AnalyticsStatistics;
 import info.zamojski.soft.towercollector.model.Boundaries;
+import info.zamojski.soft.towercollector.model.CellReading;
 import info.zamojski.soft.towercollector.model.CellsCount;
+import info.zamojski.soft.towercollector.model.DailyStatistics;
+import info.zamojski.soft.towercollector.model.LocationFix;
 import info.zamojski.soft.towercollector.model.Measurement;
 import info.zamojski.soft.towercollector.model.Statistics;
+import info.zamojski.soft.towercollector.providers.preferences.PreferencesProvider;
 import info.zamojski.soft.towercollector.utils.HashUtils;
+import info.zamojski.soft.towercollector.utils.QuadKeyUtils;
 import timber.log.Timber;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.acra.ACRA;
 
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.os.Looper;
 
 public class MeasurementsDatabase {
 
     public static final String DATABASE_FILE_NAME = "measurements.db";
-    public static final int DATABASE_FILE_VERSION = 11;
+    public static final int DATABASE_FILE_VERSION = 25;
+    public static final String KNOWN_CELLS_INDEX_FILE_NAME = "known_cells.idx";
 
-    private static final int NUM_OF_DELETIONS_PER_ONE_QUERY = 50;
+    private static final int CELL_ROW_ID_CACHE_SIZE = 256;
+    private static final int STREAM_PAGE_SIZE = 1000;
+    // safety net only, log is normally checkpointed in background long before reaching it
+    private static final int WAL_AUTO_CHECKPOINT_PAGES = 4000;
+    // log keeps its size after large transactions (e.g. vacuum) unless truncated on restart
+    private static final long WAL_SIZE_LIMIT = 4 * 1024 * 1024;
+    private static final String[] SYNCHRONOUS_MODES = new String[]{"OFF", "NORMAL", "FULL"};
+    private static final String DEFAULT_SYNCHRONOUS_MODE = "NORMAL";
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+    private static final int WRITE_BEHIND_MAX_SCANS = 10;
+    private static final long WRITE_BEHIND_MAX_DELAY = 30 * 1000;
+    // keeps single block far below cursor window size
+    private static final int ARCHIVE_BLOCK_MAX_MEASUREMENTS = 10000;
+    static final long DAY_MILLIS = 24 * 60 * 60 * 1000;
+
+    // range on index first, then cut rows with the same timestamp (qualified for archive query joining other tables)
+    private static final String UP_TO_SELECTION = MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_MEASURED_AT + " <= ? AND ("
+            + MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_MEASURED_AT + " < ? OR " + MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_ROW_ID
+            + " <= ?) AND +" + MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_ROW_ID + " <= ?";
+
+    private static final String MEASUREMENTS_TABLES = MeasurementsTable.TABLE_NAME
+            + " INNER JOIN " + LocationsTable.TABLE_NAME + " ON (" + MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_LOCATION_ID + " = " + LocationsTable.TABLE_NAME + "." + LocationsTable.COLUMN_ROW_ID + ")"
+            + " INNER JOIN " + CellsTable.TABLE_NAME + " ON (" + MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_CELL_ID + " = " + CellsTable.TABLE_NAME + "." + CellsTable.COLUMN_ROW_ID + ")";
+    private static final String[] MEASUREMENTS_COLUMNS = {MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_ROW_ID,
+            MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_PSC,
+            MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_NEIGHBORING,
+            MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_TA,
+            MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_ASU,
+            MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_DBM,
+            MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_SAMPLES,
+            MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_DBM_MIN,
+            MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_DBM_MAX,
+            MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_MEASURED_AT,
+            LocationsTable.TABLE_NAME + "." + LocationsTable.COLUMN_LATITUDE,
+            LocationsTable.TABLE_NAME + "." + LocationsTable.COLUMN_LONGITUDE,
+            LocationsTable.TABLE_NAME + "." + LocationsTable.COLUMN_GPS_ACCURACY,
+            LocationsTable.TABLE_NAME + "." + LocationsTable.COLUMN_GPS_SPEED,
+            LocationsTable.TABLE_NAME + "." + LocationsTable.COLUMN_GPS_BEARING,
+            LocationsTable.TABLE_NAME + "." + LocationsTable.COLUMN_GPS_ALTITUDE,
+            CellsTable.TABLE_NAME + "." + CellsTable.COLUMN_CID,
+            CellsTable.TABLE_NAME + "." + CellsTable.COLUMN_LAC,
+            CellsTable.TABLE_NAME + "." + CellsTable.COLUMN_MNC,
+            CellsTable.TABLE_NAME + "." + CellsTable.COLUMN_MCC,
+            CellsTable.TABLE_NAME + "." + CellsTable.COLUMN_NET_TYPE};
+    private static final String OLDEST_FIRST_ORDER = MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_MEASURED_AT + " ASC, "
+            + MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_ROW_ID + " ASC";
+    // matches IX_measurements_measured_at_neighboring_row_id
+    private static final String NEWEST_FIRST_ORDER = MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_MEASURED_AT + " DESC, "
+            + MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_NEIGHBORING + " DESC, "
+            + MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_ROW_ID + " DESC";
+    private static final String QUERY_NEXT_ARCHIVE_BLOCK = "SELECT " + MeasurementsArchiveTable.COLUMN_ROW_ID + ", " + MeasurementsArchiveTable.COLUMN_MEASUREMENTS_COUNT + ", "
+            + MeasurementsArchiveTable.COLUMN_DATA + " FROM " + MeasurementsArchiveTable.TABLE_NAME + " WHERE " + MeasurementsArchiveTable.COLUMN_ROW_ID + " > ?"
+            + " ORDER BY " + MeasurementsArchiveTable.COLUMN_ROW_ID + " ASC LIMIT 1";
+    private static final int AREA_PAGE_LOCATIONS = 250;
+    private static final String QUERY_LOCATION_BOUNDS = "SELECT " + StatsTable.COLUMN_MIN_LATITUDE + ", " + StatsTable.COLUMN_MIN_LONGITUDE + ", "
+            + StatsTable.COLUMN_MAX_LATITUDE + ", " + StatsTable.COLUMN_MAX_LONGITUDE + ", " + StatsTable.COLUMN_BOUNDS_VALID + " FROM " + StatsTable.TABLE_NAME + " LIMIT 0, 1";
+    private static final String QUERY_CALCULATE_LOCATION_BOUNDS = "SELECT MIN(" + LocationsTable.COLUMN_LATITUDE + "), MIN(" + LocationsTable.COLUMN_LONGITUDE + "), MAX("
+            + LocationsTable.COLUMN_LATITUDE + "), MAX(" + LocationsTable.COLUMN_LONGITUDE + ") FROM " + LocationsTable.TABLE_NAME;
+    private static final String QUERY_UPDATE_LOCATION_BOUNDS = "UPDATE " + StatsTable.TABLE_NAME + " SET " + StatsTable.COLUMN_MIN_LATITUDE + " = ?, "
+            + StatsTable.COLUMN_MIN_LONGITUDE + " = ?, " + StatsTable.COLUMN_MAX_LATITUDE + " = ?, " + StatsTable.COLUMN_MAX_LONGITUDE + " = ?, "
+            + StatsTable.COLUMN_BOUNDS_VALID + " = 1";
+    // cost depends on number of days and cells, not measurements
+    private static final String QUERY_ANALYTICS_STATISTICS = "SELECT * FROM (SELECT COUNT(*) AS TOTAL_CELLS_COUNT FROM " + CellsTable.TABLE_NAME + ")"
+            + " JOIN (SELECT IFNULL(SUM(" + DailyStatsTable.COLUMN_MEASUREMENTS + "), 0) AS TOTAL_LOCATIONS_COUNT, COUNT(DISTINCT " + DailyStatsTable.COLUMN_DAY + ") AS TOTAL_DAYS_COUNT FROM " + DailyStatsTable.TABLE_NAME + ")";
+    private static final String QUERY_DAILY_STATISTICS = "SELECT " + DailyStatsTable.COLUMN_DAY + ", " + DailyStatsTable.COLUMN_NET_TYPE + ", " + DailyStatsTable.COLUMN_MEASUREMENTS + ", "
+            + DailyStatsTable.COLUMN_CELLS + " FROM " + DailyStatsTable.TABLE_NAME + " WHERE " + DailyStatsTable.COLUMN_DAY + " BETWEEN ? AND ?"
+            + " ORDER BY " + DailyStatsTable.COLUMN_DAY + ", " + DailyStatsTable.COLUMN_NET_TYPE;
+    private static final String QUERY_CELL_KEYS = "SELECT " + CellsTable.COLUMN_CELL_KEY + " FROM " + CellsTable.TABLE_NAME;
+    private static final String QUERY_DAYS = "SELECT DISTINCT " + DailyStatsTable.COLUMN_DAY + " FROM " + DailyStatsTable.TABLE_NAME;
+    private static final String QUERY_MEASUREMENTS_COUNT = "SELECT IFNULL(SUM(" + DailyStatsTable.COLUMN_MEASUREMENTS + "), 0) FROM " + DailyStatsTable.TABLE_NAME;
+    private static final String QUERY_ANY_MEASUREMENT = "SELECT EXISTS (SELECT 1 FROM " + MeasurementsTable.TABLE_NAME + ")";
+    private static final String COLUMN_TOTAL_COUNT = "TOTAL_COUNT";
+    private static final String COLUMN_MAIN_COUNT = "MAIN_COUNT";
+
+    // hot queries, plans are verified by MeasurementsQueryPlanTest
+    static final String QUERY_FIRST_MEASUREMENT = buildMeasurementsQuery(null, OLDEST_FIRST_ORDER, "1");
+    static final String QUERY_LAST_MEASUREMENT = buildMeasurementsQuery(null, NEWEST_FIRST_ORDER, "1");
+    static final String QUERY_LAST_MAIN_MEASUREMENTS = buildMeasurementsQuery(LocationsTable.TABLE_NAME + "." + LocationsTable.COLUMN_FINGERPRINT + " = ?"
+            + " AND " + MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_NEIGHBORING + " = ?", NEWEST_FIRST_ORDER, null);
+    static final String QUERY_LAST_CELLS_COUNT = "SELECT (SELECT COUNT(" + MeasurementsTable.COLUMN_MEASURED_AT + ") FROM " + MeasurementsTable.TABLE_NAME + " WHERE " + MeasurementsTable.COLUMN_MEASURED_AT + " = m." + MeasurementsTable.COLUMN_MEASURED_AT + ") AS " + COLUMN_TOTAL_COUNT + ","
+            + " (SELECT COUNT(" + MeasurementsTable.COLUMN_MEASURED_AT + ") FROM " + MeasurementsTable.TABLE_NAME + " WHERE " + MeasurementsTable.COLUMN_MEASURED_AT + " = m." + MeasurementsTable.COLUMN_MEASURED_AT + " AND " + MeasurementsTable.COLUMN_NEIGHBORING + " = 0) AS " + COLUMN_MAIN_COUNT
+            + " FROM " + MeasurementsTable.TABLE_NAME + " m ORDER BY m." + MeasurementsTable.COLUMN_MEASURED_AT + " DESC LIMIT 0, 1";
+
+    // page of locations in one range of quad keys, next page starts after last (quadkey, location id)
+    static final String QUERY_MEASUREMENTS_IN_AREA = SQLiteQueryBuilder.buildQueryString(false, MEASUREMENTS_TABLES,
+            appendColumns(MEASUREMENTS_COLUMNS, LocationsTable.TABLE_NAME + "." + LocationsTable.COLUMN_QUADKEY, MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_LOCATION_ID),
+            LocationsTable.TABLE_NAME + "." + LocationsTable.COLUMN_ROW_ID + " IN (SELECT " + LocationsTable.COLUMN_ROW_ID + " FROM " + LocationsTable.TABLE_NAME
+                    + " WHERE " + LocationsTable.COLUMN_QUADKEY + " BETWEEN ? AND ? AND (" + LocationsTable.COLUMN_QUADKEY + " > ? OR " + LocationsTable.COLUMN_ROW_ID + " > ?)"
+                    + " AND " + LocationsTable.COLUMN_LATITUDE + " BETWEEN ? AND ? AND " + LocationsTable.COLUMN_LONGITUDE + " BETWEEN ? AND ?"
+                    + " ORDER BY " + LocationsTable.COLUMN_QUADKEY + ", " + LocationsTable.COLUMN_ROW_ID + " LIMIT " + AREA_PAGE_LOCATIONS + ")",
+            null, null, null, null);
 
     private final MeasurementsOpenHelper helper;
+    private final File databaseFile;
+    private final ScheduledExecutorService writerExecutor;
+    private final WalCheckpointer checkpointer;
+    private final DatabaseMaintenance maintenance;
+    private final MeasurementsWriteBuffer writeBuffer;
+    private final MeasurementsSegments segments;
+    private final Object flushLock = new Object();
+    private SQLiteDatabase readerDatabase;
+    private ScheduledFuture<?> scheduledFlush;
 
     private static volatile MeasurementsDatabase instance = null;
 
     private boolean insertionFailureReported = false;
 
-    private Measurement lastMeasurementCache;
-    private CellsCount lastCellsCountCache;
-    private Statistics lastStatisticsCache;
+    private MeasurementsInserter inserter;
+    private final CellRowIdCache cellRowIdCache = new CellRowIdCache(CELL_ROW_ID_CACHE_SIZE);
+    private final KnownCellsIndex knownCellsIndex;
+    private final StatisticsCounters statisticsCounters;
+    private final MeasurementsCoalescer coalescer;
+
+    private final LastMeasurementCache lastMeasurementCache = new LastMeasurementCache();
+
+    private long[] countedSealedCellKeys;
+    private int countedActiveCells = -1;
+    private int activeCellsNotSealed;
 
     private MeasurementsDatabase(Context context) {
-        helper = new MeasurementsOpenHelper(context);
+        String synchronousMode = toSynchronousMode(MyApplication.getPreferencesProvider().getDatabaseSynchronousMode());
+        databaseFile = context.getDatabasePath(DATABASE_FILE_NAME);
+        // segments sealed before are read even when segmented storage has been disabled
+        segments = new MeasurementsSegments(databaseFile);
+        boolean sealingEnabled = MyApplication.getPreferencesProvider().getDatabaseSegmentedStorageEnabled();
+        helper = new MeasurementsOpenHelper(context, synchronousMode, segments, sealingEnabled, databaseFile);
+        // background jobs write too, so they run on the same thread as other writes
+        writerExecutor = AsyncMeasurementsDatabase.getInstance(context).getWriterExecutor();
+        checkpointer = new WalCheckpointer(helper, writerExecutor);
+        maintenance = new DatabaseMaintenance(helper, writerExecutor, checkpointer, databaseFile);
+        writeBuffer = MyApplication.getPreferencesProvider().getDatabaseWriteBehindEnabled() ? new MeasurementsWriteBuffer(WRITE_BEHIND_MAX_SCANS) : null;
+        knownCellsIndex = new KnownCellsIndex(context.getDatabasePath(KNOWN_CELLS_INDEX_FILE_NAME));
+        statisticsCounters = new StatisticsCounters(knownCellsIndex);
+        PreferencesProvider preferencesProvider = MyApplication.getPreferencesProvider();
+        coalescer = preferencesProvider.getDatabaseCoalescingEnabled()
+                ? new MeasurementsCoalescer(preferencesProvider.getDatabaseCoalescingWindow(), preferencesProvider.getDatabaseCoalescingDistance()) : null;
+    }
+
+    /**
+     * Saves measurements of one scan. When write-behind is enabled scans are buffered and written together
+     * after {@value #WRITE_BEHIND_MAX_SCANS} scans or {@value #WRITE_BEHIND_MAX_DELAY} ms, whichever comes first.
+     * Buffered scans are already returned as last measurements.
+     */
+    public boolean saveMeasurements(Measurement[] measurements) {
+        if (writeBuffer == null) {
+            return insertMeasurements(measurements);
+        }
+        Timber.d("saveMeasurements(): Buffering %s measurements", measurements.length);
+        boolean wasEmpty = writeBuffer.isEmpty();
+        // buffered scans are read before cache so it stays valid
+        boolean full = writeBuffer.add(measurements);
+        if (full) {
+            return flushPendingMeasurements();
+        }
+        if (wasEmpty) {
+            scheduleFlush(WRITE_BEHIND_MAX_DELAY);
+        }
+        return true;
+    }
+
+    /**
+     * Writes buffered scans to database. Called before buffered data has to be visible to queries
+     * and when the process may be killed soon.
+     *
+     * @return false if any of buffered scans couldn't be written (such scans are kept for next flush)
+     */
+    public boolean flushPendingMeasurements() {
+        if (writeBuffer == null) {
+            return true;
+        }
+        synchronized (flushLock) {
+            List<Measurement[]> scans = writeBuffer.getScans();
+            if (scans.isEmpty()) {
+                return true;
+            }
+            cancelFlush();
+            Timber.d("flushPendingMeasurements(): Flushing %s scans", scans.size());
+            int numberOfMeasurements = 0;
+            for (Measurement[] scan : scans) {
+                numberOfMeasurements += scan.length;
+            }
+            Measurement[] measurements = new Measurement[numberOfMeasurements];
+            int mIndex = 0;
+            for (Measurement[] scan : scans) {
+                System.arraycopy(scan, 0, measurements, mIndex, scan.length);
+                mIndex += scan.length;
+            }
+            List<Measurement[]> failedScans = new ArrayList<Measurement[]>();
+            if (!insertMeasurements(measurements)) {
+                // write one by one to keep only failed scans instead of whole batch
+                Timber.d("flushPendingMeasurements(): Batch not inserted, inserting scans separately");
+                for (Measurement[] scan : scans) {
+                    if (!insertMeasurements(scan)) {
+                        failedScans.add(scan);
+                    }
+                }
+            }
+            // removed after commit so they are never missing from both buffer and database
+            int droppedScans = writeBuffer.remove(scans.size(), failedScans);
+            if (!writeBuffer.isEmpty()) {
+                // retry failed scans and write those added during flush
+                scheduleFlush(WRITE_BEHIND_MAX_DELAY);
+            }
+            if (!failedScans.isEmpty()) {
+                Timber.w("flushPendingMeasurements(): %s scans not inserted, %s of them dropped after %s attempts", failedScans.size(), droppedScans, MeasurementsWriteBuffer.MAX_WRITE_ATTEMPTS);
+            }
+            return failedScans.isEmpty();
+        }
+    }
+
+    /**
+     * Flushes buffered scans on writer thread, e.g. when called from main thread.
+     */
+    public void requestFlushPendingMeasurements() {
+        if (writeBuffer != null) {
+            scheduleFlush(0);
+        }
     }
 
+    private synchronized void scheduleFlush(long delay) {
+        cancelFlush();
+        scheduledFlush = writerExecutor.schedule(flushTask, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void cancelFlush() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+    }
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                flushPendingMeasurements();
+            } catch (SQLiteException | IllegalStateException ex) {
+                Timber.e(ex, "run(): Failed to flush pending measurements");
+            }
+        }
+    };
+
     public boolean insertMeasurements(Measurement[] measurements) {
+        return insertMeasurements(measurements, true);
+    }
+
+    /**
+     * @param coalesce merge readings of not moving device into existing rows if enabled in preferences
+     */
+    boolean insertMeasurements(Measurement[] measurements, boolean coalesce) {
         Timber.d("insertMeasurement(): Inserting %s measurements", measurements.length);
-        boolean[] results = new boolean[measurements.length];
-        boolean overallResult = true;
-        SQLiteDatabase db = helper.getWritableDatabase();
+        // group consecutive measurements taken at the same fix into scans
+        List<LocationFix> fixes = new ArrayList<LocationFix>(1);
+        List<List<CellReading>> scans = new ArrayList<List<CellReading>>(1);
+        LocationFix fix = null;
+        List<CellReading> cells = null;
+        for (Measurement measurement : measurements) {
+            if (fix == null || !fix.isSameFix(measurement)) {
+                fix = new LocationFix(measurement);
+                cells = new ArrayList<CellReading>(measurements.length);
+                fixes.add(fix);
+                scans.add(cells);
+            }
+            cells.add(new CellReading(measurement));
+        }
+        lastMeasurementCache.beginWrite();
+        boolean applied = false;
         try {
-            db.beginTransaction();
-            StringBuilder resultSb = new StringBuilder();
-            for (int mIndex = 0; mIndex < measurements.length; mIndex++) {
-                Measurement measurement = measurements[mIndex];
-                resultSb.append(measurement.toString());
-                // insert cell
-                {
-                    ContentValues values = new ContentValues();
-                    values.put(CellsTable.COLUMN_MCC, measurement.getMcc());
-                    values.put(CellsTable.COLUMN_MNC, measurement.getMnc());
-                    values.put(CellsTable.COLUMN_LAC, measurement.getLac());
-                    values.put(CellsTable.COLUMN_CID, measurement.getCid());
-                    values.put(CellsTable.COLUMN_NET_TYPE, measurement.getNetworkType().ordinal());
-                    values.put(CellsTable.COLUMN_DISCOVERED_AT, System.currentTimeMillis());
-                    long rowId = db.insert(CellsTable.TABLE_NAME, null, values);
-                    boolean localResult = (rowId != -1);
-                    Timber.d("insertMeasurement(): Cell inserted = %s", localResult);
-                    resultSb.append("\tcell inserted=").append(localResult);
+            ScanInsertResult result = insertScans(fixes, scans, coalesce, measurements.length);
+            if (result.isSuccessful()) {
+                for (int mIndex = 0; mIndex < measurements.length; mIndex++) {
+                    measurements[mIndex].setRowId((int) result.getRowId(mIndex));
                 }
-                // don't use value returned by insert, because it sometimes returns wrong value -> query always
-                long cellId = -1;
-                {
-                    SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
-                    queryBuilder.setTables(CellsTable.TABLE_NAME);
-                    String[] columns = new String[]{CellsTable.COLUMN_ROW_ID};
-                    String selection = CellsTable.COLUMN_CID + " = ? AND " + CellsTable.COLUMN_LAC + " = ? AND " + CellsTable.COLUMN_MNC + " = ? AND " + CellsTable.COLUMN_MCC + " = ? AND " + CellsTable.COLUMN_NET_TYPE + " = ?";
-                    String[] selectionArgs = new String[]{String.valueOf(measurement.getCid()), String.valueOf(measurement.getLac()), String.valueOf(measurement.getMnc()), String.valueOf(measurement.getMcc()), String.valueOf(measurement.getNetworkType().ordinal())};
-                    Cursor cursorTotal = queryBuilder.query(db, columns, selection, selectionArgs, null, null, null);
-                    boolean localResult = false;
-                    if (cursorTotal.moveToNext()) {
-                        cellId = cursorTotal.getInt(cursorTotal.getColumnIndex(CellsTable.COLUMN_ROW_ID));
-                        localResult = true;
-                    }
-                    cursorTotal.close();
-                    results[mIndex] = localResult;
-                    Timber.d("insertMeasurement(): Cell found = %s", localResult);
-                    resultSb.append("\tcell found=").append(localResult);
-                }
-                // calculate hashcode
-                String locationHashCode = HashUtils.toSha1(measurement);
-                // insert location
-                {
-                    ContentValues values = new ContentValues();
-                    values.put(LocationsTable.COLUMN_HASHCODE, locationHashCode);
-                    values.put(LocationsTable.COLUMN_LATITUDE, measurement.getLatitude());
-                    values.put(LocationsTable.COLUMN_LONGITUDE, measurement.getLongitude());
-                    values.put(LocationsTable.COLUMN_GPS_ACCURACY, measurement.getGpsAccuracy());
-                    values.put(LocationsTable.COLUMN_GPS_SPEED, measurement.getGpsSpeed());
-                    values.put(LocationsTable.COLUMN_GPS_BEARING, measurement.getGpsBearing());
-                    values.put(LocationsTable.COLUMN_GPS_ALTITUDE, measurement.getGpsAltitude());
-                    long rowId = db.insert(LocationsTable.TABLE_NAME, null, values);
-                    boolean localResult = (rowId != -1);
-                    Timber.d("insertMeasurement(): Location inserted = %s", localResult);
-                    resultSb.append("\tlocation inserted=").append(localResult);
-                }
-                // don't use value returned by insert, because it sometimes returns wrong value -> query always
-                long locationId = -1;
-                {
-                    SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
-                    queryBuilder.setTables(LocationsTable.TABLE_NAME);
-                    String[] columns = new String[]{CellsTable.COLUMN_ROW_ID};
-                    String selection = LocationsTable.COLUMN_HASHCODE + " = ?";
-                    String[] selectionArgs = new String[]{locationHashCode};
-                    Cursor cursorTotal = queryBuilder.query(db, columns, selection, selectionArgs, null, null, null);
-                    boolean localResult = false;
-                    if (cursorTotal.moveToNext()) {
-                        locationId = cursorTotal.getInt(cursorTotal.getColumnIndex(CellsTable.COLUMN_ROW_ID));
-                        localResult = true;
-                    }
-                    cursorTotal.close();
-                    results[mIndex] = localResult;
-                    Timber.d("insertMeasurement(): Location found = %s", localResult);
-                    resultSb.append("\tlocation found=").append(localResult);
-                }
-                // insert measurement (if previous queries returned correct result)
-                if (results[mIndex]) {
-                    ContentValues values = new ContentValues();
-                    values.put(MeasurementsTable.COLUMN_CELL_ID, cellId);
-                    values.put(MeasurementsTable.COLUMN_LOCATION_ID, locationId);
-                    values.put(MeasurementsTable.COLUMN_PSC, measurement.getPsc());
-                    values.put(MeasurementsTable.COLUMN_NEIGHBORING, measurement.isNeighboring());
-                    values.put(MeasurementsTable.COLUMN_TA, measurement.getTa());
-                    values.put(MeasurementsTable.COLUMN_ASU, measurement.getAsu());
-                    values.put(MeasurementsTable.COLUMN_DBM, measurement.getDbm());
-                    values.put(MeasurementsTable.COLUMN_MEASURED_AT, measurement.getTimestamp());
-                    long rowId = db.insert(MeasurementsTable.TABLE_NAME, null, values);
-                    boolean localResult = (rowId != -1);
-                    results[mIndex] &= localResult;
-                    Timber.d("insertMeasurement(): Measurement inserted = %s", localResult);
-                    resultSb.append("\tmeasurement inserted=").append(localResult);
+                // merged rows keep time of their first sample, so cache has to be reloaded
+                if (!result.isAnyRowMerged()) {
+                    lastMeasurementCache.endInsert(measurements);
+                    applied = true;
                 }
-                resultSb.append(";\r\n");
-            }
-            // commit
-            for (boolean result : results) {
-                overallResult &= result;
             }
-            if (overallResult) {
-                db.setTransactionSuccessful();
-                Timber.d("insertMeasurements(): Measurements inserted successfully");
-                Timber.d("insertMeasurements(): Insertion report: %s", resultSb.toString());
-            } else {
-                Timber.d("insertMeasurements(): Measurements not inserted");
-                Timber.d("insertMeasurements(): Insertion report: %s", resultSb.toString());
-                // report exception because it shouldn't occur (one time per app run)
-                if (!insertionFailureReported) {
-                    Throwable ex = new MeasurementInsertionFailedException("Measurements not inserted", resultSb.toString());
-                    MyApplication.getAnalytics().sendException(ex, Boolean.FALSE);
-                    ACRA.getErrorReporter().handleSilentException(ex);
-                    insertionFailureReported = true;
-                }
+            return result.isSuccessful();
+        } finally {
+            if (!applied) {
+                lastMeasurementCache.endWrite();
             }
+        }
+    }
+
+    /**
+     * Inserts all cells observed at one location fix. Location is stored once and shared by all readings.
+     */
+    public ScanInsertResult insertScan(LocationFix fix, List<CellReading> cells) {
+        Timber.d("insertScan(): Inserting scan with %s cells", cells.size());
+        lastMeasurementCache.beginWrite();
+        try {
+            return insertScans(Collections.singletonList(fix), Collections.singletonList(cells), true, cells.size());
         } finally {
-            invalidateCache();
-            db.endTransaction();
+            lastMeasurementCache.endWrite();
+        }
+    }
+
+    private ScanInsertResult insertScans(List<LocationFix> fixes, List<List<CellReading>> scans, boolean coalesce, int numberOfCells) {
+        int[] rowStatus = new int[numberOfCells];
+        long[] rowIds = new long[numberOfCells];
+        boolean overallResult;
+        SQLiteDatabase db = getWriterDatabase();
+        overallResult = getInserter(db).insert(fixes, scans, coalesce, rowStatus, rowIds);
+        if (overallResult) {
+            Timber.d("insertScans(): Measurements inserted successfully");
+            checkpointer.requestCheckpoint();
+            if (knownCellsIndex.needsMerge()) {
+                knownCellsIndex.merge(db);
+            }
+        } else {
+            String report = MeasurementsInserter.describe(fixes, scans, rowStatus);
+            Timber.d("insertScans(): Measurements not inserted");
+            Timber.d("insertScans(): Insertion report: %s", report);
+            // report exception because it shouldn't occur (one time per app run)
+            if (!insertionFailureReported) {
+                Throwable ex = new MeasurementInsertionFailedException("Measurements not inserted", report);
+                MyApplication.getAnalytics().sendException(ex, Boolean.FALSE);
+                ACRA.getErrorReporter().handleSilentException(ex);
+                insertionFailureReported = true;
+            }
+        }
+        boolean anyRowMerged = false;
+        for (int status : rowStatus) {
+            anyRowMerged |= ((status & MeasurementsInserter.MEASUREMENT_MERGED) != 0);
+        }
+        return new ScanInsertResult(overallResult, rowIds, anyRowMerged);
+    }
+
+    private synchronized MeasurementsInserter getInserter(SQLiteDatabase db) {
+        // statements are bound to connection so compile them again when database has been reopened
+        if (inserter == null || !inserter.isUsableFor(db)) {
+            if (inserter != null) {
+                inserter.close();
+            }
+            inserter = new MeasurementsInserter(db, cellRowIdCache, knownCellsIndex, statisticsCounters, coalescer, segments.getRowIdFloor());
         }
-        return overallResult;
+        return inserter;
     }
 
     public Measurement getFirstMeasurement() {
         Measurement firstMeasurement = null;
-        List<Measurement> measurements = getMeasurements(null, null, null, null, MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_MEASURED_AT + " ASC, " + MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_ROW_ID + " ASC", "1");
-        if (!measurements.isEmpty())
-            firstMeasurement = measurements.get(0);
+        for (SQLiteDatabase db : getSourceDatabases(-1)) {
+            List<Measurement> measurements = getMeasurements(db, QUERY_FIRST_MEASUREMENT, null);
+            if (!measurements.isEmpty()) {
+                firstMeasurement = measurements.get(0);
+                break;
+            }
+        }
         Timber.d("getFirstMeasurement(): %s", firstMeasurement);
         return firstMeasurement;
     }
 
     public Measurement getLastMeasurement() {
-        // Try to get from cache then read from DB (copy to local to avoid null if invalidated in the meantime)
-        Measurement lastMeasurementCacheCopy = this.lastMeasurementCache;
-        if (lastMeasurementCacheCopy != null) {
-            Timber.d("getLastMeasurement(): Value from cache: %s", lastMeasurementCacheCopy);
-            return lastMeasurementCacheCopy;
-        }
-        Measurement lastMeasurement = null;
-        List<Measurement> measurements = getMeasurements(null, null, null, null,
-                MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_MEASURED_AT + " DESC, "
-                        + MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_NEIGHBORING + " DESC, "
-                        + MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_ROW_ID + " DESC",
-                "1");
-        if (!measurements.isEmpty()) {
-            lastMeasurement = measurements.get(0);
+        if (writeBuffer != null) {
+            Measurement pendingMeasurement = writeBuffer.getLastMeasurement();
+            if (pendingMeasurement != null) {
+                Timber.d("getLastMeasurement(): Value from write buffer: %s", pendingMeasurement);
+                return pendingMeasurement;
+            }
         }
-        Timber.d("getLastMeasurement(): Value from DB: %s", lastMeasurement);
-        this.lastMeasurementCache = lastMeasurement;
+        Measurement lastMeasurement = getLastSnapshot().getMeasurement();
+        Timber.d("getLastMeasurement(): %s", lastMeasurement);
         return lastMeasurement;
     }
 
     public List<Measurement> getLastMeasurements() {
+        if (writeBuffer != null && !writeBuffer.isEmpty()) {
+            List<Measurement> pendingMeasurements = writeBuffer.getLastMainMeasurements();
+            Timber.d("getLastMeasurements(): Last %s main measurements from write buffer", pendingMeasurements.size());
+            return pendingMeasurements;
+        }
         Measurement lastMeasurement = getLastMeasurement();
         if (lastMeasurement == null) {
             Timber.d("getLastMeasurements(): No measurements in DB");
             return new ArrayList<>(0);
         }
-        String locationHashCode = HashUtils.toSha1(lastMeasurement);
-        String selection = LocationsTable.TABLE_NAME + "." + LocationsTable.COLUMN_HASHCODE + " = ?"
-                + " AND " + MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_NEIGHBORING + " = ?";
-        String[] selectionArgs = new String[]{locationHashCode, String.valueOf(0)};
-        List<Measurement> lastMeasurements = getMeasurements(selection, selectionArgs, null, null,
-                MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_MEASURED_AT + " DESC, "
-                        + MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_NEIGHBORING + " DESC, "
-                        + MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_ROW_ID + " DESC",
-                null);
+        long locationFingerprint = HashUtils.toLocationFingerprint(lastMeasurement);
+        String[] selectionArgs = new String[]{String.valueOf(locationFingerprint), String.valueOf(0)};
+        List<Measurement> lastMeasurements = getMeasurements(getLastDatabase(), QUERY_LAST_MAIN_MEASUREMENTS, selectionArgs);
         Timber.d("getLastMeasurements(): Last %s main measurements from DB for measurement %s", lastMeasurements.size(), lastMeasurement.getRowId());
         return lastMeasurements;
     }
 
     public CellsCount getLastCellsCount() {
-        // Try to get from cache then read from DB (copy to local to avoid null if invalidated in the meantime)
-        CellsCount lastCellsCountCacheCopy = this.lastCellsCountCache;
-        if (lastCellsCountCacheCopy != null) {
-            Timber.d("getLastCellsCount(): Value from cache: %s", lastCellsCountCacheCopy);
-            return lastCellsCountCacheCopy;
+        if (writeBuffer != null) {
+            CellsCount pendingCellsCount = writeBuffer.getLastCellsCount();
+            if (pendingCellsCount != null) {
+                Timber.d("getLastCellsCount(): Value from write buffer: %s", pendingCellsCount);
+                return pendingCellsCount;
+            }
+        }
+        CellsCount lastCellsCount = getLastSnapshot().getCellsCount();
+        Timber.d("getLastCellsCount(): %s", lastCellsCount);
+        return lastCellsCount;
+    }
+
+    private LastMeasurementCache.Snapshot getLastSnapshot() {
+        LastMeasurementCache.Snapshot snapshot = lastMeasurementCache.get();
+        if (snapshot != null) {
+            return snapshot;
+        }
+        long token = lastMeasurementCache.beginLoad();
+        SQLiteDatabase db = getLastDatabase();
+        Measurement lastMeasurement = null;
+        List<Measurement> measurements = getMeasurements(db, QUERY_LAST_MEASUREMENT, null);
+        if (!measurements.isEmpty()) {
+            lastMeasurement = measurements.get(0);
         }
         CellsCount lastCellsCount = new CellsCount();
-        SQLiteDatabase db = helper.getReadableDatabase();
-        final String totalCount = "TOTAL_COUNT";
-        final String mainCount = "MAIN_COUNT";
-        String query = "SELECT (SELECT COUNT(" + MeasurementsTable.COLUMN_MEASURED_AT + ") FROM " + MeasurementsTable.TABLE_NAME + " WHERE " + MeasurementsTable.COLUMN_MEASURED_AT + " = m." + MeasurementsTable.COLUMN_MEASURED_AT + ") AS " + totalCount + ","
-                + " (SELECT COUNT(" + MeasurementsTable.COLUMN_MEASURED_AT + ") FROM " + MeasurementsTable.TABLE_NAME + " WHERE " + MeasurementsTable.COLUMN_MEASURED_AT + " = m." + MeasurementsTable.COLUMN_MEASURED_AT + " AND " + MeasurementsTable.COLUMN_NEIGHBORING + " = 0) AS " + mainCount + ""
-                + " FROM " + MeasurementsTable.TABLE_NAME + " m ORDER BY m." + MeasurementsTable.COLUMN_MEASURED_AT + " DESC LIMIT 0, 1";
-        // Log.d(query);
-        Cursor cursor = db.rawQuery(query, null);
-        if (cursor.moveToNext()) {
-            int total = cursor.getInt(cursor.getColumnIndex(totalCount));
-            int main = cursor.getInt(cursor.getColumnIndex(mainCount));
-            lastCellsCount = new CellsCount(main, total - main);
+        Cursor cursor = db.rawQuery(QUERY_LAST_CELLS_COUNT, null);
+        try {
+            if (cursor.moveToNext()) {
+                int total = cursor.getInt(cursor.getColumnIndex(COLUMN_TOTAL_COUNT));
+                int main = cursor.getInt(cursor.getColumnIndex(COLUMN_MAIN_COUNT));
+                lastCellsCount = new CellsCount(main, total - main);
+            }
+        } finally {
+            cursor.close();
         }
-        cursor.close();
-        Timber.d("getLastCellsCount(): Value from DB: %s", lastCellsCount);
-        this.lastCellsCountCache = lastCellsCount;
-        return lastCellsCount;
+        snapshot = new LastMeasurementCache.Snapshot(lastMeasurement, lastCellsCount);
+        Timber.d("getLastSnapshot(): Loaded from DB: %s, %s", lastMeasurement, lastCellsCount);
+        lastMeasurementCache.publish(token, snapshot);
+        return snapshot;
     }
 
+    /**
+     * Returns database holding the newest measurement: active one, or newest sealed segment with measurements if active is empty.
+     */
+    private SQLiteDatabase getLastDatabase() {
+        SQLiteDatabase db = getReaderDatabase();
+        List<MeasurementsSegments.Segment> sealed = segments.list();
+        if (sealed.isEmpty() || queryForLong(db, QUERY_ANY_MEASUREMENT) != 0) {
+            return db;
+        }
+        for (int sIndex = sealed.size() - 1; sIndex >= 0; sIndex--) {
+            MeasurementsSegments.Segment segment = sealed.get(sIndex);
+            if (segments.getSummary(segment).getMeasurementsCount() > 0) {
+                return segments.getDatabase(segment);
+            }
+        }
+        return db;
+    }
+
+    /**
+     * Counts stored and buffered measurements. Callers which read rows afterwards have to flush buffered scans first.
+     */
     public int getAllMeasurementsCount() {
         int count = 0;
         Timber.d("getAllMeasurementsCount(): Getting number of measurements");
-        SQLiteDatabase db = helper.getReadableDatabase();
+        SQLiteDatabase db = getReaderDatabase();
         SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
         queryBuilder.setTables(MeasurementsTable.TABLE_NAME);
         String[] columns = new String[]{"COUNT(*) AS LOCATIONS_COUNT"};
@@ -264,183 +514,513 @@ public class MeasurementsDatabase {
             count = cursorTotal.getInt(cursorTotal.getColumnIndex("LOCATIONS_COUNT"));
         }
         cursorTotal.close();
+        for (MeasurementsSegments.Segment segment : segments.list()) {
+            count += segments.getSummary(segment).getMeasurementsCount();
+        }
+        if (writeBuffer != null) {
+            count += writeBuffer.getMeasurementsCount();
+        }
         return count;
     }
 
     public Statistics getMeasurementsStatistics() {
-        // Try to get from cache then read from DB (copy to local to avoid null if invalidated in the meantime)
-        Statistics lastStatisticsCacheCopy = this.lastStatisticsCache;
-        if (lastStatisticsCacheCopy != null) {
-            Timber.d("getMeasurementsStatistics(): Value from cache: %s", lastStatisticsCacheCopy);
-            return lastStatisticsCacheCopy;
-        }
-        Statistics stats = new Statistics();
-        SQLiteDatabase db = helper.getReadableDatabase();
-        // calculate midnight date (beginning of day)
-        Calendar todayCalendar = Calendar.getInstance();
-        todayCalendar.set(Calendar.HOUR_OF_DAY, 0);
-        todayCalendar.set(Calendar.MINUTE, 0);
-        todayCalendar.set(Calendar.SECOND, 0);
-        todayCalendar.set(Calendar.MILLISECOND, 0);
-        final String todayCellsCount = "TODAY_CELLS_COUNT";
-        final String todayLocationsCount = "TODAY_LOCATIONS_COUNT";
-        final String todayDiscoveredCellsCount = "TODAY_DISCOVERED_CELLS_COUNT";
-        final String localCellsCount = "LOCAL_CELLS_COUNT";
-        final String localLocationsCount = "LOCAL_LOCATIONS_COUNT";
-        final String localDiscoveredCellsCount = "LOCAL_DISCOVERED_CELLS_COUNT";
-        final String localDiscoveredCellsSince = "LOCAL_DISCOVERED_CELLS_SINCE";
-        final String globalLocationsCount = "GLOBAL_LOCATIONS_COUNT";
-        final String globalDiscoveredCellsCount = "GLOBAL_DISCOVERED_CELLS_COUNT";
-        final String globalDiscoveredCellsSince = "GLOBAL_DISCOVERED_CELLS_SINCE";
-        String todayTime = String.valueOf(todayCalendar.getTimeInMillis());
-        String[] selectionArgs = new String[]{todayTime, todayTime};
-        // get all in one query (raw is the only possible solution)
-        // partial queries
-        String cellsTablePrimaryKeyColumns = CellsTable.COLUMN_CID + ", " + CellsTable.COLUMN_LAC
-                + ", " + CellsTable.COLUMN_MNC + ", " + CellsTable.COLUMN_MCC + ", " + CellsTable.COLUMN_NET_TYPE;
-        String cellsArchiveTablePrimaryKeyColumns = CellsArchiveTable.COLUMN_CID + ", " + CellsArchiveTable.COLUMN_LAC
-                + ", " + CellsArchiveTable.COLUMN_MNC + ", " + CellsArchiveTable.COLUMN_MCC + ", " + CellsArchiveTable.COLUMN_NET_TYPE;
-        // full queries
-        String todayCellsLocationsQuery = "SELECT COUNT(DISTINCT " + MeasurementsTable.COLUMN_CELL_ID + ") AS " + todayCellsCount + ", "
-                + "COUNT(*) AS " + todayLocationsCount + " FROM " + MeasurementsTable.TABLE_NAME + " WHERE " + MeasurementsTable.COLUMN_MEASURED_AT + " >= ?";
-        String todayDiscoveredCellsQuery = "SELECT COUNT(*) AS " + todayDiscoveredCellsCount + " FROM (SELECT " + cellsTablePrimaryKeyColumns
-                + " FROM " + CellsTable.TABLE_NAME + " WHERE " + CellsTable.COLUMN_DISCOVERED_AT
-                + " >= ? EXCEPT SELECT " + cellsArchiveTablePrimaryKeyColumns + " FROM " + CellsArchiveTable.TABLE_NAME + ")";
-        String localCellsQuery = "SELECT COUNT(" + CellsTable.COLUMN_ROW_ID + ") AS " + localCellsCount + ", MIN(" + CellsTable.COLUMN_DISCOVERED_AT + ") AS "
-                + localDiscoveredCellsSince + " FROM " + CellsTable.TABLE_NAME;
-        String localLocationsQuery = "SELECT COUNT(" + MeasurementsTable.COLUMN_ROW_ID + ") AS " + localLocationsCount + " FROM " + MeasurementsTable.TABLE_NAME;
-        String localDiscoveredCellsQuery = "SELECT COUNT(*) AS " + localDiscoveredCellsCount + " FROM (SELECT " + cellsTablePrimaryKeyColumns
-                + " FROM " + CellsTable.TABLE_NAME + " EXCEPT SELECT " + cellsArchiveTablePrimaryKeyColumns + " FROM " + CellsArchiveTable.TABLE_NAME + ")";
-        String globalLocationsQuery = "SELECT " + StatsTable.COLUMN_TOTAL_LOCATIONS + " AS " + globalLocationsCount + " FROM "
-                + StatsTable.TABLE_NAME + " LIMIT 0, 1";
-        String globalDiscoveredCellsQuery = "SELECT COUNT(*) AS " + globalDiscoveredCellsCount + " FROM (SELECT "
-                + cellsTablePrimaryKeyColumns + " FROM " + CellsTable.TABLE_NAME + " UNION SELECT "
-                + cellsArchiveTablePrimaryKeyColumns + " FROM " + CellsArchiveTable.TABLE_NAME + ")";
-        String globalDiscoveredSinceQuery = "SELECT " + CellsTable.COLUMN_DISCOVERED_AT + " AS " + globalDiscoveredCellsSince
-                + " FROM " + CellsTable.TABLE_NAME + " UNION SELECT " + CellsArchiveTable.COLUMN_DISCOVERED_AT
-                + " FROM " + CellsArchiveTable.TABLE_NAME + " ORDER BY " + CellsTable.COLUMN_DISCOVERED_AT + " ASC LIMIT 0, 1";
-        //Log.d(todayDiscoveredCellsQuery);
-        //Log.d(localDiscoveredCellsQuery);
-        //Log.d(globalDiscoveredCellsQuery);
-        String query = "SELECT * FROM ((" + todayCellsLocationsQuery + ") "
-                + "JOIN (" + todayDiscoveredCellsQuery + ") "
-                + "JOIN (" + localCellsQuery + ") "
-                + "JOIN (" + localLocationsQuery + ") "
-                + "JOIN (" + localDiscoveredCellsQuery + ") "
-                + "JOIN (" + globalLocationsQuery + ") "
-                + "JOIN (" + globalDiscoveredCellsQuery + ") "
-                + "JOIN (" + globalDiscoveredSinceQuery + "))";
-        // Log.d(query);
-        Cursor cursor = db.rawQuery(query, selectionArgs);
-        if (cursor.moveToNext()) {
-            stats.setCellsToday(cursor.getInt(cursor.getColumnIndex(todayCellsCount)));
-            stats.setLocationsToday(cursor.getInt(cursor.getColumnIndex(todayLocationsCount)));
-            stats.setDiscoveredCellsToday(cursor.getInt(cursor.getColumnIndex(todayDiscoveredCellsCount)));
-            stats.setCellsLocal(cursor.getInt(cursor.getColumnIndex(localCellsCount)));
-            stats.setLocationsLocal(cursor.getInt(cursor.getColumnIndex(localLocationsCount)));
-            stats.setDiscoveredCellsLocal(cursor.getInt(cursor.getColumnIndex(localDiscoveredCellsCount)));
-            stats.setSinceLocal(cursor.getLong(cursor.getColumnIndex(localDiscoveredCellsSince)));
-            stats.setLocationsGlobal(cursor.getInt(cursor.getColumnIndex(globalLocationsCount)));
-            stats.setDiscoveredCellsGlobal(cursor.getInt(cursor.getColumnIndex(globalDiscoveredCellsCount)));
-            stats.setSinceGlobal(cursor.getLong(cursor.getColumnIndex(globalDiscoveredCellsSince)));
+        // counters are maintained on every change, database is read only on first use and after day rollover
+        if (needsStatisticsReload()) {
+            reloadStatistics();
         }
-        cursor.close();
-        Timber.d("getMeasurementsStatistics(): Value from DB: %s", stats);
-        this.lastStatisticsCache = stats;
+        Statistics stats = statisticsCounters.getStatistics();
+        // counters cover active database, summaries of sealed segments are cached
+        long[] sealedCellKeys = segments.getCellKeys();
+        if (sealedCellKeys.length > 0) {
+            // cell seen in more than one segment is counted once
+            stats.setCellsLocal(sealedCellKeys.length + countActiveCellsNotSealed(sealedCellKeys, stats.getCellsLocal()));
+        }
+        for (MeasurementsSegments.Segment segment : segments.list()) {
+            MeasurementsSegments.Summary summary = segments.getSummary(segment);
+            stats.setLocationsLocal(stats.getLocationsLocal() + summary.getMeasurementsCount());
+            // cells of older segments are carried over to archive of newer ones, so discovered cells don't repeat
+            stats.setDiscoveredCellsLocal(stats.getDiscoveredCellsLocal() + summary.getDiscoveredCellsCount());
+            if (summary.getSince() > 0 && (stats.getSinceLocal() == 0 || summary.getSince() < stats.getSinceLocal())) {
+                stats.setSinceLocal(summary.getSince());
+            }
+        }
+        Timber.d("getMeasurementsStatistics(): %s", stats);
         return stats;
     }
 
+    /**
+     * @return true if counters have to be loaded in write transaction before statistics are read
+     */
+    boolean needsStatisticsReload() {
+        return statisticsCounters.needsReload(System.currentTimeMillis());
+    }
+
+    void reloadStatistics() {
+        SQLiteDatabase db = getWriterDatabase();
+        db.beginTransaction();
+        try {
+            statisticsCounters.reload(db, System.currentTimeMillis());
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Counts cells of active database which are not present in sealed segments.
+     * Result is reused until number of active cells, segments or deleted rows change.
+     */
+    private synchronized int countActiveCellsNotSealed(long[] sealedCellKeys, int activeCells) {
+        if (sealedCellKeys != countedSealedCellKeys || activeCells != countedActiveCells) {
+            activeCellsNotSealed = countCellsNotIn(getReaderDatabase(), sealedCellKeys);
+            countedSealedCellKeys = sealedCellKeys;
+            countedActiveCells = activeCells;
+        }
+        return activeCellsNotSealed;
+    }
+
+    private synchronized void resetCountedCells() {
+        countedActiveCells = -1;
+    }
+
+    private static int countCellsNotIn(SQLiteDatabase db, long[] sortedCellKeys) {
+        int count = 0;
+        Cursor cursor = db.rawQuery(QUERY_CELL_KEYS, null);
+        try {
+            while (cursor.moveToNext()) {
+                if (Arrays.binarySearch(sortedCellKeys, cursor.getLong(0)) < 0) {
+                    count++;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return count;
+    }
+
+    public void rebuildStatistics() {
+        Timber.d("rebuildStatistics(): Rebuilding statistics");
+        SQLiteDatabase db = getWriterDatabase();
+        db.beginTransaction();
+        try {
+            statisticsCounters.rebuild(db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
     public AnalyticsStatistics getAnalyticsStatistics() {
         Timber.d("getAnalyticsStatistics(): Getting analytics stats");
         AnalyticsStatistics stats = new AnalyticsStatistics();
-        SQLiteDatabase db = helper.getReadableDatabase();
-        // get all in one query (raw is the only possible solution)
-        String query = "SELECT * FROM (SELECT COUNT(*) AS TOTAL_CELLS_COUNT FROM " + CellsTable.TABLE_NAME + ") JOIN (SELECT COUNT(*) AS TOTAL_LOCATIONS_COUNT, COUNT(DISTINCT DATE(" + MeasurementsTable.COLUMN_MEASURED_AT + " / 1000, 'unixepoch')) AS TOTAL_DAYS_COUNT FROM " + MeasurementsTable.TABLE_NAME + ")";
-        // Log.d(query);
-        Cursor cursor = db.rawQuery(query, null);
+        SQLiteDatabase activeDb = getReaderDatabase();
+        Cursor cursor = activeDb.rawQuery(QUERY_ANALYTICS_STATISTICS, null);
         if (cursor.moveToNext()) {
             stats.setCells(cursor.getInt(cursor.getColumnIndex("TOTAL_CELLS_COUNT")));
             stats.setLocations(cursor.getInt(cursor.getColumnIndex("TOTAL_LOCATIONS_COUNT")));
             stats.setDays(cursor.getInt(cursor.getColumnIndex("TOTAL_DAYS_COUNT")));
         }
         cursor.close();
+        List<MeasurementsSegments.Segment> sealed = segments.list();
+        if (!sealed.isEmpty()) {
+            // cells and days can repeat in segments, so they are counted as distinct values of all databases
+            long[] sealedCellKeys = segments.getCellKeys();
+            stats.setCells(sealedCellKeys.length + countCellsNotIn(activeDb, sealedCellKeys));
+            Set<Long> days = new HashSet<>();
+            collectDays(activeDb, days);
+            for (MeasurementsSegments.Segment segment : sealed) {
+                SQLiteDatabase segmentDb = segments.getDatabase(segment);
+                collectDays(segmentDb, days);
+                stats.setLocations(stats.getLocations() + (int) queryForLong(segmentDb, QUERY_MEASUREMENTS_COUNT));
+            }
+            stats.setDays(days.size());
+        }
         Timber.d("getAnalyticsStatistics(): %s", stats);
         return stats;
     }
 
+    private static void collectDays(SQLiteDatabase db, Set<Long> days) {
+        Cursor cursor = db.rawQuery(QUERY_DAYS, null);
+        try {
+            while (cursor.moveToNext()) {
+                days.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns number of measurements and distinct cells per day (UTC) for days containing given timestamps, oldest first.
+     * Days without measurements are skipped.
+     */
+    public List<DailyStatistics> getDailyStatistics(long fromTimestamp, long toTimestamp) {
+        Timber.d("getDailyStatistics(): Getting daily stats from %s to %s", fromTimestamp, toTimestamp);
+        List<DailyStatistics> history = new ArrayList<>();
+        String[] selectionArgs = new String[]{String.valueOf(fromTimestamp / DAY_MILLIS), String.valueOf(toTimestamp / DAY_MILLIS)};
+        // segments are read oldest first, day split by sealing is merged with its continuation
+        for (SQLiteDatabase db : getSourceDatabases(-1)) {
+            Cursor cursor = db.rawQuery(QUERY_DAILY_STATISTICS, selectionArgs);
+            try {
+                DailyStatistics dayStats = (history.isEmpty() ? null : history.get(history.size() - 1));
+                while (cursor.moveToNext()) {
+                    long day = cursor.getLong(0) * DAY_MILLIS;
+                    if (dayStats == null || dayStats.getDay() != day) {
+                        dayStats = new DailyStatistics(day);
+                        history.add(dayStats);
+                    }
+                    dayStats.add(NetworkGroup.fromValue(cursor.getInt(1)), cursor.getInt(2), cursor.getInt(3));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return history;
+    }
+
+    /**
+     * Returns bounds of all locations. They are extended by trigger on insert and calculated again only when location on the edge has been deleted.
+     */
     public Boundaries getLocationBounds() {
-        Timber.d("getLocationBounds(): Getting GPS bounds");
-        Boundaries boundaries = null;
-        SQLiteDatabase db = helper.getReadableDatabase();
-        // get all in one query (raw is the only possible solution)
-        String query = "SELECT MIN(" + LocationsTable.COLUMN_LATITUDE + ") AS MIN_LAT, MIN(" + LocationsTable.COLUMN_LONGITUDE + ") AS MIN_LON, MAX(" + LocationsTable.COLUMN_LATITUDE + ") AS MAX_LAT, MAX(" + LocationsTable.COLUMN_LONGITUDE + ") AS MAX_LON FROM " + LocationsTable.TABLE_NAME;
-        // Log.d(query);
-        Cursor cursor = db.rawQuery(query, null);
-        if (cursor.moveToNext()) {
-            double minLat = cursor.getDouble(cursor.getColumnIndex("MIN_LAT"));
-            double minLon = cursor.getDouble(cursor.getColumnIndex("MIN_LON"));
-            double maxLat = cursor.getDouble(cursor.getColumnIndex("MAX_LAT"));
-            double maxLon = cursor.getDouble(cursor.getColumnIndex("MAX_LON"));
-            boundaries = new Boundaries(minLat, minLon, maxLat, maxLon);
+        Boundaries boundaries = getActiveLocationBounds();
+        List<MeasurementsSegments.Segment> sealed = segments.list();
+        if (sealed.isEmpty()) {
+            return boundaries;
         }
-        cursor.close();
+        // empty active database reports zeros
+        List<Boundaries> parts = new ArrayList<>();
+        if (queryForLong(getReaderDatabase(), QUERY_ANY_MEASUREMENT) != 0) {
+            parts.add(boundaries);
+        }
+        for (MeasurementsSegments.Segment segment : sealed) {
+            Boundaries segmentBounds = segments.getSummary(segment).getBounds();
+            if (segmentBounds != null) {
+                parts.add(segmentBounds);
+            }
+        }
+        if (parts.isEmpty()) {
+            return boundaries;
+        }
+        Boundaries first = parts.get(0);
+        double minLat = first.getMinLat(), minLon = first.getMinLon(), maxLat = first.getMaxLat(), maxLon = first.getMaxLon();
+        for (Boundaries part : parts) {
+            minLat = Math.min(minLat, part.getMinLat());
+            minLon = Math.min(minLon, part.getMinLon());
+            maxLat = Math.max(maxLat, part.getMaxLat());
+            maxLon = Math.max(maxLon, part.getMaxLon());
+        }
+        boundaries = new Boundaries(minLat, minLon, maxLat, maxLon);
+        Timber.d("getLocationBounds(): Including sealed segments %s", boundaries);
         return boundaries;
     }
 
-    public List<Measurement> getOlderMeasurements(long maxTimestamp, int offset, int limit) {
-        Timber.d("getOlderMeasurements(): Getting %s measurements with timestamp <= %s skipping first %s", limit, maxTimestamp, offset);
-        return getMeasurements(MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_MEASURED_AT + " <= ?", new String[]{String.valueOf(maxTimestamp)}, null, null, MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_MEASURED_AT + " ASC, " + MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_ROW_ID + " ASC", String.valueOf(offset) + ", " + String.valueOf(limit));
+    private Boundaries getActiveLocationBounds() {
+        Boundaries boundaries = queryLocationBounds(getReaderDatabase());
+        if (boundaries != null) {
+            Timber.d("getActiveLocationBounds(): %s", boundaries);
+            return boundaries;
+        }
+        SQLiteDatabase db = getWriterDatabase();
+        db.beginTransaction();
+        try {
+            Object[] bounds = new Object[4];
+            Cursor cursor = db.rawQuery(QUERY_CALCULATE_LOCATION_BOUNDS, null);
+            try {
+                if (cursor.moveToNext() && !cursor.isNull(0)) {
+                    for (int i = 0; i < bounds.length; i++) {
+                        bounds[i] = cursor.getDouble(i);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            db.execSQL(QUERY_UPDATE_LOCATION_BOUNDS, bounds);
+            boundaries = queryLocationBounds(db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        Timber.d("getActiveLocationBounds(): Calculated %s", boundaries);
+        return boundaries;
+    }
+
+    private static Boundaries queryLocationBounds(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery(QUERY_LOCATION_BOUNDS, null);
+        try {
+            if (!cursor.moveToNext() || cursor.getInt(4) == 0) {
+                return null;
+            }
+            // zeros when there are no locations
+            return new Boundaries(cursor.getDouble(0), cursor.getDouble(1), cursor.getDouble(2), cursor.getDouble(3));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Streams measurements taken within given area to the visitor. Locations are found using quad key index and read
+     * in pages of nearby locations (in quad key order within each segment) so memory usage doesn't depend on area size.
+     * Rows within a page are not ordered, so measurements of one location are not guaranteed to be visited together.
+     * Every row is read into the same measurement instance which must not be kept by the visitor.
+     *
+     * @return number of visited measurements
+     */
+    public int forEachMeasurementInArea(Boundaries area, IMeasurementVisitor visitor) throws IOException {
+        long[] ranges = QuadKeyUtils.toQuadKeyRanges(area.getMinLat(), area.getMinLon(), area.getMaxLat(), area.getMaxLon());
+        Timber.d("forEachMeasurementInArea(): Visiting measurements in %s using %s key ranges", area, ranges.length / 2);
+        String[] selectionArgs = new String[8];
+        selectionArgs[4] = String.valueOf(area.getMinLat());
+        selectionArgs[5] = String.valueOf(area.getMaxLat());
+        selectionArgs[6] = String.valueOf(area.getMinLon());
+        selectionArgs[7] = String.valueOf(area.getMaxLon());
+        Measurement row = new Measurement();
+        int visited = 0;
+        // spatial order is kept within each segment
+        for (SQLiteDatabase db : getSourceDatabases(-1)) {
+            for (int rIndex = 0; rIndex < ranges.length; rIndex += 2) {
+                long afterQuadKey = ranges[rIndex];
+                long afterLocationId = -1;
+                boolean pageEmpty = false;
+                while (!pageEmpty) {
+                    selectionArgs[0] = String.valueOf(afterQuadKey);
+                    selectionArgs[1] = String.valueOf(ranges[rIndex + 1]);
+                    selectionArgs[2] = selectionArgs[0];
+                    selectionArgs[3] = String.valueOf(afterLocationId);
+                    Cursor cursor = db.rawQuery(QUERY_MEASUREMENTS_IN_AREA, selectionArgs);
+                    try {
+                        pageEmpty = (cursor.getCount() == 0);
+                        MeasurementRowReader reader = new MeasurementRowReader(cursor);
+                        int quadKeyColumnIndex = cursor.getColumnIndex(LocationsTable.COLUMN_QUADKEY);
+                        int locationIdColumnIndex = cursor.getColumnIndex(MeasurementsTable.COLUMN_LOCATION_ID);
+                        while (cursor.moveToNext()) {
+                            long quadKey = cursor.getLong(quadKeyColumnIndex);
+                            long locationId = cursor.getLong(locationIdColumnIndex);
+                            // rows of the page are not ordered
+                            if (quadKey > afterQuadKey || (quadKey == afterQuadKey && locationId > afterLocationId)) {
+                                afterQuadKey = quadKey;
+                                afterLocationId = locationId;
+                            }
+                            reader.read(cursor, row);
+                            visited++;
+                            if (!visitor.visit(row)) {
+                                return visited;
+                            }
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                }
+            }
+        }
+        return visited;
+    }
+
+    /**
+     * Returns next page of measurements taken not later than given timestamp, ordered by time and row id.
+     * Page starts right after given measurement (usually last one of previous page) or from the beginning if null.
+     * Seeks using index instead of skipping rows so every page costs the same.
+     */
+    public List<Measurement> getOlderMeasurements(long maxTimestamp, Measurement after, int limit) {
+        if (after == null) {
+            Timber.d("getOlderMeasurements(): Getting first %s measurements with timestamp <= %s", limit, maxTimestamp);
+            return getOlderMeasurements(maxTimestamp, -1, -1, limit);
+        }
+        Timber.d("getOlderMeasurements(): Getting %s measurements with timestamp <= %s after %s", limit, maxTimestamp, after.getRowId());
+        return getOlderMeasurements(maxTimestamp, after.getTimestamp(), after.getRowId(), limit);
+    }
+
+    private List<Measurement> getOlderMeasurements(long maxTimestamp, long afterTimestamp, long afterRowId, int limit) {
+        List<Measurement> measurementList = new ArrayList<Measurement>(limit);
+        // page continues in segment containing given row, following segments are read from the beginning
+        for (SQLiteDatabase db : getSourceDatabases(afterRowId)) {
+            Cursor cursor = queryOlderMeasurements(db, maxTimestamp, afterTimestamp, afterRowId, limit - measurementList.size());
+            try {
+                MeasurementRowReader reader = new MeasurementRowReader(cursor);
+                while (cursor.moveToNext()) {
+                    Measurement measurement = new Measurement();
+                    reader.read(cursor, measurement);
+                    measurementList.add(measurement);
+                }
+            } finally {
+                cursor.close();
+            }
+            if (measurementList.size() == limit) {
+                break;
+            }
+            afterTimestamp = -1;
+            afterRowId = -1;
+        }
+        return measurementList;
+    }
+
+    /**
+     * Streams measurements taken not later than given timestamp, ordered by time and row id, to the visitor.
+     * Every row is read into the same measurement instance which must not be kept by the visitor.
+     * Rows are read in pages using keyset pagination so memory usage doesn't depend on result size.
+     *
+     * @param limit maximum number of rows to visit
+     * @return number of visited measurements
+     */
+    public int forEachOlderMeasurement(long maxTimestamp, int limit, IMeasurementVisitor visitor) throws IOException {
+        Timber.d("forEachOlderMeasurement(): Visiting %s measurements with timestamp <= %s", limit, maxTimestamp);
+        Measurement row = new Measurement();
+        int visited = 0;
+        // sealed segments oldest first, then active database
+        for (SQLiteDatabase db : getSourceDatabases(-1)) {
+            long afterTimestamp = -1;
+            long afterRowId = -1;
+            while (visited < limit) {
+                int pageSize = Math.min(STREAM_PAGE_SIZE, limit - visited);
+                int pageRows = 0;
+                Cursor cursor = queryOlderMeasurements(db, maxTimestamp, afterTimestamp, afterRowId, pageSize);
+                try {
+                    MeasurementRowReader reader = new MeasurementRowReader(cursor);
+                    while (cursor.moveToNext()) {
+                        reader.read(cursor, row);
+                        afterTimestamp = row.getTimestamp();
+                        afterRowId = row.getRowId();
+                        pageRows++;
+                        visited++;
+                        if (!visitor.visit(row)) {
+                            return visited;
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+                if (pageRows < pageSize) {
+                    break;
+                }
+            }
+        }
+        return visited;
+    }
+
+    private Cursor queryOlderMeasurements(SQLiteDatabase db, long maxTimestamp, long afterTimestamp, long afterRowId, int limit) {
+        String[] selectionArgs;
+        if (afterRowId < 0) {
+            selectionArgs = new String[]{String.valueOf(maxTimestamp)};
+        } else {
+            String afterTimestampArg = String.valueOf(afterTimestamp);
+            selectionArgs = new String[]{String.valueOf(maxTimestamp), afterTimestampArg, afterTimestampArg, String.valueOf(afterRowId)};
+        }
+        return db.rawQuery(buildOlderMeasurementsQuery(afterRowId >= 0, limit), selectionArgs);
     }
 
-    private List<Measurement> getMeasurements(String selection, String[] selectionArgs, String groupBy, String having, String sortOrder, String limit) {
+    static String buildOlderMeasurementsQuery(boolean afterRow, int limit) {
+        String measuredAtColumn = MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_MEASURED_AT;
+        String rowIdColumn = MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_ROW_ID;
+        String selection = measuredAtColumn + " <= ?";
+        if (afterRow) {
+            // range on index first, then skip already read rows with the same timestamp
+            selection += " AND " + measuredAtColumn + " >= ? AND (" + measuredAtColumn + " > ? OR " + rowIdColumn + " > ?)";
+        }
+        return buildMeasurementsQuery(selection, OLDEST_FIRST_ORDER, String.valueOf(limit));
+    }
+
+    private static String[] appendColumns(String[] columns, String... extraColumns) {
+        String[] result = Arrays.copyOf(columns, columns.length + extraColumns.length);
+        System.arraycopy(extraColumns, 0, result, columns.length, extraColumns.length);
+        return result;
+    }
+
+    private static String buildMeasurementsQuery(String selection, String sortOrder, String limit) {
+        return SQLiteQueryBuilder.buildQueryString(false, MEASUREMENTS_TABLES, MEASUREMENTS_COLUMNS, selection, null, null, sortOrder, limit);
+    }
+
+    private List<Measurement> getMeasurements(SQLiteDatabase db, String query, String[] selectionArgs) {
         Timber.d("getMeasurements(): Getting selected measurements");
         List<Measurement> measurementList = new ArrayList<Measurement>(128);
-        SQLiteDatabase db = helper.getReadableDatabase();
-        SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
-        queryBuilder.setTables(MeasurementsTable.TABLE_NAME
-                + " INNER JOIN " + LocationsTable.TABLE_NAME + " ON (" + MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_LOCATION_ID + " = " + LocationsTable.TABLE_NAME + "." + LocationsTable.COLUMN_ROW_ID + ")"
-                + " INNER JOIN " + CellsTable.TABLE_NAME + " ON (" + MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_CELL_ID + " = " + CellsTable.TABLE_NAME + "." + CellsTable.COLUMN_ROW_ID + ")");
-        //queryBuilder.appendWhere(MeasurementsQueries.TABLE_NAME + "." + COLUMN_CELL_ID + "=" + CellsQueries.TABLE_NAME + "." + COLUMN_ROW_ID);
-        String[] returnedColumns = {MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_ROW_ID,
-                MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_PSC,
-                MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_NEIGHBORING,
-                MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_TA,
-                MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_ASU,
-                MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_DBM,
-                MeasurementsTable.TABLE_NAME + "." + MeasurementsTable.COLUMN_MEASURED_AT,
-                LocationsTable.TABLE_NAME + "." + LocationsTable.COLUMN_LATITUDE,
-                LocationsTable.TABLE_NAME + "." + LocationsTable.COLUMN_LONGITUDE,
-                LocationsTable.TABLE_NAME + "." + LocationsTable.COLUMN_GPS_ACCURACY,
-                LocationsTable.TABLE_NAME + "." + LocationsTable.COLUMN_GPS_SPEED,
-                LocationsTable.TABLE_NAME + "." + LocationsTable.COLUMN_GPS_BEARING,
-                LocationsTable.TABLE_NAME + "." + LocationsTable.COLUMN_GPS_ALTITUDE,
-                CellsTable.TABLE_NAME + "." + CellsTable.COLUMN_CID,
-                CellsTable.TABLE_NAME + "." + CellsTable.COLUMN_LAC,
-                CellsTable.TABLE_NAME + "." + CellsTable.COLUMN_MNC,
-                CellsTable.TABLE_NAME + "." + CellsTable.COLUMN_MCC,
-                CellsTable.TABLE_NAME + "." + CellsTable.COLUMN_NET_TYPE};
-        // Log.d(queryBuilder.buildQuery(returnedColumns, selection, selectionArgs, groupBy, having, sortOrder, limit));
-        Cursor cursor = queryBuilder.query(db, returnedColumns, selection, selectionArgs, groupBy, having, sortOrder, limit);
-        int rowIdColumnIndex = cursor.getColumnIndex(MeasurementsTable.COLUMN_ROW_ID);
-        int mccColumnIndex = cursor.getColumnIndex(CellsTable.COLUMN_MCC);
-        int mncColumnIndex = cursor.getColumnIndex(CellsTable.COLUMN_MNC);
-        int lacColumnIndex = cursor.getColumnIndex(CellsTable.COLUMN_LAC);
-        int cidColumnIndex = cursor.getColumnIndex(CellsTable.COLUMN_CID);
-        int netTypeColumnIndex = cursor.getColumnIndex(CellsTable.COLUMN_NET_TYPE);
-        int pscColumnIndex = cursor.getColumnIndex(MeasurementsTable.COLUMN_PSC);
-        int neighboringColumnIndex = cursor.getColumnIndex(MeasurementsTable.COLUMN_NEIGHBORING);
-        int taColumnIndex = cursor.getColumnIndex(MeasurementsTable.COLUMN_TA);
-        int asuColumnIndex = cursor.getColumnIndex(MeasurementsTable.COLUMN_ASU);
-        int dbmColumnIndex = cursor.getColumnIndex(MeasurementsTable.COLUMN_DBM);
-        int latitudeColumnIndex = cursor.getColumnIndex(LocationsTable.COLUMN_LATITUDE);
-        int longitudeColumnIndex = cursor.getColumnIndex(LocationsTable.COLUMN_LONGITUDE);
-        int gpsAccuracyColumnIndex = cursor.getColumnIndex(LocationsTable.COLUMN_GPS_ACCURACY);
-        int gpsSpeedColumnIndex = cursor.getColumnIndex(LocationsTable.COLUMN_GPS_SPEED);
-        int gpsBearingColumnIndex = cursor.getColumnIndex(LocationsTable.COLUMN_GPS_BEARING);
-        int gpsAltitudeColumnIndex = cursor.getColumnIndex(LocationsTable.COLUMN_GPS_ALTITUDE);
-        int timestampColumnIndex = cursor.getColumnIndex(MeasurementsTable.COLUMN_MEASURED_AT);
-        while (cursor.moveToNext()) {
-            Measurement measurement = new Measurement();
+        Cursor cursor = db.rawQuery(query, selectionArgs);
+        try {
+            MeasurementRowReader reader = new MeasurementRowReader(cursor);
+            while (cursor.moveToNext()) {
+                Measurement measurement = new Measurement();
+                reader.read(cursor, measurement);
+                measurementList.add(measurement);
+            }
+        } finally {
+            cursor.close();
+        }
+        return measurementList;
+    }
+
+    /**
+     * Returns connections of sealed segments containing measurements with row id not lower than given one, oldest first,
+     * followed by active database. Without segments it is only the active database.
+     */
+    private List<SQLiteDatabase> getSourceDatabases(long fromRowId) {
+        List<SQLiteDatabase> dbs = new ArrayList<>();
+        for (MeasurementsSegments.Segment segment : segments.list()) {
+            MeasurementsSegments.Summary summary = segments.getSummary(segment);
+            if (summary.getMeasurementsCount() > 0 && summary.getMaxRowId() >= fromRowId) {
+                dbs.add(segments.getDatabase(segment));
+            }
+        }
+        dbs.add(getReaderDatabase());
+        return dbs;
+    }
+
+    private static long queryForLong(SQLiteDatabase db, String query) {
+        Cursor cursor = db.rawQuery(query, null);
+        try {
+            return (cursor.moveToFirst() ? cursor.getLong(0) : 0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Reads measurement columns from cursor into given instance (column indexes are resolved once per cursor).
+     */
+    private static final class MeasurementRowReader {
+        private final int rowIdColumnIndex;
+        private final int mccColumnIndex;
+        private final int mncColumnIndex;
+        private final int lacColumnIndex;
+        private final int cidColumnIndex;
+        private final int netTypeColumnIndex;
+        private final int pscColumnIndex;
+        private final int neighboringColumnIndex;
+        private final int taColumnIndex;
+        private final int asuColumnIndex;
+        private final int dbmColumnIndex;
+        private final int samplesColumnIndex;
+        private final int dbmMinColumnIndex;
+        private final int dbmMaxColumnIndex;
+        private final int latitudeColumnIndex;
+        private final int longitudeColumnIndex;
+        private final int gpsAccuracyColumnIndex;
+        private final int gpsSpeedColumnIndex;
+        private final int gpsBearingColumnIndex;
+        private final int gpsAltitudeColumnIndex;
+        private final int timestampColumnIndex;
+
+        MeasurementRowReader(Cursor cursor) {
+            rowIdColumnIndex = cursor.getColumnIndex(MeasurementsTable.COLUMN_ROW_ID);
+            mccColumnIndex = cursor.getColumnIndex(CellsTable.COLUMN_MCC);
+            mncColumnIndex = cursor.getColumnIndex(CellsTable.COLUMN_MNC);
+            lacColumnIndex = cursor.getColumnIndex(CellsTable.COLUMN_LAC);
+            cidColumnIndex = cursor.getColumnIndex(CellsTable.COLUMN_CID);
+            netTypeColumnIndex = cursor.getColumnIndex(CellsTable.COLUMN_NET_TYPE);
+            pscColumnIndex = cursor.getColumnIndex(MeasurementsTable.COLUMN_PSC);
+            neighboringColumnIndex = cursor.getColumnIndex(MeasurementsTable.COLUMN_NEIGHBORING);
+            taColumnIndex = cursor.getColumnIndex(MeasurementsTable.COLUMN_TA);
+            asuColumnIndex = cursor.getColumnIndex(MeasurementsTable.COLUMN_ASU);
+            dbmColumnIndex = cursor.getColumnIndex(MeasurementsTable.COLUMN_DBM);
+            samplesColumnIndex = cursor.getColumnIndex(MeasurementsTable.COLUMN_SAMPLES);
+            dbmMinColumnIndex = cursor.getColumnIndex(MeasurementsTable.COLUMN_DBM_MIN);
+            dbmMaxColumnIndex = cursor.getColumnIndex(MeasurementsTable.COLUMN_DBM_MAX);
+            latitudeColumnIndex = cursor.getColumnIndex(LocationsTable.COLUMN_LATITUDE);
+            longitudeColumnIndex = cursor.getColumnIndex(LocationsTable.COLUMN_LONGITUDE);
+            gpsAccuracyColumnIndex = cursor.getColumnIndex(LocationsTable.COLUMN_GPS_ACCURACY);
+            gpsSpeedColumnIndex = cursor.getColumnIndex(LocationsTable.COLUMN_GPS_SPEED);
+            gpsBearingColumnIndex = cursor.getColumnIndex(LocationsTable.COLUMN_GPS_BEARING);
+            gpsAltitudeColumnIndex = cursor.getColumnIndex(LocationsTable.COLUMN_GPS_ALTITUDE);
+            timestampColumnIndex = cursor.getColumnIndex(MeasurementsTable.COLUMN_MEASURED_AT);
+        }
+
+        void read(Cursor cursor, Measurement measurement) {
             measurement.setRowId(cursor.getInt(rowIdColumnIndex));
             measurement.setMcc(cursor.getInt(mccColumnIndex));
             measurement.setMnc(cursor.getInt(mncColumnIndex));
@@ -452,6 +1032,10 @@ public class MeasurementsDatabase {
             measurement.setTa(cursor.getInt(taColumnIndex));
             measurement.setAsu(cursor.getInt(asuColumnIndex));
             measurement.setDbm(cursor.getInt(dbmColumnIndex));
+            measurement.setSamples(cursor.getInt(samplesColumnIndex));
+            // range is empty until second sample is merged
+            measurement.setDbmMin(cursor.isNull(dbmMinColumnIndex) ? Measurement.UNKNOWN_SIGNAL : cursor.getInt(dbmMinColumnIndex));
+            measurement.setDbmMax(cursor.isNull(dbmMaxColumnIndex) ? Measurement.UNKNOWN_SIGNAL : cursor.getInt(dbmMaxColumnIndex));
             measurement.setLatitude(cursor.getDouble(latitudeColumnIndex));
             measurement.setLongitude(cursor.getDouble(longitudeColumnIndex));
             measurement.setGpsAccuracy(cursor.getFloat(gpsAccuracyColumnIndex));
@@ -459,85 +1043,533 @@ public class MeasurementsDatabase {
             measurement.setGpsBearing(cursor.getFloat(gpsBearingColumnIndex));
             measurement.setGpsAltitude(cursor.getDouble(gpsAltitudeColumnIndex));
             measurement.setTimestamp(cursor.getLong(timestampColumnIndex));
-            measurementList.add(measurement);
         }
-        cursor.close();
-        return measurementList;
     }
 
     public int deleteAllMeasurements() {
         Timber.d("deleteAllMeasurements(): Deleting all measurements");
-        SQLiteDatabase db = helper.getWritableDatabase();
+        flushPendingMeasurements();
+        SQLiteDatabase db = getWriterDatabase();
+        lastMeasurementCache.beginWrite();
         db.beginTransaction();
         int deletedMeasurements = 0;
+        boolean successful = false;
         try {
-            deletedMeasurements = db.delete(MeasurementsTable.TABLE_NAME, "1", null);
-            int deletedLocations = db.delete(LocationsTable.TABLE_NAME, "1", null);
+            statisticsCounters.ensureLoaded(db);
+            // referenced rows first so reference counting triggers have nothing to update
             int deletedCells = db.delete(CellsTable.TABLE_NAME, "1", null);
+            int deletedLocations = db.delete(LocationsTable.TABLE_NAME, "1", null);
+            deletedMeasurements = db.delete(MeasurementsTable.TABLE_NAME, "1", null);
+            DailyRollup.releaseAll(db);
+            // cleared while transaction is open so no insert can reuse removed cells
+            cellRowIdCache.clear();
+            clearCoalescer();
+            resetCountedCells();
+            statisticsCounters.applyDeletionOfAll(db);
+            db.execSQL(QUERY_UPDATE_LOCATION_BOUNDS, new Object[4]);
+            for (MeasurementsSegments.Segment segment : segments.list()) {
+                deletedMeasurements += segments.getSummary(segment).getMeasurementsCount();
+                recordSegmentDeletion(db, segment, null);
+            }
             db.setTransactionSuccessful();
+            successful = true;
             Timber.d("deleteAllMeasurements(): Deleted %s measurements, %s cells, %s locations", deletedMeasurements, deletedCells, deletedLocations);
         } finally {
-            invalidateCache();
-            db.endTransaction();
+            if (!successful) {
+                statisticsCounters.invalidate();
+            }
+            try {
+                db.endTransaction();
+            } finally {
+                if (successful) {
+                    lastMeasurementCache.endDeletionOfAll();
+                } else {
+                    lastMeasurementCache.endWrite();
+                }
+            }
         }
+        if (successful) {
+            completeSegmentDeletions(db, segments);
+        }
+        checkpointer.requestCheckpoint();
         return deletedMeasurements;
     }
 
-    public int deleteMeasurements(int[] rowIds) {
-        if (rowIds == null || rowIds.length == 0) {
-            Timber.d("deleteMeasurements(): Nothing to delete");
+    /**
+     * Deletes all measurements up to given one (inclusive) in (timestamp, row id) order in one statement,
+     * e.g. uploaded prefix of {@link #forEachOlderMeasurement}. Rows with id greater than maxRowId have been saved
+     * after the range was read and are kept. Nothing is deleted if number of rows in range differs from expected count.
+     * Sealed segments before the one containing last row are covered entirely and dropped with their files.
+     *
+     * @return number of deleted measurements
+     */
+    public int deleteMeasurementsUpTo(long lastTimestamp, int lastRowId, int maxRowId, int expectedCount) {
+        if (expectedCount <= 0) {
+            Timber.d("deleteMeasurementsUpTo(): Nothing to delete");
             return 0;
         }
-        Timber.d("deleteMeasurements(): Deleting %s measurements", rowIds.length);
-        // in transaction
+        Timber.d("deleteMeasurementsUpTo(): Deleting %s measurements up to %s/%s", expectedCount, lastTimestamp, lastRowId);
+        SQLiteDatabase db = getWriterDatabase();
+        // measurements of interrupted deletion would be counted again
+        completeSegmentDeletions(db, segments);
+        MeasurementsSegments.Segment lastSegment = segments.find(lastRowId);
+        List<MeasurementsSegments.Segment> coveredSegments = new ArrayList<>();
+        for (MeasurementsSegments.Segment segment : segments.list()) {
+            if (segment == lastSegment) {
+                break;
+            }
+            coveredSegments.add(segment);
+        }
+        boolean archive = MyApplication.getPreferencesProvider().getArchiveUploadedMeasurements();
         int deleted = 0;
-        SQLiteDatabase db = helper.getWritableDatabase();
+        lastMeasurementCache.beginWrite();
         db.beginTransaction();
+        boolean successful = false;
         try {
-            // delete partially
-            int numOfDeletions = (int) Math.ceil(1.0 * rowIds.length / NUM_OF_DELETIONS_PER_ONE_QUERY);
-            for (int i = 0; i < numOfDeletions; i++) {
-                // calculate range
-                int lower = i * NUM_OF_DELETIONS_PER_ONE_QUERY;
-                int upper = (i + 1) * NUM_OF_DELETIONS_PER_ONE_QUERY;
-                // last
-                if (i + 1 == numOfDeletions && upper != rowIds.length)
-                    upper = rowIds.length;
-                // construct query
-                String[] whereArgs = new String[upper - lower];
-                StringBuilder whereClauseBuilder = new StringBuilder(MeasurementsTable.COLUMN_ROW_ID + " IN (");
-                for (int j = 0; j < (upper - lower); j++) {
-                    if (j == 0) {
-                        whereClauseBuilder.append("?");
-                    } else {
-                        whereClauseBuilder.append(", ?");
-                    }
-                    whereArgs[j] = String.valueOf(rowIds[lower + j]);
+            statisticsCounters.ensureLoaded(db);
+            StatisticsCounters.Deletion deletion = new StatisticsCounters.Deletion();
+            String[] selectionArgs = buildUpToSelectionArgs(lastTimestamp, lastRowId, maxRowId);
+            int archived = 0;
+            // archive of sealed segments is kept in active database, segments are changed after it has been committed
+            for (MeasurementsSegments.Segment segment : coveredSegments) {
+                deleted += segments.getSummary(segment).getMeasurementsCount();
+                if (archive) {
+                    archived += archiveMeasurements(segments.getDatabase(segment), db, null, null);
+                }
+                recordSegmentDeletion(db, segment, null);
+            }
+            if (lastSegment != null) {
+                SQLiteDatabase segmentDb = segments.getDatabase(lastSegment);
+                if (archive) {
+                    archived += archiveMeasurements(segmentDb, db, UP_TO_SELECTION, selectionArgs);
                 }
-                whereClauseBuilder.append(")");
-                // delete
-                deleted += db.delete(MeasurementsTable.TABLE_NAME, whereClauseBuilder.toString(), whereArgs);
-            }
-            // validate total result
-            if (deleted == rowIds.length) {
-                // if all removed successfully then delete orphaned cells and locations
-                long deletedLocations = db.delete(LocationsTable.TABLE_NAME, LocationsTable.COLUMN_ROW_ID + " NOT IN (SELECT DISTINCT " + MeasurementsTable.COLUMN_LOCATION_ID + " FROM " + MeasurementsTable.TABLE_NAME + ")", null);
-                long deletedCells = db.delete(CellsTable.TABLE_NAME, CellsTable.COLUMN_ROW_ID + " NOT IN (SELECT DISTINCT " + MeasurementsTable.COLUMN_CELL_ID + " FROM " + MeasurementsTable.TABLE_NAME + ")", null);
-                Timber.d("deleteMeasurements(): Deleted orphaned %s cells, %s locations", deletedCells, deletedLocations);
+                deleted += (int) DatabaseUtils.queryNumEntries(segmentDb, MeasurementsTable.TABLE_NAME, UP_TO_SELECTION, selectionArgs);
+                recordSegmentDeletion(db, lastSegment, selectionArgs);
+            } else {
+                if (archive) {
+                    archived += archiveMeasurements(db, db, UP_TO_SELECTION, selectionArgs);
+                }
+                deleted += deleteMeasurements(db, UP_TO_SELECTION, selectionArgs, deletion);
+            }
+            if (deleted == expectedCount && (!archive || archived == expectedCount)) {
+                applyDeletion(db, deletion);
                 db.setTransactionSuccessful();
-            } else
+                successful = true;
+            } else {
+                Timber.w("deleteMeasurementsUpTo(): Range contains %s measurements instead of %s, rolling back", deleted, expectedCount);
                 deleted = 0;
+            }
+        } catch (IOException ex) {
+            Timber.e(ex, "deleteMeasurementsUpTo(): Failed to archive measurements, rolling back");
+            deleted = 0;
         } finally {
-            invalidateCache();
-            db.endTransaction();
+            if (!successful) {
+                statisticsCounters.invalidate();
+            }
+            try {
+                db.endTransaction();
+            } finally {
+                if (successful) {
+                    lastMeasurementCache.endDeletion(lastTimestamp);
+                } else {
+                    lastMeasurementCache.endWrite();
+                }
+            }
+        }
+        if (deleted > 0) {
+            completeSegmentDeletions(db, segments);
+            checkpointer.requestCheckpoint();
+        }
+        return deleted;
+    }
+
+    private static String[] buildUpToSelectionArgs(long lastTimestamp, long lastRowId, long maxRowId) {
+        String lastTimestampArg = String.valueOf(lastTimestamp);
+        return new String[]{lastTimestampArg, lastTimestampArg, String.valueOf(lastRowId), String.valueOf(maxRowId)};
+    }
+
+    /**
+     * Records deletion of uploaded measurements from segment in active database, in the same transaction which archives and counts them.
+     *
+     * @param selectionArgs arguments of {@link #UP_TO_SELECTION} or null if whole segment is dropped
+     */
+    private static void recordSegmentDeletion(SQLiteDatabase db, MeasurementsSegments.Segment segment, String[] selectionArgs) {
+        ContentValues values = new ContentValues();
+        values.put(SegmentDeletionsTable.COLUMN_SEGMENT, segment.getName());
+        if (selectionArgs != null) {
+            values.put(SegmentDeletionsTable.COLUMN_LAST_MEASURED_AT, Long.parseLong(selectionArgs[0]));
+            values.put(SegmentDeletionsTable.COLUMN_LAST_ROW_ID, Long.parseLong(selectionArgs[2]));
+            values.put(SegmentDeletionsTable.COLUMN_MAX_ROW_ID, Long.parseLong(selectionArgs[3]));
+        }
+        db.insertOrThrow(SegmentDeletionsTable.TABLE_NAME, null, values);
+    }
+
+    /**
+     * Applies deletions recorded by {@link #recordSegmentDeletion} to segment files. Each record is removed only after
+     * its segment has been committed or dropped, deleting already deleted range does nothing, so failed deletion
+     * is repeated on next call without counting or archiving the measurements again.
+     */
+    private static void completeSegmentDeletions(SQLiteDatabase db, MeasurementsSegments segments) {
+        Cursor cursor = db.query(SegmentDeletionsTable.TABLE_NAME, new String[]{SegmentDeletionsTable.COLUMN_ROW_ID, SegmentDeletionsTable.COLUMN_SEGMENT,
+                SegmentDeletionsTable.COLUMN_LAST_MEASURED_AT, SegmentDeletionsTable.COLUMN_LAST_ROW_ID, SegmentDeletionsTable.COLUMN_MAX_ROW_ID},
+                null, null, null, null, SegmentDeletionsTable.COLUMN_ROW_ID);
+        try {
+            while (cursor.moveToNext()) {
+                MeasurementsSegments.Segment segment = segments.find(cursor.getString(1));
+                try {
+                    if (segment != null && !deleteFromSegment(segments, segment, cursor.isNull(2) ? null
+                            : buildUpToSelectionArgs(cursor.getLong(2), cursor.getLong(3), cursor.getLong(4)))) {
+                        continue;
+                    }
+                } catch (SQLiteException ex) {
+                    Timber.e(ex, "completeSegmentDeletions(): Failed to delete from segment %s", cursor.getString(1));
+                    continue;
+                }
+                db.delete(SegmentDeletionsTable.TABLE_NAME, SegmentDeletionsTable.COLUMN_ROW_ID + " = ?", new String[]{cursor.getString(0)});
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return true if measurements have been deleted from segment or segment has been dropped
+     */
+    private static boolean deleteFromSegment(MeasurementsSegments segments, MeasurementsSegments.Segment segment, String[] selectionArgs) {
+        if (selectionArgs == null) {
+            return segments.drop(segment);
+        }
+        SQLiteDatabase segmentDb = segments.openWritable(segment);
+        try {
+            segmentDb.beginTransaction();
+            try {
+                // triggers of the segment release its cells and locations, they are not counted by active statistics
+                DailyRollup.release(segmentDb, UP_TO_SELECTION, selectionArgs);
+                int deleted = segmentDb.delete(MeasurementsTable.TABLE_NAME, UP_TO_SELECTION, selectionArgs);
+                segmentDb.setTransactionSuccessful();
+                Timber.d("deleteFromSegment(): Deleted %s measurements from segment %s", deleted, segment.getName());
+            } finally {
+                segmentDb.endTransaction();
+            }
+        } finally {
+            segmentDb.close();
+        }
+        segments.invalidate(segment);
+        return segments.getSummary(segment).getMeasurementsCount() > 0 || segments.drop(segment);
+    }
+
+    /**
+     * Writes measurements of source database matching the selection into compressed archive blocks of target database,
+     * one or more per day. Has to be called in transaction before the measurements are deleted.
+     *
+     * @return number of archived measurements
+     */
+    private int archiveMeasurements(SQLiteDatabase source, SQLiteDatabase db, String selection, String[] selectionArgs) throws IOException {
+        int archived = 0;
+        ArchiveBlockWriter writer = null;
+        long writerDay = -1;
+        Cursor cursor = source.rawQuery(buildMeasurementsQuery(selection, OLDEST_FIRST_ORDER, null), selectionArgs);
+        try {
+            MeasurementRowReader reader = new MeasurementRowReader(cursor);
+            Measurement row = new Measurement();
+            while (cursor.moveToNext()) {
+                reader.read(cursor, row);
+                long day = row.getTimestamp() / DAY_MILLIS;
+                if (writer != null && (day != writerDay || writer.getCount() == ARCHIVE_BLOCK_MAX_MEASUREMENTS)) {
+                    archived += insertArchiveBlock(db, writerDay, writer);
+                    writer = null;
+                }
+                if (writer == null) {
+                    writer = new ArchiveBlockWriter();
+                    writerDay = day;
+                }
+                writer.write(row);
+            }
+            if (writer != null) {
+                archived += insertArchiveBlock(db, writerDay, writer);
+                writer = null;
+            }
+        } finally {
+            cursor.close();
+            if (writer != null) {
+                writer.close();
+            }
+        }
+        Timber.d("archiveMeasurements(): Archived %s measurements", archived);
+        return archived;
+    }
+
+    private int insertArchiveBlock(SQLiteDatabase db, long day, ArchiveBlockWriter writer) throws IOException {
+        ContentValues values = new ContentValues();
+        values.put(MeasurementsArchiveTable.COLUMN_DAY, day);
+        values.put(MeasurementsArchiveTable.COLUMN_FIRST_MEASURED_AT, writer.getFirstTimestamp());
+        values.put(MeasurementsArchiveTable.COLUMN_LAST_MEASURED_AT, writer.getLastTimestamp());
+        values.put(MeasurementsArchiveTable.COLUMN_MEASUREMENTS_COUNT, writer.getCount());
+        values.put(MeasurementsArchiveTable.COLUMN_DATA, writer.finish());
+        if (db.insert(MeasurementsArchiveTable.TABLE_NAME, null, values) == -1) {
+            throw new IOException("Cannot insert archive block");
+        }
+        return writer.getCount();
+    }
+
+    public int getArchivedMeasurementsCount() {
+        SQLiteDatabase db = getReaderDatabase();
+        Cursor cursor = db.rawQuery("SELECT IFNULL(SUM(" + MeasurementsArchiveTable.COLUMN_MEASUREMENTS_COUNT + "), 0) FROM " + MeasurementsArchiveTable.TABLE_NAME, null);
+        try {
+            return (cursor.moveToNext() ? cursor.getInt(0) : 0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Streams archived measurements to the visitor, oldest first. Only one block is kept in memory at a time.
+     * Every row is read into the same measurement instance which must not be kept by the visitor.
+     *
+     * @return number of visited measurements
+     */
+    public int forEachArchivedMeasurement(IMeasurementVisitor visitor) throws IOException {
+        Timber.d("forEachArchivedMeasurement(): Visiting archived measurements");
+        Measurement row = new Measurement();
+        long afterRowId = -1;
+        int visited = 0;
+        while (true) {
+            byte[] block;
+            int count;
+            Cursor cursor = getReaderDatabase().rawQuery(QUERY_NEXT_ARCHIVE_BLOCK, new String[]{String.valueOf(afterRowId)});
+            try {
+                if (!cursor.moveToNext()) {
+                    return visited;
+                }
+                afterRowId = cursor.getLong(0);
+                count = cursor.getInt(1);
+                block = cursor.getBlob(2);
+            } finally {
+                cursor.close();
+            }
+            ArchiveBlockReader reader = new ArchiveBlockReader(block, count);
+            try {
+                while (reader.read(row)) {
+                    visited++;
+                    if (!visitor.visit(row)) {
+                        return visited;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
         }
+    }
+
+    private int deleteMeasurements(SQLiteDatabase db, String selection, String[] selectionArgs, StatisticsCounters.Deletion deletion) {
+        // triggers remove cells together with their last measurement, count them first
+        statisticsCounters.countOrphanedCells(db, selection, selectionArgs, deletion);
+        DailyRollup.release(db, selection, selectionArgs);
+        int deleted = db.delete(MeasurementsTable.TABLE_NAME, selection, selectionArgs);
+        deletion.addMeasurements(deleted);
         return deleted;
     }
 
-    private void invalidateCache() {
-        lastMeasurementCache = null;
-        lastCellsCountCache = null;
-        lastStatisticsCache = null;
+    private void applyDeletion(SQLiteDatabase db, StatisticsCounters.Deletion deletion) {
+        Timber.d("applyDeletion(): Deleted orphaned %s cells", deletion.getCells());
+        if (deletion.getCells() > 0) {
+            // cleared while transaction is open so no insert can reuse archived cells
+            cellRowIdCache.clear();
+        }
+        // removed rows cannot be merged into
+        clearCoalescer();
+        resetCountedCells();
+        statisticsCounters.applyDeletion(db, deletion);
+    }
+
+    /**
+     * Verifies number of measurements referencing each cell and location.
+     *
+     * @param repair rebuild counts and remove orphaned rows when any is invalid
+     * @return number of cells and locations with invalid count
+     */
+    public int checkReferenceCounts(boolean repair) {
+        flushPendingMeasurements();
+        SQLiteDatabase db = getWriterDatabase();
+        db.beginTransaction();
+        try {
+            int invalid = ReferenceCounts.countInvalid(db);
+            Timber.d("checkReferenceCounts(): Found %s invalid reference counts", invalid);
+            if (invalid > 0 && repair) {
+                ReferenceCounts.rebuild(db);
+                cellRowIdCache.clear();
+                clearCoalescer();
+                resetCountedCells();
+                statisticsCounters.rebuild(db);
+            }
+            db.setTransactionSuccessful();
+            return invalid;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private void clearCoalescer() {
+        if (coalescer != null) {
+            coalescer.clear();
+        }
+    }
+
+    public long getCellCacheHitCount() {
+        return cellRowIdCache.getHitCount();
+    }
+
+    public long getCellCacheMissCount() {
+        return cellRowIdCache.getMissCount();
+    }
+
+    // ========== CONNECTIONS ========== //
+
+    /**
+     * Returns separate read only connection. In WAL mode it reads last committed state without waiting for writer.
+     */
+    private synchronized SQLiteDatabase getReaderDatabase() {
+        checkNotMainThread();
+        if (readerDatabase == null || !readerDatabase.isOpen()) {
+            // writer creates, upgrades and switches database to WAL before first read
+            helper.getWritableDatabase();
+            readerDatabase = SQLiteDatabase.openDatabase(databaseFile.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+        }
+        return readerDatabase;
+    }
+
+    SQLiteDatabase getWriterDatabase() {
+        checkNotMainThread();
+        return helper.getWritableDatabase();
+    }
+
+    MeasurementsSegments getSegments() {
+        return segments;
+    }
+
+    /**
+     * Fails fast in debug builds when database is accessed from main thread, use {@link AsyncMeasurementsDatabase} there.
+     */
+    private static void checkNotMainThread() {
+        if (BuildConfig.DEBUG && Looper.myLooper() == Looper.getMainLooper()) {
+            throw new IllegalStateException("Database accessed on main thread");
+        }
+    }
+
+    /**
+     * Copies whole write-ahead log to database file, e.g. before the file is copied.
+     *
+     * @return true if database file contains all committed changes
+     */
+    public boolean checkpoint() {
+        Timber.d("checkpoint(): Checkpointing database");
+        flushPendingMeasurements();
+        return checkpointer.checkpoint(WalCheckpointer.MODE_FULL);
+    }
+
+    /**
+     * Writes consistent and compacted copy of database to given file while collector keeps writing.
+     * Every sealed segment is written next to it with the same name prefix as the file.
+     * Buffered measurements are flushed first, so they are included.
+     *
+     * @return written files, active database first, or null if any snapshot failed
+     */
+    public List<File> exportSnapshot(File dstFile, final IProgressListener listener) {
+        Timber.d("exportSnapshot(): Exporting snapshot to %s", dstFile);
+        flushPendingMeasurements();
+        // creates or upgrades database before it is read
+        getWriterDatabase();
+        List<File> srcFiles = new ArrayList<>();
+        srcFiles.add(databaseFile);
+        for (MeasurementsSegments.Segment segment : segments.list()) {
+            // upgrades segment before it is read
+            segments.getDatabase(segment);
+            srcFiles.add(segments.getFile(segment));
+        }
+        String prefix = dstFile.getName().substring(0, dstFile.getName().length() - DATABASE_FILE_NAME.length());
+        List<File> dstFiles = new ArrayList<>();
+        for (int i = 0; i < srcFiles.size(); i++) {
+            File srcFile = srcFiles.get(i);
+            File segmentDstFile = (i == 0 ? dstFile : new File(dstFile.getParentFile(), prefix + srcFile.getName()));
+            final int fileIndex = i;
+            final int filesCount = srcFiles.size();
+            IProgressListener fileListener = (listener == null ? null : new IProgressListener() {
+                @Override
+                public void reportProgress(int value, int max) {
+                    listener.reportProgress((fileIndex * max + value) / filesCount, max);
+                }
+            });
+            try {
+                if (!new DatabaseSnapshot(srcFile).export(segmentDstFile, fileListener)) {
+                    return null;
+                }
+            } catch (SQLiteException ex) {
+                Timber.e(ex, "exportSnapshot(): Failed to export snapshot of %s", srcFile);
+                return null;
+            }
+            dstFiles.add(segmentDstFile);
+        }
+        return dstFiles;
+    }
+
+    /**
+     * Deletes sealed segments of database. Instance has to be invalidated before the call.
+     */
+    public static void deleteSegments(Context context) {
+        new MeasurementsSegments(context.getDatabasePath(DATABASE_FILE_NAME)).dropAll();
+    }
+
+    /**
+     * @return true if file name is name of sealed segment
+     */
+    public static boolean isSegmentFile(File file) {
+        return MeasurementsSegments.isSegmentFile(file);
+    }
+
+    /**
+     * Schedules maintenance (checkpoint, planner statistics, releasing free pages) on writer thread.
+     * It runs in short slices, at most once a day and only while given condition holds.
+     */
+    public void requestMaintenance(IMaintenanceCondition condition) {
+        maintenance.request(condition, null);
+    }
+
+    /**
+     * @param listener notified on any thread when maintenance finishes, is interrupted or skipped
+     */
+    public void requestMaintenance(IMaintenanceCondition condition, IMaintenanceListener listener) {
+        maintenance.request(condition, listener);
+    }
+
+    private void close() {
+        Timber.d("close(): Closing database");
+        flushPendingMeasurements();
+        cancelFlush();
+        maintenance.stop();
+        checkpointer.close();
+        synchronized (this) {
+            if (inserter != null) {
+                inserter.close();
+                inserter = null;
+            }
+            if (readerDatabase != null) {
+                readerDatabase.close();
+                readerDatabase = null;
+            }
+        }
+        knownCellsIndex.close();
+        segments.close();
+        helper.close();
+    }
+
+    private static String toSynchronousMode(String value) {
+        for (String mode : SYNCHRONOUS_MODES) {
+            if (mode.equalsIgnoreCase(value)) {
+                return mode;
+            }
+        }
+        Timber.w("toSynchronousMode(): Unsupported synchronous mode %s, using %s", value, DEFAULT_SYNCHRONOUS_MODE);
+        return DEFAULT_SYNCHRONOUS_MODE;
     }
 
     // ========== GET DATABASE VERSION ========== //
@@ -560,11 +1592,85 @@ public class MeasurementsDatabase {
         return version;
     }
 
+    // ========== UPGRADE DATABASE ========== //
+
+    /**
+     * Upgrades database file before it is opened by helper, committing each upgrade step separately,
+     * so interrupted upgrade continues from last step. Instance has to be invalidated before the call.
+     */
+    public static void upgradeDatabase(Context context, IMigrationProgressListener listener) {
+        File path = context.getDatabasePath(DATABASE_FILE_NAME);
+        if (!path.exists()) {
+            return;
+        }
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(path.toString(), null, SQLiteDatabase.OPEN_READWRITE);
+        try {
+            int version = db.getVersion();
+            if (version > 0 && version < DATABASE_FILE_VERSION) {
+                Timber.d("upgradeDatabase(): Upgrading database from version %s to %s", version, DATABASE_FILE_VERSION);
+                DbMigrationHelper migrationHelper = new DbMigrationHelper(db);
+                migrationHelper.upgrade(version, DATABASE_FILE_VERSION, listener);
+                enableIncrementalVacuum(db);
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Switches existing database to incremental auto vacuum, so maintenance can release free pages in small steps.
+     * Mode of database with tables changes only by full vacuum, which rewrites whole file.
+     */
+    private static void enableIncrementalVacuum(SQLiteDatabase db) {
+        if (queryForLong(db, "PRAGMA auto_vacuum") != AUTO_VACUUM_INCREMENTAL) {
+            long startTime = System.currentTimeMillis();
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            db.execSQL("VACUUM");
+            Timber.d("enableIncrementalVacuum(): Database vacuumed in %s ms", System.currentTimeMillis() - startTime);
+        }
+    }
+
+    /**
+     * Creates empty database file with incremental auto vacuum. Mode has to be set before first table is created.
+     */
+    static void createDatabaseFile(File file) {
+        file.getParentFile().mkdirs();
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(file.getPath(), null, SQLiteDatabase.CREATE_IF_NECESSARY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+        try {
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            // writes the mode to header of empty file
+            db.execSQL("VACUUM");
+        } finally {
+            db.close();
+        }
+    }
+
+    static void createTables(SQLiteDatabase db) {
+        List<ITable> tables = new ArrayList<ITable>();
+        tables.add(new NetworksTable());
+        tables.add(new CellsArchiveTable());
+        tables.add(new StatsTable());
+        tables.add(new LocationsTable());
+        tables.add(new CellsTable());
+        tables.add(new DailyStatsTable());
+        tables.add(new DailyCellsTable());
+        tables.add(new MeasurementsTable());
+        tables.add(new MeasurementsArchiveTable());
+        tables.add(new SegmentDeletionsTable());
+
+        for (ITable table : tables) {
+            String[] queries = table.getCreateQueries();
+            for (String query : queries) {
+                db.execSQL(query);
+            }
+        }
+    }
+
     // ========== FORCE DATABASE UPGRADE ========== //
 
     public void forceDatabaseUpgrade() {
         Timber.d("forceDatabaseUpgrade(): Forcing database upgrade");
-        SQLiteDatabase db = helper.getWritableDatabase();
+        SQLiteDatabase db = getWriterDatabase();
         try {
             // read something to prevent from being removed while optimization (I hope)
             Cursor cursor = db.rawQuery("SELECT 1", null);
@@ -590,6 +1696,10 @@ public class MeasurementsDatabase {
 
     public static void invalidateInstance(Context context) {
         synchronized (MeasurementsDatabase.class) {
+            if (instance != null) {
+                // database files may be replaced or deleted right after this call
+                instance.close();
+            }
             instance = null;
         }
     }
@@ -599,26 +1709,47 @@ public class MeasurementsDatabase {
     private static class MeasurementsOpenHelper extends SQLiteOpenHelper {
         private static final String INNER_TAG = MeasurementsDatabase.class.getSimpleName() + "." + MeasurementsOpenHelper.class.getSimpleName();
 
-        MeasurementsOpenHelper(Context context) {
+        private final String synchronousMode;
+        private final MeasurementsSegments segments;
+        private final boolean sealingEnabled;
+        private final File databaseFile;
+        private boolean fileChecked;
+
+        /**
+         * @param sealingEnabled whether active database is sealed into segments, interrupted sealing is finished regardless
+         */
+        MeasurementsOpenHelper(Context context, String synchronousMode, MeasurementsSegments segments, boolean sealingEnabled, File databaseFile) {
             super(context, DATABASE_FILE_NAME, null, DATABASE_FILE_VERSION);
+            this.synchronousMode = synchronousMode;
+            this.segments = segments;
+            this.sealingEnabled = sealingEnabled;
+            this.databaseFile = databaseFile;
+        }
+
+        @Override
+        public synchronized SQLiteDatabase getWritableDatabase() {
+            if (fileChecked) {
+                return super.getWritableDatabase();
+            }
+            // checked once per instance, before the file is opened for the first time
+            fileChecked = true;
+            segments.recover(databaseFile);
+            if (sealingEnabled) {
+                segments.seal(databaseFile);
+            }
+            if (!databaseFile.exists()) {
+                createDatabaseFile(databaseFile);
+            }
+            SQLiteDatabase sqliteDatabase = super.getWritableDatabase();
+            // deletion interrupted in previous run, segments must not be read before it is finished
+            completeSegmentDeletions(sqliteDatabase, segments);
+            return sqliteDatabase;
         }
 
         @Override
         public void onCreate(SQLiteDatabase sqliteDatabase) {
             Timber.tag(INNER_TAG).d("onCreate(): Creating db structure");
-            List<ITable> tables = new ArrayList<ITable>();
-            tables.add(new CellsArchiveTable());
-            tables.add(new StatsTable());
-            tables.add(new LocationsTable());
-            tables.add(new CellsTable());
-            tables.add(new MeasurementsTable());
-
-            for (ITable table : tables) {
-                String[] queries = table.getCreateQueries();
-                for (String query : queries) {
-                    sqliteDatabase.execSQL(query);
-                }
-            }
+            createTables(sqliteDatabase);
         }
 
         @Override
@@ -627,5 +1758,30 @@ public class MeasurementsDatabase {
             DbMigrationHelper migrationHelper = new DbMigrationHelper(sqliteDatabase);
             migrationHelper.upgrade(oldVersion, newVersion);
         }
+
+        @Override
+        public void onOpen(SQLiteDatabase sqliteDatabase) {
+            if (sqliteDatabase.isReadOnly()) {
+                return;
+            }
+            // WAL is enabled with pragma instead of enableWriteAheadLogging() to keep this connection the only one,
+            // otherwise pragmas below could be executed on pooled read connection instead of the writing one
+            String journalMode = queryPragma(sqliteDatabase, "PRAGMA journal_mode = WAL");
+            sqliteDatabase.execSQL("PRAGMA synchronous = " + synchronousMode);
+            queryPragma(sqliteDatabase, "PRAGMA wal_autocheckpoint = " + WAL_AUTO_CHECKPOINT_PAGES);
+            queryPragma(sqliteDatabase, "PRAGMA journal_size_limit = " + WAL_SIZE_LIMIT);
+            Timber.tag(INNER_TAG).d("onOpen(): Journal mode %s, synchronous %s", journalMode, synchronousMode);
+            // indexes could be left dropped by interrupted import
+            MeasurementsImporter.restoreIndexes(sqliteDatabase);
+        }
+
+        private String queryPragma(SQLiteDatabase sqliteDatabase, String pragma) {
+            Cursor cursor = sqliteDatabase.rawQuery(pragma, null);
+            try {
+                return cursor.moveToFirst() ? cursor.getString(0) : null;
+            } finally {
+                cursor.close();
+            }
+        }
     }
 }
@@ -0,0 +1,250 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import info.zamojski.soft.towercollector.files.generators.wrappers.interfaces.IProgressListener;
+import info.zamojski.soft.towercollector.files.readers.IMeasurementReader;
+import info.zamojski.soft.towercollector.model.Measurement;
+import info.zamojski.soft.towercollector.utils.CellKeyUtils;
+import info.zamojski.soft.towercollector.utils.HashUtils;
+import timber.log.Timber;
+
+/**
+ * Loads measurements read from exported file in batches, each inserted in one transaction and write task.
+ * Rows already present in database or its sealed segments (same time, cell and location) or earlier in the file are skipped,
+ * so interrupted import can be simply repeated.
+ */
+final class MeasurementsImporter {
+
+    private static final int BATCH_SIZE = 5000;
+    private static final String CREATE_INDEX = "CREATE INDEX ";
+    // used to find duplicates so it is never deferred
+    private static final String DUPLICATE_LOOKUP_INDEX = "IX_" + MeasurementsTable.TABLE_NAME + "_" + MeasurementsTable.COLUMN_MEASURED_AT + "_" + MeasurementsTable.COLUMN_ROW_ID;
+
+    static final String QUERY_FIND_DUPLICATE = "SELECT EXISTS (SELECT 1 FROM " + MeasurementsTable.TABLE_NAME + " m"
+            + " JOIN " + CellsTable.TABLE_NAME + " c ON c." + CellsTable.COLUMN_ROW_ID + " = m." + MeasurementsTable.COLUMN_CELL_ID
+            + " JOIN " + LocationsTable.TABLE_NAME + " l ON l." + LocationsTable.COLUMN_ROW_ID + " = m." + MeasurementsTable.COLUMN_LOCATION_ID
+            + " WHERE m." + MeasurementsTable.COLUMN_MEASURED_AT + " = ? AND c." + CellsTable.COLUMN_MCC + " = ? AND c." + CellsTable.COLUMN_MNC + " = ?"
+            + " AND c." + CellsTable.COLUMN_LAC + " = ? AND c." + CellsTable.COLUMN_CID + " = ? AND c." + CellsTable.COLUMN_NET_TYPE + " = ?"
+            + " AND l." + LocationsTable.COLUMN_FINGERPRINT + " = ?)";
+
+    private final AsyncMeasurementsDatabase database;
+    private final Context context;
+
+    MeasurementsImporter(AsyncMeasurementsDatabase database, Context context) {
+        this.database = database;
+        this.context = context;
+    }
+
+    /**
+     * Reads the file on calling thread and inserts each batch in separate write task, so writes submitted meanwhile
+     * (e.g. by running collector) wait for one batch at most.
+     *
+     * @param deferIndexes drop secondary indexes before loading and build each of them once at the end
+     */
+    ImportResult run(IMeasurementReader reader, final boolean deferIndexes, IProgressListener listener) throws IOException {
+        long start = System.currentTimeMillis();
+        write(new Callable<Void>() {
+            @Override
+            public Void call() {
+                MeasurementsDatabase db = MeasurementsDatabase.getInstance(context);
+                // buffered scans are searched for duplicates like other rows
+                db.flushPendingMeasurements();
+                if (deferIndexes) {
+                    dropIndexes(db.getWriterDatabase());
+                }
+                return null;
+            }
+        });
+        int imported = 0;
+        int duplicates = 0;
+        int rejected = 0;
+        try {
+            List<Measurement> batch = new ArrayList<>(BATCH_SIZE);
+            boolean read = true;
+            while (read) {
+                Measurement m = new Measurement();
+                read = reader.read(m);
+                if (read) {
+                    if (isValid(m)) {
+                        batch.add(m);
+                    } else {
+                        rejected++;
+                    }
+                }
+                if (batch.size() == BATCH_SIZE || (!read && !batch.isEmpty())) {
+                    final List<Measurement> batchToImport = batch;
+                    ImportResult batchResult = write(new Callable<ImportResult>() {
+                        @Override
+                        public ImportResult call() {
+                            return importBatch(MeasurementsDatabase.getInstance(context), batchToImport);
+                        }
+                    });
+                    imported += batchResult.getImported();
+                    duplicates += batchResult.getDuplicates();
+                    rejected += batchResult.getRejected();
+                    batch = new ArrayList<>(BATCH_SIZE);
+                    if (listener != null) {
+                        listener.reportProgress(reader.getProgress(), 100);
+                    }
+                }
+            }
+        } finally {
+            if (deferIndexes) {
+                write(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        restoreIndexes(MeasurementsDatabase.getInstance(context).getWriterDatabase());
+                        return null;
+                    }
+                });
+            }
+        }
+        ImportResult result = new ImportResult(imported, duplicates, rejected);
+        Timber.d("run(): %s in %s ms", result, System.currentTimeMillis() - start);
+        return result;
+    }
+
+    private <T> T write(Callable<T> task) throws IOException {
+        try {
+            return database.submitWrite(task, null).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Import interrupted", ex);
+        } catch (ExecutionException ex) {
+            throw new IOException("Failed to import measurements", ex.getCause());
+        }
+    }
+
+    /**
+     * Skips duplicates of the batch and inserts the rest in one transaction. Runs on writer thread.
+     */
+    private static ImportResult importBatch(MeasurementsDatabase database, List<Measurement> batch) {
+        SQLiteDatabase db = database.getWriterDatabase();
+        SQLiteStatement findDuplicateStatement = db.compileStatement(QUERY_FIND_DUPLICATE);
+        // rows of sealed months are looked up only in segments covering their time
+        MeasurementsSegments segments = database.getSegments();
+        List<MeasurementsSegments.Summary> segmentSummaries = new ArrayList<>();
+        List<SQLiteStatement> segmentStatements = new ArrayList<>();
+        List<Measurement> measurements = new ArrayList<>(batch.size());
+        int duplicates = 0;
+        try {
+            for (MeasurementsSegments.Segment segment : segments.list()) {
+                segmentSummaries.add(segments.getSummary(segment));
+                segmentStatements.add(segments.getDatabase(segment).compileStatement(QUERY_FIND_DUPLICATE));
+            }
+            // previous batches are already committed and found in database
+            Set<String> batchKeys = new HashSet<>();
+            for (Measurement m : batch) {
+                long locationFingerprint = HashUtils.toLocationFingerprint(m);
+                if (!batchKeys.add(toKey(m, locationFingerprint)) || isDuplicate(findDuplicateStatement, m, locationFingerprint)
+                        || isSealedDuplicate(segmentSummaries, segmentStatements, m, locationFingerprint)) {
+                    duplicates++;
+                } else {
+                    measurements.add(m);
+                }
+            }
+        } finally {
+            findDuplicateStatement.close();
+            for (SQLiteStatement statement : segmentStatements) {
+                statement.close();
+            }
+        }
+        int inserted = insertBatch(database, measurements);
+        return new ImportResult(inserted, duplicates, measurements.size() - inserted);
+    }
+
+    private static int insertBatch(MeasurementsDatabase database, List<Measurement> batch) {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        Measurement[] measurements = batch.toArray(new Measurement[batch.size()]);
+        // imported rows are stored as they are, otherwise repeated import couldn't find them
+        if (database.insertMeasurements(measurements, false)) {
+            return measurements.length;
+        }
+        // find rows which cannot be stored instead of losing whole batch
+        Timber.d("insertBatch(): Batch not inserted, inserting measurements separately");
+        int inserted = 0;
+        for (Measurement m : measurements) {
+            if (database.insertMeasurements(new Measurement[]{m}, false)) {
+                inserted++;
+            }
+        }
+        return inserted;
+    }
+
+    private static boolean isValid(Measurement m) {
+        // network id is checked by inserter
+        return (m.getTimestamp() > 0 && Math.abs(m.getLatitude()) <= 90 && Math.abs(m.getLongitude()) <= 180
+                && CellKeyUtils.canEncode(0, m.getNetworkType().ordinal(), m.getLac(), m.getCid()));
+    }
+
+    private static boolean isDuplicate(SQLiteStatement statement, Measurement m, long locationFingerprint) {
+        statement.bindLong(1, m.getTimestamp());
+        statement.bindLong(2, m.getMcc());
+        statement.bindLong(3, m.getMnc());
+        statement.bindLong(4, m.getLac());
+        statement.bindLong(5, m.getCid());
+        statement.bindLong(6, m.getNetworkType().ordinal());
+        statement.bindLong(7, locationFingerprint);
+        return statement.simpleQueryForLong() != 0;
+    }
+
+    private static boolean isSealedDuplicate(List<MeasurementsSegments.Summary> summaries, List<SQLiteStatement> statements, Measurement m, long locationFingerprint) {
+        for (int i = 0; i < summaries.size(); i++) {
+            if (summaries.get(i).covers(m.getTimestamp()) && isDuplicate(statements.get(i), m, locationFingerprint)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String toKey(Measurement m, long locationFingerprint) {
+        return m.getTimestamp() + ":" + m.getMcc() + ":" + m.getMnc() + ":" + m.getLac() + ":" + m.getCid() + ":" + m.getNetworkType().ordinal() + ":" + locationFingerprint;
+    }
+
+    private static void dropIndexes(SQLiteDatabase db) {
+        for (String query : getDeferredIndexQueries()) {
+            // name is quoted right after the keyword
+            String name = query.substring(CREATE_INDEX.length(), query.indexOf('\'', CREATE_INDEX.length() + 1) + 1);
+            db.execSQL("DROP INDEX IF EXISTS " + name);
+        }
+        Timber.d("dropIndexes(): Secondary indexes dropped");
+    }
+
+    /**
+     * Creates secondary indexes which are missing, e.g. after import has been interrupted.
+     */
+    static void restoreIndexes(SQLiteDatabase db) {
+        for (String query : getDeferredIndexQueries()) {
+            db.execSQL(CREATE_INDEX + "IF NOT EXISTS " + query.substring(CREATE_INDEX.length()));
+        }
+    }
+
+    private static List<String> getDeferredIndexQueries() {
+        List<String> queries = new ArrayList<>();
+        for (ITable table : new ITable[]{new MeasurementsTable(), new LocationsTable(), new CellsTable()}) {
+            for (String query : table.getCreateQueries()) {
+                if (query.startsWith(CREATE_INDEX) && !query.contains(DUPLICATE_LOOKUP_INDEX + "'")) {
+                    queries.add(query);
+                }
+            }
+        }
+        return queries;
+    }
+}
@@ -0,0 +1,444 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import info.zamojski.soft.towercollector.model.CellReading;
+import info.zamojski.soft.towercollector.model.LocationFix;
+import info.zamojski.soft.towercollector.model.Measurement;
+import info.zamojski.soft.towercollector.utils.CellKeyUtils;
+import info.zamojski.soft.towercollector.utils.HashUtils;
+import info.zamojski.soft.towercollector.utils.QuadKeyUtils;
+import timber.log.Timber;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Insert engine for measurements. All statements are compiled once per database connection
+ * and reused for every row, values are bound directly from {@link LocationFix} and {@link CellReading}.
+ */
+final class MeasurementsInserter {
+
+    static final int CELL_INSERTED = 1;
+    static final int CELL_FOUND = 1 << 1;
+    static final int LOCATION_INSERTED = 1 << 2;
+    static final int LOCATION_FOUND = 1 << 3;
+    static final int MEASUREMENT_INSERTED = 1 << 4;
+    static final int MEASUREMENT_MERGED = 1 << 5;
+
+    private static final String QUERY_INSERT_NETWORK = "INSERT INTO " + NetworksTable.TABLE_NAME + " ("
+            + NetworksTable.COLUMN_MCC + ", " + NetworksTable.COLUMN_MNC + ") VALUES (?, ?)";
+
+    private static final String QUERY_FIND_NETWORK = "SELECT " + NetworksTable.COLUMN_ROW_ID + " FROM " + NetworksTable.TABLE_NAME
+            + " WHERE " + NetworksTable.COLUMN_MCC + " = ? AND " + NetworksTable.COLUMN_MNC + " = ?";
+
+    private static final String QUERY_INSERT_CELL = "INSERT INTO " + CellsTable.TABLE_NAME + " ("
+            + CellsTable.COLUMN_MCC + ", " + CellsTable.COLUMN_MNC + ", " + CellsTable.COLUMN_LAC + ", "
+            + CellsTable.COLUMN_CID + ", " + CellsTable.COLUMN_NET_TYPE + ", " + CellsTable.COLUMN_CELL_KEY + ", " + CellsTable.COLUMN_DISCOVERED_AT
+            + ") VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String QUERY_FIND_CELL = "SELECT " + CellsTable.COLUMN_ROW_ID + " FROM " + CellsTable.TABLE_NAME
+            + " WHERE " + CellsTable.COLUMN_CELL_KEY + " = ?";
+
+    private static final String FALLBACK_CELL_IDENTITY = " < 0 AND " + CellsTable.COLUMN_MCC + " = ? AND " + CellsTable.COLUMN_MNC + " = ? AND "
+            + CellsTable.COLUMN_LAC + " = ? AND " + CellsTable.COLUMN_CID + " = ? AND " + CellsTable.COLUMN_NET_TYPE + " = ?";
+
+    // cells which cannot be encoded have negative keys (same as after migration to version 20), they are looked up by identity
+    private static final String QUERY_FIND_FALLBACK_CELL_KEY = "SELECT " + CellsTable.COLUMN_CELL_KEY + " FROM " + CellsTable.TABLE_NAME + " WHERE "
+            + CellsTable.COLUMN_CELL_KEY + FALLBACK_CELL_IDENTITY + " UNION ALL SELECT " + CellsArchiveTable.COLUMN_CELL_KEY + " FROM " + CellsArchiveTable.TABLE_NAME
+            + " WHERE " + CellsArchiveTable.COLUMN_CELL_KEY + FALLBACK_CELL_IDENTITY + " LIMIT 1";
+
+    // keys are never reused, so archived cells keep their identity
+    private static final String QUERY_NEXT_FALLBACK_CELL_KEY = "SELECT MIN(0, IFNULL((SELECT MIN(" + CellsTable.COLUMN_CELL_KEY + ") FROM " + CellsTable.TABLE_NAME
+            + "), 0), IFNULL((SELECT MIN(" + CellsArchiveTable.COLUMN_CELL_KEY + ") FROM " + CellsArchiveTable.TABLE_NAME + "), 0)) - 1";
+
+    private static final String QUERY_INSERT_LOCATION = "INSERT INTO " + LocationsTable.TABLE_NAME + " ("
+            + LocationsTable.COLUMN_FINGERPRINT + ", " + LocationsTable.COLUMN_LATITUDE + ", " + LocationsTable.COLUMN_LONGITUDE + ", "
+            + LocationsTable.COLUMN_GPS_ACCURACY + ", " + LocationsTable.COLUMN_GPS_SPEED + ", " + LocationsTable.COLUMN_GPS_BEARING + ", "
+            + LocationsTable.COLUMN_GPS_ALTITUDE + ", " + LocationsTable.COLUMN_QUADKEY + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String QUERY_FIND_LOCATION = "SELECT " + LocationsTable.COLUMN_ROW_ID + " FROM " + LocationsTable.TABLE_NAME
+            + " WHERE " + LocationsTable.COLUMN_FINGERPRINT + " = ?";
+
+    private static final String QUERY_INSERT_MEASUREMENT = "INSERT INTO " + MeasurementsTable.TABLE_NAME + " ("
+            + MeasurementsTable.COLUMN_CELL_ID + ", " + MeasurementsTable.COLUMN_LOCATION_ID + ", " + MeasurementsTable.COLUMN_PSC + ", "
+            + MeasurementsTable.COLUMN_NEIGHBORING + ", " + MeasurementsTable.COLUMN_TA + ", " + MeasurementsTable.COLUMN_ASU + ", "
+            + MeasurementsTable.COLUMN_DBM + ", " + MeasurementsTable.COLUMN_SAMPLES + ", " + MeasurementsTable.COLUMN_DBM_MIN + ", " + MeasurementsTable.COLUMN_DBM_MAX + ", "
+            + MeasurementsTable.COLUMN_MEASURED_AT + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    // row ids continue after sealed segments, so they stay unique and increasing across all of them
+    private static final String QUERY_INSERT_MEASUREMENT_ABOVE_FLOOR = "INSERT INTO " + MeasurementsTable.TABLE_NAME + " ("
+            + MeasurementsTable.COLUMN_CELL_ID + ", " + MeasurementsTable.COLUMN_LOCATION_ID + ", " + MeasurementsTable.COLUMN_PSC + ", "
+            + MeasurementsTable.COLUMN_NEIGHBORING + ", " + MeasurementsTable.COLUMN_TA + ", " + MeasurementsTable.COLUMN_ASU + ", "
+            + MeasurementsTable.COLUMN_DBM + ", " + MeasurementsTable.COLUMN_SAMPLES + ", " + MeasurementsTable.COLUMN_DBM_MIN + ", " + MeasurementsTable.COLUMN_DBM_MAX + ", "
+            + MeasurementsTable.COLUMN_MEASURED_AT + ", " + MeasurementsTable.COLUMN_ROW_ID + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, MAX(?, IFNULL((SELECT MAX("
+            + MeasurementsTable.COLUMN_ROW_ID + ") FROM " + MeasurementsTable.TABLE_NAME + "), 0) + 1))";
+
+    // identified also by cell and time in case the row has been removed and its id reused
+    private static final String QUERY_MERGE_MEASUREMENT = "UPDATE " + MeasurementsTable.TABLE_NAME + " SET "
+            + MeasurementsTable.COLUMN_ASU + " = ?, " + MeasurementsTable.COLUMN_DBM + " = ?, " + MeasurementsTable.COLUMN_DBM_MIN + " = ?, "
+            + MeasurementsTable.COLUMN_DBM_MAX + " = ?, " + MeasurementsTable.COLUMN_SAMPLES + " = ? WHERE " + MeasurementsTable.COLUMN_ROW_ID + " = ? AND "
+            + MeasurementsTable.COLUMN_CELL_ID + " = ? AND " + MeasurementsTable.COLUMN_MEASURED_AT + " = ?";
+
+    private final SQLiteDatabase db;
+    private final CellRowIdCache cellRowIdCache;
+    private final KnownCellsIndex knownCellsIndex;
+    private final StatisticsCounters statisticsCounters;
+    private final MeasurementsCoalescer coalescer;
+    private final StatisticsCounters.Delta statisticsDelta = new StatisticsCounters.Delta();
+    private final DailyRollup dailyRollup;
+    // network ids never change once committed
+    private final Map<Long, Integer> networkIds = new HashMap<>();
+
+    private final SQLiteStatement insertNetworkStatement;
+    private final SQLiteStatement findNetworkStatement;
+    private final SQLiteStatement insertCellStatement;
+    private final SQLiteStatement findCellStatement;
+    private final SQLiteStatement findFallbackCellKeyStatement;
+    private final SQLiteStatement nextFallbackCellKeyStatement;
+    private final SQLiteStatement insertLocationStatement;
+    private final SQLiteStatement findLocationStatement;
+    private final SQLiteStatement insertMeasurementStatement;
+    private final SQLiteStatement mergeMeasurementStatement;
+    private final long rowIdFloor;
+    private long lastLocationId;
+
+    /**
+     * @param coalescer merges readings of not moving device, null if disabled
+     */
+    MeasurementsInserter(SQLiteDatabase db, CellRowIdCache cellRowIdCache, KnownCellsIndex knownCellsIndex, StatisticsCounters statisticsCounters,
+                         MeasurementsCoalescer coalescer, long rowIdFloor) {
+        this.db = db;
+        this.cellRowIdCache = cellRowIdCache;
+        this.knownCellsIndex = knownCellsIndex;
+        this.statisticsCounters = statisticsCounters;
+        this.coalescer = coalescer;
+        this.insertNetworkStatement = db.compileStatement(QUERY_INSERT_NETWORK);
+        this.findNetworkStatement = db.compileStatement(QUERY_FIND_NETWORK);
+        this.insertCellStatement = db.compileStatement(QUERY_INSERT_CELL);
+        this.findCellStatement = db.compileStatement(QUERY_FIND_CELL);
+        this.findFallbackCellKeyStatement = db.compileStatement(QUERY_FIND_FALLBACK_CELL_KEY);
+        this.nextFallbackCellKeyStatement = db.compileStatement(QUERY_NEXT_FALLBACK_CELL_KEY);
+        this.insertLocationStatement = db.compileStatement(QUERY_INSERT_LOCATION);
+        this.findLocationStatement = db.compileStatement(QUERY_FIND_LOCATION);
+        this.insertMeasurementStatement = db.compileStatement(rowIdFloor > 0 ? QUERY_INSERT_MEASUREMENT_ABOVE_FLOOR : QUERY_INSERT_MEASUREMENT);
+        this.mergeMeasurementStatement = db.compileStatement(QUERY_MERGE_MEASUREMENT);
+        this.dailyRollup = new DailyRollup(db);
+        this.rowIdFloor = rowIdFloor;
+    }
+
+    boolean isUsableFor(SQLiteDatabase database) {
+        return (db == database && db.isOpen());
+    }
+
+    /**
+     * Inserts scans in one transaction which is committed only if every row was stored.
+     * Location of each scan is written once and its id is reused for all cell readings of that scan.
+     * Cells already present in cache are neither inserted nor queried.
+     * Statistics counters and daily rollup are updated once, just before transaction is committed.
+     * When coalescing is requested readings may be merged into open rows instead of being inserted.
+     *
+     * @param coalesce  merge readings according to rules of {@link MeasurementsCoalescer} (ignored if it is disabled)
+     * @param rowStatus receives combination of step flags for every cell reading (flattened over all scans)
+     * @param rowIds    receives measurement row id for every cell reading (flattened over all scans)
+     * @return true if transaction has been committed
+     */
+    synchronized boolean insert(List<LocationFix> fixes, List<List<CellReading>> scans, boolean coalesce, int[] rowStatus, long[] rowIds) {
+        boolean overallResult = true;
+        boolean successful = false;
+        long discoveredAt = System.currentTimeMillis();
+        db.beginTransaction();
+        try {
+            knownCellsIndex.ensureOpen(db);
+            statisticsCounters.ensureLoaded(db);
+            statisticsDelta.reset(discoveredAt);
+            dailyRollup.reset();
+            int offset = 0;
+            for (int sIndex = 0; sIndex < scans.size(); sIndex++) {
+                List<CellReading> cells = scans.get(sIndex);
+                overallResult &= writeScan(fixes.get(sIndex), cells, discoveredAt, coalesce && coalescer != null, rowStatus, rowIds, offset);
+                offset += cells.size();
+            }
+            if (overallResult) {
+                dailyRollup.apply();
+                statisticsCounters.apply(db, statisticsDelta);
+                db.setTransactionSuccessful();
+                successful = true;
+            }
+        } finally {
+            boolean committed = false;
+            try {
+                if (!successful) {
+                    // counters and index may already contain changes which will be rolled back
+                    statisticsCounters.invalidate();
+                    forgetDiscoveredCells();
+                }
+                db.endTransaction();
+                committed = successful;
+            } finally {
+                if (!committed) {
+                    // rolled back so newly cached cells and networks may not exist
+                    cellRowIdCache.clear();
+                    networkIds.clear();
+                    if (coalescer != null) {
+                        coalescer.clear();
+                    }
+                    if (successful) {
+                        // commit failed after counters were updated
+                        statisticsCounters.invalidate();
+                        forgetDiscoveredCells();
+                    }
+                }
+            }
+        }
+        return overallResult;
+    }
+
+    private boolean writeScan(LocationFix fix, List<CellReading> cells, long discoveredAt, boolean coalesce, int[] rowStatus, long[] rowIds, int offset) {
+        boolean scanResult = true;
+        // location is written before first inserted measurement, readings merged into other rows don't need it
+        boolean locationWritten = false;
+        int locationStatus = 0;
+        long locationId = -1;
+        for (int cIndex = 0; cIndex < cells.size(); cIndex++) {
+            CellReading cell = cells.get(cIndex);
+            int status = 0;
+            long rowId = ScanInsertResult.ROW_NOT_INSERTED;
+            long cellId = cellRowIdCache.get(cell);
+            if (cellId != CellRowIdCache.NOT_FOUND) {
+                status |= CELL_FOUND;
+            } else {
+                long networkId = findOrInsertNetwork(cell.getMcc(), cell.getMnc());
+                int networkType = cell.getNetworkType().ordinal();
+                if (networkId != -1) {
+                    long cellKey;
+                    if (CellKeyUtils.canEncode((int) networkId, networkType, cell.getLac(), cell.getCid())) {
+                        cellKey = CellKeyUtils.toCellKey((int) networkId, networkType, cell.getLac(), cell.getCid());
+                    } else {
+                        Timber.w("writeScan(): Cell cannot be encoded, using fallback key %s", cell);
+                        cellKey = findOrCreateFallbackCellKey(cell, networkType);
+                    }
+                    // insert cell (ignored if already exists)
+                    insertCellStatement.bindLong(1, cell.getMcc());
+                    insertCellStatement.bindLong(2, cell.getMnc());
+                    insertCellStatement.bindLong(3, cell.getLac());
+                    insertCellStatement.bindLong(4, cell.getCid());
+                    insertCellStatement.bindLong(5, networkType);
+                    insertCellStatement.bindLong(6, cellKey);
+                    insertCellStatement.bindLong(7, discoveredAt);
+                    if (insertCellStatement.executeInsert() != -1) {
+                        status |= CELL_INSERTED;
+                        statisticsDelta.addCell(cellKey, knownCellsIndex.add(cellKey));
+                    }
+                    findCellStatement.bindLong(1, cellKey);
+                    cellId = queryForRowId(findCellStatement);
+                }
+                if (cellId != -1) {
+                    status |= CELL_FOUND;
+                    cellRowIdCache.put(cell, cellId);
+                }
+            }
+            // merge measurement into open row of the same cell
+            if (cellId != -1 && coalesce) {
+                rowId = merge(fix, cell, cellId);
+                if (rowId != ScanInsertResult.ROW_NOT_INSERTED) {
+                    status |= MEASUREMENT_MERGED;
+                }
+            }
+            if ((status & MEASUREMENT_MERGED) == 0) {
+                if (!locationWritten) {
+                    locationStatus = writeLocation(fix);
+                    locationId = lastLocationId;
+                    locationWritten = true;
+                }
+                status |= locationStatus;
+            }
+            // insert measurement (if previous queries returned correct result)
+            if (cellId != -1 && locationId != -1 && (status & MEASUREMENT_MERGED) == 0) {
+                insertMeasurementStatement.bindLong(1, cellId);
+                insertMeasurementStatement.bindLong(2, locationId);
+                insertMeasurementStatement.bindLong(3, cell.getPsc());
+                insertMeasurementStatement.bindLong(4, cell.isNeighboring() ? 1 : 0);
+                insertMeasurementStatement.bindLong(5, cell.getTa());
+                insertMeasurementStatement.bindLong(6, cell.getAsu());
+                insertMeasurementStatement.bindLong(7, cell.getDbm());
+                insertMeasurementStatement.bindLong(8, cell.getSamples());
+                bindSignal(insertMeasurementStatement, 9, cell.getDbmMin());
+                bindSignal(insertMeasurementStatement, 10, cell.getDbmMax());
+                insertMeasurementStatement.bindLong(11, fix.getTimestamp());
+                if (rowIdFloor > 0) {
+                    insertMeasurementStatement.bindLong(12, rowIdFloor);
+                }
+                rowId = insertMeasurementStatement.executeInsert();
+                if (rowId != -1) {
+                    status |= MEASUREMENT_INSERTED;
+                    statisticsDelta.addMeasurement(cellId, fix.getTimestamp());
+                    dailyRollup.addMeasurement(cellId, fix.getTimestamp());
+                    if (coalesce) {
+                        coalescer.open(rowId, cellId, fix, cell);
+                    }
+                }
+            }
+            rowStatus[offset + cIndex] = status;
+            rowIds[offset + cIndex] = rowId;
+            scanResult &= ((status & (MEASUREMENT_INSERTED | MEASUREMENT_MERGED)) != 0);
+        }
+        return scanResult;
+    }
+
+    /**
+     * Inserts location (ignored if already exists) and finds its id, which is stored in {@link #lastLocationId}.
+     *
+     * @return location step flags
+     */
+    private int writeLocation(LocationFix fix) {
+        int locationStatus = 0;
+        long locationFingerprint = HashUtils.toLocationFingerprint(fix.getLatitude(), fix.getLongitude(), fix.getGpsAccuracy(), fix.getGpsSpeed(), fix.getGpsBearing(), fix.getGpsAltitude());
+        insertLocationStatement.bindLong(1, locationFingerprint);
+        insertLocationStatement.bindDouble(2, fix.getLatitude());
+        insertLocationStatement.bindDouble(3, fix.getLongitude());
+        insertLocationStatement.bindDouble(4, fix.getGpsAccuracy());
+        insertLocationStatement.bindDouble(5, fix.getGpsSpeed());
+        insertLocationStatement.bindDouble(6, fix.getGpsBearing());
+        insertLocationStatement.bindDouble(7, fix.getGpsAltitude());
+        insertLocationStatement.bindLong(8, QuadKeyUtils.toQuadKey(fix.getLatitude(), fix.getLongitude()));
+        if (insertLocationStatement.executeInsert() != -1)
+            locationStatus |= LOCATION_INSERTED;
+        // don't use value returned by insert, because it sometimes returns wrong value -> query always
+        findLocationStatement.bindLong(1, locationFingerprint);
+        lastLocationId = queryForRowId(findLocationStatement);
+        if (lastLocationId != -1)
+            locationStatus |= LOCATION_FOUND;
+        return locationStatus;
+    }
+
+    /**
+     * @return id of row the reading has been merged into or {@link ScanInsertResult#ROW_NOT_INSERTED}
+     */
+    private long merge(LocationFix fix, CellReading cell, long cellId) {
+        MeasurementsCoalescer.Row row = coalescer.find(cellId, fix, cell);
+        if (row == null) {
+            return ScanInsertResult.ROW_NOT_INSERTED;
+        }
+        MeasurementsCoalescer.Row merged = row.merge(cell);
+        mergeMeasurementStatement.bindLong(1, merged.getAsu());
+        mergeMeasurementStatement.bindLong(2, merged.getDbm());
+        mergeMeasurementStatement.bindLong(3, merged.getDbmMin());
+        mergeMeasurementStatement.bindLong(4, merged.getDbmMax());
+        mergeMeasurementStatement.bindLong(5, merged.getSamples());
+        mergeMeasurementStatement.bindLong(6, merged.getRowId());
+        mergeMeasurementStatement.bindLong(7, merged.getCellId());
+        mergeMeasurementStatement.bindLong(8, merged.getMeasuredAt());
+        if (mergeMeasurementStatement.executeUpdateDelete() != 1) {
+            // row has been removed in the meantime
+            coalescer.close(row);
+            return ScanInsertResult.ROW_NOT_INSERTED;
+        }
+        coalescer.update(merged);
+        return merged.getRowId();
+    }
+
+    private long findOrInsertNetwork(int mcc, int mnc) {
+        Long key = ((long) mcc << 32) | (mnc & 0xFFFFFFFFL);
+        Integer networkId = networkIds.get(key);
+        if (networkId != null) {
+            return networkId;
+        }
+        // insert network (ignored if already exists)
+        insertNetworkStatement.bindLong(1, mcc);
+        insertNetworkStatement.bindLong(2, mnc);
+        insertNetworkStatement.executeInsert();
+        findNetworkStatement.bindLong(1, mcc);
+        findNetworkStatement.bindLong(2, mnc);
+        long rowId = queryForRowId(findNetworkStatement);
+        if (rowId != -1) {
+            networkIds.put(key, (int) rowId);
+        }
+        return rowId;
+    }
+
+    private long findOrCreateFallbackCellKey(CellReading cell, int networkType) {
+        for (int offset = 0; offset < 10; offset += 5) {
+            findFallbackCellKeyStatement.bindLong(offset + 1, cell.getMcc());
+            findFallbackCellKeyStatement.bindLong(offset + 2, cell.getMnc());
+            findFallbackCellKeyStatement.bindLong(offset + 3, cell.getLac());
+            findFallbackCellKeyStatement.bindLong(offset + 4, cell.getCid());
+            findFallbackCellKeyStatement.bindLong(offset + 5, networkType);
+        }
+        try {
+            return findFallbackCellKeyStatement.simpleQueryForLong();
+        } catch (SQLiteDoneException ex) {
+            // never seen before
+            return nextFallbackCellKeyStatement.simpleQueryForLong();
+        }
+    }
+
+    private void forgetDiscoveredCells() {
+        for (int i = 0; i < statisticsDelta.getDiscoveredCells(); i++) {
+            knownCellsIndex.remove(statisticsDelta.getDiscoveredCellKey(i));
+        }
+    }
+
+    void close() {
+        insertNetworkStatement.close();
+        findNetworkStatement.close();
+        insertCellStatement.close();
+        findCellStatement.close();
+        findFallbackCellKeyStatement.close();
+        nextFallbackCellKeyStatement.close();
+        insertLocationStatement.close();
+        findLocationStatement.close();
+        insertMeasurementStatement.close();
+        mergeMeasurementStatement.close();
+        dailyRollup.close();
+    }
+
+    /**
+     * Builds human readable insertion report (used only when insertion failed).
+     */
+    static String describe(List<LocationFix> fixes, List<List<CellReading>> scans, int[] rowStatus) {
+        StringBuilder sb = new StringBuilder();
+        int offset = 0;
+        for (int sIndex = 0; sIndex < scans.size(); sIndex++) {
+            LocationFix fix = fixes.get(sIndex);
+            List<CellReading> cells = scans.get(sIndex);
+            for (int cIndex = 0; cIndex < cells.size(); cIndex++) {
+                int status = rowStatus[offset + cIndex];
+                sb.append(fix.toString()).append(" ").append(cells.get(cIndex).toString());
+                sb.append("\tcell inserted=").append((status & CELL_INSERTED) != 0);
+                sb.append("\tcell found=").append((status & CELL_FOUND) != 0);
+                sb.append("\tlocation inserted=").append((status & LOCATION_INSERTED) != 0);
+                sb.append("\tlocation found=").append((status & LOCATION_FOUND) != 0);
+                sb.append("\tmeasurement inserted=").append((status & MEASUREMENT_INSERTED) != 0);
+                sb.append("\tmeasurement merged=").append((status & MEASUREMENT_MERGED) != 0);
+                sb.append(";\r\n");
+            }
+            offset += cells.size();
+        }
+        return sb.toString();
+    }
+
+    private static void bindSignal(SQLiteStatement statement, int index, int signal) {
+        if (signal == Measurement.UNKNOWN_SIGNAL) {
+            statement.bindNull(index);
+        } else {
+            statement.bindLong(index, signal);
+        }
+    }
+
+    private static long queryForRowId(SQLiteStatement statement) {
+        try {
+            return statement.simpleQueryForLong();
+        } catch (SQLiteDoneException ex) {
+            // no rows
+            return -1;
+        }
+    }
+}
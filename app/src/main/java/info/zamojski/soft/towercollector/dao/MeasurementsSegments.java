@@ -0,0 +1,544 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
+
+import info.zamojski.soft.towercollector.dao.migration.DbMigrationHelper;
+import info.zamojski.soft.towercollector.model.Boundaries;
+import timber.log.Timber;
+
+/**
+ * Sealed segments of measurements database. In segmented storage mode active database file is renamed to segment
+ * named after sequence number and month (UTC) of its oldest measurement when it is opened after that month has ended, and new active
+ * database built next to it takes its place. Segments are complete databases with the same schema, so queries run on them
+ * unchanged, they are only read (except the one containing end of uploaded range) and dropped by deleting the file.
+ * Row ids of new active database continue after newest segment, so every measurement belongs to one segment.
+ */
+final class MeasurementsSegments {
+
+    private static final String FILE_PREFIX = "measurements-";
+    private static final String FILE_SUFFIX = ".db";
+    // sequence number keeps names unique when oldest measurement of next segment is from the same or earlier month, segments sealed before have no sequence
+    private static final String FILE_PATTERN = FILE_PREFIX + "(\\d{6}-)?\\d{6}" + FILE_SUFFIX;
+    private static final String SEQUENCE_FORMAT = "%06d-";
+    private static final String PERIOD_FORMAT = "yyyyMM";
+    private static final String SEALED_SCHEMA = "sealed";
+    private static final String NEXT_SUFFIX = ".next";
+
+    private static final String QUERY_HAS_ARCHIVE = "SELECT EXISTS (SELECT 1 FROM " + MeasurementsArchiveTable.TABLE_NAME + ")";
+
+    private static final String QUERY_FIRST_MEASURED_AT = "SELECT IFNULL(MIN(" + MeasurementsTable.COLUMN_MEASURED_AT + "), -1) FROM " + MeasurementsTable.TABLE_NAME;
+
+    private static final String QUERY_MEASUREMENTS_SUMMARY = "SELECT COUNT(*), IFNULL(MIN(" + MeasurementsTable.COLUMN_ROW_ID + "), 0), IFNULL(MAX("
+            + MeasurementsTable.COLUMN_ROW_ID + "), 0), IFNULL(MIN(" + MeasurementsTable.COLUMN_MEASURED_AT + "), 0), IFNULL(MAX("
+            + MeasurementsTable.COLUMN_MEASURED_AT + "), 0) FROM " + MeasurementsTable.TABLE_NAME;
+
+    private static final String QUERY_CELLS_SUMMARY = "SELECT COUNT(*), IFNULL(SUM(NOT EXISTS (SELECT 1 FROM " + CellsArchiveTable.TABLE_NAME + " a WHERE a."
+            + CellsArchiveTable.COLUMN_CELL_KEY + " = c." + CellsTable.COLUMN_CELL_KEY + ")), 0), IFNULL(MIN(" + CellsTable.COLUMN_DISCOVERED_AT + "), 0) FROM "
+            + CellsTable.TABLE_NAME + " c";
+
+    private static final String QUERY_CELL_KEYS = "SELECT " + CellsTable.COLUMN_CELL_KEY + " FROM " + CellsTable.TABLE_NAME;
+
+    private static final String QUERY_BOUNDS = "SELECT MIN(" + LocationsTable.COLUMN_LATITUDE + "), MIN(" + LocationsTable.COLUMN_LONGITUDE + "), MAX("
+            + LocationsTable.COLUMN_LATITUDE + "), MAX(" + LocationsTable.COLUMN_LONGITUDE + ") FROM " + LocationsTable.TABLE_NAME;
+
+    // everything new active database needs to continue counting, archiving and deleting after the sealed one, row ids of networks keep cell keys valid
+    private static final String[] QUERIES_CARRY_OVER = new String[]{
+            "INSERT INTO " + NetworksTable.TABLE_NAME + " (" + NetworksTable.COLUMN_ROW_ID + ", " + NetworksTable.COLUMN_MCC + ", " + NetworksTable.COLUMN_MNC + ") SELECT "
+                    + NetworksTable.COLUMN_ROW_ID + ", " + NetworksTable.COLUMN_MCC + ", " + NetworksTable.COLUMN_MNC + " FROM " + SEALED_SCHEMA + "." + NetworksTable.TABLE_NAME,
+            buildArchiveCellsQuery(CellsArchiveTable.TABLE_NAME),
+            buildArchiveCellsQuery(CellsTable.TABLE_NAME),
+            "INSERT INTO " + MeasurementsArchiveTable.TABLE_NAME + " (" + MeasurementsArchiveTable.COLUMN_DAY + ", " + MeasurementsArchiveTable.COLUMN_FIRST_MEASURED_AT + ", "
+                    + MeasurementsArchiveTable.COLUMN_LAST_MEASURED_AT + ", " + MeasurementsArchiveTable.COLUMN_MEASUREMENTS_COUNT + ", " + MeasurementsArchiveTable.COLUMN_DATA + ") SELECT "
+                    + MeasurementsArchiveTable.COLUMN_DAY + ", " + MeasurementsArchiveTable.COLUMN_FIRST_MEASURED_AT + ", " + MeasurementsArchiveTable.COLUMN_LAST_MEASURED_AT + ", "
+                    + MeasurementsArchiveTable.COLUMN_MEASUREMENTS_COUNT + ", " + MeasurementsArchiveTable.COLUMN_DATA + " FROM " + SEALED_SCHEMA + "." + MeasurementsArchiveTable.TABLE_NAME
+                    + " ORDER BY " + MeasurementsArchiveTable.COLUMN_ROW_ID,
+            "INSERT INTO " + SegmentDeletionsTable.TABLE_NAME + " (" + SegmentDeletionsTable.COLUMN_SEGMENT + ", " + SegmentDeletionsTable.COLUMN_LAST_MEASURED_AT + ", "
+                    + SegmentDeletionsTable.COLUMN_LAST_ROW_ID + ", " + SegmentDeletionsTable.COLUMN_MAX_ROW_ID + ") SELECT " + SegmentDeletionsTable.COLUMN_SEGMENT + ", "
+                    + SegmentDeletionsTable.COLUMN_LAST_MEASURED_AT + ", " + SegmentDeletionsTable.COLUMN_LAST_ROW_ID + ", " + SegmentDeletionsTable.COLUMN_MAX_ROW_ID
+                    + " FROM " + SEALED_SCHEMA + "." + SegmentDeletionsTable.TABLE_NAME + " ORDER BY " + SegmentDeletionsTable.COLUMN_ROW_ID,
+            "UPDATE " + StatsTable.TABLE_NAME + " SET "
+                    + StatsTable.COLUMN_TOTAL_LOCATIONS + " = (SELECT " + StatsTable.COLUMN_TOTAL_LOCATIONS + " FROM " + SEALED_SCHEMA + "." + StatsTable.TABLE_NAME + " LIMIT 0, 1), "
+                    + StatsTable.COLUMN_GLOBAL_DISCOVERED_CELLS + " = (SELECT " + StatsTable.COLUMN_GLOBAL_DISCOVERED_CELLS + " FROM " + SEALED_SCHEMA + "." + StatsTable.TABLE_NAME + " LIMIT 0, 1), "
+                    + StatsTable.COLUMN_GLOBAL_SINCE + " = (SELECT " + StatsTable.COLUMN_GLOBAL_SINCE + " FROM " + SEALED_SCHEMA + "." + StatsTable.TABLE_NAME + " LIMIT 0, 1)"
+    };
+
+    private final File directory;
+    private final List<Segment> segments = new ArrayList<>();
+    private boolean listed;
+    // distinct keys of cells of all segments, sorted
+    private long[] cellKeys;
+
+    MeasurementsSegments(File activeFile) {
+        this.directory = activeFile.getParentFile();
+    }
+
+    /**
+     * @return sealed segments, oldest first
+     */
+    synchronized List<Segment> list() {
+        if (!listed) {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (isSegmentFile(file)) {
+                        segments.add(new Segment(file));
+                    }
+                }
+            }
+            Collections.sort(segments, new Comparator<Segment>() {
+                @Override
+                public int compare(Segment lhs, Segment rhs) {
+                    if (lhs.sequence != rhs.sequence) {
+                        return (lhs.sequence < rhs.sequence ? -1 : 1);
+                    }
+                    return lhs.period.compareTo(rhs.period);
+                }
+            });
+            listed = true;
+            Timber.d("list(): Found %s segments", segments.size());
+        }
+        return new ArrayList<>(segments);
+    }
+
+    synchronized boolean isEmpty() {
+        return list().isEmpty();
+    }
+
+    static boolean isSegmentFile(File file) {
+        return file.getName().matches(FILE_PATTERN);
+    }
+
+    File getFile(Segment segment) {
+        return segment.file;
+    }
+
+    /**
+     * @return sorted keys of cells of all segments, cell seen in more than one segment is returned once
+     */
+    synchronized long[] getCellKeys() {
+        if (cellKeys == null) {
+            Set<Long> keys = new HashSet<>();
+            for (Segment segment : list()) {
+                Cursor cursor = getDatabase(segment).rawQuery(QUERY_CELL_KEYS, null);
+                try {
+                    while (cursor.moveToNext()) {
+                        keys.add(cursor.getLong(0));
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+            long[] sortedKeys = new long[keys.size()];
+            int i = 0;
+            for (Long key : keys) {
+                sortedKeys[i++] = key;
+            }
+            Arrays.sort(sortedKeys);
+            cellKeys = sortedKeys;
+        }
+        return cellKeys;
+    }
+
+    /**
+     * @return segment containing measurement with given row id or null if it belongs to active database
+     */
+    Segment find(long rowId) {
+        for (Segment segment : list()) {
+            Summary summary = getSummary(segment);
+            if (summary.measurementsCount > 0 && rowId >= summary.minRowId && rowId <= summary.maxRowId) {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return lowest row id which can be assigned to measurement in active database
+     */
+    long getRowIdFloor() {
+        List<Segment> sealed = list();
+        long floor = 0;
+        for (Segment segment : sealed) {
+            floor = Math.max(floor, getSummary(segment).maxRowId + 1);
+        }
+        return floor;
+    }
+
+    synchronized SQLiteDatabase getDatabase(Segment segment) {
+        if (segment.db == null || !segment.db.isOpen()) {
+            upgradeIfNeeded(segment.file);
+            segment.db = SQLiteDatabase.openDatabase(segment.file.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+        }
+        return segment.db;
+    }
+
+    /**
+     * Opens separate connection for deleting uploaded part of the segment. It has to be closed by the caller.
+     */
+    SQLiteDatabase openWritable(Segment segment) {
+        upgradeIfNeeded(segment.file);
+        return SQLiteDatabase.openDatabase(segment.file.getPath(), null, SQLiteDatabase.OPEN_READWRITE);
+    }
+
+    synchronized Summary getSummary(Segment segment) {
+        if (segment.summary == null) {
+            SQLiteDatabase db = getDatabase(segment);
+            Summary summary = new Summary();
+            Cursor cursor = db.rawQuery(QUERY_MEASUREMENTS_SUMMARY, null);
+            try {
+                if (cursor.moveToNext()) {
+                    summary.measurementsCount = cursor.getInt(0);
+                    summary.minRowId = cursor.getLong(1);
+                    summary.maxRowId = cursor.getLong(2);
+                    summary.minMeasuredAt = cursor.getLong(3);
+                    summary.maxMeasuredAt = cursor.getLong(4);
+                }
+            } finally {
+                cursor.close();
+            }
+            cursor = db.rawQuery(QUERY_CELLS_SUMMARY, null);
+            try {
+                if (cursor.moveToNext()) {
+                    summary.cellsCount = cursor.getInt(0);
+                    summary.discoveredCellsCount = cursor.getInt(1);
+                    summary.since = cursor.getLong(2);
+                }
+            } finally {
+                cursor.close();
+            }
+            cursor = db.rawQuery(QUERY_BOUNDS, null);
+            try {
+                if (cursor.moveToNext() && !cursor.isNull(0)) {
+                    summary.bounds = new Boundaries(cursor.getDouble(0), cursor.getDouble(1), cursor.getDouble(2), cursor.getDouble(3));
+                }
+            } finally {
+                cursor.close();
+            }
+            segment.summary = summary;
+            Timber.d("getSummary(): Segment %s contains %s measurements", segment.period, summary.measurementsCount);
+        }
+        return segment.summary;
+    }
+
+    /**
+     * Forgets summary of segment changed by deletion.
+     */
+    synchronized void invalidate(Segment segment) {
+        segment.summary = null;
+        cellKeys = null;
+    }
+
+    /**
+     * Finishes or discards sealing interrupted before new active database has replaced the old one. Has to be called before the file is opened.
+     */
+    synchronized void recover(File activeFile) {
+        File nextFile = new File(activeFile.getPath() + NEXT_SUFFIX);
+        if (!nextFile.exists()) {
+            return;
+        }
+        if (activeFile.exists()) {
+            // old active database has not been renamed yet, so next one may be incomplete
+            Timber.w("recover(): Discarding unfinished %s", nextFile);
+            deleteFiles(nextFile);
+        } else {
+            Timber.w("recover(): Finishing sealing with %s", nextFile);
+            replaceActive(nextFile, activeFile);
+        }
+    }
+
+    /**
+     * Replaces active database with new one when month (UTC) of its oldest measurement has ended and keeps the old file as segment.
+     * New active database is completely built next to the old one before any file is renamed, so interrupted sealing
+     * is discarded or finished by {@link #recover(File)}. Has to be called before the file is opened.
+     *
+     * @return sealed segment file or null if active database has been kept
+     */
+    synchronized File seal(File activeFile) {
+        if (!activeFile.exists()) {
+            return null;
+        }
+        String period;
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(activeFile.getPath(), null, SQLiteDatabase.OPEN_READWRITE);
+        try {
+            if (db.getVersion() != MeasurementsDatabase.DATABASE_FILE_VERSION) {
+                // sealed after upgrade on next open
+                return null;
+            }
+            long firstMeasuredAt = queryForLong(db, QUERY_FIRST_MEASURED_AT);
+            if (firstMeasuredAt < 0) {
+                return null;
+            }
+            period = toPeriod(firstMeasuredAt);
+            if (period.equals(toPeriod(System.currentTimeMillis()))) {
+                return null;
+            }
+            // checkpoints and removes log so segment is single self-contained file
+            queryForString(db, "PRAGMA journal_mode = DELETE");
+        } finally {
+            db.close();
+        }
+        int sequence = 0;
+        for (Segment segment : list()) {
+            sequence = Math.max(sequence, segment.sequence);
+        }
+        File segmentFile = new File(directory, FILE_PREFIX + String.format(Locale.US, SEQUENCE_FORMAT, sequence + 1) + period + FILE_SUFFIX);
+        if (segmentFile.exists()) {
+            Timber.e("seal(): Segment %s already exists, keeping active database", segmentFile);
+            return null;
+        }
+        File nextFile = new File(activeFile.getPath() + NEXT_SUFFIX);
+        createNext(nextFile, activeFile);
+        if (!activeFile.renameTo(segmentFile)) {
+            Timber.e("seal(): Failed to rename %s to %s", activeFile, segmentFile);
+            deleteFiles(nextFile);
+            return null;
+        }
+        replaceActive(nextFile, activeFile);
+        segments.add(new Segment(segmentFile));
+        cellKeys = null;
+        Timber.d("seal(): Active database sealed as %s", segmentFile);
+        return segmentFile;
+    }
+
+    /**
+     * Creates new active database with dictionaries, known cells, archive and global counters copied from the one being sealed.
+     * The copy is committed in new file only, archive of the segment is deleted later by {@link #upgradeIfNeeded(File)}.
+     */
+    private static void createNext(File nextFile, File activeFile) {
+        long start = System.currentTimeMillis();
+        deleteFiles(nextFile);
+        MeasurementsDatabase.createDatabaseFile(nextFile);
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(nextFile.getPath(), null, SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+        try {
+            db.beginTransaction();
+            try {
+                MeasurementsDatabase.createTables(db);
+                db.setVersion(MeasurementsDatabase.DATABASE_FILE_VERSION);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            db.execSQL("ATTACH DATABASE ? AS " + SEALED_SCHEMA, new Object[]{activeFile.getPath()});
+            try {
+                db.beginTransaction();
+                try {
+                    for (String query : QUERIES_CARRY_OVER) {
+                        db.execSQL(query);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            } finally {
+                db.execSQL("DETACH DATABASE " + SEALED_SCHEMA);
+            }
+        } finally {
+            db.close();
+        }
+        Timber.d("createNext(): Carried over from %s in %s ms", activeFile.getName(), System.currentTimeMillis() - start);
+    }
+
+    private static void replaceActive(File nextFile, File activeFile) {
+        if (!nextFile.renameTo(activeFile)) {
+            // empty active database must not be created in its place, renaming is retried on next open
+            throw new SQLiteException("Failed to rename " + nextFile + " to " + activeFile);
+        }
+    }
+
+    private static boolean deleteFiles(File file) {
+        boolean deleted = true;
+        for (String suffix : new String[]{"", "-journal"}) {
+            File suffixedFile = new File(file.getPath() + suffix);
+            if (suffixedFile.exists() && !suffixedFile.delete()) {
+                Timber.e("deleteFiles(): Failed to delete %s", suffixedFile);
+                deleted = false;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * @return segment stored in file with given name or null if there is no such segment
+     */
+    Segment find(String name) {
+        for (Segment segment : list()) {
+            if (segment.file.getName().equals(name)) {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return false if segment file could not be deleted
+     */
+    synchronized boolean drop(Segment segment) {
+        if (segment.db != null) {
+            segment.db.close();
+            segment.db = null;
+        }
+        segments.remove(segment);
+        cellKeys = null;
+        boolean deleted = deleteFiles(segment.file);
+        Timber.d("drop(): Segment %s dropped", segment.period);
+        return deleted;
+    }
+
+    synchronized void dropAll() {
+        for (Segment segment : list()) {
+            drop(segment);
+        }
+    }
+
+    synchronized void close() {
+        for (Segment segment : segments) {
+            if (segment.db != null) {
+                segment.db.close();
+                segment.db = null;
+            }
+        }
+    }
+
+    private static void upgradeIfNeeded(File file) {
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(file.getPath(), null, SQLiteDatabase.OPEN_READWRITE);
+        try {
+            int version = db.getVersion();
+            if (version < MeasurementsDatabase.DATABASE_FILE_VERSION) {
+                Timber.d("upgradeIfNeeded(): Upgrading segment %s from version %s", file.getName(), version);
+                new DbMigrationHelper(db).upgrade(version, MeasurementsDatabase.DATABASE_FILE_VERSION);
+            }
+            if (queryForLong(db, QUERY_HAS_ARCHIVE) != 0) {
+                // already copied to active database while sealing, deleting again after failure is harmless
+                db.delete(MeasurementsArchiveTable.TABLE_NAME, null, null);
+                Timber.d("upgradeIfNeeded(): Archive of segment %s deleted", file.getName());
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    private static String buildArchiveCellsQuery(String sourceTable) {
+        // same columns in both tables, existing keys are ignored
+        return "INSERT INTO " + CellsArchiveTable.TABLE_NAME + " (" + CellsArchiveTable.COLUMN_MCC + ", " + CellsArchiveTable.COLUMN_MNC + ", "
+                + CellsArchiveTable.COLUMN_LAC + ", " + CellsArchiveTable.COLUMN_CID + ", " + CellsArchiveTable.COLUMN_NET_TYPE + ", "
+                + CellsArchiveTable.COLUMN_CELL_KEY + ", " + CellsArchiveTable.COLUMN_DISCOVERED_AT + ") SELECT "
+                + CellsTable.COLUMN_MCC + ", " + CellsTable.COLUMN_MNC + ", " + CellsTable.COLUMN_LAC + ", " + CellsTable.COLUMN_CID + ", "
+                + CellsTable.COLUMN_NET_TYPE + ", " + CellsTable.COLUMN_CELL_KEY + ", " + CellsTable.COLUMN_DISCOVERED_AT
+                + " FROM " + SEALED_SCHEMA + "." + sourceTable + " ORDER BY " + CellsTable.COLUMN_ROW_ID;
+    }
+
+    private static String toPeriod(long timestamp) {
+        SimpleDateFormat format = new SimpleDateFormat(PERIOD_FORMAT, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(timestamp));
+    }
+
+    private static long queryForLong(SQLiteDatabase db, String query) {
+        Cursor cursor = db.rawQuery(query, null);
+        try {
+            return (cursor.moveToFirst() ? cursor.getLong(0) : 0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static String queryForString(SQLiteDatabase db, String query) {
+        Cursor cursor = db.rawQuery(query, null);
+        try {
+            return (cursor.moveToFirst() ? cursor.getString(0) : null);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    static final class Segment {
+
+        private final File file;
+        private final int sequence;
+        private final String period;
+        private SQLiteDatabase db;
+        private Summary summary;
+
+        private Segment(File file) {
+            this.file = file;
+            String name = file.getName();
+            String[] parts = name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length()).split("-");
+            this.sequence = (parts.length > 1 ? Integer.parseInt(parts[0]) : 0);
+            this.period = parts[parts.length - 1];
+        }
+
+        String getName() {
+            return file.getName();
+        }
+
+        String getPeriod() {
+            return period;
+        }
+    }
+
+    static final class Summary {
+
+        private int measurementsCount;
+        private long minRowId;
+        private long maxRowId;
+        private long minMeasuredAt;
+        private long maxMeasuredAt;
+        private int cellsCount;
+        private int discoveredCellsCount;
+        private long since;
+        private Boundaries bounds;
+
+        int getMeasurementsCount() {
+            return measurementsCount;
+        }
+
+        long getMaxRowId() {
+            return maxRowId;
+        }
+
+        /**
+         * @return true if measurement with given timestamp could be stored in the segment
+         */
+        boolean covers(long timestamp) {
+            return (measurementsCount > 0 && timestamp >= minMeasuredAt && timestamp <= maxMeasuredAt);
+        }
+
+        int getCellsCount() {
+            return cellsCount;
+        }
+
+        int getDiscoveredCellsCount() {
+            return discoveredCellsCount;
+        }
+
+        long getSince() {
+            return since;
+        }
+
+        /**
+         * @return bounds of locations or null if segment has no locations
+         */
+        Boundaries getBounds() {
+            return bounds;
+        }
+    }
+}
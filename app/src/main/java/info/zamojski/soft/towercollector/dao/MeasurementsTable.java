@@ -16,6 +16,10 @@ final class MeasurementsTable implements ITable {
     static final String COLUMN_ASU = "asu";
     static final String COLUMN_DBM = "dbm";
     static final String COLUMN_MEASURED_AT = "measured_at";
+    // number of merged samples, asu and dbm hold their mean (see MeasurementsCoalescer)
+    static final String COLUMN_SAMPLES = "samples";
+    static final String COLUMN_DBM_MIN = "dbm_min";
+    static final String COLUMN_DBM_MAX = "dbm_max";
 
     static final String QUERY_CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " ("
             + COLUMN_ROW_ID + " INTEGER PRIMARY KEY NOT NULL, "
@@ -27,29 +31,49 @@ final class MeasurementsTable implements ITable {
             + COLUMN_ASU + " INTEGER NOT NULL, "
             + COLUMN_DBM + " INTEGER NOT NULL, "
             + COLUMN_MEASURED_AT + " INTEGER NOT NULL, "
+            + COLUMN_SAMPLES + " INTEGER NOT NULL DEFAULT 1, "
+            + COLUMN_DBM_MIN + " INTEGER, "
+            + COLUMN_DBM_MAX + " INTEGER, "
             + "FOREIGN KEY(" + COLUMN_LOCATION_ID + ") REFERENCES " + LocationsTable.TABLE_NAME + "(" + LocationsTable.COLUMN_ROW_ID + "),"
             + "FOREIGN KEY(" + COLUMN_CELL_ID + ") REFERENCES " + CellsTable.TABLE_NAME + "(" + CellsTable.COLUMN_ROW_ID + "))";
 
-    private static final String QUERY_CREATE_INDEX_MEASURED_AT = "CREATE INDEX 'IX_" + TABLE_NAME + "_" + COLUMN_MEASURED_AT
-            + "' ON " + TABLE_NAME + " (" + COLUMN_MEASURED_AT + " DESC)";
+    // covers keyset pagination order (used in both directions)
+    private static final String QUERY_CREATE_INDEX_MEASURED_AT_ROW_ID = "CREATE INDEX 'IX_" + TABLE_NAME + "_" + COLUMN_MEASURED_AT + "_" + COLUMN_ROW_ID
+            + "' ON " + TABLE_NAME + " (" + COLUMN_MEASURED_AT + " ASC, " + COLUMN_ROW_ID + " ASC)";
 
-    private static final String QUERY_CREATE_INDEX_LOCATION_ID = "CREATE INDEX 'IX_" + TABLE_NAME + "_" + COLUMN_LOCATION_ID
-            + "' ON " + TABLE_NAME + " (" + COLUMN_LOCATION_ID + " ASC)";
+    // covers last measurements order (newest first, main cell first)
+    private static final String QUERY_CREATE_INDEX_MEASURED_AT_NEIGHBORING_ROW_ID = "CREATE INDEX 'IX_" + TABLE_NAME + "_" + COLUMN_MEASURED_AT + "_" + COLUMN_NEIGHBORING + "_" + COLUMN_ROW_ID
+            + "' ON " + TABLE_NAME + " (" + COLUMN_MEASURED_AT + " DESC, " + COLUMN_NEIGHBORING + " DESC, " + COLUMN_ROW_ID + " DESC)";
+
+    // covers main measurements of one location in last measurements order
+    private static final String QUERY_CREATE_INDEX_LOCATION_ID_NEIGHBORING_MEASURED_AT = "CREATE INDEX 'IX_" + TABLE_NAME + "_" + COLUMN_LOCATION_ID + "_" + COLUMN_NEIGHBORING + "_" + COLUMN_MEASURED_AT
+            + "' ON " + TABLE_NAME + " (" + COLUMN_LOCATION_ID + " ASC, " + COLUMN_NEIGHBORING + " ASC, " + COLUMN_MEASURED_AT + " ASC, " + COLUMN_ROW_ID + " ASC)";
 
     private static final String QUERY_CREATE_INDEX_CELL_ID = "CREATE INDEX 'IX_" + TABLE_NAME + "_" + COLUMN_CELL_ID
             + "' ON " + TABLE_NAME + " (" + COLUMN_CELL_ID + " DESC)";
 
-    private static final String QUERY_CREATE_TRIGGER_ON_INSERT = "CREATE TRIGGER 'update_measurements_stats' AFTER INSERT ON " + TABLE_NAME + " BEGIN UPDATE "
-            + StatsTable.TABLE_NAME + " SET " + StatsTable.COLUMN_TOTAL_LOCATIONS + " = " + StatsTable.COLUMN_TOTAL_LOCATIONS + " + 1; END";
+    // keep number of measurements referencing each cell and location
+    private static final String QUERY_CREATE_TRIGGER_ON_INSERT = "CREATE TRIGGER 'reference_measurement' AFTER INSERT ON " + TABLE_NAME + " BEGIN "
+            + "UPDATE " + CellsTable.TABLE_NAME + " SET " + CellsTable.COLUMN_REFCOUNT + " = " + CellsTable.COLUMN_REFCOUNT + " + 1 WHERE " + CellsTable.COLUMN_ROW_ID + " = new." + COLUMN_CELL_ID + "; "
+            + "UPDATE " + LocationsTable.TABLE_NAME + " SET " + LocationsTable.COLUMN_REFCOUNT + " = " + LocationsTable.COLUMN_REFCOUNT + " + 1 WHERE " + LocationsTable.COLUMN_ROW_ID + " = new." + COLUMN_LOCATION_ID + "; END";
+
+    // removes cell and location together with their last measurement
+    private static final String QUERY_CREATE_TRIGGER_ON_DELETE = "CREATE TRIGGER 'release_measurement' AFTER DELETE ON " + TABLE_NAME + " BEGIN "
+            + "UPDATE " + CellsTable.TABLE_NAME + " SET " + CellsTable.COLUMN_REFCOUNT + " = " + CellsTable.COLUMN_REFCOUNT + " - 1 WHERE " + CellsTable.COLUMN_ROW_ID + " = old." + COLUMN_CELL_ID + "; "
+            + "UPDATE " + LocationsTable.TABLE_NAME + " SET " + LocationsTable.COLUMN_REFCOUNT + " = " + LocationsTable.COLUMN_REFCOUNT + " - 1 WHERE " + LocationsTable.COLUMN_ROW_ID + " = old." + COLUMN_LOCATION_ID + "; "
+            + "DELETE FROM " + CellsTable.TABLE_NAME + " WHERE " + CellsTable.COLUMN_ROW_ID + " = old." + COLUMN_CELL_ID + " AND " + CellsTable.COLUMN_REFCOUNT + " <= 0; "
+            + "DELETE FROM " + LocationsTable.TABLE_NAME + " WHERE " + LocationsTable.COLUMN_ROW_ID + " = old." + COLUMN_LOCATION_ID + " AND " + LocationsTable.COLUMN_REFCOUNT + " <= 0; END";
 
     @Override
     public String[] getCreateQueries() {
         return new String[]{
                 QUERY_CREATE_TABLE,
-                QUERY_CREATE_INDEX_MEASURED_AT,
-                QUERY_CREATE_INDEX_LOCATION_ID,
+                QUERY_CREATE_INDEX_MEASURED_AT_ROW_ID,
+                QUERY_CREATE_INDEX_MEASURED_AT_NEIGHBORING_ROW_ID,
+                QUERY_CREATE_INDEX_LOCATION_ID_NEIGHBORING_MEASURED_AT,
                 QUERY_CREATE_INDEX_CELL_ID,
-                QUERY_CREATE_TRIGGER_ON_INSERT
+                QUERY_CREATE_TRIGGER_ON_INSERT,
+                QUERY_CREATE_TRIGGER_ON_DELETE
         };
     }
 }
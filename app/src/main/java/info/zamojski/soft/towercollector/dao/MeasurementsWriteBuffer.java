@@ -0,0 +1,145 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import info.zamojski.soft.towercollector.model.CellsCount;
+import info.zamojski.soft.towercollector.model.Measurement;
+import info.zamojski.soft.towercollector.utils.HashUtils;
+
+/**
+ * Holds accepted scans until they are written in one transaction.
+ * Scans are removed only after they have been committed so last measurement can always be found either here or in database.
+ */
+class MeasurementsWriteBuffer {
+
+    // failed scans are retried on following flushes before they are dropped
+    static final int MAX_WRITE_ATTEMPTS = 3;
+
+    private final int maxScans;
+
+    private final List<Measurement[]> scans = new ArrayList<Measurement[]>();
+    private final Map<Measurement[], Integer> failedAttempts = new IdentityHashMap<Measurement[], Integer>();
+
+    MeasurementsWriteBuffer(int maxScans) {
+        this.maxScans = maxScans;
+    }
+
+    /**
+     * @return true if buffer is full and should be flushed
+     */
+    synchronized boolean add(Measurement[] scan) {
+        scans.add(scan);
+        return scans.size() >= maxScans;
+    }
+
+    synchronized boolean isEmpty() {
+        return scans.isEmpty();
+    }
+
+    synchronized int getMeasurementsCount() {
+        int count = 0;
+        for (Measurement[] scan : scans) {
+            count += scan.length;
+        }
+        return count;
+    }
+
+    synchronized List<Measurement[]> getScans() {
+        return new ArrayList<Measurement[]>(scans);
+    }
+
+    /**
+     * Removes oldest scans after they have been written. Scans which couldn't be written stay in buffer
+     * until they fail {@link #MAX_WRITE_ATTEMPTS} times.
+     *
+     * @return number of dropped scans
+     */
+    synchronized int remove(int count, List<Measurement[]> failedScans) {
+        scans.subList(0, count).clear();
+        int dropped = 0;
+        List<Measurement[]> retriedScans = new ArrayList<Measurement[]>(failedScans.size());
+        for (Measurement[] scan : failedScans) {
+            Integer attempts = failedAttempts.get(scan);
+            attempts = (attempts == null ? 1 : attempts + 1);
+            if (attempts < MAX_WRITE_ATTEMPTS) {
+                failedAttempts.put(scan, attempts);
+                retriedScans.add(scan);
+            } else {
+                failedAttempts.remove(scan);
+                dropped++;
+            }
+        }
+        failedAttempts.keySet().retainAll(retriedScans);
+        // keep original order before scans added during flush
+        scans.addAll(0, retriedScans);
+        return dropped;
+    }
+
+    /**
+     * Same order as in database query: newest, neighboring first, latest inserted.
+     */
+    synchronized Measurement getLastMeasurement() {
+        if (scans.isEmpty()) {
+            return null;
+        }
+        Measurement[] lastScan = scans.get(scans.size() - 1);
+        for (int i = lastScan.length - 1; i >= 0; i--) {
+            if (lastScan[i].isNeighboring()) {
+                return lastScan[i];
+            }
+        }
+        return lastScan[lastScan.length - 1];
+    }
+
+    /**
+     * Returns main cells measured at the same location as last measurement, newest first.
+     */
+    synchronized List<Measurement> getLastMainMeasurements() {
+        List<Measurement> lastMeasurements = new ArrayList<Measurement>();
+        Measurement lastMeasurement = getLastMeasurement();
+        if (lastMeasurement == null) {
+            return lastMeasurements;
+        }
+        long locationFingerprint = HashUtils.toLocationFingerprint(lastMeasurement);
+        for (int s = scans.size() - 1; s >= 0; s--) {
+            Measurement[] scan = scans.get(s);
+            for (int i = scan.length - 1; i >= 0; i--) {
+                Measurement measurement = scan[i];
+                if (!measurement.isNeighboring() && HashUtils.toLocationFingerprint(measurement) == locationFingerprint) {
+                    lastMeasurements.add(measurement);
+                }
+            }
+        }
+        return lastMeasurements;
+    }
+
+    /**
+     * @return number of measurements taken at the time of last measurement or null if empty
+     */
+    synchronized CellsCount getLastCellsCount() {
+        Measurement lastMeasurement = getLastMeasurement();
+        if (lastMeasurement == null) {
+            return null;
+        }
+        int main = 0;
+        int total = 0;
+        for (Measurement[] scan : scans) {
+            for (Measurement measurement : scan) {
+                if (measurement.getTimestamp() == lastMeasurement.getTimestamp()) {
+                    total++;
+                    if (!measurement.isNeighboring()) {
+                        main++;
+                    }
+                }
+            }
+        }
+        return new CellsCount(main, total - main);
+    }
+}
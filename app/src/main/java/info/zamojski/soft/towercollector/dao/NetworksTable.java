@@ -0,0 +1,27 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao;
+
+final class NetworksTable implements ITable {
+
+    static final String TABLE_NAME = "networks";
+    static final String COLUMN_ROW_ID = "row_id";
+    static final String COLUMN_MCC = "mcc";
+    static final String COLUMN_MNC = "mnc";
+
+    private static final String QUERY_CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " ("
+            + COLUMN_ROW_ID + " INTEGER PRIMARY KEY NOT NULL, "
+            + COLUMN_MCC + " INTEGER NOT NULL, "
+            + COLUMN_MNC + " INTEGER NOT NULL, "
+            + "UNIQUE (" + COLUMN_MCC + ", " + COLUMN_MNC + ") ON CONFLICT IGNORE)";
+
+    @Override
+    public String[] getCreateQueries() {
+        return new String[]{
+                QUERY_CREATE_TABLE
+        };
+    }
+
+}
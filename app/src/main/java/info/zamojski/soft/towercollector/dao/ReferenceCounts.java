@@ -0,0 +1,58 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import timber.log.Timber;
+
+/**
+ * Checks and rebuilds reference counts of cells and locations maintained by measurements triggers.
+ */
+final class ReferenceCounts {
+
+    private static final String CELL_REFERENCES = "(SELECT COUNT(*) FROM " + MeasurementsTable.TABLE_NAME + " m WHERE m." + MeasurementsTable.COLUMN_CELL_ID
+            + " = " + CellsTable.TABLE_NAME + "." + CellsTable.COLUMN_ROW_ID + ")";
+    private static final String LOCATION_REFERENCES = "(SELECT COUNT(*) FROM " + MeasurementsTable.TABLE_NAME + " m WHERE m." + MeasurementsTable.COLUMN_LOCATION_ID
+            + " = " + LocationsTable.TABLE_NAME + "." + LocationsTable.COLUMN_ROW_ID + ")";
+
+    // orphans should never exist, they are removed together with last measurement
+    private static final String QUERY_COUNT_INVALID_CELLS = "SELECT COUNT(*) FROM " + CellsTable.TABLE_NAME + " WHERE " + CellsTable.COLUMN_REFCOUNT
+            + " <= 0 OR " + CellsTable.COLUMN_REFCOUNT + " != " + CELL_REFERENCES;
+    private static final String QUERY_COUNT_INVALID_LOCATIONS = "SELECT COUNT(*) FROM " + LocationsTable.TABLE_NAME + " WHERE " + LocationsTable.COLUMN_REFCOUNT
+            + " <= 0 OR " + LocationsTable.COLUMN_REFCOUNT + " != " + LOCATION_REFERENCES;
+
+    private static final String QUERY_REBUILD_CELLS = "UPDATE " + CellsTable.TABLE_NAME + " SET " + CellsTable.COLUMN_REFCOUNT + " = " + CELL_REFERENCES;
+    private static final String QUERY_REBUILD_LOCATIONS = "UPDATE " + LocationsTable.TABLE_NAME + " SET " + LocationsTable.COLUMN_REFCOUNT + " = " + LOCATION_REFERENCES;
+
+    private ReferenceCounts() {
+    }
+
+    static int countInvalid(SQLiteDatabase db) {
+        return queryForInt(db, QUERY_COUNT_INVALID_CELLS) + queryForInt(db, QUERY_COUNT_INVALID_LOCATIONS);
+    }
+
+    /**
+     * Counts references again and removes cells and locations not referenced by any measurement.
+     * Has to be called in transaction.
+     */
+    static void rebuild(SQLiteDatabase db) {
+        db.execSQL(QUERY_REBUILD_CELLS);
+        db.execSQL(QUERY_REBUILD_LOCATIONS);
+        int deletedCells = db.delete(CellsTable.TABLE_NAME, CellsTable.COLUMN_REFCOUNT + " = 0", null);
+        int deletedLocations = db.delete(LocationsTable.TABLE_NAME, LocationsTable.COLUMN_REFCOUNT + " = 0", null);
+        Timber.d("rebuild(): Deleted orphaned %s cells, %s locations", deletedCells, deletedLocations);
+    }
+
+    private static int queryForInt(SQLiteDatabase db, String query) {
+        Cursor cursor = db.rawQuery(query, null);
+        try {
+            return cursor.moveToNext() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+}
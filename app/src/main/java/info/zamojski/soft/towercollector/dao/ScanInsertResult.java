@@ -0,0 +1,54 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao;
+
+/**
+ * Result of inserting one scan. Rows are reported in the same order as cell readings were passed.
+ */
+public final class ScanInsertResult {
+
+    public static final long ROW_NOT_INSERTED = -1;
+
+    private final boolean successful;
+    private final long[] rowIds;
+    private final boolean anyRowMerged;
+
+    ScanInsertResult(boolean successful, long[] rowIds, boolean anyRowMerged) {
+        this.successful = successful;
+        this.rowIds = rowIds;
+        this.anyRowMerged = anyRowMerged;
+    }
+
+    /**
+     * Whether the whole scan has been committed.
+     */
+    public boolean isSuccessful() {
+        return successful;
+    }
+
+    /**
+     * Measurement row id for given reading or {@link #ROW_NOT_INSERTED}.
+     * If scan was not committed these ids are only informational.
+     */
+    public long getRowId(int index) {
+        return rowIds[index];
+    }
+
+    public boolean isRowInserted(int index) {
+        return rowIds[index] != ROW_NOT_INSERTED;
+    }
+
+    /**
+     * Whether any reading has been merged into existing row instead of being inserted.
+     * Such reading gets id of that row.
+     */
+    public boolean isAnyRowMerged() {
+        return anyRowMerged;
+    }
+
+    public int size() {
+        return rowIds.length;
+    }
+}
@@ -0,0 +1,34 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao;
+
+/**
+ * Deletions of uploaded measurements from sealed segments which have been archived and counted in active database,
+ * but not yet committed in segment files. Whole segment is dropped when range columns are null.
+ */
+final class SegmentDeletionsTable implements ITable {
+
+    static final String TABLE_NAME = "segment_deletions";
+    static final String COLUMN_ROW_ID = "row_id";
+    static final String COLUMN_SEGMENT = "segment";
+    static final String COLUMN_LAST_MEASURED_AT = "last_measured_at";
+    static final String COLUMN_LAST_ROW_ID = "last_row_id";
+    static final String COLUMN_MAX_ROW_ID = "max_row_id";
+
+    private static final String QUERY_CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " ("
+            + COLUMN_ROW_ID + " INTEGER PRIMARY KEY NOT NULL, "
+            + COLUMN_SEGMENT + " TEXT NOT NULL, "
+            + COLUMN_LAST_MEASURED_AT + " INTEGER, "
+            + COLUMN_LAST_ROW_ID + " INTEGER, "
+            + COLUMN_MAX_ROW_ID + " INTEGER)";
+
+    @Override
+    public String[] getCreateQueries() {
+        return new String[]{
+                QUERY_CREATE_TABLE
+        };
+    }
+
+}
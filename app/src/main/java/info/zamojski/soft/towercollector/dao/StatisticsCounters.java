@@ -0,0 +1,370 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.Set;
+
+import info.zamojski.soft.towercollector.model.Statistics;
+import timber.log.Timber;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Measurement statistics maintained incrementally. Local and global counters are persisted in stats table
+ * and written once per transaction, today counters are kept in memory and loaded once per day.
+ * Methods taking database must be called inside transaction so they are ordered with other writers.
+ */
+final class StatisticsCounters {
+
+    private static final String CELL_KEY_MATCH = "a." + CellsArchiveTable.COLUMN_CELL_KEY + " = c." + CellsTable.COLUMN_CELL_KEY;
+
+    private static final String QUERY_SELECT = "SELECT " + StatsTable.COLUMN_TOTAL_LOCATIONS + ", " + StatsTable.COLUMN_LOCAL_LOCATIONS + ", "
+            + StatsTable.COLUMN_LOCAL_CELLS + ", " + StatsTable.COLUMN_LOCAL_DISCOVERED_CELLS + ", " + StatsTable.COLUMN_LOCAL_SINCE + ", "
+            + StatsTable.COLUMN_GLOBAL_DISCOVERED_CELLS + ", " + StatsTable.COLUMN_GLOBAL_SINCE + " FROM " + StatsTable.TABLE_NAME + " LIMIT 0, 1";
+
+    private static final String QUERY_UPDATE = "UPDATE " + StatsTable.TABLE_NAME + " SET "
+            + StatsTable.COLUMN_TOTAL_LOCATIONS + " = ?, " + StatsTable.COLUMN_LOCAL_LOCATIONS + " = ?, "
+            + StatsTable.COLUMN_LOCAL_CELLS + " = ?, " + StatsTable.COLUMN_LOCAL_DISCOVERED_CELLS + " = ?, "
+            + StatsTable.COLUMN_LOCAL_SINCE + " = ?, " + StatsTable.COLUMN_GLOBAL_DISCOVERED_CELLS + " = ?, "
+            + StatsTable.COLUMN_GLOBAL_SINCE + " = ?";
+
+    private static final String QUERY_REBUILD = "UPDATE " + StatsTable.TABLE_NAME + " SET "
+            + StatsTable.COLUMN_LOCAL_LOCATIONS + " = (SELECT COUNT(*) FROM " + MeasurementsTable.TABLE_NAME + "), "
+            + StatsTable.COLUMN_TOTAL_LOCATIONS + " = MAX(" + StatsTable.COLUMN_TOTAL_LOCATIONS + ", (SELECT COUNT(*) FROM " + MeasurementsTable.TABLE_NAME + ")), "
+            + StatsTable.COLUMN_LOCAL_CELLS + " = (SELECT COUNT(*) FROM " + CellsTable.TABLE_NAME + "), "
+            + StatsTable.COLUMN_LOCAL_DISCOVERED_CELLS + " = (SELECT COUNT(*) FROM (SELECT " + CellsTable.COLUMN_CELL_KEY + " FROM " + CellsTable.TABLE_NAME
+            + " EXCEPT SELECT " + CellsArchiveTable.COLUMN_CELL_KEY + " FROM " + CellsArchiveTable.TABLE_NAME + ")), "
+            + StatsTable.COLUMN_LOCAL_SINCE + " = IFNULL((SELECT MIN(" + CellsTable.COLUMN_DISCOVERED_AT + ") FROM " + CellsTable.TABLE_NAME + "), 0), "
+            + StatsTable.COLUMN_GLOBAL_SINCE + " = IFNULL((SELECT MIN(" + CellsTable.COLUMN_DISCOVERED_AT + ") FROM (SELECT " + CellsTable.COLUMN_DISCOVERED_AT
+            + " FROM " + CellsTable.TABLE_NAME + " UNION ALL SELECT " + CellsArchiveTable.COLUMN_DISCOVERED_AT + " FROM " + CellsArchiveTable.TABLE_NAME + ")), 0)";
+
+    private static final String QUERY_COUNT_LOCAL = "SELECT (SELECT COUNT(*) FROM " + MeasurementsTable.TABLE_NAME + "), (SELECT COUNT(*) FROM " + CellsTable.TABLE_NAME + ")";
+
+    static final String QUERY_LOCAL_SINCE = "SELECT IFNULL(MIN(" + CellsTable.COLUMN_DISCOVERED_AT + "), 0) FROM " + CellsTable.TABLE_NAME;
+
+    // grouped in memory, grouping in query needs temporary b-tree
+    static final String QUERY_TODAY_CELLS = "SELECT " + MeasurementsTable.COLUMN_CELL_ID + " FROM " + MeasurementsTable.TABLE_NAME
+            + " WHERE " + MeasurementsTable.COLUMN_MEASURED_AT + " >= ?";
+
+    static final String QUERY_TODAY_DISCOVERED_CELLS = "SELECT COUNT(*) FROM " + CellsTable.TABLE_NAME + " c WHERE c." + CellsTable.COLUMN_DISCOVERED_AT
+            + " >= ? AND NOT EXISTS (SELECT 1 FROM " + CellsArchiveTable.TABLE_NAME + " a WHERE " + CELL_KEY_MATCH + ")";
+
+    // cells whose all references are selected, refcount triggers remove them together with the measurements
+    private static final String QUERY_ORPHANED_CELLS = "SELECT COUNT(*), IFNULL(SUM(NOT EXISTS (SELECT 1 FROM " + CellsArchiveTable.TABLE_NAME + " a WHERE " + CELL_KEY_MATCH + ")), 0)"
+            + " FROM (SELECT " + MeasurementsTable.COLUMN_CELL_ID + ", COUNT(*) AS n FROM " + MeasurementsTable.TABLE_NAME + " WHERE %s GROUP BY +" + MeasurementsTable.COLUMN_CELL_ID + ") r"
+            + " INNER JOIN " + CellsTable.TABLE_NAME + " c ON c." + CellsTable.COLUMN_ROW_ID + " = r." + MeasurementsTable.COLUMN_CELL_ID
+            + " WHERE c." + CellsTable.COLUMN_REFCOUNT + " = r.n";
+
+    private final KnownCellsIndex knownCellsIndex;
+
+    private boolean loaded;
+    private long totalLocations;
+    private long localLocations;
+    private long localCells;
+    private long localDiscoveredCells;
+    private long localSince;
+    private long globalDiscoveredCells;
+    private long globalSince;
+
+    private boolean todayLoaded;
+    private long todayStart;
+    private long tomorrowStart;
+    private final Set<Long> todayCellIds = new HashSet<Long>();
+    private long todayLocations;
+    private long todayDiscoveredCells;
+
+    StatisticsCounters(KnownCellsIndex knownCellsIndex) {
+        this.knownCellsIndex = knownCellsIndex;
+    }
+
+    synchronized boolean needsReload(long now) {
+        return (!loaded || !todayLoaded || now >= tomorrowStart || !knownCellsIndex.isOpen());
+    }
+
+    synchronized void reload(SQLiteDatabase db, long now) {
+        knownCellsIndex.ensureOpen(db);
+        ensureLoaded(db);
+        if (!todayLoaded || now >= tomorrowStart) {
+            loadToday(db, now);
+        }
+    }
+
+    /**
+     * Loads persisted counters and verifies them against table sizes. Must be called before rows are changed.
+     */
+    synchronized void ensureLoaded(SQLiteDatabase db) {
+        if (!loaded) {
+            load(db);
+            if (!isConsistent(db)) {
+                Timber.w("ensureLoaded(): Statistics drifted, rebuilding");
+                rebuild(db);
+            }
+        }
+    }
+
+    synchronized void rebuild(SQLiteDatabase db) {
+        db.execSQL(QUERY_REBUILD);
+        load(db);
+        knownCellsIndex.ensureOpen(db);
+        globalDiscoveredCells = knownCellsIndex.size();
+        store(db);
+        todayLoaded = false;
+        Timber.d("rebuild(): Statistics rebuilt");
+    }
+
+    synchronized void invalidate() {
+        loaded = false;
+        todayLoaded = false;
+    }
+
+    synchronized Statistics getStatistics() {
+        Statistics stats = new Statistics();
+        stats.setLocationsToday((int) todayLocations);
+        stats.setCellsToday(todayCellIds.size());
+        stats.setDiscoveredCellsToday((int) todayDiscoveredCells);
+        stats.setLocationsLocal((int) localLocations);
+        stats.setCellsLocal((int) localCells);
+        stats.setDiscoveredCellsLocal((int) localDiscoveredCells);
+        stats.setSinceLocal(localSince);
+        stats.setLocationsGlobal((int) totalLocations);
+        stats.setDiscoveredCellsGlobal((int) globalDiscoveredCells);
+        stats.setSinceGlobal(globalSince);
+        return stats;
+    }
+
+    /**
+     * Applies changes made by insert transaction (called before transaction is committed).
+     */
+    synchronized void apply(SQLiteDatabase db, Delta delta) {
+        if (delta.measurements == 0 && delta.newCells == 0)
+            return;
+        if (!loaded) {
+            // invalidated by failed transaction in the meantime, stored row doesn't contain this delta yet
+            load(db);
+        }
+        totalLocations += delta.measurements;
+        localLocations += delta.measurements;
+        if (delta.newCells > 0) {
+            localCells += delta.newCells;
+            localDiscoveredCells += delta.discoveredCells;
+            localSince = (localSince == 0 ? delta.discoveredAt : Math.min(localSince, delta.discoveredAt));
+            globalSince = (globalSince == 0 ? delta.discoveredAt : Math.min(globalSince, delta.discoveredAt));
+        }
+        // known cells index already contains cells discovered in this transaction
+        globalDiscoveredCells = knownCellsIndex.size();
+        store(db);
+        if (todayLoaded) {
+            if (delta.discoveredAt >= tomorrowStart) {
+                todayLoaded = false;
+                return;
+            }
+            for (int i = 0; i < delta.measurements; i++) {
+                if (delta.measuredAt[i] >= todayStart) {
+                    todayLocations++;
+                    todayCellIds.add(delta.cellIds[i]);
+                }
+            }
+            if (delta.discoveredAt >= todayStart) {
+                todayDiscoveredCells += delta.discoveredCells;
+            }
+        }
+    }
+
+    /**
+     * Counts cells which will be removed together with measurements matching the selection and how many of them were never archived before.
+     * Has to be called before the measurements are deleted.
+     */
+    void countOrphanedCells(SQLiteDatabase db, String selection, String[] selectionArgs, Deletion deletion) {
+        Cursor cursor = db.rawQuery(String.format(QUERY_ORPHANED_CELLS, selection), selectionArgs);
+        try {
+            if (cursor.moveToNext()) {
+                deletion.cells += cursor.getLong(0);
+                deletion.discoveredCells += cursor.getLong(1);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    synchronized void applyDeletion(SQLiteDatabase db, Deletion deletion) {
+        if (!loaded) {
+            load(db);
+        }
+        localLocations -= deletion.measurements;
+        localCells -= deletion.cells;
+        localDiscoveredCells -= deletion.discoveredCells;
+        if (deletion.cells > 0) {
+            localSince = queryForLong(db, QUERY_LOCAL_SINCE, null);
+        }
+        if (localLocations < 0 || localCells < 0 || localDiscoveredCells < 0) {
+            Timber.w("applyDeletion(): Statistics drifted, rebuilding");
+            rebuild(db);
+            return;
+        }
+        store(db);
+        // deleted rows may come from today, count again on next read
+        todayLoaded = false;
+    }
+
+    synchronized void applyDeletionOfAll(SQLiteDatabase db) {
+        if (!loaded) {
+            load(db);
+        }
+        localLocations = 0;
+        localCells = 0;
+        localDiscoveredCells = 0;
+        localSince = 0;
+        store(db);
+        todayCellIds.clear();
+        todayLocations = 0;
+        todayDiscoveredCells = 0;
+    }
+
+    private void load(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery(QUERY_SELECT, null);
+        try {
+            if (cursor.moveToNext()) {
+                totalLocations = cursor.getLong(0);
+                localLocations = cursor.getLong(1);
+                localCells = cursor.getLong(2);
+                localDiscoveredCells = cursor.getLong(3);
+                localSince = cursor.getLong(4);
+                globalDiscoveredCells = cursor.getLong(5);
+                globalSince = cursor.getLong(6);
+            }
+        } finally {
+            cursor.close();
+        }
+        if (knownCellsIndex.isOpen()) {
+            globalDiscoveredCells = knownCellsIndex.size();
+        }
+        loaded = true;
+        Timber.d("load(): Loaded %s local and %s global locations", localLocations, totalLocations);
+    }
+
+    private boolean isConsistent(SQLiteDatabase db) {
+        if (localCells < localDiscoveredCells || globalDiscoveredCells < localDiscoveredCells || totalLocations < localLocations)
+            return false;
+        Cursor cursor = db.rawQuery(QUERY_COUNT_LOCAL, null);
+        try {
+            return (cursor.moveToNext() && cursor.getLong(0) == localLocations && cursor.getLong(1) == localCells);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void store(SQLiteDatabase db) {
+        db.execSQL(QUERY_UPDATE, new Object[]{totalLocations, localLocations, localCells, localDiscoveredCells, localSince, globalDiscoveredCells, globalSince});
+    }
+
+    private void loadToday(SQLiteDatabase db, long now) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(now);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        todayStart = calendar.getTimeInMillis();
+        calendar.add(Calendar.DAY_OF_MONTH, 1);
+        tomorrowStart = calendar.getTimeInMillis();
+        String[] selectionArgs = new String[]{String.valueOf(todayStart)};
+        todayCellIds.clear();
+        todayLocations = 0;
+        Cursor cursor = db.rawQuery(QUERY_TODAY_CELLS, selectionArgs);
+        try {
+            while (cursor.moveToNext()) {
+                todayCellIds.add(cursor.getLong(0));
+                todayLocations++;
+            }
+        } finally {
+            cursor.close();
+        }
+        todayDiscoveredCells = queryForLong(db, QUERY_TODAY_DISCOVERED_CELLS, selectionArgs);
+        todayLoaded = true;
+        Timber.d("loadToday(): Loaded %s locations of %s cells since %s", todayLocations, todayCellIds.size(), todayStart);
+    }
+
+    private static long queryForLong(SQLiteDatabase db, String query, String[] selectionArgs) {
+        Cursor cursor = db.rawQuery(query, selectionArgs);
+        try {
+            return (cursor.moveToNext() ? cursor.getLong(0) : 0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Changes collected during one insert transaction. Reused between transactions to avoid allocations.
+     */
+    static final class Delta {
+        private int measurements;
+        private int newCells;
+        private int discoveredCells;
+        private long discoveredAt;
+        private long[] discoveredCellKeys = new long[16];
+        private long[] cellIds = new long[64];
+        private long[] measuredAt = new long[64];
+
+        void reset(long discoveredAt) {
+            this.measurements = 0;
+            this.newCells = 0;
+            this.discoveredCells = 0;
+            this.discoveredAt = discoveredAt;
+        }
+
+        void addMeasurement(long cellId, long timestamp) {
+            if (measurements == cellIds.length) {
+                long[] newCellIds = new long[measurements * 2];
+                long[] newMeasuredAt = new long[measurements * 2];
+                System.arraycopy(cellIds, 0, newCellIds, 0, measurements);
+                System.arraycopy(measuredAt, 0, newMeasuredAt, 0, measurements);
+                cellIds = newCellIds;
+                measuredAt = newMeasuredAt;
+            }
+            cellIds[measurements] = cellId;
+            measuredAt[measurements] = timestamp;
+            measurements++;
+        }
+
+        void addCell(long cellKey, boolean discovered) {
+            newCells++;
+            if (discovered) {
+                if (discoveredCells == discoveredCellKeys.length) {
+                    discoveredCellKeys = Arrays.copyOf(discoveredCellKeys, discoveredCells * 2);
+                }
+                discoveredCellKeys[discoveredCells++] = cellKey;
+            }
+        }
+
+        int getDiscoveredCells() {
+            return discoveredCells;
+        }
+
+        long getDiscoveredCellKey(int index) {
+            return discoveredCellKeys[index];
+        }
+    }
+
+    /**
+     * Rows removed by one delete transaction.
+     */
+    static final class Deletion {
+        private long measurements;
+        private long cells;
+        private long discoveredCells;
+
+        void addMeasurements(long measurements) {
+            this.measurements += measurements;
+        }
+
+        long getCells() {
+            return cells;
+        }
+    }
+}
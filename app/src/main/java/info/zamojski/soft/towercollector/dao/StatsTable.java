@@ -9,10 +9,32 @@ final class StatsTable implements ITable {
     static final String TABLE_NAME = "stats";
     static final String COLUMN_ROW_ID = "row_id";
     static final String COLUMN_TOTAL_LOCATIONS = "total_locations";
+    static final String COLUMN_LOCAL_LOCATIONS = "local_locations";
+    static final String COLUMN_LOCAL_CELLS = "local_cells";
+    static final String COLUMN_LOCAL_DISCOVERED_CELLS = "local_discovered_cells";
+    static final String COLUMN_LOCAL_SINCE = "local_since";
+    static final String COLUMN_GLOBAL_DISCOVERED_CELLS = "global_discovered_cells";
+    static final String COLUMN_GLOBAL_SINCE = "global_since";
+    static final String COLUMN_MIN_LATITUDE = "min_lat";
+    static final String COLUMN_MIN_LONGITUDE = "min_lon";
+    static final String COLUMN_MAX_LATITUDE = "max_lat";
+    static final String COLUMN_MAX_LONGITUDE = "max_lon";
+    static final String COLUMN_BOUNDS_VALID = "bounds_valid";
 
     private static final String QUERY_CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " ("
             + COLUMN_ROW_ID + " INTEGER PRIMARY KEY NOT NULL, "
-            + COLUMN_TOTAL_LOCATIONS + " INTEGER NOT NULL)";
+            + COLUMN_TOTAL_LOCATIONS + " INTEGER NOT NULL, "
+            + COLUMN_LOCAL_LOCATIONS + " INTEGER NOT NULL DEFAULT 0, "
+            + COLUMN_LOCAL_CELLS + " INTEGER NOT NULL DEFAULT 0, "
+            + COLUMN_LOCAL_DISCOVERED_CELLS + " INTEGER NOT NULL DEFAULT 0, "
+            + COLUMN_LOCAL_SINCE + " INTEGER NOT NULL DEFAULT 0, "
+            + COLUMN_GLOBAL_DISCOVERED_CELLS + " INTEGER NOT NULL DEFAULT 0, "
+            + COLUMN_GLOBAL_SINCE + " INTEGER NOT NULL DEFAULT 0, "
+            + COLUMN_MIN_LATITUDE + " REAL, "
+            + COLUMN_MIN_LONGITUDE + " REAL, "
+            + COLUMN_MAX_LATITUDE + " REAL, "
+            + COLUMN_MAX_LONGITUDE + " REAL, "
+            + COLUMN_BOUNDS_VALID + " INTEGER NOT NULL DEFAULT 0)";
 
     private static final String QUERY_INSERT_DEFAULT_ROW = "INSERT INTO " + TABLE_NAME + " ("
             + COLUMN_TOTAL_LOCATIONS + ") "
@@ -0,0 +1,90 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+/**
+ * Copies write-ahead log back to database file in separate task on writer thread so writes don't pay for it on commit.
+ */
+class WalCheckpointer {
+
+    static final String MODE_PASSIVE = "PASSIVE";
+    static final String MODE_FULL = "FULL";
+    static final String MODE_RESTART = "RESTART";
+
+    private static final long CHECKPOINT_DELAY = 10 * 1000;
+
+    private final SQLiteOpenHelper helper;
+    private final ScheduledExecutorService executor;
+
+    private ScheduledFuture<?> scheduledCheckpoint;
+
+    private final Runnable checkpointTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (WalCheckpointer.this) {
+                scheduledCheckpoint = null;
+            }
+            try {
+                checkpoint(MODE_PASSIVE);
+            } catch (SQLiteException | IllegalStateException ex) {
+                // database closed or busy, next write will schedule it again
+                Timber.w(ex, "run(): Background checkpoint failed");
+            }
+        }
+    };
+
+    WalCheckpointer(SQLiteOpenHelper helper, ScheduledExecutorService executor) {
+        this.helper = helper;
+        this.executor = executor;
+    }
+
+    /**
+     * Schedules checkpoint unless one is already pending. Called after every write so it is throttled, not postponed.
+     */
+    synchronized void requestCheckpoint() {
+        if (scheduledCheckpoint == null) {
+            scheduledCheckpoint = executor.schedule(checkpointTask, CHECKPOINT_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Runs checkpoint on calling thread.
+     *
+     * @return true if whole log has been copied to database file
+     */
+    boolean checkpoint(String mode) {
+        long start = System.currentTimeMillis();
+        Cursor cursor = helper.getWritableDatabase().rawQuery("PRAGMA wal_checkpoint(" + mode + ")", null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return false;
+            }
+            boolean busy = (cursor.getInt(0) != 0);
+            int logFrames = cursor.getInt(1);
+            int checkpointedFrames = cursor.getInt(2);
+            Timber.d("checkpoint(): %s checkpoint of %s/%s frames finished in %s ms, busy = %s", mode, checkpointedFrames, logFrames, (System.currentTimeMillis() - start), busy);
+            return !busy && checkpointedFrames == logFrames;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    synchronized void close() {
+        if (scheduledCheckpoint != null) {
+            scheduledCheckpoint.cancel(false);
+            scheduledCheckpoint = null;
+        }
+    }
+}
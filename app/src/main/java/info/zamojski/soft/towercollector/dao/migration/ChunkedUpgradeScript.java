@@ -0,0 +1,41 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao.migration;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Upgrade script which copies large table with set based statements in ranges of row ids.
+ * {@link DbMigrationHelper} commits each range separately together with checkpoint, so killed upgrade resumes from last range.
+ */
+abstract class ChunkedUpgradeScript implements IUpgradeScript {
+
+    /**
+     * Creates new structures, has to leave chunked table filled.
+     */
+    abstract void prepare(SQLiteDatabase database);
+
+    /**
+     * @return table with integer primary key row_id copied in chunks
+     */
+    abstract String getChunkedTable();
+
+    /**
+     * Copies rows of chunked table with row_id &gt; fromRowId and &lt;= toRowId.
+     */
+    abstract void migrateChunk(SQLiteDatabase database, long fromRowId, long toRowId);
+
+    /**
+     * Drops old structures and creates indexes and triggers.
+     */
+    abstract void finish(SQLiteDatabase database);
+
+    @Override
+    public void performUpgrade(SQLiteDatabase database) {
+        prepare(database);
+        migrateChunk(database, Long.MIN_VALUE, Long.MAX_VALUE);
+        finish(database);
+    }
+}
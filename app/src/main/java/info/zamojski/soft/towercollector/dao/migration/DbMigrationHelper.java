@@ -7,56 +7,235 @@ package info.zamojski.soft.towercollector.dao.migration;
 import java.util.ArrayList;
 import java.util.List;
 
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 
+import timber.log.Timber;
+
+/**
+ * Runs upgrade scripts one by one, each in own transaction together with new database version.
+ * Scripts copying large tables run in chunks with checkpoint stored in database, so upgrade interrupted
+ * by killed process continues from last committed chunk when started again. When called from
+ * {@link android.database.sqlite.SQLiteOpenHelper#onUpgrade(SQLiteDatabase, int, int)} all transactions
+ * are nested in the one opened by helper and checkpoints only allow to continue upgrade interrupted earlier.
+ */
 public class DbMigrationHelper {
 
+    private static final int CHUNK_SIZE = 20000;
+
+    private static final String CHECKPOINTS_TABLE = "migration_checkpoints";
+    private static final String QUERY_CREATE_CHECKPOINTS = "CREATE TABLE IF NOT EXISTS " + CHECKPOINTS_TABLE + " (version INTEGER PRIMARY KEY NOT NULL, first_row_id INTEGER NOT NULL, last_row_id INTEGER NOT NULL)";
+    private static final String QUERY_SELECT_CHECKPOINT = "SELECT first_row_id, last_row_id FROM " + CHECKPOINTS_TABLE + " WHERE version = ?";
+    private static final String QUERY_INSERT_CHECKPOINT = "INSERT OR REPLACE INTO " + CHECKPOINTS_TABLE + " (version, first_row_id, last_row_id) VALUES (?, ?, ?)";
+    private static final String QUERY_UPDATE_CHECKPOINT = "UPDATE " + CHECKPOINTS_TABLE + " SET last_row_id = ? WHERE version = ?";
+    private static final String QUERY_DELETE_CHECKPOINT = "DELETE FROM " + CHECKPOINTS_TABLE + " WHERE version = ?";
+
     private SQLiteDatabase database;
+    private List<Integer> versions;
     private List<IUpgradeScript> upgradeScripts;
 
     public DbMigrationHelper(SQLiteDatabase database) {
         this.database = database;
+        this.versions = new ArrayList<Integer>();
         this.upgradeScripts = new ArrayList<IUpgradeScript>();
     }
 
     public void upgrade(int from, int to) {
+        upgrade(from, to, null);
+    }
+
+    public void upgrade(int from, int to, IMigrationProgressListener listener) {
         registerScripts(from);
-        for (IUpgradeScript script : upgradeScripts) {
+        int steps = 0;
+        while (steps < versions.size() && versions.get(steps) <= to) {
+            steps++;
+        }
+        database.execSQL(QUERY_CREATE_CHECKPOINTS);
+        for (int i = 0; i < steps; i++) {
+            int version = versions.get(i);
+            IUpgradeScript script = upgradeScripts.get(i);
+            long startTime = System.currentTimeMillis();
+            if (script instanceof ChunkedUpgradeScript) {
+                performChunkedUpgrade(version, (ChunkedUpgradeScript) script, i + 1, steps, listener);
+            } else {
+                performUpgrade(version, script);
+            }
+            Timber.d("upgrade(): Upgrade to version %s took %s ms", version, System.currentTimeMillis() - startTime);
+            if (listener != null) {
+                listener.onMigrationProgress(i + 1, steps, 100);
+            }
+        }
+        database.execSQL("DROP TABLE IF EXISTS " + CHECKPOINTS_TABLE);
+    }
+
+    private void performUpgrade(int version, IUpgradeScript script) {
+        database.beginTransaction();
+        try {
             script.performUpgrade(database);
+            database.setVersion(version);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    private void performChunkedUpgrade(int version, ChunkedUpgradeScript script, int step, int steps, IMigrationProgressListener listener) {
+        long[] checkpoint = readCheckpoint(version);
+        if (checkpoint == null) {
+            database.beginTransaction();
+            try {
+                script.prepare(database);
+                long firstRowId = queryForLong("SELECT IFNULL(MIN(row_id), 1) - 1 FROM " + script.getChunkedTable());
+                checkpoint = new long[]{firstRowId, firstRowId};
+                executeStatement(QUERY_INSERT_CHECKPOINT, version, firstRowId, firstRowId);
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+        } else {
+            Timber.d("performChunkedUpgrade(): Resuming upgrade to version %s after row %s", version, checkpoint[1]);
+        }
+        long firstRowId = checkpoint[0];
+        long lastRowId = checkpoint[1];
+        long maxRowId = Math.max(queryForLong("SELECT IFNULL(MAX(row_id), 0) FROM " + script.getChunkedTable()), firstRowId);
+        int reportedPercent = -1;
+        while (lastRowId < maxRowId) {
+            long toRowId = Math.min(lastRowId + CHUNK_SIZE, maxRowId);
+            database.beginTransaction();
+            try {
+                script.migrateChunk(database, lastRowId, toRowId);
+                executeStatement(QUERY_UPDATE_CHECKPOINT, toRowId, version);
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+            lastRowId = toRowId;
+            int percent = (int) (100 * (lastRowId - firstRowId) / (maxRowId - firstRowId));
+            if (listener != null && percent != reportedPercent) {
+                listener.onMigrationProgress(step, steps, percent);
+                reportedPercent = percent;
+            }
+        }
+        database.beginTransaction();
+        try {
+            script.finish(database);
+            executeStatement(QUERY_DELETE_CHECKPOINT, version);
+            database.setVersion(version);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    private long[] readCheckpoint(int version) {
+        Cursor cursor = database.rawQuery(QUERY_SELECT_CHECKPOINT, new String[]{String.valueOf(version)});
+        try {
+            return (cursor.moveToFirst() ? new long[]{cursor.getLong(0), cursor.getLong(1)} : null);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private long queryForLong(String query) {
+        SQLiteStatement statement = database.compileStatement(query);
+        try {
+            return statement.simpleQueryForLong();
+        } finally {
+            statement.close();
         }
     }
 
+    private void executeStatement(String query, long... args) {
+        SQLiteStatement statement = database.compileStatement(query);
+        try {
+            for (int i = 0; i < args.length; i++) {
+                statement.bindLong(i + 1, args[i]);
+            }
+            statement.execute();
+        } finally {
+            statement.close();
+        }
+    }
+
+    private void register(int version, IUpgradeScript script) {
+        this.versions.add(version);
+        this.upgradeScripts.add(script);
+    }
+
     private void registerScripts(int from) {
         // order is important
         if (from < 2) {
-            this.upgradeScripts.add(new UpgradeScript2());
+            register(2, new UpgradeScript2());
         }
         if (from < 3) {
-            this.upgradeScripts.add(new UpgradeScript3());
+            register(3, new UpgradeScript3());
         }
         if (from < 4) {
-            this.upgradeScripts.add(new UpgradeScript4());
+            register(4, new UpgradeScript4());
         }
         if (from < 5) {
-            this.upgradeScripts.add(new UpgradeScript5());
+            register(5, new UpgradeScript5());
         }
         if (from < 6) {
-            this.upgradeScripts.add(new UpgradeScript6());
+            register(6, new UpgradeScript6());
         }
         if (from < 7) {
-            this.upgradeScripts.add(new UpgradeScript7());
+            register(7, new UpgradeScript7());
         }
         if (from < 8) {
-            this.upgradeScripts.add(new UpgradeScript8());
+            register(8, new UpgradeScript8());
         }
         if (from < 9) {
-            this.upgradeScripts.add(new UpgradeScript9());
+            register(9, new UpgradeScript9());
         }
         if (from < 10) {
-            this.upgradeScripts.add(new UpgradeScript10());
+            register(10, new UpgradeScript10());
         }
         if (from < 11) {
-            this.upgradeScripts.add(new UpgradeScript11());
+            register(11, new UpgradeScript11());
+        }
+        if (from < 12) {
+            register(12, new UpgradeScript12());
+        }
+        if (from < 13) {
+            register(13, new UpgradeScript13());
+        }
+        if (from < 14) {
+            register(14, new UpgradeScript14());
+        }
+        if (from < 15) {
+            register(15, new UpgradeScript15());
+        }
+        if (from < 16) {
+            register(16, new UpgradeScript16());
+        }
+        if (from < 17) {
+            register(17, new UpgradeScript17());
+        }
+        if (from < 18) {
+            register(18, new UpgradeScript18());
+        }
+        if (from < 19) {
+            register(19, new UpgradeScript19());
+        }
+        if (from < 20) {
+            register(20, new UpgradeScript20());
+        }
+        if (from < 21) {
+            register(21, new UpgradeScript21());
+        }
+        if (from < 22) {
+            register(22, new UpgradeScript22());
+        }
+        if (from < 23) {
+            register(23, new UpgradeScript23());
+        }
+        if (from < 24) {
+            register(24, new UpgradeScript24());
+        }
+        if (from < 25) {
+            register(25, new UpgradeScript25());
         }
     }
 
@@ -0,0 +1,18 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao.migration;
+
+public interface IMigrationProgressListener {
+
+    /**
+     * Called on migrating thread after each committed script or chunk.
+     *
+     * @param step    number of current upgrade script, starting from 1
+     * @param steps   number of upgrade scripts to run
+     * @param percent progress of current upgrade script
+     */
+    void onMigrationProgress(int step, int steps, int percent);
+
+}
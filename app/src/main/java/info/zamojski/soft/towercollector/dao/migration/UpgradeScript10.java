@@ -4,19 +4,22 @@
 
 package info.zamojski.soft.towercollector.dao.migration;
 
-import info.zamojski.soft.towercollector.utils.HashUtils;
 import timber.log.Timber;
 
-import android.content.ContentValues;
-import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 
-class UpgradeScript10 implements IUpgradeScript {
+class UpgradeScript10 extends ChunkedUpgradeScript {
 
+    // unique key of location, only compared until locations get fingerprints in version 12
+    private static final String LOCATION_KEY = "(mb.lat || ';' || mb.lon || ';' || mb.accuracy || ';' || mb.speed || ';' || mb.bearing || ';' || mb.altitude)";
+    private static final String MIGRATED_MEASUREMENTS = "FROM measurements_backup mb "
+            + "INNER JOIN cells_backup cb ON mb.cell_id = cb.row_id "
+            + "INNER JOIN cells c ON (c.cid = cb.cid AND c.lac = cb.lac AND c.mnc = cb.mnc AND c.mcc = cb.mcc AND c.net_type = cb.net_type) "
+            + "WHERE mb.row_id > ? AND mb.row_id <= ? ";
 
     @Override
-    public void performUpgrade(SQLiteDatabase database) {
-        Timber.d("performUpgrade(): Upgrading db to version 10");
+    void prepare(SQLiteDatabase database) {
+        Timber.d("prepare(): Upgrading db to version 10");
         // backup old tables
         database.execSQL("ALTER TABLE measurements RENAME TO measurements_backup;");
         database.execSQL("ALTER TABLE cells RENAME TO cells_backup;");
@@ -73,74 +76,27 @@ class UpgradeScript10 implements IUpgradeScript {
         // migrate cells
         database.execSQL("INSERT INTO cells (mcc, mnc, lac, cid, net_type, discovered_at) "
                 + "SELECT DISTINCT mcc, mnc, lac, cid, net_type, discovered_at FROM cells_backup;");
-        // migrate locations and measurements
-        database.beginTransaction();
-        try {
-            String migrationQuery = "SELECT "
-                    + "mb.lat, "
-                    + "mb.lon, "
-                    + "mb.accuracy, "
-                    + "mb.speed, "
-                    + "mb.bearing, "
-                    + "mb.altitude, "
-                    + "(SELECT row_id FROM cells WHERE mcc = cb.mcc AND mnc = cb.mnc "
-                    + "AND lac = cb.lac AND cid = cb.cid AND net_type = cb.net_type) AS cell_id, "
-                    + "cb.psc, "
-                    + "mb.neighboring, "
-                    + "mb.ta, "
-                    + "mb.asu, "
-                    + "mb.dbm, "
-                    + "mb.measured_at "
-                    + "FROM measurements_backup mb "
-                    + "INNER JOIN cells_backup cb ON mb.cell_id = cb.row_id;";
-            Cursor mCursor = database.rawQuery(migrationQuery, null);
-
-            while (mCursor.moveToNext()) {
-                double latitude = mCursor.getDouble(0);
-                double longitude = mCursor.getDouble(1);
-                double accuracy = mCursor.getDouble(2);
-                double speed = mCursor.getDouble(3);
-                double bearing = mCursor.getDouble(4);
-                double altitude = mCursor.getDouble(5);
-                int cellId = mCursor.getInt(6);
-                int psc = mCursor.getInt(7);
-                int neighboring = mCursor.getInt(8);
-                int ta = mCursor.getInt(9);
-                int asu = mCursor.getInt(10);
-                int dbm = mCursor.getInt(11);
-                long measuredAt = mCursor.getLong(12);
-                String locationHashCode = HashUtils.toSha1(latitude, longitude, accuracy, speed, bearing, altitude);
-
-                ContentValues locationValues = new ContentValues();
-                locationValues.put("row_id", locationHashCode);
-                locationValues.put("lat", latitude);
-                locationValues.put("lon", longitude);
-                locationValues.put("accuracy", accuracy);
-                locationValues.put("speed", speed);
-                locationValues.put("bearing", bearing);
-                locationValues.put("altitude", altitude);
-                @SuppressWarnings("unused")
-                long locationRowId = database.insert("locations", null, locationValues);
+    }
 
-                ContentValues measurementValues = new ContentValues();
-                measurementValues.put("location_id", locationHashCode);
-                measurementValues.put("cell_id", cellId);
-                measurementValues.put("psc", psc);
-                measurementValues.put("neighboring", neighboring);
-                measurementValues.put("ta", ta);
-                measurementValues.put("asu", asu);
-                measurementValues.put("dbm", dbm);
-                measurementValues.put("measured_at", measuredAt);
-                @SuppressWarnings("unused")
-                long measurementRowId = database.insert("measurements", null, measurementValues);
-            }
+    @Override
+    String getChunkedTable() {
+        return "measurements_backup";
+    }
 
-            mCursor.close();
+    @Override
+    void migrateChunk(SQLiteDatabase database, long fromRowId, long toRowId) {
+        Object[] rowIdRange = new Object[]{fromRowId, toRowId};
+        database.execSQL("INSERT INTO locations (row_id, lat, lon, accuracy, speed, bearing, altitude) "
+                + "SELECT " + LOCATION_KEY + ", mb.lat, mb.lon, mb.accuracy, mb.speed, mb.bearing, mb.altitude "
+                + MIGRATED_MEASUREMENTS, rowIdRange);
+        database.execSQL("INSERT INTO measurements (location_id, cell_id, psc, neighboring, ta, asu, dbm, measured_at) "
+                + "SELECT " + LOCATION_KEY + ", c.row_id, cb.psc, mb.neighboring, mb.ta, mb.asu, mb.dbm, mb.measured_at "
+                + MIGRATED_MEASUREMENTS
+                + "ORDER BY mb.row_id", rowIdRange);
+    }
 
-            database.setTransactionSuccessful();
-        } finally {
-            database.endTransaction();
-        }
+    @Override
+    void finish(SQLiteDatabase database) {
         // drop old indexes
         database.execSQL("DROP INDEX 'IX_measurements_cell_id';");
         database.execSQL("DROP INDEX 'IX_measurements_measured_at';");
@@ -8,12 +8,12 @@ import android.database.sqlite.SQLiteDatabase;
 
 import timber.log.Timber;
 
-class UpgradeScript11 implements IUpgradeScript {
+class UpgradeScript11 extends ChunkedUpgradeScript {
 
 
     @Override
-    public void performUpgrade(SQLiteDatabase database) {
-        Timber.d("performUpgrade(): Upgrading db to version 11");
+    void prepare(SQLiteDatabase database) {
+        Timber.d("prepare(): Upgrading db to version 11");
         // backup old tables
         database.execSQL("ALTER TABLE locations RENAME TO locations_backup");
         database.execSQL("ALTER TABLE measurements RENAME TO measurements_backup");
@@ -44,7 +44,21 @@ class UpgradeScript11 implements IUpgradeScript {
             + "FOREIGN KEY(cell_id) REFERENCES cells(row_id))");
         // migrate data
         database.execSQL("INSERT INTO locations (hashcode, lat, lon, accuracy, speed, bearing, altitude) SELECT row_id, lat, lon, accuracy, speed, bearing, altitude FROM locations_backup");
-        database.execSQL("INSERT INTO measurements (location_id, cell_id, psc, neighboring, ta, asu, dbm, measured_at) SELECT l.row_id, cell_id, psc, neighboring, ta, asu, dbm, measured_at FROM measurements_backup INNER JOIN locations l ON l.hashcode = location_id");
+    }
+
+    @Override
+    String getChunkedTable() {
+        return "measurements_backup";
+    }
+
+    @Override
+    void migrateChunk(SQLiteDatabase database, long fromRowId, long toRowId) {
+        database.execSQL("INSERT INTO measurements (location_id, cell_id, psc, neighboring, ta, asu, dbm, measured_at) SELECT l.row_id, mb.cell_id, mb.psc, mb.neighboring, mb.ta, mb.asu, mb.dbm, mb.measured_at FROM measurements_backup mb INNER JOIN locations l ON l.hashcode = mb.location_id WHERE mb.row_id > ? AND mb.row_id <= ? ORDER BY mb.row_id",
+                new Object[]{fromRowId, toRowId});
+    }
+
+    @Override
+    void finish(SQLiteDatabase database) {
         // drop indexes on old table
         database.execSQL("DROP INDEX IF EXISTS IX_measurements_measured_at");
         database.execSQL("DROP INDEX IF EXISTS IX_measurements_location_id");
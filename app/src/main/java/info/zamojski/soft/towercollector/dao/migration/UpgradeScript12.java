@@ -0,0 +1,80 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao.migration;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import info.zamojski.soft.towercollector.utils.HashUtils;
+import timber.log.Timber;
+
+class UpgradeScript12 extends ChunkedUpgradeScript {
+
+    @Override
+    void prepare(SQLiteDatabase database) {
+        Timber.d("prepare(): Upgrading db to version 12");
+        // create new table next to old one (renaming old table would rewrite foreign key of measurements)
+        database.execSQL("CREATE TABLE locations_new ("
+                + "row_id INTEGER PRIMARY KEY NOT NULL, "
+                + "fingerprint INTEGER NOT NULL, "
+                + "lat REAL NOT NULL, "
+                + "lon REAL NOT NULL, "
+                + "accuracy REAL NOT NULL, "
+                + "speed REAL NOT NULL, "
+                + "bearing REAL NOT NULL, "
+                + "altitude REAL NOT NULL, "
+                + "UNIQUE (fingerprint) ON CONFLICT IGNORE)");
+        // fingerprints of current chunk
+        database.execSQL("CREATE TABLE location_fingerprints (row_id INTEGER PRIMARY KEY NOT NULL, fingerprint INTEGER NOT NULL)");
+    }
+
+    @Override
+    String getChunkedTable() {
+        return "locations";
+    }
+
+    @Override
+    void migrateChunk(SQLiteDatabase database, long fromRowId, long toRowId) {
+        Object[] args = new Object[]{fromRowId, toRowId};
+        // only fingerprint has to be computed in code
+        SQLiteStatement insertStatement = database.compileStatement("INSERT INTO location_fingerprints (row_id, fingerprint) VALUES (?, ?)");
+        Cursor cursor = database.rawQuery("SELECT row_id, lat, lon, accuracy, speed, bearing, altitude FROM locations WHERE row_id > ? AND row_id <= ?",
+                new String[]{String.valueOf(fromRowId), String.valueOf(toRowId)});
+        try {
+            while (cursor.moveToNext()) {
+                insertStatement.bindLong(1, cursor.getLong(0));
+                insertStatement.bindLong(2, HashUtils.toLocationFingerprint(cursor.getDouble(1), cursor.getDouble(2), cursor.getDouble(3), cursor.getDouble(4), cursor.getDouble(5), cursor.getDouble(6)));
+                insertStatement.executeInsert();
+            }
+        } finally {
+            cursor.close();
+            insertStatement.close();
+        }
+        // migrate data keeping row ids, first location with given fingerprint wins
+        database.execSQL("INSERT INTO locations_new (row_id, fingerprint, lat, lon, accuracy, speed, bearing, altitude) "
+                + "SELECT l.row_id, f.fingerprint, l.lat, l.lon, l.accuracy, l.speed, l.bearing, l.altitude FROM locations l "
+                + "INNER JOIN location_fingerprints f ON f.row_id = l.row_id WHERE l.row_id > ? AND l.row_id <= ? ORDER BY l.row_id", args);
+        // point measurements of duplicated locations to existing ones
+        database.execSQL("UPDATE measurements SET location_id = "
+                + "(SELECT n.row_id FROM location_fingerprints f INNER JOIN locations_new n ON n.fingerprint = f.fingerprint WHERE f.row_id = measurements.location_id) "
+                + "WHERE location_id IN (SELECT f.row_id FROM location_fingerprints f WHERE NOT EXISTS (SELECT 1 FROM locations_new n WHERE n.row_id = f.row_id))");
+        database.execSQL("DELETE FROM location_fingerprints");
+    }
+
+    @Override
+    void finish(SQLiteDatabase database) {
+        SQLiteStatement duplicatesStatement = database.compileStatement("SELECT (SELECT COUNT(*) FROM locations) - (SELECT COUNT(*) FROM locations_new)");
+        try {
+            Timber.d("finish(): Merged %s duplicated locations", duplicatesStatement.simpleQueryForLong());
+        } finally {
+            duplicatesStatement.close();
+        }
+        // replace old table
+        database.execSQL("DROP TABLE location_fingerprints");
+        database.execSQL("DROP TABLE locations");
+        database.execSQL("ALTER TABLE locations_new RENAME TO locations");
+    }
+}
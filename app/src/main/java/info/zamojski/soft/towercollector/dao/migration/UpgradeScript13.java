@@ -0,0 +1,34 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao.migration;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import timber.log.Timber;
+
+class UpgradeScript13 implements IUpgradeScript {
+
+    @Override
+    public void performUpgrade(SQLiteDatabase database) {
+        Timber.d("performUpgrade(): Upgrading db to version 13");
+        // counters are now updated once per transaction in code
+        database.execSQL("DROP TRIGGER IF EXISTS update_measurements_stats");
+        // add statistics counters
+        database.execSQL("ALTER TABLE stats ADD COLUMN local_locations INTEGER NOT NULL DEFAULT 0");
+        database.execSQL("ALTER TABLE stats ADD COLUMN local_cells INTEGER NOT NULL DEFAULT 0");
+        database.execSQL("ALTER TABLE stats ADD COLUMN local_discovered_cells INTEGER NOT NULL DEFAULT 0");
+        database.execSQL("ALTER TABLE stats ADD COLUMN local_since INTEGER NOT NULL DEFAULT 0");
+        database.execSQL("ALTER TABLE stats ADD COLUMN global_discovered_cells INTEGER NOT NULL DEFAULT 0");
+        database.execSQL("ALTER TABLE stats ADD COLUMN global_since INTEGER NOT NULL DEFAULT 0");
+        // fill counters
+        database.execSQL("UPDATE stats SET "
+                + "local_locations = (SELECT COUNT(*) FROM measurements), "
+                + "local_cells = (SELECT COUNT(*) FROM cells), "
+                + "local_discovered_cells = (SELECT COUNT(*) FROM (SELECT cid, lac, mnc, mcc, net_type FROM cells EXCEPT SELECT cid, lac, mnc, mcc, net_type FROM cells_archive)), "
+                + "local_since = IFNULL((SELECT MIN(discovered_at) FROM cells), 0), "
+                + "global_discovered_cells = (SELECT COUNT(*) FROM (SELECT cid, lac, mnc, mcc, net_type FROM cells UNION SELECT cid, lac, mnc, mcc, net_type FROM cells_archive)), "
+                + "global_since = IFNULL((SELECT MIN(discovered_at) FROM (SELECT discovered_at FROM cells UNION ALL SELECT discovered_at FROM cells_archive)), 0)");
+    }
+}
@@ -0,0 +1,20 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao.migration;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import timber.log.Timber;
+
+class UpgradeScript14 implements IUpgradeScript {
+
+    @Override
+    public void performUpgrade(SQLiteDatabase database) {
+        Timber.d("performUpgrade(): Upgrading db to version 14");
+        // replace time index with composite one matching keyset pagination order
+        database.execSQL("DROP INDEX IF EXISTS IX_measurements_measured_at");
+        database.execSQL("CREATE INDEX 'IX_measurements_measured_at_row_id' ON measurements (measured_at ASC, row_id ASC);");
+    }
+}
@@ -0,0 +1,33 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao.migration;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import timber.log.Timber;
+
+class UpgradeScript15 implements IUpgradeScript {
+
+    @Override
+    public void performUpgrade(SQLiteDatabase database) {
+        Timber.d("performUpgrade(): Upgrading db to version 15");
+        // count measurements referencing cells and locations
+        database.execSQL("ALTER TABLE cells ADD COLUMN refcount INTEGER NOT NULL DEFAULT 0");
+        database.execSQL("ALTER TABLE locations ADD COLUMN refcount INTEGER NOT NULL DEFAULT 0");
+        database.execSQL("UPDATE cells SET refcount = (SELECT COUNT(*) FROM measurements m WHERE m.cell_id = cells.row_id)");
+        database.execSQL("UPDATE locations SET refcount = (SELECT COUNT(*) FROM measurements m WHERE m.location_id = locations.row_id)");
+        database.execSQL("DELETE FROM cells WHERE refcount = 0");
+        database.execSQL("DELETE FROM locations WHERE refcount = 0");
+        // keep counts up to date and remove orphans together with last measurement
+        database.execSQL("CREATE TRIGGER 'reference_measurement' AFTER INSERT ON measurements BEGIN "
+                + "UPDATE cells SET refcount = refcount + 1 WHERE row_id = new.cell_id; "
+                + "UPDATE locations SET refcount = refcount + 1 WHERE row_id = new.location_id; END");
+        database.execSQL("CREATE TRIGGER 'release_measurement' AFTER DELETE ON measurements BEGIN "
+                + "UPDATE cells SET refcount = refcount - 1 WHERE row_id = old.cell_id; "
+                + "UPDATE locations SET refcount = refcount - 1 WHERE row_id = old.location_id; "
+                + "DELETE FROM cells WHERE row_id = old.cell_id AND refcount <= 0; "
+                + "DELETE FROM locations WHERE row_id = old.location_id AND refcount <= 0; END");
+    }
+}
@@ -0,0 +1,22 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao.migration;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import timber.log.Timber;
+
+class UpgradeScript16 implements IUpgradeScript {
+
+    @Override
+    public void performUpgrade(SQLiteDatabase database) {
+        Timber.d("performUpgrade(): Upgrading db to version 16");
+        // indexes matching order of last measurements queries
+        database.execSQL("CREATE INDEX 'IX_measurements_measured_at_neighboring_row_id' ON measurements (measured_at DESC, neighboring DESC, row_id DESC);");
+        database.execSQL("DROP INDEX IF EXISTS IX_measurements_location_id");
+        database.execSQL("CREATE INDEX 'IX_measurements_location_id_neighboring_measured_at' ON measurements (location_id ASC, neighboring ASC, measured_at ASC, row_id ASC);");
+        database.execSQL("CREATE INDEX 'IX_cells_discovered_at' ON cells (discovered_at ASC);");
+    }
+}
@@ -0,0 +1,20 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao.migration;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import timber.log.Timber;
+
+class UpgradeScript17 implements IUpgradeScript {
+
+    @Override
+    public void performUpgrade(SQLiteDatabase database) {
+        Timber.d("performUpgrade(): Upgrading db to version 17");
+        // compressed blocks of uploaded measurements
+        database.execSQL("CREATE TABLE measurements_archive (row_id INTEGER PRIMARY KEY NOT NULL, day INTEGER NOT NULL, first_measured_at INTEGER NOT NULL, last_measured_at INTEGER NOT NULL, measurements_count INTEGER NOT NULL, data BLOB NOT NULL);");
+        database.execSQL("CREATE INDEX 'IX_measurements_archive_day' ON measurements_archive (day ASC);");
+    }
+}
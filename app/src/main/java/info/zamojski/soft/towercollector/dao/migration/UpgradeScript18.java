@@ -0,0 +1,76 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao.migration;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import timber.log.Timber;
+
+/**
+ * Computes quad keys the same way as {@link info.zamojski.soft.towercollector.utils.QuadKeyUtils#toQuadKey(double, double)}.
+ */
+class UpgradeScript18 extends ChunkedUpgradeScript {
+
+    // grid cells of longitude on low and latitude on high 24 bits
+    private static final String GRID_CELLS = "(MAX(0, MIN(16777215, CAST((lon + 180.0) / 360.0 * 16777216 AS INTEGER)))"
+            + " | (MAX(0, MIN(16777215, CAST((lat + 90.0) / 180.0 * 16777216 AS INTEGER))) << 24))";
+    // x on even and y on odd bits, spread byte by byte
+    private static final String INTERLEAVED_GRID_CELLS = "(" + spread("(quadkey & 16777215)") + " | (" + spread("(quadkey >> 24)") + " << 1))";
+
+    @Override
+    void prepare(SQLiteDatabase database) {
+        Timber.d("prepare(): Upgrading db to version 18");
+        // spatial key of locations
+        database.execSQL("ALTER TABLE locations ADD COLUMN quadkey INTEGER NOT NULL DEFAULT 0");
+        database.execSQL("CREATE TABLE quadkey_spread (value INTEGER PRIMARY KEY NOT NULL, bits INTEGER NOT NULL)");
+        SQLiteStatement insertStatement = database.compileStatement("INSERT INTO quadkey_spread (value, bits) VALUES (?, ?)");
+        try {
+            for (int value = 0; value < 256; value++) {
+                long bits = 0;
+                for (int i = 0; i < 8; i++) {
+                    bits |= ((value >> i) & 1L) << (2 * i);
+                }
+                insertStatement.bindLong(1, value);
+                insertStatement.bindLong(2, bits);
+                insertStatement.executeInsert();
+            }
+        } finally {
+            insertStatement.close();
+        }
+    }
+
+    @Override
+    String getChunkedTable() {
+        return "locations";
+    }
+
+    @Override
+    void migrateChunk(SQLiteDatabase database, long fromRowId, long toRowId) {
+        Object[] args = new Object[]{fromRowId, toRowId};
+        database.execSQL("UPDATE locations SET quadkey = " + GRID_CELLS + " WHERE row_id > ? AND row_id <= ?", args);
+        database.execSQL("UPDATE locations SET quadkey = " + INTERLEAVED_GRID_CELLS + " WHERE row_id > ? AND row_id <= ?", args);
+    }
+
+    @Override
+    void finish(SQLiteDatabase database) {
+        database.execSQL("DROP TABLE quadkey_spread");
+        database.execSQL("CREATE INDEX 'IX_locations_quadkey' ON locations (quadkey ASC);");
+        // bounds calculated on first use
+        database.execSQL("ALTER TABLE stats ADD COLUMN min_lat REAL");
+        database.execSQL("ALTER TABLE stats ADD COLUMN min_lon REAL");
+        database.execSQL("ALTER TABLE stats ADD COLUMN max_lat REAL");
+        database.execSQL("ALTER TABLE stats ADD COLUMN max_lon REAL");
+        database.execSQL("ALTER TABLE stats ADD COLUMN bounds_valid INTEGER NOT NULL DEFAULT 0");
+        database.execSQL("CREATE TRIGGER 'extend_location_bounds' AFTER INSERT ON locations BEGIN UPDATE stats SET min_lat = IFNULL(MIN(min_lat, NEW.lat), NEW.lat), min_lon = IFNULL(MIN(min_lon, NEW.lon), NEW.lon), max_lat = IFNULL(MAX(max_lat, NEW.lat), NEW.lat), max_lon = IFNULL(MAX(max_lon, NEW.lon), NEW.lon); END");
+        database.execSQL("CREATE TRIGGER 'invalidate_location_bounds' AFTER DELETE ON locations WHEN EXISTS (SELECT 1 FROM stats WHERE bounds_valid = 1 AND (OLD.lat <= min_lat OR OLD.lon <= min_lon OR OLD.lat >= max_lat OR OLD.lon >= max_lon)) BEGIN UPDATE stats SET bounds_valid = 0; END");
+    }
+
+    private static String spread(String cell) {
+        return "((SELECT bits FROM quadkey_spread WHERE value = (" + cell + " & 255))"
+                + " | ((SELECT bits FROM quadkey_spread WHERE value = ((" + cell + " >> 8) & 255)) << 16)"
+                + " | ((SELECT bits FROM quadkey_spread WHERE value = ((" + cell + " >> 16) & 255)) << 32))";
+    }
+}
@@ -0,0 +1,26 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao.migration;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import timber.log.Timber;
+
+class UpgradeScript19 implements IUpgradeScript {
+
+    @Override
+    public void performUpgrade(SQLiteDatabase database) {
+        Timber.d("performUpgrade(): Upgrading db to version 19");
+        // per day rollup of measurements, filled before triggers are created
+        database.execSQL("CREATE TABLE daily_stats (row_id INTEGER PRIMARY KEY NOT NULL, day INTEGER NOT NULL, net_type INTEGER NOT NULL, measurements INTEGER NOT NULL DEFAULT 0, cells INTEGER NOT NULL DEFAULT 0, UNIQUE (day, net_type) ON CONFLICT IGNORE);");
+        database.execSQL("CREATE TABLE daily_cells (row_id INTEGER PRIMARY KEY NOT NULL, day INTEGER NOT NULL, cell_id INTEGER NOT NULL, net_type INTEGER NOT NULL, measurements INTEGER NOT NULL DEFAULT 0, UNIQUE (day, cell_id) ON CONFLICT IGNORE);");
+        database.execSQL("INSERT INTO daily_cells (day, cell_id, net_type, measurements) SELECT m.measured_at / 86400000, m.cell_id, c.net_type, COUNT(*) FROM measurements m INNER JOIN cells c ON (c.row_id = m.cell_id) GROUP BY m.measured_at / 86400000, m.cell_id;");
+        database.execSQL("INSERT INTO daily_stats (day, net_type, measurements, cells) SELECT day, net_type, SUM(measurements), COUNT(*) FROM daily_cells GROUP BY day, net_type;");
+        database.execSQL("CREATE TRIGGER 'count_daily_cell' AFTER INSERT ON daily_cells BEGIN INSERT INTO daily_stats (day, net_type) VALUES (new.day, new.net_type); UPDATE daily_stats SET cells = cells + 1 WHERE day = new.day AND net_type = new.net_type; END;");
+        database.execSQL("CREATE TRIGGER 'release_daily_cell' AFTER DELETE ON daily_cells BEGIN UPDATE daily_stats SET cells = cells - 1 WHERE day = old.day AND net_type = old.net_type; DELETE FROM daily_stats WHERE day = old.day AND net_type = old.net_type AND cells <= 0; END;");
+        database.execSQL("CREATE TRIGGER 'rollup_measurement' AFTER INSERT ON measurements BEGIN INSERT INTO daily_cells (day, cell_id, net_type) SELECT (new.measured_at / 86400000), new.cell_id, net_type FROM cells WHERE row_id = new.cell_id; UPDATE daily_cells SET measurements = measurements + 1 WHERE day = (new.measured_at / 86400000) AND cell_id = new.cell_id; UPDATE daily_stats SET measurements = measurements + 1 WHERE day = (new.measured_at / 86400000) AND net_type = (SELECT net_type FROM daily_cells WHERE day = (new.measured_at / 86400000) AND cell_id = new.cell_id); END;");
+        database.execSQL("CREATE TRIGGER 'release_rollup_measurement' AFTER DELETE ON measurements BEGIN UPDATE daily_stats SET measurements = measurements - 1 WHERE day = (old.measured_at / 86400000) AND net_type = (SELECT net_type FROM daily_cells WHERE day = (old.measured_at / 86400000) AND cell_id = old.cell_id); UPDATE daily_cells SET measurements = measurements - 1 WHERE day = (old.measured_at / 86400000) AND cell_id = old.cell_id; DELETE FROM daily_cells WHERE day = (old.measured_at / 86400000) AND cell_id = old.cell_id AND measurements <= 0; END;");
+    }
+}
@@ -0,0 +1,39 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao.migration;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import timber.log.Timber;
+
+class UpgradeScript20 implements IUpgradeScript {
+
+    // same layout as CellKeyUtils, cells which cannot be encoded get negative key so they stay distinct
+    private static final String CELL_KEY = "(CASE WHEN n.row_id <= 16383 AND x.net_type BETWEEN 0 AND 7"
+            + " AND (x.lac BETWEEN 0 AND 65535 OR x.lac = 2147483647) AND (x.cid BETWEEN 0 AND 268435455 OR x.cid = 2147483647)"
+            + " THEN (x.net_type << 60) | (n.row_id << 46) | ((CASE WHEN x.lac = 2147483647 THEN 65536 ELSE x.lac END) << 29)"
+            + " | (CASE WHEN x.cid = 2147483647 THEN 268435456 ELSE x.cid END) END)";
+
+    @Override
+    public void performUpgrade(SQLiteDatabase database) {
+        Timber.d("performUpgrade(): Upgrading db to version 20");
+        database.execSQL("CREATE TABLE networks (row_id INTEGER PRIMARY KEY NOT NULL, mcc INTEGER NOT NULL, mnc INTEGER NOT NULL, UNIQUE (mcc, mnc) ON CONFLICT IGNORE);");
+        database.execSQL("INSERT INTO networks (mcc, mnc) SELECT mcc, mnc FROM cells UNION SELECT mcc, mnc FROM cells_archive;");
+        // copy back instead of rename, so triggers of measurements referencing cells are never validated against missing table
+        database.execSQL("CREATE TABLE cells_backup AS SELECT * FROM cells;");
+        database.execSQL("CREATE TABLE cells_archive_backup AS SELECT * FROM cells_archive;");
+        database.execSQL("DROP TABLE cells;");
+        database.execSQL("DROP TABLE cells_archive;");
+        database.execSQL("CREATE TABLE cells (row_id INTEGER PRIMARY KEY NOT NULL, mcc INTEGER NOT NULL, mnc INTEGER NOT NULL, lac INTEGER NOT NULL, cid INTEGER NOT NULL, net_type INTEGER NOT NULL, cell_key INTEGER NOT NULL, discovered_at INTEGER NOT NULL, refcount INTEGER NOT NULL DEFAULT 0, UNIQUE (cell_key) ON CONFLICT IGNORE);");
+        database.execSQL("INSERT INTO cells (row_id, mcc, mnc, lac, cid, net_type, cell_key, discovered_at, refcount) SELECT x.row_id, x.mcc, x.mnc, x.lac, x.cid, x.net_type, IFNULL(" + CELL_KEY + ", -x.row_id), x.discovered_at, x.refcount FROM cells_backup x INNER JOIN networks n ON (n.mcc = x.mcc AND n.mnc = x.mnc);");
+        database.execSQL("CREATE INDEX 'IX_cells_discovered_at' ON cells (discovered_at ASC);");
+        database.execSQL("CREATE TABLE cells_archive (row_id INTEGER PRIMARY KEY NOT NULL, mcc INTEGER NOT NULL, mnc INTEGER NOT NULL, lac INTEGER NOT NULL, cid INTEGER NOT NULL, net_type INTEGER NOT NULL, cell_key INTEGER NOT NULL, discovered_at INTEGER NOT NULL, UNIQUE (cell_key) ON CONFLICT IGNORE);");
+        // archived cells which cannot be encoded share key with the same cell in cells table
+        database.execSQL("INSERT INTO cells_archive (row_id, mcc, mnc, lac, cid, net_type, cell_key, discovered_at) SELECT x.row_id, x.mcc, x.mnc, x.lac, x.cid, x.net_type, IFNULL(" + CELL_KEY + ", IFNULL((SELECT c.cell_key FROM cells c WHERE c.cid = x.cid AND c.lac = x.lac AND c.mnc = x.mnc AND c.mcc = x.mcc AND c.net_type = x.net_type), -4294967296 - x.row_id)), x.discovered_at FROM cells_archive_backup x INNER JOIN networks n ON (n.mcc = x.mcc AND n.mnc = x.mnc);");
+        database.execSQL("CREATE TRIGGER 'archive_cell' BEFORE DELETE ON cells BEGIN INSERT INTO cells_archive (mcc, mnc, lac, cid, net_type, cell_key, discovered_at) VALUES (old.mcc, old.mnc, old.lac, old.cid, old.net_type, old.cell_key, old.discovered_at); END;");
+        database.execSQL("DROP TABLE cells_backup;");
+        database.execSQL("DROP TABLE cells_archive_backup;");
+    }
+}
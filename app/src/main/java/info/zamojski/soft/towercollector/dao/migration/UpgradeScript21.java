@@ -0,0 +1,21 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao.migration;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import timber.log.Timber;
+
+class UpgradeScript21 implements IUpgradeScript {
+
+    @Override
+    public void performUpgrade(SQLiteDatabase database) {
+        Timber.d("performUpgrade(): Upgrading db to version 21");
+        // existing rows hold single sample, so range is left empty and table is not rewritten
+        database.execSQL("ALTER TABLE measurements ADD COLUMN samples INTEGER NOT NULL DEFAULT 1;");
+        database.execSQL("ALTER TABLE measurements ADD COLUMN dbm_min INTEGER;");
+        database.execSQL("ALTER TABLE measurements ADD COLUMN dbm_max INTEGER;");
+    }
+}
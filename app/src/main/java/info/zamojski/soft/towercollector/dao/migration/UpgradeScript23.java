@@ -0,0 +1,22 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao.migration;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import timber.log.Timber;
+
+class UpgradeScript23 implements IUpgradeScript {
+
+    @Override
+    public void performUpgrade(SQLiteDatabase database) {
+        Timber.d("performUpgrade(): Upgrading db to version 23");
+        // daily rollup is maintained in bulk by inserting and deleting code
+        database.execSQL("DROP TRIGGER IF EXISTS rollup_measurement;");
+        database.execSQL("DROP TRIGGER IF EXISTS release_rollup_measurement;");
+        database.execSQL("DROP TRIGGER IF EXISTS count_daily_cell;");
+        database.execSQL("DROP TRIGGER IF EXISTS release_daily_cell;");
+    }
+}
@@ -0,0 +1,19 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao.migration;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import timber.log.Timber;
+
+class UpgradeScript24 implements IUpgradeScript {
+
+    @Override
+    public void performUpgrade(SQLiteDatabase database) {
+        Timber.d("performUpgrade(): Upgrading db to version 24");
+        // deletions from segments are repeated until committed in segment files
+        database.execSQL("CREATE TABLE segment_deletions (row_id INTEGER PRIMARY KEY NOT NULL, segment TEXT NOT NULL, last_measured_at INTEGER, last_row_id INTEGER, max_row_id INTEGER)");
+    }
+}
@@ -0,0 +1,23 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao.migration;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import timber.log.Timber;
+
+class UpgradeScript25 implements IUpgradeScript {
+
+    @Override
+    public void performUpgrade(SQLiteDatabase database) {
+        Timber.d("performUpgrade(): Upgrading db to version 25");
+        // cells are counted by key, so the same cell with new row id is not counted twice a day
+        database.execSQL("DROP TABLE IF EXISTS daily_cells;");
+        database.execSQL("CREATE TABLE daily_cells (row_id INTEGER PRIMARY KEY NOT NULL, day INTEGER NOT NULL, cell_key INTEGER NOT NULL, net_type INTEGER NOT NULL, measurements INTEGER NOT NULL DEFAULT 0, UNIQUE (day, cell_key) ON CONFLICT IGNORE);");
+        database.execSQL("INSERT INTO daily_cells (day, cell_key, net_type, measurements) SELECT m.measured_at / 86400000, c.cell_key, c.net_type, COUNT(*) FROM measurements m INNER JOIN cells c ON (c.row_id = m.cell_id) GROUP BY m.measured_at / 86400000, c.cell_key;");
+        database.execSQL("DELETE FROM daily_stats;");
+        database.execSQL("INSERT INTO daily_stats (day, net_type, measurements, cells) SELECT day, net_type, SUM(measurements), COUNT(*) FROM daily_cells GROUP BY day, net_type;");
+    }
+}
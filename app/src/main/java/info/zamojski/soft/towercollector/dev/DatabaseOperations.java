@@ -5,74 +5,247 @@
 package info.zamojski.soft.towercollector.dev;
 
 import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
 
 import android.content.Context;
 import android.os.Environment;
-import android.widget.Toast;
 
 import info.zamojski.soft.towercollector.R;
+import info.zamojski.soft.towercollector.dao.AsyncMeasurementsDatabase;
+import info.zamojski.soft.towercollector.dao.ImportResult;
 import info.zamojski.soft.towercollector.dao.MeasurementsDatabase;
+import info.zamojski.soft.towercollector.files.generators.wrappers.interfaces.IProgressListener;
 import info.zamojski.soft.towercollector.utils.FileUtils;
+import info.zamojski.soft.towercollector.utils.HashUtils;
 import timber.log.Timber;
 
 public class DatabaseOperations {
 
-    private static final String OPERATION_IMPORT = "import";
-    private static final String OPERATION_EXPORT = "export";
+    private static final String CHECKSUM_FILE_EXTENSION = ".sha256";
+    private static final String IMPORT_DIRECTORY = "import";
+    // smaller files are faster imported with indexes kept up to date
+    private static final long DEFER_INDEXES_MIN_FILE_SIZE = 5 * 1024 * 1024;
 
-    public static void importDatabase(Context context) {
+    /**
+     * Replaces database with exported one. Has to be called on database writer thread, see {@link AsyncMeasurementsDatabase#submitWrite}.
+     *
+     * @return id of result message
+     */
+    public static int importDatabase(Context context) {
+        String externalStorageState = Environment.getExternalStorageState();
+        if (!externalStorageState.equals(Environment.MEDIA_MOUNTED)) {
+            Timber.d("importDatabase(): External storage is not available");
+            return R.string.export_toast_no_storage;
+        }
+        File externalStorage = Environment.getExternalStorageDirectory();
+        if (!externalStorage.canWrite()) {
+            Timber.d("importDatabase(): External storage is read only");
+            return R.string.export_toast_storage_read_only;
+        }
         File srcFile = getDatabaseImportPath();
         File dstFile = getDatabasePath(context);
-        copyDatabase(context, srcFile, dstFile, OPERATION_IMPORT);
+        // close before overwriting the file
+        MeasurementsDatabase.invalidateInstance(context);
+        // sealed segments belong to previous database, exported ones are imported with it
+        MeasurementsDatabase.deleteSegments(context);
+        boolean copied = FileUtils.copyFile(srcFile, dstFile);
+        if (copied) {
+            importSegments(context);
+        }
+        // log and index belong to previous database
+        deleteWriteAheadLog(context);
+        deleteKnownCellsIndex(context);
+        if (!copied) {
+            Timber.e("importDatabase(): Cannot import database");
+            return R.string.database_import_export_failed_message;
+        }
+        Timber.d("importDatabase(): Database imported");
+        return R.string.database_import_message;
     }
 
-    public static void exportDatabase(Context context) {
-        File srcFile = getDatabasePath(context);
-        File dstFile = getDatabaseExportPath();
-        copyDatabase(context, srcFile, dstFile, OPERATION_EXPORT);
+    private static void importSegments(Context context) {
+        File[] srcFiles = FileUtils.getExternalStorageAppDir().listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return MeasurementsDatabase.isSegmentFile(file);
+            }
+        });
+        if (srcFiles == null) {
+            return;
+        }
+        for (File srcFile : srcFiles) {
+            if (FileUtils.copyFile(srcFile, context.getDatabasePath(srcFile.getName()))) {
+                Timber.d("importSegments(): Segment %s imported", srcFile.getName());
+            } else {
+                Timber.e("importSegments(): Cannot import segment %s", srcFile);
+            }
+        }
+    }
+
+    /**
+     * Exports consistent snapshot of database while collector may be running. Has to be called on background thread.
+     *
+     * @return id of result message
+     */
+    public static int exportDatabase(Context context, IProgressListener listener) {
+        return exportSnapshot(context, getDatabaseExportPath(), listener);
     }
 
-    public static void exportDatabaseUnique(Context context) {
-        File srcFile = getDatabasePath(context);
-        File dstFile = getDatabaseExportUniquePath();
-        copyDatabase(context, srcFile, dstFile, OPERATION_EXPORT);
+    public static int exportDatabaseUnique(Context context, IProgressListener listener) {
+        return exportSnapshot(context, getDatabaseExportUniquePath(), listener);
     }
 
-    private static void copyDatabase(Context context, File srcFile, File dstFile, String operation) {
+    private static int exportSnapshot(Context context, File dstFile, IProgressListener listener) {
+        String externalStorageState = Environment.getExternalStorageState();
+        if (!externalStorageState.equals(Environment.MEDIA_MOUNTED)) {
+            Timber.d("exportSnapshot(): External storage is not available");
+            return R.string.export_toast_no_storage;
+        }
+        File externalStorage = Environment.getExternalStorageDirectory();
+        if (!externalStorage.canWrite()) {
+            Timber.d("exportSnapshot(): External storage is read only");
+            return R.string.export_toast_storage_read_only;
+        }
+        dstFile.getParentFile().mkdirs();
+        if (dstFile.getName().equals(MeasurementsDatabase.DATABASE_FILE_NAME)) {
+            // segments of previous export would be imported with this one
+            deleteExportedSegments(dstFile.getParentFile());
+        }
+        List<File> exportedFiles = MeasurementsDatabase.getInstance(context).exportSnapshot(dstFile, listener);
+        if (exportedFiles == null) {
+            return R.string.database_import_export_failed_message;
+        }
+        for (File exportedFile : exportedFiles) {
+            if (!writeChecksum(exportedFile)) {
+                return R.string.database_import_export_failed_message;
+            }
+        }
+        return R.string.database_export_message;
+    }
+
+    private static boolean writeChecksum(File file) {
+        File checksumFile = new File(file.getPath() + CHECKSUM_FILE_EXTENSION);
         try {
-            String externalStorageState = Environment.getExternalStorageState();
-            if (externalStorageState.equals(Environment.MEDIA_MOUNTED)) {
-                File externalStorage = Environment.getExternalStorageDirectory();
-                if (externalStorage.canWrite()) {
-                    FileUtils.copyFile(srcFile, dstFile);
-                    Timber.d("copyDatabase(): Database " + operation + "ed");
-                    int operationMessage = operation.equals(OPERATION_IMPORT) ? R.string.database_import_message : R.string.database_export_message;
-                    Toast.makeText(context, operationMessage, Toast.LENGTH_LONG).show();
-                } else {
-                    Timber.d("copyDatabase(): External storage is read only");
-                    Toast.makeText(context, R.string.export_toast_storage_read_only, Toast.LENGTH_LONG).show();
+            // same format as sha256sum output
+            String checksum = HashUtils.toSha256(file);
+            Writer writer = new OutputStreamWriter(new FileOutputStream(checksumFile), "UTF-8");
+            try {
+                writer.write(checksum + "  " + file.getName() + "\n");
+            } finally {
+                writer.close();
+            }
+            Timber.d("writeChecksum(): File %s exported with checksum %s", file.getName(), checksum);
+            return true;
+        } catch (IOException ex) {
+            Timber.e(ex, "writeChecksum(): Cannot write checksum of %s", file);
+            checksumFile.delete();
+            return false;
+        }
+    }
+
+    private static void deleteExportedSegments(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (MeasurementsDatabase.isSegmentFile(file)) {
+                File checksumFile = new File(file.getPath() + CHECKSUM_FILE_EXTENSION);
+                if (!file.delete() || (checksumFile.exists() && !checksumFile.delete())) {
+                    Timber.e("deleteExportedSegments(): Failed to delete %s", file);
                 }
-            } else {
-                Timber.d("copyDatabase(): External storage is not available");
-                Toast.makeText(context, R.string.export_toast_no_storage, Toast.LENGTH_LONG).show();
             }
-        } catch (Exception ex) {
-            Timber.e(ex, "copyDatabase(): Cannot " + operation + " database");
-            Toast.makeText(context, R.string.database_import_export_failed_message, Toast.LENGTH_LONG).show();
         }
     }
 
-    public static void deleteDatabase(Context context) {
+    /**
+     * Imports measurements from all CSV and JSON files in import folder. Has to be called on background thread.
+     *
+     * @return result message
+     */
+    public static String importMeasurements(Context context, IProgressListener listener) {
+        String externalStorageState = Environment.getExternalStorageState();
+        if (!externalStorageState.equals(Environment.MEDIA_MOUNTED) && !externalStorageState.equals(Environment.MEDIA_MOUNTED_READ_ONLY)) {
+            Timber.d("importMeasurements(): External storage is not available");
+            return context.getString(R.string.export_toast_no_storage);
+        }
+        File[] files = getMeasurementsImportPath().listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                String name = file.getName().toLowerCase(Locale.ENGLISH);
+                return file.isFile() && (name.endsWith(".csv") || name.endsWith(".json"));
+            }
+        });
+        if (files == null || files.length == 0) {
+            Timber.d("importMeasurements(): No files to import");
+            return context.getString(R.string.measurements_import_no_files_message);
+        }
+        Arrays.sort(files);
+        AsyncMeasurementsDatabase database = AsyncMeasurementsDatabase.getInstance(context);
+        int imported = 0;
+        int duplicates = 0;
+        int rejected = 0;
+        for (int i = 0; i < files.length; i++) {
+            File file = files[i];
+            Timber.d("importMeasurements(): Importing file %s", file);
+            boolean deferIndexes = (file.length() >= DEFER_INDEXES_MIN_FILE_SIZE);
+            try {
+                // batches are interleaved with writes of collector which may be running
+                ImportResult result = database.importMeasurements(file, deferIndexes, new FileProgressListener(listener, i, files.length));
+                imported += result.getImported();
+                duplicates += result.getDuplicates();
+                rejected += result.getRejected();
+            } catch (IOException ex) {
+                Timber.e(ex, "importMeasurements(): Cannot import file %s", file);
+                return context.getString(R.string.database_import_export_failed_message);
+            }
+        }
+        return context.getString(R.string.measurements_import_message, imported, duplicates, rejected);
+    }
+
+    /**
+     * Deletes database with all its files. Has to be called on database writer thread, see {@link AsyncMeasurementsDatabase#submitWrite}.
+     *
+     * @return true if database file has been deleted
+     */
+    public static boolean deleteDatabase(Context context) {
         File dbFile = getDatabasePath(context);
         Timber.d("deleteDatabase(): Deleting file %s", dbFile);
+        MeasurementsDatabase.invalidateInstance(context);
+        MeasurementsDatabase.deleteSegments(context);
         boolean deleted = dbFile.delete();
         if (deleted) {
             Timber.d("deleteDatabase(): File deleted");
-            MeasurementsDatabase.invalidateInstance(context);
-            Toast.makeText(context, "Database file deleted", Toast.LENGTH_LONG).show();
+            deleteWriteAheadLog(context);
+            deleteKnownCellsIndex(context);
         } else {
             Timber.e("deleteDatabase(): Failed to delete database");
         }
+        return deleted;
+    }
+
+    private static void deleteWriteAheadLog(Context context) {
+        String dbPath = getDatabasePath(context).getPath();
+        for (String suffix : new String[]{"-wal", "-shm"}) {
+            File logFile = new File(dbPath + suffix);
+            if (logFile.exists() && !logFile.delete()) {
+                Timber.e("deleteWriteAheadLog(): Failed to delete %s", logFile);
+            }
+        }
+    }
+
+    private static void deleteKnownCellsIndex(Context context) {
+        File indexFile = context.getDatabasePath(MeasurementsDatabase.KNOWN_CELLS_INDEX_FILE_NAME);
+        if (indexFile.exists() && !indexFile.delete()) {
+            Timber.e("deleteKnownCellsIndex(): Failed to delete %s", indexFile);
+        }
     }
 
     private static File getDatabasePath(Context context) {
@@ -84,6 +257,10 @@ public class DatabaseOperations {
                 MeasurementsDatabase.DATABASE_FILE_NAME);
     }
 
+    private static File getMeasurementsImportPath() {
+        return new File(FileUtils.getExternalStorageAppDir(), IMPORT_DIRECTORY);
+    }
+
     private static File getDatabaseExportPath() {
         return new File(FileUtils.getExternalStorageAppDir(),
                 MeasurementsDatabase.DATABASE_FILE_NAME);
@@ -93,4 +270,27 @@ public class DatabaseOperations {
         return new File(FileUtils.getExternalStorageAppDir(),
                 System.currentTimeMillis() + "_" + MeasurementsDatabase.DATABASE_FILE_NAME);
     }
+
+    /**
+     * Reports progress of one file as part of progress of all files.
+     */
+    private static class FileProgressListener implements IProgressListener {
+
+        private final IProgressListener listener;
+        private final int fileIndex;
+        private final int filesCount;
+
+        FileProgressListener(IProgressListener listener, int fileIndex, int filesCount) {
+            this.listener = listener;
+            this.fileIndex = fileIndex;
+            this.filesCount = filesCount;
+        }
+
+        @Override
+        public void reportProgress(int value, int max) {
+            if (listener != null) {
+                listener.reportProgress((fileIndex * max + value) / filesCount, max);
+            }
+        }
+    }
 }
@@ -32,7 +32,7 @@ public class CsvExportFormatter extends CsvFormatter {
 
     @Override
     public String formatHeader() {
-        return "mcc,mnc,lac,cell_id,psc,asu,dbm,ta,lat,lon,accuracy,speed,bearing,altitude,measured_at,net_type,neighboring,device\r\n";
+        return "mcc,mnc,lac,cell_id,psc,asu,dbm,ta,lat,lon,accuracy,speed,bearing,altitude,measured_at,net_type,neighboring,device,samples,dbm_min,dbm_max\r\n";
     }
 
     @Override
@@ -90,6 +90,13 @@ public class CsvExportFormatter extends CsvFormatter {
         sb.append("\"");
         sb.append(deviceName);
         sb.append("\"");
+        sb.append(',');
+
+        sb.append(formatInt(m.getSamples()));
+        sb.append(',');
+        sb.append(formatDbmSignal(m.getDbmMin()));
+        sb.append(',');
+        sb.append(formatDbmSignal(m.getDbmMax()));
 
         sb.append("\r\n");
 
@@ -61,6 +61,9 @@ public class JsonBroadcastFormatter extends JsonFormatterBase implements IJsonFo
             cell.put("psc", formatNullable(m.getPsc(), Measurement.UNKNOWN_CID));
             cell.put("asu", formatNullable(m.getAsu(), Measurement.UNKNOWN_SIGNAL));
             cell.put("dbm", formatNullable(m.getDbm(), Measurement.UNKNOWN_SIGNAL));
+            cell.put("samples", m.getSamples());
+            cell.put("dbm_min", formatNullable(m.getDbmMin(), Measurement.UNKNOWN_SIGNAL));
+            cell.put("dbm_max", formatNullable(m.getDbmMax(), Measurement.UNKNOWN_SIGNAL));
             cell.put("ta", formatNullable(m.getTa(), Measurement.UNKNOWN_SIGNAL));
             cell.put("neighboring", m.isNeighboring());
             cell.put("net_type", cellUtils.getSystemType(m.getNetworkType()));
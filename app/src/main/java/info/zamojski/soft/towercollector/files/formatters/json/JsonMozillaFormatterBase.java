@@ -30,7 +30,7 @@ public abstract class JsonMozillaFormatterBase extends JsonFormatterBase {
 
     protected List<JSONObject> formatItems(List<Measurement> ms) throws JSONException {
         List<JSONObject> items = new ArrayList<>();
-        Map<String, List<Measurement>> groups = groupByLocationAndSkipUnsupported(ms);
+        Map<Long, List<Measurement>> groups = groupByLocationAndSkipUnsupported(ms);
         for (List<Measurement> group : groups.values()) {
             Measurement firstM = group.get(0);
             JSONObject item = new JSONObject();
@@ -74,18 +74,20 @@ public abstract class JsonMozillaFormatterBase extends JsonFormatterBase {
         return items;
     }
 
-    private Map<String, List<Measurement>> groupByLocationAndSkipUnsupported(List<Measurement> ms) {
-        Map<String, List<Measurement>> groups = new HashMap<>();
+    private Map<Long, List<Measurement>> groupByLocationAndSkipUnsupported(List<Measurement> ms) {
+        Map<Long, List<Measurement>> groups = new HashMap<>();
 
         for (Measurement m : ms) {
             if (m.getNetworkType() == NetworkGroup.Cdma || m.getMcc() == Measurement.UNKNOWN_CID)
                 continue; // Not supported
 
-            String locationHashCode = HashUtils.toSha1(m);
-            if (!groups.containsKey(locationHashCode)) {
-                groups.put(locationHashCode, new ArrayList<Measurement>());
+            Long locationFingerprint = HashUtils.toLocationFingerprint(m);
+            List<Measurement> group = groups.get(locationFingerprint);
+            if (group == null) {
+                group = new ArrayList<Measurement>();
+                groups.put(locationFingerprint, group);
             }
-            groups.get(locationHashCode).add(m);
+            group.add(m);
         }
 
         return groups;
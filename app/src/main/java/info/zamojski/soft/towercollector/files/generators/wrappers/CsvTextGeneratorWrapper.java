@@ -5,7 +5,6 @@
 package info.zamojski.soft.towercollector.files.generators.wrappers;
 
 import java.io.IOException;
-import java.util.List;
 
 import org.acra.ACRA;
 
@@ -20,6 +19,7 @@ import info.zamojski.soft.towercollector.files.DeviceOperationException.Reason;
 import info.zamojski.soft.towercollector.files.devices.IWritableTextDevice;
 import info.zamojski.soft.towercollector.files.formatters.csv.ICsvFormatter;
 import info.zamojski.soft.towercollector.files.generators.CsvTextGenerator;
+import info.zamojski.soft.towercollector.dao.IMeasurementVisitor;
 import info.zamojski.soft.towercollector.dao.MeasurementsDatabase;
 import info.zamojski.soft.towercollector.model.Measurement;
 import timber.log.Timber;
@@ -28,44 +28,61 @@ public class CsvTextGeneratorWrapper extends TextGeneratorWrapperBase {
 
 
     private CsvTextGenerator<ICsvFormatter, IWritableTextDevice> generator;
+    private boolean includeArchived;
 
-    public CsvTextGeneratorWrapper(Context context, IWritableTextDevice device, ICsvFormatter formatter) {
+    public CsvTextGeneratorWrapper(Context context, IWritableTextDevice device, ICsvFormatter formatter, boolean includeArchived) {
         this.context = context;
         this.device = device;
         this.generator = new CsvTextGenerator(formatter, device);
+        this.includeArchived = includeArchived;
     }
 
     public FileGeneratorResult generate() {
         try {
+            // buffered scans are exported too
+            MeasurementsDatabase.getInstance(context).flushPendingMeasurements();
             // get number of measurements to process
             int measurementsCount = MeasurementsDatabase.getInstance(context).getAllMeasurementsCount();
             // get last measurement row id
             Measurement lastMeasurement = MeasurementsDatabase.getInstance(context).getLastMeasurement();
+            if (lastMeasurement == null) {
+                measurementsCount = 0;
+            }
+            // archived measurements are older so they go first
+            if (includeArchived) {
+                measurementsCount += MeasurementsDatabase.getInstance(context).getArchivedMeasurementsCount();
+            }
             // check if there is anything to process
-            if (measurementsCount == 0 || lastMeasurement == null) {
+            if (measurementsCount == 0) {
                 Timber.d("generate(): Cancelling save due to no data");
                 return new FileGeneratorResult(GeneratorResult.NoData, Reason.Unknown);
             }
-            // calculate number of parts
+            // report progress once per part
             final int MEASUREMENTS_PER_PART = 400;
-            int partsCount = 1;
-            if (measurementsCount > MEASUREMENTS_PER_PART) {
-                partsCount = (int) Math.ceil(1.0 * measurementsCount / MEASUREMENTS_PER_PART);
-            }
+            final int total = measurementsCount;
             device.open();
             notifyProgressListeners(0, measurementsCount);
             // write header
             generator.writeHeader();
-            // get measurements in loop
-            for (int i = 0; i < partsCount; i++) {
-                // get from database
-                List<Measurement> measurements = MeasurementsDatabase.getInstance(context).getOlderMeasurements(lastMeasurement.getTimestamp(), i * MEASUREMENTS_PER_PART, MEASUREMENTS_PER_PART);
-                // write to file
-                generator.writeEntryChunk(measurements);
-                notifyProgressListeners(i * MEASUREMENTS_PER_PART + measurements.size(), measurementsCount);
-                if (cancel) {
-                    break;
+            // stream measurements straight to file
+            IMeasurementVisitor visitor = new IMeasurementVisitor() {
+                private int written = 0;
+
+                @Override
+                public boolean visit(Measurement measurement) throws IOException {
+                    generator.writeEntry(measurement);
+                    written++;
+                    if (written % MEASUREMENTS_PER_PART == 0) {
+                        notifyProgressListeners(written, total);
+                    }
+                    return !cancel;
                 }
+            };
+            if (includeArchived) {
+                MeasurementsDatabase.getInstance(context).forEachArchivedMeasurement(visitor);
+            }
+            if (lastMeasurement != null && !cancel) {
+                MeasurementsDatabase.getInstance(context).forEachOlderMeasurement(lastMeasurement.getTimestamp(), Integer.MAX_VALUE, visitor);
             }
             device.close();
             // fix for dialog not closed when operation is running in background and data deleted
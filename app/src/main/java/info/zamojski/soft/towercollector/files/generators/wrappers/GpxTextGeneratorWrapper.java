@@ -5,7 +5,6 @@
 package info.zamojski.soft.towercollector.files.generators.wrappers;
 
 import java.io.IOException;
-import java.util.List;
 
 import org.acra.ACRA;
 
@@ -22,6 +21,7 @@ import info.zamojski.soft.towercollector.files.devices.IWritableTextDevice;
 import info.zamojski.soft.towercollector.files.formatters.gpx.IGpxFormatter;
 import info.zamojski.soft.towercollector.files.formatters.gpx.model.HeaderData;
 import info.zamojski.soft.towercollector.files.generators.GpxTextGenerator;
+import info.zamojski.soft.towercollector.dao.IMeasurementVisitor;
 import info.zamojski.soft.towercollector.dao.MeasurementsDatabase;
 import info.zamojski.soft.towercollector.model.Boundaries;
 import info.zamojski.soft.towercollector.model.Measurement;
@@ -42,6 +42,8 @@ public class GpxTextGeneratorWrapper extends TextGeneratorWrapperBase {
     @Override
     public FileGeneratorResult generate() {
         try {
+            // buffered scans are exported too
+            MeasurementsDatabase.getInstance(context).flushPendingMeasurements();
             // get number of measurements to process
             int measurementsCount = MeasurementsDatabase.getInstance(context).getAllMeasurementsCount();
             // get last measurement row id
@@ -51,12 +53,9 @@ public class GpxTextGeneratorWrapper extends TextGeneratorWrapperBase {
                 Timber.d("generate(): Cancelling save due to no data");
                 return new FileGeneratorResult(GeneratorResult.NoData, Reason.Unknown);
             }
-            // calculate number of parts
+            // report progress once per part
             final int MEASUREMENTS_PER_PART = 400;
-            int partsCount = 1;
-            if (measurementsCount > MEASUREMENTS_PER_PART) {
-                partsCount = (int) Math.ceil(1.0 * measurementsCount / MEASUREMENTS_PER_PART);
-            }
+            final int total = measurementsCount;
             device.open();
             notifyProgressListeners(0, measurementsCount);
             // write header
@@ -68,26 +67,28 @@ public class GpxTextGeneratorWrapper extends TextGeneratorWrapperBase {
             headerData.LastMeasurementTimestamp = lastMeasurement.getTimestamp();
             headerData.Boundaries = bounds;
             generator.writeHeader(headerData);
-            // remember previous measurement
-            Measurement prevMeasurement = firstMeasurement;
-            // get measurements in loop
-            for (int i = 0; i < partsCount; i++) {
-                // get from database
-                List<Measurement> measurements = MeasurementsDatabase.getInstance(context).getOlderMeasurements(lastMeasurement.getTimestamp(), i * MEASUREMENTS_PER_PART, MEASUREMENTS_PER_PART);
-                // write to file
-                for (Measurement m : measurements) {
+            // remember previous timestamp only, streamed instance is reused
+            final long firstTimestamp = firstMeasurement.getTimestamp();
+            // stream measurements straight to file
+            MeasurementsDatabase.getInstance(context).forEachOlderMeasurement(lastMeasurement.getTimestamp(), Integer.MAX_VALUE, new IMeasurementVisitor() {
+                private long prevTimestamp = firstTimestamp;
+                private int written = 0;
+
+                @Override
+                public boolean visit(Measurement measurement) throws IOException {
                     // if time difference is more than 30 minutes then create new segment
-                    if ((m.getTimestamp() - prevMeasurement.getTimestamp()) > 1800000) {
+                    if ((measurement.getTimestamp() - prevTimestamp) > 1800000) {
                         generator.writeNewSegment();
                     }
-                    generator.writeEntry(m);
-                    prevMeasurement = m;
-                }
-                notifyProgressListeners(i * MEASUREMENTS_PER_PART + measurements.size(), measurementsCount);
-                if (cancel) {
-                    break;
+                    generator.writeEntry(measurement);
+                    prevTimestamp = measurement.getTimestamp();
+                    written++;
+                    if (written % MEASUREMENTS_PER_PART == 0) {
+                        notifyProgressListeners(written, total);
+                    }
+                    return !cancel;
                 }
-            }
+            });
             // write footer
             generator.writeFooter();
             device.close();
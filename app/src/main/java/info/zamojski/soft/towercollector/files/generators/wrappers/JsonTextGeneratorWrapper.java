@@ -37,6 +37,8 @@ public class JsonTextGeneratorWrapper extends TextGeneratorWrapperBase {
     @Override
     public FileGeneratorResult generate() {
         try {
+            // buffered scans are exported too
+            MeasurementsDatabase.getInstance(context).flushPendingMeasurements();
             // get number of measurements to process
             int measurementsCount = MeasurementsDatabase.getInstance(context).getAllMeasurementsCount();
             // get last measurement row id
@@ -56,12 +58,16 @@ public class JsonTextGeneratorWrapper extends TextGeneratorWrapperBase {
             notifyProgressListeners(0, measurementsCount);
             generator.writeHeader();
             // get measurements in loop
+            Measurement lastReadMeasurement = null;
             for (int i = 0; i < partsCount; i++) {
                 if (i > 0) {
                     generator.writeNewSegment();
                 }
                 // get from database
-                List<Measurement> measurements = MeasurementsDatabase.getInstance(context).getOlderMeasurements(lastMeasurement.getTimestamp(), i * MEASUREMENTS_PER_PART, MEASUREMENTS_PER_PART);
+                List<Measurement> measurements = MeasurementsDatabase.getInstance(context).getOlderMeasurements(lastMeasurement.getTimestamp(), lastReadMeasurement, MEASUREMENTS_PER_PART);
+                if (!measurements.isEmpty()) {
+                    lastReadMeasurement = measurements.get(measurements.size() - 1);
+                }
                 // write to file
                 generator.writeEntries(measurements);
                 notifyProgressListeners(i * MEASUREMENTS_PER_PART + measurements.size(), measurementsCount);
@@ -0,0 +1,26 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.files.readers;
+
+import java.io.IOException;
+
+import info.zamojski.soft.towercollector.model.Measurement;
+
+public interface IMeasurementReader {
+
+    /**
+     * Reads next measurement from the file into given instance.
+     *
+     * @return false if there are no more measurements
+     */
+    public boolean read(Measurement m) throws IOException;
+
+    /**
+     * @return progress of reading in range 0-100
+     */
+    public int getProgress();
+
+    public void close();
+}
@@ -0,0 +1,107 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.files.readers;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Locale;
+
+import info.zamojski.soft.towercollector.enums.NetworkGroup;
+import timber.log.Timber;
+
+/**
+ * Reads file sequentially with small buffer, so memory usage doesn't depend on file size.
+ * Progress is based on number of bytes consumed from the file.
+ */
+public abstract class MeasurementReaderBase implements IMeasurementReader {
+
+    private final long length;
+    private final CountingInputStream stream;
+    protected final Reader reader;
+
+    protected MeasurementReaderBase(File file) throws IOException {
+        this.length = file.length();
+        this.stream = new CountingInputStream(new FileInputStream(file));
+        this.reader = new InputStreamReader(stream, "UTF-8");
+    }
+
+    @Override
+    public int getProgress() {
+        return (length == 0 ? 100 : (int) Math.min(100, 100 * stream.getCount() / length));
+    }
+
+    @Override
+    public void close() {
+        try {
+            reader.close();
+        } catch (IOException ex) {
+            Timber.w(ex, "close(): Failed to close file");
+        }
+    }
+
+    /**
+     * Accepts system types written by all formatters (general, OpenCellID and Mozilla).
+     */
+    protected NetworkGroup parseNetworkType(String systemType) {
+        if (systemType == null)
+            return NetworkGroup.Unknown;
+        switch (systemType.toUpperCase(Locale.ENGLISH)) {
+            case "GSM":
+                return NetworkGroup.Gsm;
+            case "UMTS":
+            case "WCDMA":
+                return NetworkGroup.Wcdma;
+            case "LTE":
+                return NetworkGroup.Lte;
+            case "CDMA":
+                return NetworkGroup.Cdma;
+            default:
+                return NetworkGroup.Unknown;
+        }
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+            if (value != -1) {
+                count++;
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+}
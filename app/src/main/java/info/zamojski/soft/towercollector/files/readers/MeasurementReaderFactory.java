@@ -0,0 +1,42 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.files.readers;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Locale;
+
+import info.zamojski.soft.towercollector.files.readers.csv.CsvExportReader;
+import info.zamojski.soft.towercollector.files.readers.csv.CsvUploadReader;
+import info.zamojski.soft.towercollector.files.readers.json.JsonMozillaExportReader;
+
+public class MeasurementReaderFactory {
+
+    /**
+     * Creates reader for file written by one of export formatters, format is recognized by extension and CSV header.
+     */
+    public IMeasurementReader createReader(File file) throws IOException {
+        if (file.getName().toLowerCase(Locale.ENGLISH).endsWith(".json")) {
+            return new JsonMozillaExportReader(file);
+        }
+        String header;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            header = reader.readLine();
+        } finally {
+            reader.close();
+        }
+        if (header != null && header.startsWith(CsvExportReader.HEADER_PREFIX)) {
+            return new CsvExportReader(file);
+        }
+        if (header != null && header.startsWith(CsvUploadReader.HEADER_PREFIX)) {
+            return new CsvUploadReader(file);
+        }
+        throw new IOException("Unsupported format of file " + file.getName());
+    }
+}
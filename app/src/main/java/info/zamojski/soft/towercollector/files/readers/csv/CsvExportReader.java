@@ -0,0 +1,56 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.files.readers.csv;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import info.zamojski.soft.towercollector.model.Measurement;
+
+/**
+ * Reads files written by {@link info.zamojski.soft.towercollector.files.formatters.csv.CsvExportFormatter}.
+ */
+public class CsvExportReader extends CsvReader {
+
+    public static final String HEADER_PREFIX = "mcc,mnc,lac,cell_id,";
+
+    private static final String[] REQUIRED_COLUMNS = {"mcc", "mnc", "lac", "cell_id", "lat", "lon", "measured_at", "net_type"};
+
+    private final SimpleDateFormat dateFormat;
+
+    public CsvExportReader(File file) throws IOException {
+        super(file, REQUIRED_COLUMNS);
+        dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ENGLISH);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    @Override
+    protected void parseRow(Measurement m) throws ParseException {
+        m.setMcc(getInt("mcc", Measurement.UNKNOWN_CID));
+        m.setMnc(getInt("mnc", Measurement.UNKNOWN_CID));
+        m.setLac(getInt("lac", Measurement.UNKNOWN_CID));
+        m.setCid(getInt("cell_id", Measurement.UNKNOWN_CID));
+        m.setPsc(getInt("psc", Measurement.UNKNOWN_CID));
+        m.setAsu(getInt("asu", Measurement.UNKNOWN_SIGNAL));
+        m.setDbm(getInt("dbm", Measurement.UNKNOWN_SIGNAL));
+        m.setTa(getInt("ta", Measurement.UNKNOWN_SIGNAL));
+        m.setLatitude(getDouble("lat", 0));
+        m.setLongitude(getDouble("lon", 0));
+        m.setGpsAccuracy((float) getDouble("accuracy", Measurement.GPS_VALUE_NOT_AVAILABLE));
+        m.setGpsSpeed((float) getDouble("speed", Measurement.GPS_VALUE_NOT_AVAILABLE));
+        m.setGpsBearing((float) getDouble("bearing", Measurement.GPS_VALUE_NOT_AVAILABLE));
+        m.setGpsAltitude(getDouble("altitude", Measurement.GPS_VALUE_NOT_AVAILABLE));
+        m.setTimestamp(getDate("measured_at", dateFormat));
+        m.setNetworkType(parseNetworkType(getString("net_type")));
+        m.setNeighboring(Boolean.parseBoolean(getString("neighboring")));
+        m.setSamples(getInt("samples", 1));
+        m.setDbmMin(getInt("dbm_min", Measurement.UNKNOWN_SIGNAL));
+        m.setDbmMax(getInt("dbm_max", Measurement.UNKNOWN_SIGNAL));
+    }
+}
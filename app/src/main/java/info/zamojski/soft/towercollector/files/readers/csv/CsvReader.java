@@ -0,0 +1,121 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.files.readers.csv;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import info.zamojski.soft.towercollector.files.readers.MeasurementReaderBase;
+import info.zamojski.soft.towercollector.model.Measurement;
+
+/**
+ * Reads CSV file line by line. Columns are looked up by header names, so their order doesn't matter.
+ */
+public abstract class CsvReader extends MeasurementReaderBase {
+
+    private final BufferedReader lineReader;
+    private final Map<String, Integer> columns = new HashMap<>();
+    private String[] fields;
+    private int lineNumber;
+
+    protected CsvReader(File file, String[] requiredColumns) throws IOException {
+        super(file);
+        lineReader = new BufferedReader(reader);
+        String header = lineReader.readLine();
+        lineNumber = 1;
+        if (header == null) {
+            close();
+            throw new IOException("File is empty");
+        }
+        String[] names = split(header);
+        for (int i = 0; i < names.length; i++) {
+            columns.put(names[i].trim(), i);
+        }
+        for (String column : requiredColumns) {
+            if (!columns.containsKey(column)) {
+                close();
+                throw new IOException("Column " + column + " is missing");
+            }
+        }
+    }
+
+    @Override
+    public boolean read(Measurement m) throws IOException {
+        String line;
+        do {
+            line = lineReader.readLine();
+            if (line == null) {
+                return false;
+            }
+            lineNumber++;
+        } while (line.isEmpty());
+        fields = split(line);
+        try {
+            parseRow(m);
+        } catch (NumberFormatException | ParseException ex) {
+            throw new IOException("Invalid value in line " + lineNumber + ": " + ex.getMessage(), ex);
+        }
+        return true;
+    }
+
+    protected abstract void parseRow(Measurement m) throws ParseException;
+
+    protected String getString(String column) {
+        Integer index = columns.get(column);
+        return (index == null || index >= fields.length ? "" : fields[index]);
+    }
+
+    protected boolean isEmpty(String column) {
+        return getString(column).isEmpty();
+    }
+
+    protected int getInt(String column, int defaultValue) {
+        String value = getString(column);
+        return (value.isEmpty() ? defaultValue : Integer.parseInt(value));
+    }
+
+    protected double getDouble(String column, double defaultValue) {
+        String value = getString(column);
+        return (value.isEmpty() ? defaultValue : Double.parseDouble(value));
+    }
+
+    protected long getDate(String column, SimpleDateFormat format) throws ParseException {
+        return format.parse(getString(column)).getTime();
+    }
+
+    /**
+     * Splits line on commas outside of quotes and removes the quotes.
+     */
+    private static String[] split(String line) {
+        List<String> values = new ArrayList<>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                if (quoted && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    value.append(c);
+                    i++;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if (c == ',' && !quoted) {
+                values.add(value.toString());
+                value.setLength(0);
+            } else {
+                value.append(c);
+            }
+        }
+        values.add(value.toString());
+        return values.toArray(new String[values.size()]);
+    }
+}
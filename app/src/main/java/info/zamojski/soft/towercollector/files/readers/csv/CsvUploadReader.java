@@ -0,0 +1,63 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.files.readers.csv;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import info.zamojski.soft.towercollector.model.Measurement;
+
+/**
+ * Reads files written by {@link info.zamojski.soft.towercollector.files.formatters.csv.CsvUploadFormatter}.
+ * The format doesn't contain altitude and neighboring flag, signal is treated as dBm when negative and as ASU otherwise.
+ */
+public class CsvUploadReader extends CsvReader {
+
+    public static final String HEADER_PREFIX = "lat,lon,mcc,mnc,";
+
+    private static final String[] REQUIRED_COLUMNS = {"lat", "lon", "mcc", "mnc", "sid", "lac", "tac", "nid", "cellid", "bid", "measured_at", "act"};
+
+    private final SimpleDateFormat dateFormat;
+
+    public CsvUploadReader(File file) throws IOException {
+        super(file, REQUIRED_COLUMNS);
+        dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS'Z'", Locale.ENGLISH);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    @Override
+    protected void parseRow(Measurement m) throws ParseException {
+        if (isEmpty("mcc")) {
+            // CDMA: system, network and base station ids
+            m.setMcc(Measurement.UNKNOWN_CID);
+            m.setMnc(getInt("sid", Measurement.UNKNOWN_CID));
+            m.setLac(getInt("nid", Measurement.UNKNOWN_CID));
+            m.setCid(getInt("bid", Measurement.UNKNOWN_CID));
+        } else {
+            m.setMcc(getInt("mcc", Measurement.UNKNOWN_CID));
+            m.setMnc(getInt("mnc", Measurement.UNKNOWN_CID));
+            m.setLac(isEmpty("tac") ? getInt("lac", Measurement.UNKNOWN_CID) : getInt("tac", Measurement.UNKNOWN_CID));
+            m.setCid(getInt("cellid", Measurement.UNKNOWN_CID));
+        }
+        m.setPsc(isEmpty("pci") ? getInt("psc", Measurement.UNKNOWN_CID) : getInt("pci", Measurement.UNKNOWN_CID));
+        int signal = getInt("signal", Measurement.UNKNOWN_SIGNAL);
+        m.setAsu(signal >= 0 ? signal : Measurement.UNKNOWN_SIGNAL);
+        m.setDbm(signal < 0 ? signal : Measurement.UNKNOWN_SIGNAL);
+        m.setTa(getInt("ta", Measurement.UNKNOWN_SIGNAL));
+        m.setLatitude(getDouble("lat", 0));
+        m.setLongitude(getDouble("lon", 0));
+        m.setGpsAccuracy((float) getDouble("rating", Measurement.GPS_VALUE_NOT_AVAILABLE));
+        m.setGpsSpeed((float) getDouble("speed", Measurement.GPS_VALUE_NOT_AVAILABLE));
+        m.setGpsBearing((float) getDouble("direction", Measurement.GPS_VALUE_NOT_AVAILABLE));
+        m.setGpsAltitude(Measurement.GPS_VALUE_NOT_AVAILABLE);
+        m.setTimestamp(getDate("measured_at", dateFormat));
+        m.setNetworkType(parseNetworkType(getString("act")));
+        m.setNeighboring(false);
+    }
+}
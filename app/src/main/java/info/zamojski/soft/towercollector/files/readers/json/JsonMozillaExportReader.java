@@ -0,0 +1,185 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.files.readers.json;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import info.zamojski.soft.towercollector.files.readers.MeasurementReaderBase;
+import info.zamojski.soft.towercollector.model.Measurement;
+
+/**
+ * Reads files written by {@link info.zamojski.soft.towercollector.files.formatters.json.JsonMozillaExportFormatter}.
+ * Items are parsed one at a time with streaming parser, only cell towers of current item are kept in memory.
+ */
+public class JsonMozillaExportReader extends MeasurementReaderBase {
+
+    private final JsonReader jsonReader;
+    private final List<Measurement> pendingCells = new ArrayList<>();
+    private int pendingIndex;
+    private boolean inItems;
+    private boolean finished;
+
+    public JsonMozillaExportReader(File file) throws IOException {
+        super(file);
+        jsonReader = new JsonReader(reader);
+    }
+
+    @Override
+    public boolean read(Measurement m) throws IOException {
+        while (pendingIndex == pendingCells.size()) {
+            if (!readItem()) {
+                return false;
+            }
+        }
+        Measurement cell = pendingCells.get(pendingIndex++);
+        copy(cell, m);
+        return true;
+    }
+
+    private boolean readItem() throws IOException {
+        if (finished) {
+            return false;
+        }
+        if (!inItems) {
+            jsonReader.beginObject();
+            while (!inItems) {
+                if (!jsonReader.hasNext()) {
+                    finished = true;
+                    return false;
+                }
+                if ("items".equals(jsonReader.nextName())) {
+                    jsonReader.beginArray();
+                    inItems = true;
+                } else {
+                    jsonReader.skipValue();
+                }
+            }
+        }
+        if (!jsonReader.hasNext()) {
+            // rest of the document is ignored
+            finished = true;
+            return false;
+        }
+        pendingCells.clear();
+        pendingIndex = 0;
+        Measurement position = new Measurement();
+        List<Measurement> cells = new ArrayList<>();
+        jsonReader.beginObject();
+        while (jsonReader.hasNext()) {
+            String name = jsonReader.nextName();
+            if ("timestamp".equals(name)) {
+                position.setTimestamp(jsonReader.nextLong());
+            } else if ("position".equals(name)) {
+                readPosition(position);
+            } else if ("cellTowers".equals(name)) {
+                jsonReader.beginArray();
+                while (jsonReader.hasNext()) {
+                    cells.add(readCellTower());
+                }
+                jsonReader.endArray();
+            } else {
+                jsonReader.skipValue();
+            }
+        }
+        jsonReader.endObject();
+        for (Measurement cell : cells) {
+            cell.setTimestamp(position.getTimestamp());
+            cell.setLatitude(position.getLatitude());
+            cell.setLongitude(position.getLongitude());
+            cell.setGpsAccuracy(position.getGpsAccuracy());
+            cell.setGpsAltitude(position.getGpsAltitude());
+            cell.setGpsBearing(position.getGpsBearing());
+            cell.setGpsSpeed(position.getGpsSpeed());
+            pendingCells.add(cell);
+        }
+        return true;
+    }
+
+    private void readPosition(Measurement position) throws IOException {
+        jsonReader.beginObject();
+        while (jsonReader.hasNext()) {
+            String name = jsonReader.nextName();
+            if (jsonReader.peek() == JsonToken.NULL) {
+                jsonReader.skipValue();
+            } else if ("latitude".equals(name)) {
+                position.setLatitude(jsonReader.nextDouble());
+            } else if ("longitude".equals(name)) {
+                position.setLongitude(jsonReader.nextDouble());
+            } else if ("accuracy".equals(name)) {
+                position.setGpsAccuracy((float) jsonReader.nextDouble());
+            } else if ("altitude".equals(name)) {
+                position.setGpsAltitude(jsonReader.nextDouble());
+            } else if ("heading".equals(name)) {
+                position.setGpsBearing((float) jsonReader.nextDouble());
+            } else if ("speed".equals(name)) {
+                position.setGpsSpeed((float) jsonReader.nextDouble());
+            } else {
+                jsonReader.skipValue();
+            }
+        }
+        jsonReader.endObject();
+    }
+
+    private Measurement readCellTower() throws IOException {
+        Measurement cell = new Measurement();
+        jsonReader.beginObject();
+        while (jsonReader.hasNext()) {
+            String name = jsonReader.nextName();
+            if (jsonReader.peek() == JsonToken.NULL) {
+                jsonReader.skipValue();
+            } else if ("radioType".equals(name)) {
+                cell.setNetworkType(parseNetworkType(jsonReader.nextString()));
+            } else if ("mobileCountryCode".equals(name)) {
+                cell.setMcc(jsonReader.nextInt());
+            } else if ("mobileNetworkCode".equals(name)) {
+                cell.setMnc(jsonReader.nextInt());
+            } else if ("locationAreaCode".equals(name)) {
+                cell.setLac(jsonReader.nextInt());
+            } else if ("cellId".equals(name)) {
+                cell.setCid(jsonReader.nextInt());
+            } else if ("primaryScramblingCode".equals(name)) {
+                cell.setPsc(jsonReader.nextInt());
+            } else if ("asu".equals(name)) {
+                cell.setAsu(jsonReader.nextInt());
+            } else if ("signalStrength".equals(name)) {
+                cell.setDbm(jsonReader.nextInt());
+            } else if ("timingAdvance".equals(name)) {
+                cell.setTa(jsonReader.nextInt());
+            } else if ("serving".equals(name)) {
+                cell.setNeighboring(jsonReader.nextInt() == 0);
+            } else {
+                jsonReader.skipValue();
+            }
+        }
+        jsonReader.endObject();
+        return cell;
+    }
+
+    private static void copy(Measurement source, Measurement m) {
+        m.setMcc(source.getMcc());
+        m.setMnc(source.getMnc());
+        m.setLac(source.getLac());
+        m.setCid(source.getCid());
+        m.setPsc(source.getPsc());
+        m.setNetworkType(source.getNetworkType());
+        m.setNeighboring(source.isNeighboring());
+        m.setAsu(source.getAsu());
+        m.setDbm(source.getDbm());
+        m.setTa(source.getTa());
+        m.setLatitude(source.getLatitude());
+        m.setLongitude(source.getLongitude());
+        m.setGpsAccuracy(source.getGpsAccuracy());
+        m.setGpsAltitude(source.getGpsAltitude());
+        m.setGpsBearing(source.getGpsBearing());
+        m.setGpsSpeed(source.getGpsSpeed());
+        m.setTimestamp(source.getTimestamp());
+    }
+}
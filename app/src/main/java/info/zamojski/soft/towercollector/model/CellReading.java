@@ -0,0 +1,205 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.model;
+
+import info.zamojski.soft.towercollector.enums.NetworkGroup;
+
+import java.io.Serializable;
+
+/**
+ * Cell identity and signal observed in one scan (location is stored separately in {@link LocationFix}).
+ */
+public class CellReading implements Serializable {
+    private static final long serialVersionUID = -3025817394626513284L;
+    /**
+     * Mobile Country Code.
+     */
+    private int mcc;
+    /**
+     * Mobile Network Code.
+     */
+    private int mnc;
+    /**
+     * Location Area Code.
+     */
+    private int lac;
+    /**
+     * Cell Tower ID.
+     */
+    private int cid;
+    /**
+     * Primary Scrambling Code.
+     */
+    private int psc;
+    /**
+     * Network Type as defined in TelephonyManager.
+     */
+    private NetworkGroup networkType;
+    /**
+     * Is cell neighboring.
+     */
+    private boolean neighboring;
+    /**
+     * Timing Advance.
+     */
+    private int ta;
+    /**
+     * Arbitrary Strength Unit Level.
+     */
+    private int asu;
+    /**
+     * Signal Strength in dBm.
+     */
+    private int dbm;
+    /**
+     * Number of merged samples, asu and dbm hold their mean.
+     */
+    private int samples;
+    /**
+     * Minimum Signal Strength of merged samples in dBm.
+     */
+    private int dbmMin;
+    /**
+     * Maximum Signal Strength of merged samples in dBm.
+     */
+    private int dbmMax;
+
+    public CellReading() {
+        mcc = mnc = cid = lac = psc = Measurement.UNKNOWN_CID;
+        neighboring = false;
+        ta = asu = dbm = Measurement.UNKNOWN_SIGNAL;
+        samples = 1;
+        dbmMin = dbmMax = Measurement.UNKNOWN_SIGNAL;
+        networkType = NetworkGroup.Unknown;
+    }
+
+    /**
+     * Copies cell part of measurement.
+     */
+    public CellReading(Measurement m) {
+        this.mcc = m.getMcc();
+        this.mnc = m.getMnc();
+        this.lac = m.getLac();
+        this.cid = m.getCid();
+        this.psc = m.getPsc();
+        this.networkType = m.getNetworkType();
+        this.neighboring = m.isNeighboring();
+        this.ta = m.getTa();
+        this.asu = m.getAsu();
+        this.dbm = m.getDbm();
+        this.samples = m.getSamples();
+        this.dbmMin = m.getDbmMin();
+        this.dbmMax = m.getDbmMax();
+    }
+
+    public int getMcc() {
+        return mcc;
+    }
+
+    public void setMcc(int mcc) {
+        this.mcc = mcc;
+    }
+
+    public int getMnc() {
+        return mnc;
+    }
+
+    public void setMnc(int mnc) {
+        this.mnc = mnc;
+    }
+
+    public int getLac() {
+        return lac;
+    }
+
+    public void setLac(int lac) {
+        this.lac = lac;
+    }
+
+    public int getCid() {
+        return cid;
+    }
+
+    public void setCid(int cid) {
+        this.cid = cid;
+    }
+
+    public int getPsc() {
+        return psc;
+    }
+
+    public void setPsc(int psc) {
+        this.psc = psc;
+    }
+
+    public NetworkGroup getNetworkType() {
+        return networkType;
+    }
+
+    public void setNetworkType(NetworkGroup networkType) {
+        this.networkType = networkType;
+    }
+
+    public boolean isNeighboring() {
+        return neighboring;
+    }
+
+    public void setNeighboring(boolean neighboring) {
+        this.neighboring = neighboring;
+    }
+
+    public int getTa() {
+        return ta;
+    }
+
+    public void setTa(int ta) {
+        this.ta = ta;
+    }
+
+    public int getAsu() {
+        return asu;
+    }
+
+    public void setAsu(int asu) {
+        this.asu = asu;
+    }
+
+    public int getDbm() {
+        return dbm;
+    }
+
+    public void setDbm(int dbm) {
+        this.dbm = dbm;
+    }
+
+    public int getSamples() {
+        return samples;
+    }
+
+    public void setSamples(int samples) {
+        this.samples = samples;
+    }
+
+    public int getDbmMin() {
+        return dbmMin;
+    }
+
+    public void setDbmMin(int dbmMin) {
+        this.dbmMin = dbmMin;
+    }
+
+    public int getDbmMax() {
+        return dbmMax;
+    }
+
+    public void setDbmMax(int dbmMax) {
+        this.dbmMax = dbmMax;
+    }
+
+    @Override
+    public String toString() {
+        return "CellReading [mcc=" + mcc + ", mnc=" + mnc + ", lac=" + lac + ", cid=" + cid + ", psc=" + psc + ", networkType=" + networkType + ", neighboring=" + neighboring + ", ta=" + ta + ", asu=" + asu + ", dbm=" + dbm + ", samples=" + samples + ", dbmMin=" + dbmMin + ", dbmMax=" + dbmMax + "]";
+    }
+}
@@ -0,0 +1,64 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.model;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import info.zamojski.soft.towercollector.enums.NetworkGroup;
+
+public class DailyStatistics implements Serializable {
+
+    private static final long serialVersionUID = 2786542210367245194L;
+
+    private long day;
+    private int[] measurements = new int[NetworkGroup.values().length];
+    private int[] cells = new int[NetworkGroup.values().length];
+
+    /**
+     * @param day start of the day (UTC) in milliseconds
+     */
+    public DailyStatistics(long day) {
+        this.day = day;
+    }
+
+    public long getDay() {
+        return day;
+    }
+
+    public int getMeasurements() {
+        return sum(measurements);
+    }
+
+    public int getMeasurements(NetworkGroup networkType) {
+        return measurements[networkType.ordinal()];
+    }
+
+    public int getCells() {
+        return sum(cells);
+    }
+
+    public int getCells(NetworkGroup networkType) {
+        return cells[networkType.ordinal()];
+    }
+
+    public void add(NetworkGroup networkType, int measurements, int cells) {
+        this.measurements[networkType.ordinal()] += measurements;
+        this.cells[networkType.ordinal()] += cells;
+    }
+
+    private static int sum(int[] values) {
+        int sum = 0;
+        for (int value : values) {
+            sum += value;
+        }
+        return sum;
+    }
+
+    @Override
+    public String toString() {
+        return "DailyStatistics [day=" + day + ", measurements=" + Arrays.toString(measurements) + ", cells=" + Arrays.toString(cells) + "]";
+    }
+}
@@ -0,0 +1,138 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.model;
+
+import java.io.Serializable;
+
+/**
+ * GPS fix shared by all cells observed in one scan.
+ */
+public class LocationFix implements Serializable {
+    private static final long serialVersionUID = 4482140751553437917L;
+    /**
+     * Geographic Latitude.
+     */
+    private double latitude;
+    /**
+     * Geographic Longitude.
+     */
+    private double longitude;
+    /**
+     * GPS Accuracy in m.
+     * 0 - not available.
+     */
+    private float gpsAccuracy;
+    /**
+     * GPS Speed in m/s.
+     * 0 - not available.
+     */
+    private float gpsSpeed;
+    /**
+     * GPS Bearing in degrees within range of (0-360].
+     * 0 - not available.
+     */
+    private float gpsBearing;
+    /**
+     * GPS Altitude in m.
+     * 0 - not available.
+     */
+    private double gpsAltitude;
+    /**
+     * Unix Timestamp of the scan with milliseconds.
+     */
+    private long timestamp;
+
+    public LocationFix() {
+        gpsAccuracy = Measurement.GPS_VALUE_NOT_AVAILABLE;
+        gpsSpeed = Measurement.GPS_VALUE_NOT_AVAILABLE;
+        gpsBearing = Measurement.GPS_VALUE_NOT_AVAILABLE;
+        gpsAltitude = Measurement.GPS_VALUE_NOT_AVAILABLE;
+        timestamp = System.currentTimeMillis();// with milliseconds
+    }
+
+    /**
+     * Copies location part of measurement.
+     */
+    public LocationFix(Measurement m) {
+        this.latitude = m.getLatitude();
+        this.longitude = m.getLongitude();
+        this.gpsAccuracy = m.getGpsAccuracy();
+        this.gpsSpeed = m.getGpsSpeed();
+        this.gpsBearing = m.getGpsBearing();
+        this.gpsAltitude = m.getGpsAltitude();
+        this.timestamp = m.getTimestamp();
+    }
+
+    /**
+     * Checks whether measurement has been taken at this fix.
+     */
+    public boolean isSameFix(Measurement m) {
+        return latitude == m.getLatitude() && longitude == m.getLongitude()
+                && gpsAccuracy == m.getGpsAccuracy() && gpsSpeed == m.getGpsSpeed()
+                && gpsBearing == m.getGpsBearing() && gpsAltitude == m.getGpsAltitude()
+                && timestamp == m.getTimestamp();
+    }
+
+    public double getLatitude() {
+        return latitude;
+    }
+
+    public void setLatitude(double latitude) {
+        this.latitude = latitude;
+    }
+
+    public double getLongitude() {
+        return longitude;
+    }
+
+    public void setLongitude(double longitude) {
+        this.longitude = longitude;
+    }
+
+    public float getGpsAccuracy() {
+        return gpsAccuracy;
+    }
+
+    public void setGpsAccuracy(float gpsAccuracy) {
+        this.gpsAccuracy = gpsAccuracy;
+    }
+
+    public float getGpsSpeed() {
+        return gpsSpeed;
+    }
+
+    public void setGpsSpeed(float gpsSpeed) {
+        this.gpsSpeed = gpsSpeed;
+    }
+
+    public float getGpsBearing() {
+        return gpsBearing;
+    }
+
+    public void setGpsBearing(float gpsBearing) {
+        this.gpsBearing = gpsBearing;
+    }
+
+    public double getGpsAltitude() {
+        return gpsAltitude;
+    }
+
+    public void setGpsAltitude(double gpsAltitude) {
+        this.gpsAltitude = gpsAltitude;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    @Override
+    public String toString() {
+        return "LocationFix [latitude=" + latitude + ", longitude=" + longitude + ", gpsAccuracy=" + gpsAccuracy + ", gpsSpeed=" + gpsSpeed + ", gpsBearing=" + gpsBearing + ", gpsAltitude=" + gpsAltitude + ", timestamp=" + timestamp + "]";
+    }
+}
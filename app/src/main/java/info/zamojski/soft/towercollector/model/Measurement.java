@@ -57,6 +57,18 @@ public class Measurement implements Serializable {
      * Signal Strength in dBm.
      */
     private int dbm;
+    /**
+     * Number of merged samples, asu and dbm hold their mean.
+     */
+    private int samples;
+    /**
+     * Minimum Signal Strength of merged samples in dBm.
+     */
+    private int dbmMin;
+    /**
+     * Maximum Signal Strength of merged samples in dBm.
+     */
+    private int dbmMax;
     /**
      * Geographic Latitude.
      */
@@ -97,6 +109,8 @@ public class Measurement implements Serializable {
         mcc = mnc = cid = lac = psc = UNKNOWN_CID;
         neighboring = false;
         ta = asu = dbm = UNKNOWN_SIGNAL;
+        samples = 1;
+        dbmMin = dbmMax = UNKNOWN_SIGNAL;
         gpsAccuracy = GPS_VALUE_NOT_AVAILABLE;
         gpsSpeed = GPS_VALUE_NOT_AVAILABLE;
         gpsBearing = GPS_VALUE_NOT_AVAILABLE;
@@ -120,6 +134,9 @@ public class Measurement implements Serializable {
         this.asu = m.asu;
         this.dbm = m.dbm;
         this.ta = m.ta;
+        this.samples = m.samples;
+        this.dbmMin = m.dbmMin;
+        this.dbmMax = m.dbmMax;
 
         this.latitude = m.latitude;
         this.longitude = m.longitude;
@@ -242,6 +259,30 @@ public class Measurement implements Serializable {
         this.dbm = dBm;
     }
 
+    public int getSamples() {
+        return samples;
+    }
+
+    public void setSamples(int samples) {
+        this.samples = samples;
+    }
+
+    public int getDbmMin() {
+        return dbmMin;
+    }
+
+    public void setDbmMin(int dbmMin) {
+        this.dbmMin = dbmMin;
+    }
+
+    public int getDbmMax() {
+        return dbmMax;
+    }
+
+    public void setDbmMax(int dbmMax) {
+        this.dbmMax = dbmMax;
+    }
+
     public void setLatitude(double latitude) {
         this.latitude = latitude;
     }
@@ -395,6 +436,6 @@ public class Measurement implements Serializable {
 
     @Override
     public String toString() {
-        return "Measurement [rowId=" + rowId + ", mcc=" + mcc + ", mnc=" + mnc + ", lac=" + lac + ", cid=" + cid + ", psc=" + psc + ", neighboring=" + neighboring + ", ta=" + ta + ", networkType=" + networkType + ", asu=" + asu + ", dbm=" + dbm + ", latitude=" + latitude + ", longitude=" + longitude + ", gpsAccuracy=" + gpsAccuracy + ", gpsSpeed=" + gpsSpeed + ", gpsBearing=" + gpsBearing + ", gpsAltitude=" + gpsAltitude + ", timestamp=" + timestamp + "]";
+        return "Measurement [rowId=" + rowId + ", mcc=" + mcc + ", mnc=" + mnc + ", lac=" + lac + ", cid=" + cid + ", psc=" + psc + ", neighboring=" + neighboring + ", ta=" + ta + ", networkType=" + networkType + ", asu=" + asu + ", dbm=" + dbm + ", samples=" + samples + ", dbmMin=" + dbmMin + ", dbmMax=" + dbmMax + ", latitude=" + latitude + ", longitude=" + longitude + ", gpsAccuracy=" + gpsAccuracy + ", gpsSpeed=" + gpsSpeed + ", gpsBearing=" + gpsBearing + ", gpsAltitude=" + gpsAltitude + ", timestamp=" + timestamp + "]";
     }
 }
@@ -6,6 +6,7 @@ package info.zamojski.soft.towercollector.preferences;
 
 import android.Manifest;
 import android.app.AlertDialog;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
@@ -17,12 +18,18 @@ import android.preference.PreferenceManager;
 import android.preference.SwitchPreference;
 import android.widget.Toast;
 
+import java.util.concurrent.Callable;
+
 import info.zamojski.soft.towercollector.BuildConfig;
 import info.zamojski.soft.towercollector.CollectorService;
 import info.zamojski.soft.towercollector.MyApplication;
 import info.zamojski.soft.towercollector.R;
+import info.zamojski.soft.towercollector.dao.AsyncMeasurementsDatabase;
+import info.zamojski.soft.towercollector.dao.IDatabaseCallback;
 import info.zamojski.soft.towercollector.dev.DatabaseOperations;
 import info.zamojski.soft.towercollector.dev.PreferencesOperations;
+import info.zamojski.soft.towercollector.tasks.ExportDatabaseAsyncTask;
+import info.zamojski.soft.towercollector.tasks.ImportMeasurementsAsyncTask;
 import info.zamojski.soft.towercollector.utils.MobileUtils;
 import info.zamojski.soft.towercollector.utils.PermissionUtils;
 import permissions.dispatcher.NeedsPermission;
@@ -38,6 +45,9 @@ public class AdvancedPreferenceFragment extends DialogEnabledPreferenceFragment
 
     private ListPreference collectorApiVersionPreference;
     private ListPreference fileLoggingLevelPreference;
+    private ListPreference databaseSynchronousModePreference;
+    private ListPreference databaseCoalescingWindowPreference;
+    private ListPreference databaseCoalescingDistancePreference;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -46,6 +56,9 @@ public class AdvancedPreferenceFragment extends DialogEnabledPreferenceFragment
 
         collectorApiVersionPreference = (ListPreference) findPreference(getString(R.string.preferences_collector_api_version_key));
         fileLoggingLevelPreference = (ListPreference) findPreference(getString(R.string.preferences_file_logging_level_key));
+        databaseSynchronousModePreference = (ListPreference) findPreference(getString(R.string.preferences_database_synchronous_mode_key));
+        databaseCoalescingWindowPreference = (ListPreference) findPreference(getString(R.string.preferences_database_coalescing_window_key));
+        databaseCoalescingDistancePreference = (ListPreference) findPreference(getString(R.string.preferences_database_coalescing_distance_key));
 
         fileLoggingLevelPreference.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
             @Override
@@ -66,6 +79,7 @@ public class AdvancedPreferenceFragment extends DialogEnabledPreferenceFragment
         setupErrorReportingAvailability();
         setupDatabaseImport();
         setupDatabaseExport();
+        setupMeasurementsImport();
         setupPreferencesImport();
         setupPreferencesExport();
     }
@@ -90,6 +104,16 @@ public class AdvancedPreferenceFragment extends DialogEnabledPreferenceFragment
         });
     }
 
+    private void setupMeasurementsImport() {
+        setupOnClick(R.string.preferences_import_measurements_key, new Preference.OnPreferenceClickListener() {
+            @Override
+            public boolean onPreferenceClick(Preference preference) {
+                AdvancedPreferenceFragmentPermissionsDispatcher.importMeasurementsWithPermissionCheck(AdvancedPreferenceFragment.this);
+                return true;
+            }
+        });
+    }
+
     private void setupPreferencesImport() {
         showConfirmationDialog(R.string.preferences_import_preferences_key, R.string.unsafe_operation_warning_title,
                 R.string.unsafe_operation_warning_message, new DialogInterface.OnClickListener() {
@@ -117,6 +141,9 @@ public class AdvancedPreferenceFragment extends DialogEnabledPreferenceFragment
         // set summaries
         setupListPreferenceSummary(collectorApiVersionPreference, R.string.preferences_collector_api_version_summary);
         setupListPreferenceSummary(fileLoggingLevelPreference, R.string.preferences_file_logging_level_summary);
+        setupListPreferenceSummary(databaseSynchronousModePreference, R.string.preferences_database_synchronous_mode_summary);
+        setupListPreferenceSummary(databaseCoalescingWindowPreference, R.string.preferences_database_coalescing_window_summary);
+        setupListPreferenceSummary(databaseCoalescingDistancePreference, R.string.preferences_database_coalescing_distance_summary);
     }
 
     @Override
@@ -142,6 +169,23 @@ public class AdvancedPreferenceFragment extends DialogEnabledPreferenceFragment
             Timber.d("onSharedPreferenceChanged(): User set file logging level = \"%s\"", fileLoggingLevelValue);
             fileLoggingLevelPreference.setSummary(formatValueString(R.string.preferences_file_logging_level_summary, fileLoggingLevelLabel));
             // NOTE: configuration reapplied in PreferenceChangeListener
+        } else if (key.equals(getString(R.string.preferences_database_synchronous_mode_key))) {
+            Timber.d("onSharedPreferenceChanged(): User set database synchronous mode = \"%s\"", databaseSynchronousModePreference.getValue());
+            setupListPreferenceSummary(databaseSynchronousModePreference, R.string.preferences_database_synchronous_mode_summary);
+            Toast.makeText(getActivity(), R.string.preferences_restart_app, Toast.LENGTH_SHORT).show();
+        } else if (key.equals(getString(R.string.preferences_database_coalescing_window_key))) {
+            Timber.d("onSharedPreferenceChanged(): User set database coalescing window = \"%s\"", databaseCoalescingWindowPreference.getValue());
+            setupListPreferenceSummary(databaseCoalescingWindowPreference, R.string.preferences_database_coalescing_window_summary);
+            Toast.makeText(getActivity(), R.string.preferences_restart_app, Toast.LENGTH_SHORT).show();
+        } else if (key.equals(getString(R.string.preferences_database_coalescing_distance_key))) {
+            Timber.d("onSharedPreferenceChanged(): User set database coalescing distance = \"%s\"", databaseCoalescingDistancePreference.getValue());
+            setupListPreferenceSummary(databaseCoalescingDistancePreference, R.string.preferences_database_coalescing_distance_summary);
+            Toast.makeText(getActivity(), R.string.preferences_restart_app, Toast.LENGTH_SHORT).show();
+        } else if (key.equals(getString(R.string.preferences_database_write_behind_enabled_key))
+                || key.equals(getString(R.string.preferences_database_segmented_storage_enabled_key))
+                || key.equals(getString(R.string.preferences_database_coalescing_enabled_key))) {
+            Timber.d("onSharedPreferenceChanged(): User changed database option %s", key);
+            Toast.makeText(getActivity(), R.string.preferences_restart_app, Toast.LENGTH_SHORT).show();
         }
     }
 
@@ -177,13 +221,36 @@ public class AdvancedPreferenceFragment extends DialogEnabledPreferenceFragment
     @NeedsPermission(Manifest.permission.WRITE_EXTERNAL_STORAGE)
     void importDatabase() {
         Timber.d("importDatabase(): Importing database");
-        DatabaseOperations.importDatabase(MyApplication.getApplication());
+        final Context context = MyApplication.getApplication();
+        // replaced after writes already submitted by collector
+        AsyncMeasurementsDatabase.getInstance(context).submitWrite(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return DatabaseOperations.importDatabase(context);
+            }
+        }, new IDatabaseCallback<Integer>() {
+            @Override
+            public void onResult(Integer messageId) {
+                Toast.makeText(context, messageId, Toast.LENGTH_LONG).show();
+            }
+
+            @Override
+            public void onError(Exception ex) {
+                Toast.makeText(context, R.string.database_import_export_failed_message, Toast.LENGTH_LONG).show();
+            }
+        });
     }
 
     @NeedsPermission(Manifest.permission.WRITE_EXTERNAL_STORAGE)
     void exportDatabase() {
         Timber.d("exportDatabase(): Exporting database");
-        DatabaseOperations.exportDatabase(MyApplication.getApplication());
+        new ExportDatabaseAsyncTask(getActivity(), false).execute();
+    }
+
+    @NeedsPermission(Manifest.permission.WRITE_EXTERNAL_STORAGE)
+    void importMeasurements() {
+        Timber.d("importMeasurements(): Importing measurements");
+        new ImportMeasurementsAsyncTask(getActivity()).execute();
     }
 
     @NeedsPermission(Manifest.permission.WRITE_EXTERNAL_STORAGE)
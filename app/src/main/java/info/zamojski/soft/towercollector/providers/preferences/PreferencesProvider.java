@@ -108,6 +108,55 @@ public class PreferencesProvider {
         return value;
     }
 
+    public String getDatabaseSynchronousMode() {
+        String value = stringPreferenceProvider.getPreference(R.string.preferences_database_synchronous_mode_key, R.string.preferences_database_synchronous_mode_default_value);
+        return value;
+    }
+
+    public boolean getDatabaseWriteBehindEnabled() {
+        boolean value = booleanPreferenceProvider.getPreference(R.string.preferences_database_write_behind_enabled_key, R.bool.preferences_database_write_behind_enabled_default_value);
+        return value;
+    }
+
+    public boolean getDatabaseSegmentedStorageEnabled() {
+        boolean value = booleanPreferenceProvider.getPreference(R.string.preferences_database_segmented_storage_enabled_key, R.bool.preferences_database_segmented_storage_enabled_default_value);
+        return value;
+    }
+
+    public boolean getDatabaseCoalescingEnabled() {
+        boolean value = booleanPreferenceProvider.getPreference(R.string.preferences_database_coalescing_enabled_key, R.bool.preferences_database_coalescing_enabled_default_value);
+        return value;
+    }
+
+    public long getDatabaseCoalescingWindow() {
+        String value = stringPreferenceProvider.getPreference(R.string.preferences_database_coalescing_window_key, R.string.preferences_database_coalescing_window_default_value);
+        return Long.parseLong(value) * 1000;
+    }
+
+    public int getDatabaseCoalescingDistance() {
+        String value = stringPreferenceProvider.getPreference(R.string.preferences_database_coalescing_distance_key, R.string.preferences_database_coalescing_distance_default_value);
+        return Integer.parseInt(value);
+    }
+
+    public boolean getArchiveUploadedMeasurements() {
+        boolean value = booleanPreferenceProvider.getPreference(R.string.preferences_archive_uploaded_measurements_key, R.bool.preferences_archive_uploaded_measurements_default_value);
+        return value;
+    }
+
+    public boolean getExportIncludeArchived() {
+        boolean value = booleanPreferenceProvider.getPreference(R.string.preferences_export_include_archived_key, R.bool.preferences_export_include_archived_default_value);
+        return value;
+    }
+
+    public long getLastDatabaseMaintenanceDate() {
+        int value = integerPreferenceProvider.getPreference(R.string.preferences_last_database_maintenance_date_key, R.integer.preferences_last_database_maintenance_date_default_value);
+        return ((long) value) * 1000;
+    }
+
+    public void setLastDatabaseMaintenanceDate(long value) {
+        integerPreferenceProvider.setPreference(R.string.preferences_last_database_maintenance_date_key, (int) (value / 1000));
+    }
+
     public String getFileLoggingLevel() {
         String value = stringPreferenceProvider.getPreference(R.string.preferences_file_logging_level_key, R.string.preferences_file_logging_level_default_value);
         return value;
@@ -8,6 +8,7 @@ import org.acra.ACRA;
 
 import info.zamojski.soft.towercollector.MyApplication;
 import info.zamojski.soft.towercollector.dao.MeasurementsDatabase;
+import info.zamojski.soft.towercollector.dao.migration.IMigrationProgressListener;
 import info.zamojski.soft.towercollector.model.AnalyticsStatistics;
 import timber.log.Timber;
 
@@ -16,9 +17,11 @@ public class DatabaseUpgradeTask {
 
 
     private int oldDbVersion;
+    private IMigrationProgressListener progressListener;
 
-    public DatabaseUpgradeTask(int oldDbVersion) {
+    public DatabaseUpgradeTask(int oldDbVersion, IMigrationProgressListener progressListener) {
         this.oldDbVersion = oldDbVersion;
+        this.progressListener = progressListener;
     }
 
     public void upgrade() {
@@ -27,7 +30,9 @@ public class DatabaseUpgradeTask {
             // invalidate database (protects against crash when database swapped while application paused - generally for testing)
             MeasurementsDatabase.invalidateInstance(MyApplication.getApplication());
             long startTime = System.currentTimeMillis();
-            // one of below will trigger data migration if necessary (long operation)
+            // resumable data migration (long operation)
+            MeasurementsDatabase.upgradeDatabase(MyApplication.getApplication(), progressListener);
+            // one of below will trigger remaining data migration if necessary
             MeasurementsDatabase.getInstance(MyApplication.getApplication()).forceDatabaseUpgrade();
             AnalyticsStatistics stats = MeasurementsDatabase.getInstance(MyApplication.getApplication()).getAnalyticsStatistics();
             long endTime = System.currentTimeMillis();
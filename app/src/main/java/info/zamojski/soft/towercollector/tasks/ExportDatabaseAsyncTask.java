@@ -0,0 +1,68 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.tasks;
+
+import android.app.ProgressDialog;
+import android.content.Context;
+import android.os.AsyncTask;
+import android.widget.Toast;
+
+import info.zamojski.soft.towercollector.R;
+import info.zamojski.soft.towercollector.dev.DatabaseOperations;
+import info.zamojski.soft.towercollector.files.generators.wrappers.interfaces.IProgressListener;
+import timber.log.Timber;
+
+public class ExportDatabaseAsyncTask extends AsyncTask<Void, Integer, Integer> implements IProgressListener {
+
+    private Context context;
+    private boolean unique;
+
+    private ProgressDialog dialog;
+
+    public ExportDatabaseAsyncTask(Context context, boolean unique) {
+        this.context = context;
+        this.unique = unique;
+    }
+
+    @Override
+    protected void onPreExecute() {
+        Timber.d("onPreExecute(): Starting database export");
+        dialog = new ProgressDialog(context);
+        dialog.setTitle(R.string.export_dialog_progress_title);
+        dialog.setMessage(context.getString(R.string.database_export_progress_message));
+        dialog.setCancelable(false);
+        dialog.setCanceledOnTouchOutside(false);
+        dialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        dialog.setMax(100);
+        dialog.show();
+    }
+
+    @Override
+    protected Integer doInBackground(Void... params) {
+        Thread.currentThread().setName(ExportDatabaseAsyncTask.class.getSimpleName() + ".Worker");
+        if (unique) {
+            return DatabaseOperations.exportDatabaseUnique(context.getApplicationContext(), this);
+        }
+        return DatabaseOperations.exportDatabase(context.getApplicationContext(), this);
+    }
+
+    @Override
+    protected void onProgressUpdate(Integer... progress) {
+        dialog.setMax(progress[1]);
+        dialog.setProgress(progress[0]);
+    }
+
+    @Override
+    protected void onPostExecute(Integer messageId) {
+        Timber.d("onPostExecute(): Database export finished");
+        dialog.dismiss();
+        Toast.makeText(context, messageId, Toast.LENGTH_LONG).show();
+    }
+
+    @Override
+    public void reportProgress(int value, int max) {
+        publishProgress(value, max);
+    }
+}
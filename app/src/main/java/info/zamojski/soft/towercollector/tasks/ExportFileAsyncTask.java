@@ -178,9 +178,9 @@ public class ExportFileAsyncTask extends AsyncTask<Void, Integer, FileGeneratorR
     private IProgressiveTextGeneratorWrapper CreateTextGeneratorWrapper(FileType fileType) {
         switch (fileType) {
             case Csv:
-                return new CsvTextGeneratorWrapper(context, device, new CsvExportFormatter());
+                return new CsvTextGeneratorWrapper(context, device, new CsvExportFormatter(), MyApplication.getPreferencesProvider().getExportIncludeArchived());
             case CsvOcid:
-                return new CsvTextGeneratorWrapper(context, device, new CsvUploadFormatter());
+                return new CsvTextGeneratorWrapper(context, device, new CsvUploadFormatter(), MyApplication.getPreferencesProvider().getExportIncludeArchived());
             case Gpx:
                 return new GpxTextGeneratorWrapper(context, device);
             case JsonMls:
@@ -0,0 +1,63 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.tasks;
+
+import android.app.ProgressDialog;
+import android.content.Context;
+import android.os.AsyncTask;
+import android.widget.Toast;
+
+import info.zamojski.soft.towercollector.R;
+import info.zamojski.soft.towercollector.dev.DatabaseOperations;
+import info.zamojski.soft.towercollector.files.generators.wrappers.interfaces.IProgressListener;
+import timber.log.Timber;
+
+public class ImportMeasurementsAsyncTask extends AsyncTask<Void, Integer, String> implements IProgressListener {
+
+    private Context context;
+
+    private ProgressDialog dialog;
+
+    public ImportMeasurementsAsyncTask(Context context) {
+        this.context = context;
+    }
+
+    @Override
+    protected void onPreExecute() {
+        Timber.d("onPreExecute(): Starting measurements import");
+        dialog = new ProgressDialog(context);
+        dialog.setTitle(R.string.measurements_import_progress_title);
+        dialog.setMessage(context.getString(R.string.measurements_import_progress_message));
+        dialog.setCancelable(false);
+        dialog.setCanceledOnTouchOutside(false);
+        dialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        dialog.setMax(100);
+        dialog.show();
+    }
+
+    @Override
+    protected String doInBackground(Void... params) {
+        Thread.currentThread().setName(ImportMeasurementsAsyncTask.class.getSimpleName() + ".Worker");
+        return DatabaseOperations.importMeasurements(context.getApplicationContext(), this);
+    }
+
+    @Override
+    protected void onProgressUpdate(Integer... progress) {
+        dialog.setMax(progress[1]);
+        dialog.setProgress(progress[0]);
+    }
+
+    @Override
+    protected void onPostExecute(String message) {
+        Timber.d("onPostExecute(): Measurements import finished");
+        dialog.dismiss();
+        Toast.makeText(context, message, Toast.LENGTH_LONG).show();
+    }
+
+    @Override
+    public void reportProgress(int value, int max) {
+        publishProgress(value, max);
+    }
+}
@@ -0,0 +1,71 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.utils;
+
+import info.zamojski.soft.towercollector.model.Measurement;
+
+/**
+ * Packs cell identity into one non-negative 64-bit key: network type (3 bits), network id (14 bits), lac (17 bits) and cid (29 bits).
+ * Network id is row id of mcc and mnc pair in networks dictionary (for CDMA mcc is unknown and mnc holds sid, nid is stored as lac
+ * and bid as cid). Highest value of lac and cid fields stands for {@link Measurement#UNKNOWN_CID}, so decoding is lossless.
+ * Keys of cells from the same network and area are adjacent.
+ * Cells which cannot be encoded are stored with negative keys assigned by database instead.
+ * Keys are valid only within one database (and its segments) because network ids are local to it, so files derived
+ * from them, e.g. known cells index, are removed when database is imported and rebuilt from tables.
+ */
+public class CellKeyUtils {
+
+    public static final int MAX_NETWORK_ID = (1 << 14) - 1;
+    public static final int MAX_LAC = 65535;
+    public static final int MAX_CID = 268435455;
+
+    private static final int CID_BITS = 29;
+    private static final int LAC_BITS = 17;
+    private static final int NETWORK_ID_BITS = 14;
+    private static final int LAC_SHIFT = CID_BITS;
+    private static final int NETWORK_ID_SHIFT = LAC_SHIFT + LAC_BITS;
+    private static final int NET_TYPE_SHIFT = NETWORK_ID_SHIFT + NETWORK_ID_BITS;
+    private static final int MAX_NET_TYPE = 7;
+
+    private static final int UNKNOWN_LAC_VALUE = MAX_LAC + 1;
+    private static final int UNKNOWN_CID_VALUE = MAX_CID + 1;
+
+    public static boolean canEncode(int networkId, int networkType, int lac, int cid) {
+        return (networkId >= 0 && networkId <= MAX_NETWORK_ID && networkType >= 0 && networkType <= MAX_NET_TYPE
+                && isInRange(lac, MAX_LAC) && isInRange(cid, MAX_CID));
+    }
+
+    public static long toCellKey(int networkId, int networkType, int lac, int cid) {
+        if (!canEncode(networkId, networkType, lac, cid)) {
+            throw new IllegalArgumentException("Cell cannot be encoded [networkId=" + networkId + ", networkType=" + networkType + ", lac=" + lac + ", cid=" + cid + "]");
+        }
+        return ((long) networkType << NET_TYPE_SHIFT)
+                | ((long) networkId << NETWORK_ID_SHIFT)
+                | ((long) (lac == Measurement.UNKNOWN_CID ? UNKNOWN_LAC_VALUE : lac) << LAC_SHIFT)
+                | (cid == Measurement.UNKNOWN_CID ? UNKNOWN_CID_VALUE : cid);
+    }
+
+    public static int getNetworkType(long cellKey) {
+        return (int) (cellKey >>> NET_TYPE_SHIFT);
+    }
+
+    public static int getNetworkId(long cellKey) {
+        return (int) ((cellKey >>> NETWORK_ID_SHIFT) & MAX_NETWORK_ID);
+    }
+
+    public static int getLac(long cellKey) {
+        int lac = (int) ((cellKey >>> LAC_SHIFT) & ((1 << LAC_BITS) - 1));
+        return (lac == UNKNOWN_LAC_VALUE ? Measurement.UNKNOWN_CID : lac);
+    }
+
+    public static int getCid(long cellKey) {
+        int cid = (int) (cellKey & ((1 << CID_BITS) - 1));
+        return (cid == UNKNOWN_CID_VALUE ? Measurement.UNKNOWN_CID : cid);
+    }
+
+    private static boolean isInRange(int value, int max) {
+        return ((value >= 0 && value <= max) || value == Measurement.UNKNOWN_CID);
+    }
+}
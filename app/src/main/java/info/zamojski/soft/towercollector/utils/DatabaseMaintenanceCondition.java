@@ -0,0 +1,53 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.utils;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+
+import info.zamojski.soft.towercollector.MyApplication;
+import info.zamojski.soft.towercollector.dao.IMaintenanceCondition;
+
+/**
+ * Allows database maintenance while device is charging or idle and neither collector, uploader nor export is running.
+ */
+public class DatabaseMaintenanceCondition implements IMaintenanceCondition {
+
+    private final Context context;
+
+    public DatabaseMaintenanceCondition(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    @Override
+    public boolean canRunMaintenance() {
+        if (MyApplication.getBackgroundTaskName() != null) {
+            return false;
+        }
+        return (isCharging() || isIdle());
+    }
+
+    private boolean isCharging() {
+        Intent batteryStatus = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return (batteryStatus != null && batteryStatus.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0);
+    }
+
+    @SuppressWarnings("deprecation")
+    private boolean isIdle() {
+        PowerManager manager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        if (manager == null)
+            return false;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
+            return manager.isDeviceIdleMode();
+        // screen off is the closest equivalent on older versions
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT_WATCH)
+            return !manager.isInteractive();
+        return !manager.isScreenOn();
+    }
+}
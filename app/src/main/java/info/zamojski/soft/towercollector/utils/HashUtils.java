@@ -4,17 +4,23 @@
 
 package info.zamojski.soft.towercollector.utils;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.text.NumberFormat;
-import java.util.Locale;
 
 import info.zamojski.soft.towercollector.model.Measurement;
 import timber.log.Timber;
 
 public class HashUtils {
 
+    private static final long FINGERPRINT_SEED = 0x9e3779b97f4a7c15L;
+    private static final double COORDS_SCALE = 1e9;
+    private static final double GPS_SCALE = 1e2;
+
     public static String toSha1(String text) {
         final String hashingAlgorithm = "SHA-1";
         final String textEncoding = "UTF-8";
@@ -35,32 +41,53 @@ public class HashUtils {
         return text;
     }
 
-    public static String toSha1(Measurement m) {
-        return toSha1(m.getLatitude(), m.getLongitude(), m.getGpsAccuracy(), m.getGpsSpeed(), m.getGpsBearing(), m.getGpsAltitude());
+    public static String toSha256(File file) throws IOException {
+        final String hashingAlgorithm = "SHA-256";
+        try {
+            final MessageDigest digest = MessageDigest.getInstance(hashingAlgorithm);
+            InputStream stream = new FileInputStream(file);
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = stream.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                }
+            } finally {
+                stream.close();
+            }
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException("Unsupported hashing algorithm " + hashingAlgorithm, ex);
+        }
     }
 
-    public static String toSha1(double latitude, double longitude, double accuracy, double speed, double bearing, double altitude) {
-        final Locale LOCALE = Locale.ENGLISH;
-
-        NumberFormat coordsDoubleFormatter = NumberFormat.getNumberInstance(LOCALE);
-        coordsDoubleFormatter.setGroupingUsed(false);
-        coordsDoubleFormatter.setMinimumFractionDigits(9);
-        coordsDoubleFormatter.setMaximumFractionDigits(9);
-
-        NumberFormat gpsDoubleFormatter = NumberFormat.getNumberInstance(LOCALE);
-        gpsDoubleFormatter.setGroupingUsed(false);
-        gpsDoubleFormatter.setMinimumFractionDigits(2);
-        gpsDoubleFormatter.setMaximumFractionDigits(2);
-
-        StringBuilder sb = new StringBuilder();
+    public static long toLocationFingerprint(Measurement m) {
+        return toLocationFingerprint(m.getLatitude(), m.getLongitude(), m.getGpsAccuracy(), m.getGpsSpeed(), m.getGpsBearing(), m.getGpsAltitude());
+    }
 
-        sb.append(coordsDoubleFormatter.format(latitude)).append("_");
-        sb.append(coordsDoubleFormatter.format(longitude)).append("_");
-        sb.append(gpsDoubleFormatter.format(accuracy)).append("_");
-        sb.append(gpsDoubleFormatter.format(speed)).append("_");
-        sb.append(gpsDoubleFormatter.format(bearing)).append("_");
-        sb.append(gpsDoubleFormatter.format(altitude));
+    /**
+     * Computes 64-bit location fingerprint without allocations.
+     * Coordinates are quantised to 9 and GPS values to 2 fraction digits (same precision as former SHA-1 hashcode).
+     */
+    public static long toLocationFingerprint(double latitude, double longitude, double accuracy, double speed, double bearing, double altitude) {
+        long hash = FINGERPRINT_SEED;
+        hash = mix64(hash ^ Math.round(latitude * COORDS_SCALE));
+        hash = mix64(hash ^ Math.round(longitude * COORDS_SCALE));
+        hash = mix64(hash ^ Math.round(accuracy * GPS_SCALE));
+        hash = mix64(hash ^ Math.round(speed * GPS_SCALE));
+        hash = mix64(hash ^ Math.round(bearing * GPS_SCALE));
+        hash = mix64(hash ^ Math.round(altitude * GPS_SCALE));
+        return hash;
+    }
 
-        return toSha1(sb.toString());
+    // MurmurHash3 finalizer (bijective)
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return z ^ (z >>> 33);
     }
 }
@@ -0,0 +1,86 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.utils;
+
+import java.util.Arrays;
+
+/**
+ * Maps coordinates to cells of equirectangular grid numbered along Z-order curve, so nearby locations
+ * get close keys and every quadtree tile is one continuous range of keys.
+ */
+public class QuadKeyUtils {
+
+    // about 1.2 m in latitude and 2.4 m in longitude
+    public static final int LEVEL = 24;
+    private static final long GRID_SIZE = 1L << LEVEL;
+    // area is covered by at most 4 x 4 tiles
+    private static final int MAX_TILES_PER_AXIS = 4;
+
+    public static long toQuadKey(double latitude, double longitude) {
+        return interleave(toGrid(longitude + 180.0, 360.0), toGrid(latitude + 90.0, 180.0));
+    }
+
+    /**
+     * Returns sorted, non overlapping ranges of quad keys covering given area as pairs of first and last key.
+     * Ranges also contain locations around the area so coordinates have to be checked too.
+     * Area must not cross the antimeridian.
+     */
+    public static long[] toQuadKeyRanges(double minLat, double minLon, double maxLat, double maxLon) {
+        long minX = toGrid(minLon + 180.0, 360.0);
+        long maxX = toGrid(maxLon + 180.0, 360.0);
+        long minY = toGrid(minLat + 90.0, 180.0);
+        long maxY = toGrid(maxLat + 90.0, 180.0);
+        if (minX > maxX || minY > maxY) {
+            return new long[0];
+        }
+        // go up the tree until area fits in few tiles
+        int shift = 0;
+        while ((maxX >> shift) - (minX >> shift) >= MAX_TILES_PER_AXIS || (maxY >> shift) - (minY >> shift) >= MAX_TILES_PER_AXIS) {
+            shift++;
+        }
+        int columns = (int) ((maxX >> shift) - (minX >> shift) + 1);
+        int rows = (int) ((maxY >> shift) - (minY >> shift) + 1);
+        long[] firstKeys = new long[columns * rows];
+        int tile = 0;
+        for (long x = minX >> shift; x <= maxX >> shift; x++) {
+            for (long y = minY >> shift; y <= maxY >> shift; y++) {
+                firstKeys[tile++] = interleave(x, y) << (2 * shift);
+            }
+        }
+        Arrays.sort(firstKeys);
+        long tileSize = 1L << (2 * shift);
+        long[] ranges = new long[2 * firstKeys.length];
+        int rangesLength = 0;
+        for (long firstKey : firstKeys) {
+            if (rangesLength > 0 && ranges[rangesLength - 1] + 1 == firstKey) {
+                // merge neighbouring tiles
+                ranges[rangesLength - 1] = firstKey + tileSize - 1;
+            } else {
+                ranges[rangesLength++] = firstKey;
+                ranges[rangesLength++] = firstKey + tileSize - 1;
+            }
+        }
+        return Arrays.copyOf(ranges, rangesLength);
+    }
+
+    private static long toGrid(double value, double range) {
+        long cell = (long) Math.floor(value / range * GRID_SIZE);
+        return Math.max(0, Math.min(GRID_SIZE - 1, cell));
+    }
+
+    // x on even and y on odd bits
+    private static long interleave(long x, long y) {
+        return spread(x) | (spread(y) << 1);
+    }
+
+    private static long spread(long v) {
+        v = (v | (v << 16)) & 0x0000FFFF0000FFFFL;
+        v = (v | (v << 8)) & 0x00FF00FF00FF00FFL;
+        v = (v | (v << 4)) & 0x0F0F0F0F0F0F0F0FL;
+        v = (v | (v << 2)) & 0x3333333333333333L;
+        v = (v | (v << 1)) & 0x5555555555555555L;
+        return v;
+    }
+}
@@ -9,7 +9,8 @@ import java.util.Locale;
 
 import info.zamojski.soft.towercollector.MyApplication;
 import info.zamojski.soft.towercollector.R;
-import info.zamojski.soft.towercollector.dao.MeasurementsDatabase;
+import info.zamojski.soft.towercollector.dao.AsyncMeasurementsDatabase;
+import info.zamojski.soft.towercollector.dao.IDatabaseCallback;
 import info.zamojski.soft.towercollector.enums.NetworkGroup;
 import info.zamojski.soft.towercollector.events.MeasurementSavedEvent;
 import info.zamojski.soft.towercollector.events.PrintMainWindowEvent;
@@ -103,9 +104,30 @@ public class MainLastFragment extends MainFragmentBase {
     }
 
     private void getAndPrintOrClearMeasurement() {
-        Measurement measurement = MeasurementsDatabase.getInstance(MyApplication.getApplication()).getLastMeasurement();
-        CellsCount cellsCount = MeasurementsDatabase.getInstance(MyApplication.getApplication()).getLastCellsCount();
-        printOrClearMeasurement(measurement, cellsCount);
+        final AsyncMeasurementsDatabase database = AsyncMeasurementsDatabase.getInstance(MyApplication.getApplication());
+        database.getLastMeasurement(new IDatabaseCallback<Measurement>() {
+            @Override
+            public void onResult(final Measurement measurement) {
+                database.getLastCellsCount(new IDatabaseCallback<CellsCount>() {
+                    @Override
+                    public void onResult(CellsCount cellsCount) {
+                        if (isAdded()) {
+                            printOrClearMeasurement(measurement, cellsCount);
+                        }
+                    }
+
+                    @Override
+                    public void onError(Exception ex) {
+                        // previous measurement stays visible
+                    }
+                });
+            }
+
+            @Override
+            public void onError(Exception ex) {
+                // previous measurement stays visible
+            }
+        });
     }
 
     private void printOrClearMeasurement(Measurement measurement, CellsCount cellsCount) {
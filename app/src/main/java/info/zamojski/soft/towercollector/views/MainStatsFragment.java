@@ -8,7 +8,8 @@ import java.util.Date;
 
 import info.zamojski.soft.towercollector.MyApplication;
 import info.zamojski.soft.towercollector.R;
-import info.zamojski.soft.towercollector.dao.MeasurementsDatabase;
+import info.zamojski.soft.towercollector.dao.AsyncMeasurementsDatabase;
+import info.zamojski.soft.towercollector.dao.IDatabaseCallback;
 import info.zamojski.soft.towercollector.events.MeasurementSavedEvent;
 import info.zamojski.soft.towercollector.events.PrintMainWindowEvent;
 import info.zamojski.soft.towercollector.model.Statistics;
@@ -51,9 +52,7 @@ public class MainStatsFragment extends MainFragmentBase {
     @Override
     protected void configureOnResume() {
         super.configureOnResume();
-        MyApplication app = MyApplication.getApplication();
-        Statistics stats = MeasurementsDatabase.getInstance(app).getMeasurementsStatistics();
-        printStatistics(stats);
+        AsyncMeasurementsDatabase.getInstance(MyApplication.getApplication()).getMeasurementsStatistics(printStatisticsCallback);
     }
 
     @Override
@@ -81,10 +80,23 @@ public class MainStatsFragment extends MainFragmentBase {
 
     @Subscribe(threadMode = ThreadMode.MAIN)
     public void onEvent(PrintMainWindowEvent event) {
-        Statistics stats = MeasurementsDatabase.getInstance(MyApplication.getApplication()).getMeasurementsStatistics();
-        printStatistics(stats);
+        AsyncMeasurementsDatabase.getInstance(MyApplication.getApplication()).getMeasurementsStatistics(printStatisticsCallback);
     }
 
+    private final IDatabaseCallback<Statistics> printStatisticsCallback = new IDatabaseCallback<Statistics>() {
+        @Override
+        public void onResult(Statistics stats) {
+            if (isAdded()) {
+                printStatistics(stats);
+            }
+        }
+
+        @Override
+        public void onError(Exception ex) {
+            // previous statistics stay visible
+        }
+    };
+
     private void printStatistics(Statistics stats) {
         Timber.d("printStatistics(): Showing stats %s", stats);
         long sinceLocal = stats.getSinceLocal();
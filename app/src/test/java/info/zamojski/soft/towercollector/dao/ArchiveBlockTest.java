@@ -0,0 +1,179 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.dao;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import info.zamojski.soft.towercollector.enums.NetworkGroup;
+import info.zamojski.soft.towercollector.model.Measurement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Verifies that every exported column survives write and read of archive block.
+ */
+public class ArchiveBlockTest {
+
+    private static final long START = 1500000000000L;
+
+    @Test
+    public void testRoundTripOfAllColumns() throws IOException {
+        List<Measurement> measurements = new ArrayList<>();
+        measurements.add(createMeasurement(START, NetworkGroup.Gsm, false));
+        measurements.add(createMeasurement(START + 1000, NetworkGroup.Gsm, true));
+        // decreasing values produce negative differences
+        Measurement older = createMeasurement(START - 86400000L, NetworkGroup.Lte, false);
+        older.setLac(1);
+        older.setCid(0);
+        older.setDbm(-140);
+        older.setDbmMin(-140);
+        older.setDbmMax(-44);
+        older.setSamples(1);
+        older.setLatitude(-89.999999);
+        older.setLongitude(-179.999999);
+        measurements.add(older);
+        measurements.add(createMeasurement(START + 2000, NetworkGroup.Wcdma, false));
+        measurements.add(createMeasurement(START + 3000, NetworkGroup.Cdma, false));
+        measurements.add(createMeasurement(START + 4000, NetworkGroup.Unknown, true));
+        // fresh instance keeps unknown values of all columns
+        Measurement unknown = new Measurement();
+        unknown.setTimestamp(START + 5000);
+        measurements.add(unknown);
+        Measurement extreme = createMeasurement(Long.MAX_VALUE, NetworkGroup.Lte, true);
+        extreme.setMcc(Integer.MIN_VALUE);
+        extreme.setCid(Integer.MAX_VALUE);
+        extreme.setSamples(Integer.MAX_VALUE);
+        extreme.setGpsAccuracy(Float.NaN);
+        extreme.setGpsSpeed(Float.MAX_VALUE);
+        extreme.setGpsBearing(-0.0f);
+        extreme.setGpsAltitude(Double.NEGATIVE_INFINITY);
+        measurements.add(extreme);
+
+        ArchiveBlockWriter writer = new ArchiveBlockWriter();
+        for (Measurement m : measurements) {
+            writer.write(m);
+        }
+        assertEquals(measurements.size(), writer.getCount());
+        assertEquals(START, writer.getFirstTimestamp());
+        assertEquals(Long.MAX_VALUE, writer.getLastTimestamp());
+        byte[] block = writer.finish();
+        assertEquals(ArchiveBlockWriter.FORMAT_VERSION, block[0]);
+
+        ArchiveBlockReader reader = new ArchiveBlockReader(block, measurements.size());
+        try {
+            Measurement read = new Measurement();
+            for (Measurement expected : measurements) {
+                assertTrue(reader.read(read));
+                assertMeasurementEquals(expected, read);
+            }
+            assertFalse(reader.read(read));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testRoundTripOfEmptyBlock() throws IOException {
+        byte[] block = new ArchiveBlockWriter().finish();
+        ArchiveBlockReader reader = new ArchiveBlockReader(block, 0);
+        try {
+            assertFalse(reader.read(new Measurement()));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testRejectsUnsupportedFormat() throws IOException {
+        ArchiveBlockWriter writer = new ArchiveBlockWriter();
+        writer.write(createMeasurement(START, NetworkGroup.Gsm, false));
+        byte[] block = writer.finish();
+        block[0] = ArchiveBlockWriter.FORMAT_VERSION + 1;
+        try {
+            new ArchiveBlockReader(block, 1);
+            fail("Unsupported format accepted");
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRejectsTruncatedBlock() throws IOException {
+        ArchiveBlockWriter writer = new ArchiveBlockWriter();
+        writer.write(createMeasurement(START, NetworkGroup.Gsm, false));
+        byte[] block = writer.finish();
+        // more measurements than written
+        ArchiveBlockReader reader = new ArchiveBlockReader(block, 2);
+        try {
+            Measurement read = new Measurement();
+            assertTrue(reader.read(read));
+            reader.read(read);
+            fail("Truncated block read");
+        } catch (IOException ex) {
+            // expected
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static Measurement createMeasurement(long timestamp, NetworkGroup networkType, boolean neighboring) {
+        Measurement m = new Measurement();
+        m.setTimestamp(timestamp);
+        m.setMcc(260);
+        m.setMnc(2);
+        m.setLac(58140);
+        m.setCid(268435455);
+        m.setNetworkType(networkType);
+        m.setNeighboring(neighboring);
+        m.setPsc(511);
+        m.setTa(63);
+        m.setAsu(31);
+        m.setDbm(-51);
+        m.setSamples(12);
+        m.setDbmMin(-97);
+        m.setDbmMax(-51);
+        m.setLatitude(52.2296756 + timestamp % 1000 / 1e7);
+        m.setLongitude(21.0122287);
+        m.setGpsAccuracy(3.5f);
+        m.setGpsSpeed(13.9f);
+        m.setGpsBearing(271.25f);
+        m.setGpsAltitude(113.4);
+        return m;
+    }
+
+    private static void assertMeasurementEquals(Measurement expected, Measurement actual) {
+        String message = expected.toString();
+        assertEquals(message, 0, actual.getRowId());
+        assertEquals(message, expected.getTimestamp(), actual.getTimestamp());
+        assertEquals(message, expected.getMcc(), actual.getMcc());
+        assertEquals(message, expected.getMnc(), actual.getMnc());
+        assertEquals(message, expected.getLac(), actual.getLac());
+        assertEquals(message, expected.getCid(), actual.getCid());
+        assertEquals(message, expected.getNetworkType(), actual.getNetworkType());
+        assertEquals(message, expected.isNeighboring(), actual.isNeighboring());
+        assertEquals(message, expected.getPsc(), actual.getPsc());
+        assertEquals(message, expected.getTa(), actual.getTa());
+        assertEquals(message, expected.getAsu(), actual.getAsu());
+        assertEquals(message, expected.getDbm(), actual.getDbm());
+        assertEquals(message, expected.getSamples(), actual.getSamples());
+        assertEquals(message, expected.getDbmMin(), actual.getDbmMin());
+        assertEquals(message, expected.getDbmMax(), actual.getDbmMax());
+        // bit patterns must match exactly, including NaN and negative zero
+        assertEquals(message, Double.doubleToRawLongBits(expected.getLatitude()), Double.doubleToRawLongBits(actual.getLatitude()));
+        assertEquals(message, Double.doubleToRawLongBits(expected.getLongitude()), Double.doubleToRawLongBits(actual.getLongitude()));
+        assertEquals(message, Float.floatToIntBits(expected.getGpsAccuracy()), Float.floatToIntBits(actual.getGpsAccuracy()));
+        assertEquals(message, Float.floatToIntBits(expected.getGpsSpeed()), Float.floatToIntBits(actual.getGpsSpeed()));
+        assertEquals(message, Float.floatToIntBits(expected.getGpsBearing()), Float.floatToIntBits(actual.getGpsBearing()));
+        assertEquals(message, Double.doubleToRawLongBits(expected.getGpsAltitude()), Double.doubleToRawLongBits(actual.getGpsAltitude()));
+    }
+}
@@ -0,0 +1,118 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package info.zamojski.soft.towercollector.utils;
+
+import org.junit.Test;
+
+import info.zamojski.soft.towercollector.model.Measurement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Verifies that {@link CellKeyUtils} decodes what it encodes at limits of every field, and that cells
+ * which cannot be encoded are rejected so they are stored with negative keys by database.
+ */
+public class CellKeyUtilsTest {
+
+    private static final int MAX_NET_TYPE = 7;
+
+    @Test
+    public void testRoundTripOfZeros() {
+        assertRoundTrip(0, 0, 0, 0);
+        assertEquals(0L, CellKeyUtils.toCellKey(0, 0, 0, 0));
+    }
+
+    @Test
+    public void testRoundTripOfNetworkTypeLimit() {
+        assertRoundTrip(0, MAX_NET_TYPE, 0, 0);
+        assertRoundTrip(1, MAX_NET_TYPE, 1, 1);
+    }
+
+    @Test
+    public void testRoundTripOfNetworkIdLimit() {
+        assertRoundTrip(CellKeyUtils.MAX_NETWORK_ID, 0, 0, 0);
+        assertRoundTrip(CellKeyUtils.MAX_NETWORK_ID, 1, 1, 1);
+    }
+
+    @Test
+    public void testRoundTripOfLacLimit() {
+        assertRoundTrip(0, 0, CellKeyUtils.MAX_LAC, 0);
+        assertRoundTrip(1, 1, CellKeyUtils.MAX_LAC, 1);
+    }
+
+    @Test
+    public void testRoundTripOfCidLimit() {
+        assertRoundTrip(0, 0, 0, CellKeyUtils.MAX_CID);
+        assertRoundTrip(1, 1, 1, CellKeyUtils.MAX_CID);
+    }
+
+    @Test
+    public void testRoundTripOfAllLimits() {
+        long cellKey = assertRoundTrip(CellKeyUtils.MAX_NETWORK_ID, MAX_NET_TYPE, CellKeyUtils.MAX_LAC, CellKeyUtils.MAX_CID);
+        assertTrue(cellKey > 0);
+    }
+
+    @Test
+    public void testRoundTripOfUnknownCid() {
+        assertRoundTrip(1, 1, Measurement.UNKNOWN_CID, 1);
+        assertRoundTrip(1, 1, 1, Measurement.UNKNOWN_CID);
+        long cellKey = assertRoundTrip(CellKeyUtils.MAX_NETWORK_ID, MAX_NET_TYPE, Measurement.UNKNOWN_CID, Measurement.UNKNOWN_CID);
+        assertTrue(cellKey > 0);
+    }
+
+    @Test
+    public void testUnknownCidDiffersFromLimits() {
+        assertFalse(CellKeyUtils.toCellKey(1, 1, Measurement.UNKNOWN_CID, 1) == CellKeyUtils.toCellKey(1, 1, CellKeyUtils.MAX_LAC, 1));
+        assertFalse(CellKeyUtils.toCellKey(1, 1, 1, Measurement.UNKNOWN_CID) == CellKeyUtils.toCellKey(1, 1, 1, CellKeyUtils.MAX_CID));
+        assertFalse(CellKeyUtils.toCellKey(1, 1, Measurement.UNKNOWN_CID, 1) == CellKeyUtils.toCellKey(2, 1, 0, 1));
+        assertFalse(CellKeyUtils.toCellKey(1, 1, 1, Measurement.UNKNOWN_CID) == CellKeyUtils.toCellKey(1, 1, 2, 0));
+    }
+
+    @Test
+    public void testFieldsDoNotOverlap() {
+        assertEquals(1L, CellKeyUtils.toCellKey(0, 0, 0, 1));
+        assertEquals(1L << 29, CellKeyUtils.toCellKey(0, 0, 1, 0));
+        assertEquals(1L << 46, CellKeyUtils.toCellKey(1, 0, 0, 0));
+        assertEquals(1L << 60, CellKeyUtils.toCellKey(0, 1, 0, 0));
+    }
+
+    @Test
+    public void testCellsBeyondLimitsCannotBeEncoded() {
+        assertCannotEncode(CellKeyUtils.MAX_NETWORK_ID + 1, 0, 0, 0);
+        assertCannotEncode(-1, 0, 0, 0);
+        assertCannotEncode(0, MAX_NET_TYPE + 1, 0, 0);
+        assertCannotEncode(0, -1, 0, 0);
+        assertCannotEncode(0, 0, CellKeyUtils.MAX_LAC + 1, 0);
+        assertCannotEncode(0, 0, -1, 0);
+        assertCannotEncode(0, 0, 0, CellKeyUtils.MAX_CID + 1);
+        assertCannotEncode(0, 0, 0, -1);
+        assertCannotEncode(0, 0, 0, Integer.MIN_VALUE);
+        assertCannotEncode(0, 0, 0, Measurement.UNKNOWN_CID - 1);
+    }
+
+    private static long assertRoundTrip(int networkId, int networkType, int lac, int cid) {
+        assertTrue(CellKeyUtils.canEncode(networkId, networkType, lac, cid));
+        long cellKey = CellKeyUtils.toCellKey(networkId, networkType, lac, cid);
+        assertTrue("Key must not collide with negative fallback keys", cellKey >= 0);
+        assertEquals(networkId, CellKeyUtils.getNetworkId(cellKey));
+        assertEquals(networkType, CellKeyUtils.getNetworkType(cellKey));
+        assertEquals(lac, CellKeyUtils.getLac(cellKey));
+        assertEquals(cid, CellKeyUtils.getCid(cellKey));
+        return cellKey;
+    }
+
+    private static void assertCannotEncode(int networkId, int networkType, int lac, int cid) {
+        assertFalse(CellKeyUtils.canEncode(networkId, networkType, lac, cid));
+        try {
+            CellKeyUtils.toCellKey(networkId, networkType, lac, cid);
+            fail("Cell encoded beyond limits [networkId=" + networkId + ", networkType=" + networkType + ", lac=" + lac + ", cid=" + cid + "]");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+}